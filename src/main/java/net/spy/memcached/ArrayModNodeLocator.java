@@ -9,7 +9,7 @@ import java.util.List;
  * NodeLocator implementation for dealing with simple array lookups using a
  * modulus of the hash code and node list length.
  */
-public final class ArrayModNodeLocator implements NodeLocator {
+public final class ArrayModNodeLocator implements EncodedKeyNodeLocator {
 
 	final MemcachedNode[] nodes;
 
@@ -42,6 +42,10 @@ public final class ArrayModNodeLocator implements NodeLocator {
 		return nodes[getServerForKey(k)];
 	}
 
+	public MemcachedNode getPrimary(String k, byte[] b) {
+		return nodes[getServerForHash(hashAlg.hash(b, 0, b.length), k)];
+	}
+
 	public Iterator<MemcachedNode> getSequence(String k) {
 		return new NodeIterator(getServerForKey(k));
 	}
@@ -55,7 +59,11 @@ public final class ArrayModNodeLocator implements NodeLocator {
 	}
 
 	private int getServerForKey(String key) {
-		int rv=(int)(hashAlg.hash(key) % nodes.length);
+		return getServerForHash(hashAlg.hash(key), key);
+	}
+
+	private int getServerForHash(long hash, String key) {
+		int rv=(int)(hash % nodes.length);
 		assert rv >= 0 : "Returned negative key for key " + key;
 		assert rv < nodes.length
 			: "Invalid server number " + rv + " for key " + key;
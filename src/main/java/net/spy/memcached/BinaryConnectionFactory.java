@@ -44,7 +44,8 @@ public class BinaryConnectionFactory extends DefaultConnectionFactory {
 			createReadOperationQueue(),
 			createWriteOperationQueue(),
 			createOperationQueue(),
-			getOpQueueMaxBlockTime());
+			getOpQueueMaxBlockTime(),
+			getBufferPool());
 	}
 
 	@Override
@@ -0,0 +1,139 @@
+package net.spy.memcached;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * NodeLocator implementing consistent hashing with bounded loads on top of
+ * another locator.
+ *
+ * <p>
+ * For keys starting with one of the configured prefixes, a node is only
+ * chosen if it has fewer than <code>(1+epsilon)</code> times the average
+ * number of operations in flight across all nodes.  When the primary node
+ * is over that bound, the wrapped locator's sequence for the key is walked
+ * in order and the first node under the bound is used instead, falling
+ * back to the primary if every node is loaded.  Other keys are located
+ * exactly as the wrapped locator would locate them.
+ * </p>
+ *
+ * <p>
+ * Since a key may be served by a different node while its primary is
+ * busy, this should only be enabled for read-mostly keys where reading a
+ * miss or a stale copy from another node is acceptable.
+ * </p>
+ *
+ * @see <a href="http://arxiv.org/abs/1608.01350">Consistent Hashing with
+ *      Bounded Loads</a>
+ */
+public final class BoundedLoadNodeLocator implements EncodedKeyNodeLocator {
+
+	/**
+	 * Default fraction by which a node may exceed the average load.
+	 */
+	public static final double DEFAULT_EPSILON = 0.25;
+
+	private final NodeLocator locator;
+	private final double loadFactor;
+	private final String[] prefixes;
+
+	/**
+	 * Bound the load of the given locator's nodes for keys with the given
+	 * prefixes.
+	 *
+	 * @param l the locator to wrap
+	 * @param epsilon the fraction by which a node may exceed the average
+	 *        load before keys move off of it
+	 * @param p the prefixes of the keys to bound (an empty prefix matches
+	 *        every key)
+	 */
+	public BoundedLoadNodeLocator(NodeLocator l, double epsilon,
+			Collection<String> p) {
+		super();
+		if(epsilon <= 0) {
+			throw new IllegalArgumentException(
+				"Epsilon must be positive, got " + epsilon);
+		}
+		locator=l;
+		loadFactor=1 + epsilon;
+		prefixes=p.toArray(new String[p.size()]);
+	}
+
+	/**
+	 * Get the locator this one wraps.
+	 */
+	public NodeLocator getLocator() {
+		return locator;
+	}
+
+	boolean isBounded(String k) {
+		for(String p : prefixes) {
+			if(k.startsWith(p)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of operations a node may have in flight and still be
+	 * given another.
+	 */
+	int getCapacity() {
+		Collection<MemcachedNode> all=locator.getAll();
+		long total=0;
+		for(MemcachedNode n : all) {
+			total += n.getInFlightCount();
+		}
+		// Count the operation being placed.
+		return (int)Math.ceil(loadFactor * (total + 1) / all.size());
+	}
+
+	public MemcachedNode getPrimary(String k) {
+		return bound(k, locator.getPrimary(k));
+	}
+
+	public MemcachedNode getPrimary(String k, byte[] b) {
+		return bound(k, locator instanceof EncodedKeyNodeLocator
+			? ((EncodedKeyNodeLocator)locator).getPrimary(k, b)
+			: locator.getPrimary(k));
+	}
+
+	// Move the key off its primary if that's overloaded.
+	private MemcachedNode bound(String k, MemcachedNode primary) {
+		if(!isBounded(k)) {
+			return primary;
+		}
+		int capacity=getCapacity();
+		if(primary.getInFlightCount() < capacity) {
+			return primary;
+		}
+		for(Iterator<MemcachedNode> i=locator.getSequence(k); i.hasNext(); ) {
+			MemcachedNode n=i.next();
+			if(n != primary && n.getInFlightCount() < capacity) {
+				return n;
+			}
+		}
+		return primary;
+	}
+
+	public Iterator<MemcachedNode> getSequence(String k) {
+		return locator.getSequence(k);
+	}
+
+	public Collection<MemcachedNode> getAll() {
+		return locator.getAll();
+	}
+
+	/**
+	 * Get a read-only copy of the wrapped locator.
+	 *
+	 * <p>
+	 * Load is a property of the live connections, so the copy reports
+	 * where keys are placed when no node is overloaded.
+	 * </p>
+	 */
+	public NodeLocator getReadonlyCopy() {
+		return locator.getReadonlyCopy();
+	}
+}
@@ -0,0 +1,41 @@
+package net.spy.memcached;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of the buffers used to encode operations and read responses.
+ *
+ * <p>
+ * Implementations must be safe for use from multiple threads since
+ * operations are encoded on the calling threads and their buffers are
+ * released from the IO threads.
+ * </p>
+ */
+public interface BufferPool {
+
+	/**
+	 * Get a buffer with at least the given number of bytes remaining.
+	 *
+	 * <p>
+	 * The returned buffer will be big-endian, positioned at zero and have
+	 * its limit set to the requested size.
+	 * </p>
+	 *
+	 * @param size the number of bytes needed
+	 * @return the buffer
+	 */
+	ByteBuffer allocate(int size);
+
+	/**
+	 * Return a buffer to the pool.
+	 *
+	 * <p>
+	 * The caller must not touch the buffer again after releasing it.  Pools
+	 * ignore buffers they don't recognize, and buffers that are never
+	 * released are simply left for the garbage collector.
+	 * </p>
+	 *
+	 * @param b the buffer
+	 */
+	void release(ByteBuffer b);
+}
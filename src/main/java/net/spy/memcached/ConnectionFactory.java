@@ -132,4 +132,114 @@ public interface ConnectionFactory {
 	 * @return null if no authentication should take place
 	 */
 	AuthDescriptor getAuthDescriptor();
+
+	/**
+	 * Get the number of selectors (each with its own IO thread) that the
+	 * connections will be spread over.
+	 *
+	 * <p>
+	 * The first IO loop is driven by the client's own thread, any beyond
+	 * that run on threads owned by the connection.  Each server connection
+	 * is pinned to exactly one loop.
+	 * </p>
+	 */
+	int getIOLoopCount();
+
+	/**
+	 * Get the number of connections to open to each server.
+	 *
+	 * <p>
+	 * Operations on any given key are always sent over the same connection,
+	 * operations on other keys are spread across the rest so one slow
+	 * response doesn't hold up everything else going to that server.
+	 * </p>
+	 */
+	int getConnectionsPerServer();
+
+	/**
+	 * Get the pool nodes use for their read buffers and operations use to
+	 * encode their requests.
+	 */
+	BufferPool getBufferPool();
+
+	/**
+	 * Get the number of milliseconds after the servers change during which
+	 * gets that miss on a key's new server are retried on its old server.
+	 *
+	 * <p>
+	 * Hits on the old server are copied to the new one until this has
+	 * passed, so keys that moved warm up as they're read rather than all
+	 * missing at once.  Writes to moved keys also delete them from their
+	 * old servers.  Removed servers are kept connected until this has
+	 * passed.  0 disables this.
+	 * </p>
+	 */
+	long getMigrationWindow();
+
+	/**
+	 * If true, gets for a key that's already being fetched wait for that
+	 * fetch rather than sending another request.
+	 *
+	 * <p>
+	 * Every caller waiting on a fetch sees its outcome, so cancelling any
+	 * of their futures cancels it for all of them.
+	 * </p>
+	 */
+	boolean shouldCoalesceGets();
+
+	/**
+	 * Get the number of servers each key is written to.
+	 *
+	 * <p>
+	 * Writes go to the first servers in the key's sequence from the node
+	 * locator, starting with its primary.  1 keeps every key on just its
+	 * primary.
+	 * </p>
+	 */
+	int getReplicaCount();
+
+	/**
+	 * Get the percentile of recent get latencies after which a get that
+	 * hasn't been answered is also sent to a replica.
+	 *
+	 * <p>
+	 * Whichever answer with the value arrives first is used and the other
+	 * get is cancelled.  This only applies with more than one replica, and
+	 * 0 disables it.
+	 * </p>
+	 */
+	double getHedgePercentile();
+
+	/**
+	 * Get how many of the servers keeping copies of a key must accept a
+	 * store or delete before it's reported as successful.
+	 */
+	ReplicaAck getReplicaAck();
+
+	/**
+	 * If true, the IO threads give up on operations still waiting when the
+	 * operation timeout has passed since they were queued.
+	 *
+	 * <p>
+	 * Those that haven't been sent by then are never sent, and those
+	 * awaiting an answer are cancelled as timed out, so a backlog of work
+	 * nobody's waiting for anymore is shed rather than sent.
+	 * </p>
+	 */
+	boolean shouldEnforceDeadlines();
+
+	/**
+	 * Get the number of consecutive timeouts or slow answers after which a
+	 * server is taken out of service, or 0 to never do that.
+	 *
+	 * <p>
+	 * This catches servers that stop answering while their connections stay
+	 * up, which would otherwise keep being sent operations that time out.
+	 * A connection fails each time it goes an operation timeout without
+	 * answering anything, and when an answer takes more than half of it.
+	 * The server is then treated like one whose connection was lost until
+	 * it answers a noop within the operation timeout.
+	 * </p>
+	 */
+	int getNodeFailureThreshold();
 }
@@ -1,8 +1,10 @@
 package net.spy.memcached;
 
+import java.net.SocketAddress;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 
 import net.spy.memcached.auth.AuthDescriptor;
@@ -35,6 +37,8 @@ public class ConnectionFactoryBuilder {
 	private boolean isDaemon = false;
 	private boolean shouldOptimize = true;
 	private boolean useNagle = false;
+	private boolean coalesceGets = false;
+	private boolean enforceDeadlines = false;
 	private long maxReconnectDelay =
 		DefaultConnectionFactory.DEFAULT_MAX_RECONNECT_DELAY;
 
@@ -42,6 +46,19 @@ public class ConnectionFactoryBuilder {
 	private HashAlgorithm hashAlg;
 	private AuthDescriptor authDescriptor = null;
 	private long opQueueMaxBlockTime = -1;
+	private int ioLoopCount = -1;
+	private int connsPerServer = -1;
+	private BufferPool bufferPool = null;
+	private Collection<String> boundedLoadPrefixes =
+		Collections.emptyList();
+	private double boundedLoadEpsilon = BoundedLoadNodeLocator.DEFAULT_EPSILON;
+	private long migrationWindow = -1;
+	private int replicaCount = -1;
+	private double hedgePercentile = -1;
+	private ReplicaAck replicaAck = null;
+	private int nodeFailureThreshold = -1;
+	private Map<SocketAddress, Integer> nodeWeights =
+		Collections.emptyMap();
 
 	/**
 	 * Set the operation queue factory.
@@ -138,6 +155,24 @@ public class ConnectionFactoryBuilder {
 		return this;
 	}
 
+	/**
+	 * Set to true to have gets for a key that's already being fetched
+	 * wait for that fetch.
+	 */
+	public ConnectionFactoryBuilder setCoalesceGets(boolean c) {
+		coalesceGets = c;
+		return this;
+	}
+
+	/**
+	 * Set to true to have the IO threads give up on operations still
+	 * waiting once the operation timeout has passed.
+	 */
+	public ConnectionFactoryBuilder setEnforceDeadlines(boolean e) {
+		enforceDeadlines = e;
+		return this;
+	}
+
 	/**
 	 * Set the read buffer size.
 	 */
@@ -203,11 +238,120 @@ public class ConnectionFactoryBuilder {
 		return this;
 	}
 
+	/**
+	 * Set the number of IO loops the connections will be spread over.
+	 */
+	public ConnectionFactoryBuilder setIOLoopCount(int to) {
+		assert to > 0 : "IO loop count must be a positive number";
+		ioLoopCount = to;
+		return this;
+	}
+
+	/**
+	 * Set the number of connections to open to each server.
+	 */
+	public ConnectionFactoryBuilder setConnectionsPerServer(int to) {
+		assert to > 0 : "Connections per server must be a positive number";
+		connsPerServer = to;
+		return this;
+	}
+
+	/**
+	 * Set the pool to take read and request buffers from.
+	 */
+	public ConnectionFactoryBuilder setBufferPool(BufferPool to) {
+		bufferPool = to;
+		return this;
+	}
+
+	/**
+	 * Set the prefixes of keys whose nodes' load should be bounded.
+	 *
+	 * @see BoundedLoadNodeLocator
+	 */
+	public ConnectionFactoryBuilder setBoundedLoadPrefixes(
+			Collection<String> to) {
+		boundedLoadPrefixes = to;
+		return this;
+	}
+
+	/**
+	 * Set the fraction by which a node may exceed the average load before
+	 * keys with bounded load move off of it.
+	 *
+	 * @see BoundedLoadNodeLocator
+	 */
+	public ConnectionFactoryBuilder setBoundedLoadEpsilon(double to) {
+		assert to > 0 : "Epsilon must be a positive number";
+		boundedLoadEpsilon = to;
+		return this;
+	}
+
+	/**
+	 * Set the number of milliseconds after the servers change during which
+	 * moved keys are read from their old servers.
+	 */
+	public ConnectionFactoryBuilder setMigrationWindow(long to) {
+		assert to >= 0 : "Migration window must not be negative";
+		migrationWindow = to;
+		return this;
+	}
+
+	/**
+	 * Set the number of servers each key is written to.
+	 */
+	public ConnectionFactoryBuilder setReplicaCount(int to) {
+		assert to > 0 : "Replica count must be positive";
+		replicaCount = to;
+		return this;
+	}
+
+	/**
+	 * Set the percentile of recent get latencies after which a get is also
+	 * sent to a replica, or 0 to never do that.
+	 */
+	public ConnectionFactoryBuilder setHedgePercentile(double to) {
+		assert to >= 0 && to < 1 : "Percentile must be in [0, 1)";
+		hedgePercentile = to;
+		return this;
+	}
+
+	/**
+	 * Set how many of the servers keeping copies of a key must accept a
+	 * write.
+	 */
+	public ConnectionFactoryBuilder setReplicaAck(ReplicaAck to) {
+		replicaAck = to;
+		return this;
+	}
+
+	/**
+	 * Set the number of consecutive timeouts or slow answers after which a
+	 * server is taken out of service until it answers a probe, or 0 to
+	 * never do that.
+	 */
+	public ConnectionFactoryBuilder setNodeFailureThreshold(int to) {
+		assert to >= 0 : "Failure threshold must not be negative";
+		nodeFailureThreshold = to;
+		return this;
+	}
+
+	/**
+	 * Set the weights of the servers, relative to each other, for the
+	 * consistent hashing locator.  Servers not given one have a weight of
+	 * 1.
+	 */
+	public ConnectionFactoryBuilder setNodeWeights(
+			Map<SocketAddress, Integer> to) {
+		nodeWeights = to;
+		return this;
+	}
+
 	/**
 	 * Get the ConnectionFactory set up with the provided parameters.
 	 */
 	public ConnectionFactory build() {
-		return new DefaultConnectionFactory() {
+		DefaultConnectionFactory rv=new DefaultConnectionFactory() {
 
 			@Override
 			public BlockingQueue<Operation> createOperationQueue() {
@@ -231,11 +375,25 @@ public class ConnectionFactoryBuilder {
 
 			@Override
 			public NodeLocator createLocator(List<MemcachedNode> nodes) {
+				NodeLocator rv=createBaseLocator(nodes);
+				if(!boundedLoadPrefixes.isEmpty()) {
+					rv=new BoundedLoadNodeLocator(rv, boundedLoadEpsilon,
+						boundedLoadPrefixes);
+				}
+				return rv;
+			}
+
+			private NodeLocator createBaseLocator(List<MemcachedNode> nodes) {
 				switch(locator) {
 					case ARRAY_MOD:
 						return new ArrayModNodeLocator(nodes, getHashAlg());
 					case CONSISTENT:
-						return new KetamaNodeLocator(nodes, getHashAlg());
+						return new KetamaNodeLocator(nodes, getHashAlg(),
+							getKetamaNodeLocatorConfiguration());
+					case JUMP:
+						return new JumpHashNodeLocator(nodes, getHashAlg());
+					case RENDEZVOUS:
+						return new RendezvousNodeLocator(nodes, getHashAlg());
 					default: throw new IllegalStateException(
 							"Unhandled locator type: " + locator);
 				}
@@ -295,6 +453,16 @@ public class ConnectionFactoryBuilder {
 				return useNagle;
 			}
 
+			@Override
+			public boolean shouldCoalesceGets() {
+				return coalesceGets;
+			}
+
+			@Override
+			public boolean shouldEnforceDeadlines() {
+				return enforceDeadlines;
+			}
+
 			@Override
 			public long getMaxReconnectDelay() {
 				return maxReconnectDelay;
@@ -310,8 +478,57 @@ public class ConnectionFactoryBuilder {
 				return opQueueMaxBlockTime > -1 ? opQueueMaxBlockTime
 						: super.getOpQueueMaxBlockTime();
 			}
-		};
 
+			@Override
+			public int getIOLoopCount() {
+				return ioLoopCount == -1 ?
+						super.getIOLoopCount() : ioLoopCount;
+			}
+
+			@Override
+			public int getConnectionsPerServer() {
+				return connsPerServer == -1 ?
+						super.getConnectionsPerServer() : connsPerServer;
+			}
+
+			@Override
+			public BufferPool getBufferPool() {
+				return bufferPool == null ?
+						super.getBufferPool() : bufferPool;
+			}
+
+			@Override
+			public long getMigrationWindow() {
+				return migrationWindow == -1 ?
+						super.getMigrationWindow() : migrationWindow;
+			}
+
+			@Override
+			public int getReplicaCount() {
+				return replicaCount == -1 ?
+						super.getReplicaCount() : replicaCount;
+			}
+
+			@Override
+			public double getHedgePercentile() {
+				return hedgePercentile == -1 ?
+						super.getHedgePercentile() : hedgePercentile;
+			}
+
+			@Override
+			public ReplicaAck getReplicaAck() {
+				return replicaAck == null ?
+						super.getReplicaAck() : replicaAck;
+			}
+
+			@Override
+			public int getNodeFailureThreshold() {
+				return nodeFailureThreshold == -1 ?
+						super.getNodeFailureThreshold() : nodeFailureThreshold;
+			}
+		};
+		rv.getKetamaNodeLocatorConfiguration().setNodeWeights(nodeWeights);
+		return rv;
 	}
 
 	/**
@@ -342,6 +559,20 @@ public class ConnectionFactoryBuilder {
 		 * This uses ketema's distribution algorithm, but may be used with any
 		 * hash algorithm.
 		 */
-		CONSISTENT
+		CONSISTENT,
+		/**
+		 * Jump consistent hash.
+		 *
+		 * Evenly balanced with no continuum, but nodes may only be added or
+		 * removed at the end of the server list.
+		 */
+		JUMP,
+		/**
+		 * Rendezvous (highest random weight) hashing.
+		 *
+		 * Evenly balanced with no continuum, independent of the order of the
+		 * server list.
+		 */
+		RENDEZVOUS
 	}
 }
@@ -0,0 +1,34 @@
+package net.spy.memcached;
+
+import java.net.SocketAddress;
+
+/**
+ * Connection observer that's also told when a server stops answering while
+ * its connection stays up.
+ *
+ * <p>
+ * Observers that don't implement this are told such a server's connection
+ * was lost when it's taken out of service, and that it was established
+ * when it's put back.
+ * </p>
+ *
+ * @see ConnectionFactory#getNodeFailureThreshold()
+ */
+public interface ConnectionHealthObserver extends ConnectionObserver {
+
+	/**
+	 * A server has stopped answering and won't be sent any more operations
+	 * until it answers a probe.
+	 *
+	 * @param sa the address of the node that was suspended
+	 */
+	void connectionSuspended(SocketAddress sa);
+
+	/**
+	 * A suspended server has answered a probe and is back in service.
+	 *
+	 * @param sa the address of the node that was resumed
+	 * @param probeCount the number of probes sent before one was answered
+	 */
+	void connectionResumed(SocketAddress sa, int probeCount);
+}
@@ -0,0 +1,143 @@
+package net.spy.memcached;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationState;
+
+/**
+ * Hashed timing wheel of operation deadlines, advanced by an IO loop.
+ *
+ * <p>
+ * Operations may be added from any thread, but the wheel is only turned
+ * by the thread running its loop.  Each slot holds the deadlines that fall
+ * in one tick, so turning the wheel only looks at the slots whose ticks
+ * have passed, and at most one tick late an operation still waiting is
+ * timed out.  Operations that finish before their deadline are simply
+ * dropped when their slot comes around.
+ * </p>
+ */
+final class DeadlineWheel {
+
+	// Length of a tick in nanoseconds.
+	static final long TICK=10 * 1000 * 1000;
+	// Number of slots, a power of two.
+	static final int SLOTS=512;
+
+	private final ConcurrentLinkedQueue<Deadline> added=
+		new ConcurrentLinkedQueue<Deadline>();
+	private final Deadline[] slots=new Deadline[SLOTS];
+	private final long start;
+	// The next tick to be expired.
+	private long tick=0;
+	private int size=0;
+
+	/**
+	 * Get a wheel whose ticks count from the given time.
+	 *
+	 * @param now the current System.nanoTime()
+	 */
+	DeadlineWheel(long now) {
+		super();
+		start=now;
+	}
+
+	/**
+	 * Time out the given operation at the given deadline if it's still
+	 * waiting.
+	 *
+	 * @param op the operation
+	 * @param deadline the deadline as a System.nanoTime()
+	 */
+	void add(Operation op, long deadline) {
+		added.offer(new Deadline(op, (deadline - start) / TICK));
+	}
+
+	/**
+	 * Time out every operation whose deadline's tick has passed.
+	 *
+	 * @param now the current System.nanoTime()
+	 * @return the number of operations that were timed out
+	 */
+	int expire(long now) {
+		Deadline d=null;
+		while((d=added.poll()) != null) {
+			// Ticks that have already passed are expired below.
+			long t=Math.max(d.tick, tick);
+			int i=(int)(t & (SLOTS - 1));
+			d.next=slots[i];
+			slots[i]=d;
+			size++;
+		}
+		int rv=0;
+		long current=(now - start) / TICK;
+		for(int n=0; tick < current && size > 0 && n < SLOTS; n++) {
+			rv += expireSlot((int)(tick & (SLOTS - 1)), current);
+			tick++;
+		}
+		// Nothing's left in the slots that were skipped.
+		if(tick < current) {
+			tick=current;
+		}
+		return rv;
+	}
+
+	// Expire the deadlines in a slot whose ticks have passed, keeping
+	// those for later turns of the wheel.
+	private int expireSlot(int i, long current) {
+		int rv=0;
+		Deadline keep=null;
+		Deadline d=slots[i];
+		while(d != null) {
+			Deadline next=d.next;
+			if(d.tick < current) {
+				size--;
+				Operation op=d.op;
+				if(!op.isCancelled()
+						&& op.getState() != OperationState.COMPLETE) {
+					op.timeOut();
+					rv++;
+				}
+			} else {
+				d.next=keep;
+				keep=d;
+			}
+			d=next;
+		}
+		slots[i]=keep;
+		return rv;
+	}
+
+	/**
+	 * Get the number of milliseconds until the wheel next needs turning.
+	 *
+	 * @param now the current System.nanoTime()
+	 * @return the delay, or 0 if there's nothing on the wheel
+	 */
+	long getDelay(long now) {
+		if(size == 0 && added.isEmpty()) {
+			return 0;
+		}
+		long next=start + (tick + 1) * TICK;
+		return Math.max((next - now) / 1000000, 1);
+	}
+
+	/**
+	 * Get the number of deadlines on the wheel.
+	 */
+	int size() {
+		return size + added.size();
+	}
+
+	private static final class Deadline {
+		final Operation op;
+		final long tick;
+		Deadline next=null;
+
+		Deadline(Operation o, long t) {
+			super();
+			op=o;
+			tick=t;
+		}
+	}
+}
@@ -21,6 +21,7 @@ import net.spy.memcached.protocol.binary.BinaryMemcachedNodeImpl;
 import net.spy.memcached.protocol.binary.BinaryOperationFactory;
 import net.spy.memcached.transcoders.SerializingTranscoder;
 import net.spy.memcached.transcoders.Transcoder;
+import net.spy.memcached.util.DefaultKetamaNodeLocatorConfiguration;
 
 /**
  * Default implementation of ConnectionFactory.
@@ -76,9 +77,51 @@ public class DefaultConnectionFactory extends SpyObject
      */
     public static final long DEFAULT_MAX_RECONNECT_DELAY = 30;
 
+	/**
+	 * Number of IO loops (selectors) servicing the connections.
+	 */
+	public static final int DEFAULT_IO_LOOP_COUNT = 1;
+
+	/**
+	 * Number of connections opened to each server.
+	 */
+	public static final int DEFAULT_CONNECTIONS_PER_SERVER = 1;
+
+	/**
+	 * Milliseconds after a server change during which moved keys are read
+	 * from their old servers (disabled).
+	 */
+	public static final long DEFAULT_MIGRATION_WINDOW = 0;
+
+	/**
+	 * Number of servers each key is written to.
+	 */
+	public static final int DEFAULT_REPLICA_COUNT = 1;
+
+	/**
+	 * Percentile of get latencies after which a get is also sent to a
+	 * replica.
+	 */
+	public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+
+	/**
+	 * Servers that must accept a write to a replicated key.
+	 */
+	public static final ReplicaAck DEFAULT_REPLICA_ACK = ReplicaAck.QUORUM;
+
+	/**
+	 * Consecutive timeouts after which a server is taken out of service
+	 * (disabled).
+	 */
+	public static final int DEFAULT_NODE_FAILURE_THRESHOLD = 0;
+
 	private final int opQueueLen;
 	private final int readBufSize;
 	private final HashAlgorithm hashAlg;
+	// Shared by every ketama locator this creates, so the node weights
+	// survive the servers changing.
+	private final DefaultKetamaNodeLocatorConfiguration ketamaConfig=
+		new DefaultKetamaNodeLocatorConfiguration();
 
 	/**
 	 * Construct a DefaultConnectionFactory with the given parameters.
@@ -118,13 +161,15 @@ public class DefaultConnectionFactory extends SpyObject
 				createReadOperationQueue(),
 				createWriteOperationQueue(),
 				createOperationQueue(),
-				getOpQueueMaxBlockTime());
+				getOpQueueMaxBlockTime(),
+				getBufferPool());
 		} else if(of instanceof BinaryOperationFactory) {
 			return new BinaryMemcachedNodeImpl(sa, c, bufSize,
 					createReadOperationQueue(),
 					createWriteOperationQueue(),
 					createOperationQueue(),
-					getOpQueueMaxBlockTime());
+					getOpQueueMaxBlockTime(),
+					getBufferPool());
 		} else {
 			throw new IllegalStateException(
 				"Unhandled operation factory type " + of);
@@ -175,6 +220,20 @@ public class DefaultConnectionFactory extends SpyObject
 		return new ArrayModNodeLocator(nodes, getHashAlg());
 	}
 
+	/**
+	 * Get the configuration of the ketama locators created by this factory.
+	 *
+	 * <p>
+	 * Every ketama locator created shares it, so node weights set here
+	 * apply to each locator created afterwards, including those created
+	 * when servers are added or removed.
+	 * </p>
+	 */
+	public DefaultKetamaNodeLocatorConfiguration
+			getKetamaNodeLocatorConfiguration() {
+		return ketamaConfig;
+	}
+
 	/**
 	 * Get the op queue length set at construct time.
 	 */
@@ -266,4 +325,74 @@ public class DefaultConnectionFactory extends SpyObject
 	public AuthDescriptor getAuthDescriptor() {
 		return null;
 	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.ConnectionFactory#getIOLoopCount()
+	 */
+	public int getIOLoopCount() {
+		return DEFAULT_IO_LOOP_COUNT;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.ConnectionFactory#getConnectionsPerServer()
+	 */
+	public int getConnectionsPerServer() {
+		return DEFAULT_CONNECTIONS_PER_SERVER;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.ConnectionFactory#getBufferPool()
+	 */
+	public BufferPool getBufferPool() {
+		return new HeapBufferPool();
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.ConnectionFactory#getMigrationWindow()
+	 */
+	public long getMigrationWindow() {
+		return DEFAULT_MIGRATION_WINDOW;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.ConnectionFactory#shouldCoalesceGets()
+	 */
+	public boolean shouldCoalesceGets() {
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.ConnectionFactory#getReplicaCount()
+	 */
+	public int getReplicaCount() {
+		return DEFAULT_REPLICA_COUNT;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.ConnectionFactory#getHedgePercentile()
+	 */
+	public double getHedgePercentile() {
+		return DEFAULT_HEDGE_PERCENTILE;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.ConnectionFactory#getReplicaAck()
+	 */
+	public ReplicaAck getReplicaAck() {
+		return DEFAULT_REPLICA_ACK;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.ConnectionFactory#shouldEnforceDeadlines()
+	 */
+	public boolean shouldEnforceDeadlines() {
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.ConnectionFactory#getNodeFailureThreshold()
+	 */
+	public int getNodeFailureThreshold() {
+		return DEFAULT_NODE_FAILURE_THRESHOLD;
+	}
 }
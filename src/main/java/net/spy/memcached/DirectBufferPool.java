@@ -0,0 +1,139 @@
+package net.spy.memcached;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool handing out recycled direct buffers in power-of-two size
+ * classes.
+ *
+ * <p>
+ * Socket reads and writes against direct buffers avoid the copy the JDK
+ * otherwise makes into a temporary direct buffer for every call.
+ * Requests larger than the biggest size class get a plain heap buffer
+ * that isn't pooled.
+ * </p>
+ */
+public final class DirectBufferPool implements BufferPool {
+
+	/**
+	 * Smallest buffer handed out.
+	 */
+	public static final int MIN_BUFFER_SIZE = 64;
+
+	/**
+	 * Default size of the largest pooled buffer.
+	 */
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Default number of bytes each size class may hold onto.
+	 */
+	public static final int DEFAULT_MAX_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+	private static final int MIN_SHIFT =
+		Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+
+	private final int maxBufferSize;
+	private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+	private final AtomicInteger[] freeCounts;
+	private final int[] maxFree;
+
+	/**
+	 * Create a pool with the default limits.
+	 */
+	public DirectBufferPool() {
+		this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_BYTES_PER_CLASS);
+	}
+
+	/**
+	 * Create a pool with the given limits.
+	 *
+	 * @param maxSize the largest buffer to pool (rounded up to a power of
+	 *        two)
+	 * @param maxBytesPerClass the most bytes of idle buffers to keep for
+	 *        each size class (at least one buffer is always kept)
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public DirectBufferPool(int maxSize, int maxBytesPerClass) {
+		super();
+		if(maxSize < MIN_BUFFER_SIZE) {
+			throw new IllegalArgumentException(
+				"Max buffer size must be at least " + MIN_BUFFER_SIZE);
+		}
+		int classes=sizeClass(maxSize) + 1;
+		maxBufferSize=classSize(classes - 1);
+		free=new ConcurrentLinkedQueue[classes];
+		freeCounts=new AtomicInteger[classes];
+		maxFree=new int[classes];
+		for(int i=0; i<classes; i++) {
+			free[i]=new ConcurrentLinkedQueue<ByteBuffer>();
+			freeCounts[i]=new AtomicInteger(0);
+			maxFree[i]=Math.max(1, maxBytesPerClass / classSize(i));
+		}
+	}
+
+	// The index of the smallest size class that will hold the given size.
+	static int sizeClass(int size) {
+		if(size <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	static int classSize(int sizeClass) {
+		return 1 << (sizeClass + MIN_SHIFT);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.BufferPool#allocate(int)
+	 */
+	public ByteBuffer allocate(int size) {
+		if(size > maxBufferSize) {
+			return ByteBuffer.allocate(size);
+		}
+		int c=sizeClass(size);
+		ByteBuffer rv=free[c].poll();
+		if(rv == null) {
+			rv=ByteBuffer.allocateDirect(classSize(c));
+		} else {
+			freeCounts[c].decrementAndGet();
+			rv.clear();
+			rv.order(ByteOrder.BIG_ENDIAN);
+		}
+		rv.limit(size);
+		return rv;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.BufferPool#release(java.nio.ByteBuffer)
+	 */
+	public void release(ByteBuffer b) {
+		int cap=b.capacity();
+		// Only take back what we could have handed out.
+		if(!b.isDirect() || b.isReadOnly() || cap > maxBufferSize
+				|| cap < MIN_BUFFER_SIZE || Integer.bitCount(cap) != 1) {
+			return;
+		}
+		int c=sizeClass(cap);
+		if(freeCounts[c].incrementAndGet() <= maxFree[c]) {
+			free[c].offer(b);
+		} else {
+			freeCounts[c].decrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the number of idle buffers currently pooled for the given size.
+	 */
+	int getIdleCount(int size) {
+		return freeCounts[sizeClass(size)].get();
+	}
+
+	@Override
+	public String toString() {
+		return "{DirectBufferPool max=" + maxBufferSize + "}";
+	}
+}
@@ -0,0 +1,18 @@
+package net.spy.memcached;
+
+/**
+ * Node locator that can also locate a key by its encoded form, so a key
+ * that has already been encoded isn't encoded again to be hashed.
+ */
+public interface EncodedKeyNodeLocator extends NodeLocator {
+
+	/**
+	 * Get the primary location for the given key.  This is the same node
+	 * {@link #getPrimary(String)} returns for the key.
+	 *
+	 * @param k the object key
+	 * @param b the UTF-8 encoded key
+	 * @return the QueueAttachment containing the primary storage for a key
+	 */
+	MemcachedNode getPrimary(String k, byte[] b);
+}
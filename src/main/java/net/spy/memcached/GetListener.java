@@ -0,0 +1,34 @@
+package net.spy.memcached;
+
+/**
+ * Listener told the outcome of a get instead of it being returned in a
+ * future.
+ *
+ * <p>
+ * It's called on the thread running the client's IO loop unless an
+ * executor was given with the get, so it shouldn't block.  The get
+ * times out after the operation timeout whether or not deadlines are
+ * enforced.
+ * </p>
+ *
+ * @param <T> Type of the value fetched
+ */
+public interface GetListener<T> {
+
+	/**
+	 * The get is complete.
+	 *
+	 * @param key the key
+	 * @param value the value, or null if the key wasn't found
+	 */
+	void onGet(String key, T value);
+
+	/**
+	 * The get failed: it timed out, was cancelled, the server returned an
+	 * error, or the value couldn't be decoded.
+	 *
+	 * @param key the key
+	 * @param e why it failed
+	 */
+	void onFailure(String key, Exception e);
+}
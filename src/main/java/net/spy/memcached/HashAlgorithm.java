@@ -1,5 +1,7 @@
 package net.spy.memcached;
 
+import java.io.UnsupportedEncodingException;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.zip.CRC32;
@@ -46,7 +48,20 @@ public enum HashAlgorithm {
 	/**
 	 * MD5-based hash algorithm used by ketama.
 	 */
-	KETAMA_HASH;
+	KETAMA_HASH,
+	/**
+	 * 32-bit MurmurHash3 (x86 variant, seed 0) of the UTF-8 encoded key.
+	 * Much faster than MD5 and well distributed even for sequential keys.
+	 *
+	 * @see <a href="https://github.com/aappleby/smhasher">SMHasher</a>
+	 */
+	MURMUR3_HASH,
+	/**
+	 * The low 32 bits of xxHash64 (seed 0) of the UTF-8 encoded key.
+	 *
+	 * @see <a href="https://github.com/Cyan4973/xxHash">xxHash</a>
+	 */
+	XXHASH64_HASH;
 
 	private static final long FNV_64_INIT = 0xcbf29ce484222325L;
 	private static final long FNV_64_PRIME = 0x100000001b3L;
@@ -54,6 +69,35 @@ public enum HashAlgorithm {
 	private static final long FNV_32_INIT = 2166136261L;
 	private static final long FNV_32_PRIME = 16777619;
 
+	private static final int MD5_LEN = 16;
+
+	private static final int MURMUR3_C1 = 0xcc9e2d51;
+	private static final int MURMUR3_C2 = 0x1b873593;
+
+	private static final long XXH_PRIME64_1 = 0x9E3779B185EBCA87L;
+	private static final long XXH_PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long XXH_PRIME64_3 = 0x165667B19E3779F9L;
+	private static final long XXH_PRIME64_4 = 0x85EBCA77C2B2AE63L;
+	private static final long XXH_PRIME64_5 = 0x27D4EB2F165667C5L;
+
+	// Looking up a MessageDigest is expensive and they aren't thread safe,
+	// so each thread keeps its own (along with a place to put the digest).
+	private static final ThreadLocal<Md5State> MD5 =
+		new ThreadLocal<Md5State>() {
+			@Override
+			protected Md5State initialValue() {
+				return new Md5State();
+			}
+		};
+
+	private static final ThreadLocal<CRC32> CRC =
+		new ThreadLocal<CRC32>() {
+			@Override
+			protected CRC32 initialValue() {
+				return new CRC32();
+			}
+		};
+
 	/**
 	 * Compute the hash for the given key.
 	 *
@@ -66,10 +110,12 @@ public enum HashAlgorithm {
 				rv = k.hashCode();
 				break;
 			case CRC32_HASH:
-				// return (crc32(shift) >> 16) & 0x7fff;
-				CRC32 crc32 = new CRC32();
-				crc32.update(KeyUtil.getKeyBytes(k));
-				rv = (crc32.getValue() >> 16) & 0x7fff;
+			case KETAMA_HASH:
+			case MURMUR3_HASH:
+			case XXHASH64_HASH: {
+					byte[] b = KeyUtil.getKeyBytes(k);
+					rv = hash(b, 0, b.length);
+				}
 				break;
 			case FNV1_64_HASH: {
 					// Thanks to pierre@demartines.com for the pointer
@@ -108,13 +154,6 @@ public enum HashAlgorithm {
 					}
 				}
 				break;
-			case KETAMA_HASH:
-				byte[] bKey=computeMd5(k);
-				rv = ((long) (bKey[3] & 0xFF) << 24)
-						| ((long) (bKey[2] & 0xFF) << 16)
-						| ((long) (bKey[1] & 0xFF) << 8)
-						| (bKey[0] & 0xFF);
-				break;
 			default:
 				assert false;
 		}
@@ -122,17 +161,265 @@ public enum HashAlgorithm {
 	}
 
 	/**
-	 * Get the md5 of the given key.
+	 * Compute the hash for the given encoded key.
+	 *
+	 * <p>
+	 * This gives the same result as {@link #hash(String)} for the key the
+	 * bytes were encoded from, but doesn't allocate for ASCII keys.
+	 * </p>
+	 *
+	 * @param key the UTF-8 encoded key
+	 * @param off the offset of the key within the array
+	 * @param len the length of the key
+	 * @return a positive integer hash
 	 */
-	public static byte[] computeMd5(String k) {
-		MessageDigest md5;
+	public long hash(final byte[] key, final int off, final int len) {
+		long rv = 0;
+		final int end = off + len;
+		switch (this) {
+			case CRC32_HASH: {
+					// return (crc32(shift) >> 16) & 0x7fff;
+					CRC32 crc32 = CRC.get();
+					crc32.reset();
+					crc32.update(key, off, len);
+					rv = (crc32.getValue() >> 16) & 0x7fff;
+				}
+				break;
+			case KETAMA_HASH: {
+					byte[] bKey = MD5.get().digest(key, off, len);
+					rv = ((long) (bKey[3] & 0xFF) << 24)
+							| ((long) (bKey[2] & 0xFF) << 16)
+							| ((long) (bKey[1] & 0xFF) << 8)
+							| (bKey[0] & 0xFF);
+				}
+				break;
+			case MURMUR3_HASH:
+				rv = murmur3(key, off, len);
+				break;
+			case XXHASH64_HASH:
+				rv = xxHash64(key, off, len);
+				break;
+			default:
+				// The rest hash the characters of the key, which are the
+				// same as its bytes as long as it's ASCII.
+				for (int i = off; i < end; i++) {
+					if (key[i] < 0) {
+						return hash(decode(key, off, len));
+					}
+				}
+				break;
+		}
+		switch (this) {
+			case NATIVE_HASH:
+				for (int i = off; i < end; i++) {
+					rv = (int)(31 * rv + key[i]);
+				}
+				break;
+			case FNV1_64_HASH:
+				rv = FNV_64_INIT;
+				for (int i = off; i < end; i++) {
+					rv *= FNV_64_PRIME;
+					rv ^= key[i];
+				}
+				break;
+			case FNV1A_64_HASH:
+				rv = FNV_64_INIT;
+				for (int i = off; i < end; i++) {
+					rv ^= key[i];
+					rv *= FNV_64_PRIME;
+				}
+				break;
+			case FNV1_32_HASH:
+				rv = FNV_32_INIT;
+				for (int i = off; i < end; i++) {
+					rv *= FNV_32_PRIME;
+					rv ^= key[i];
+				}
+				break;
+			case FNV1A_32_HASH:
+				rv = FNV_32_INIT;
+				for (int i = off; i < end; i++) {
+					rv ^= key[i];
+					rv *= FNV_32_PRIME;
+				}
+				break;
+			default:
+				break;
+		}
+		return rv & 0xffffffffL; /* Truncate to 32-bits */
+	}
+
+	@SuppressWarnings("fallthrough")
+	private static int murmur3(byte[] key, int off, int len) {
+		int h1 = 0;
+		final int blockEnd = off + (len & ~3);
+		for (int i = off; i < blockEnd; i += 4) {
+			int k1 = (key[i] & 0xff)
+				| ((key[i + 1] & 0xff) << 8)
+				| ((key[i + 2] & 0xff) << 16)
+				| (key[i + 3] << 24);
+			k1 *= MURMUR3_C1;
+			k1 = Integer.rotateLeft(k1, 15);
+			k1 *= MURMUR3_C2;
+			h1 ^= k1;
+			h1 = Integer.rotateLeft(h1, 13);
+			h1 = h1 * 5 + 0xe6546b64;
+		}
+		int k1 = 0;
+		switch (len & 3) {
+			case 3:
+				k1 ^= (key[blockEnd + 2] & 0xff) << 16;
+				// fall through
+			case 2:
+				k1 ^= (key[blockEnd + 1] & 0xff) << 8;
+				// fall through
+			case 1:
+				k1 ^= key[blockEnd] & 0xff;
+				k1 *= MURMUR3_C1;
+				k1 = Integer.rotateLeft(k1, 15);
+				k1 *= MURMUR3_C2;
+				h1 ^= k1;
+				break;
+			default:
+				break;
+		}
+		h1 ^= len;
+		h1 ^= h1 >>> 16;
+		h1 *= 0x85ebca6b;
+		h1 ^= h1 >>> 13;
+		h1 *= 0xc2b2ae35;
+		h1 ^= h1 >>> 16;
+		return h1;
+	}
+
+	private static long xxHash64(byte[] key, int off, int len) {
+		final int end = off + len;
+		int i = off;
+		long h;
+		if (len >= 32) {
+			long v1 = XXH_PRIME64_1 + XXH_PRIME64_2;
+			long v2 = XXH_PRIME64_2;
+			long v3 = 0;
+			long v4 = -XXH_PRIME64_1;
+			final int limit = end - 32;
+			do {
+				v1 = xxRound(v1, readLongLE(key, i));
+				v2 = xxRound(v2, readLongLE(key, i + 8));
+				v3 = xxRound(v3, readLongLE(key, i + 16));
+				v4 = xxRound(v4, readLongLE(key, i + 24));
+				i += 32;
+			} while (i <= limit);
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+				+ Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = xxMergeRound(h, v1);
+			h = xxMergeRound(h, v2);
+			h = xxMergeRound(h, v3);
+			h = xxMergeRound(h, v4);
+		} else {
+			h = XXH_PRIME64_5;
+		}
+		h += len;
+		for (; i + 8 <= end; i += 8) {
+			h ^= xxRound(0, readLongLE(key, i));
+			h = Long.rotateLeft(h, 27) * XXH_PRIME64_1 + XXH_PRIME64_4;
+		}
+		if (i + 4 <= end) {
+			long k = (key[i] & 0xffL)
+				| ((key[i + 1] & 0xffL) << 8)
+				| ((key[i + 2] & 0xffL) << 16)
+				| ((key[i + 3] & 0xffL) << 24);
+			h ^= k * XXH_PRIME64_1;
+			h = Long.rotateLeft(h, 23) * XXH_PRIME64_2 + XXH_PRIME64_3;
+			i += 4;
+		}
+		for (; i < end; i++) {
+			h ^= (key[i] & 0xffL) * XXH_PRIME64_5;
+			h = Long.rotateLeft(h, 11) * XXH_PRIME64_1;
+		}
+		h ^= h >>> 33;
+		h *= XXH_PRIME64_2;
+		h ^= h >>> 29;
+		h *= XXH_PRIME64_3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long xxRound(long acc, long input) {
+		acc += input * XXH_PRIME64_2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * XXH_PRIME64_1;
+	}
+
+	private static long xxMergeRound(long acc, long val) {
+		acc ^= xxRound(0, val);
+		return acc * XXH_PRIME64_1 + XXH_PRIME64_4;
+	}
+
+	private static long readLongLE(byte[] b, int i) {
+		return (b[i] & 0xffL)
+			| ((b[i + 1] & 0xffL) << 8)
+			| ((b[i + 2] & 0xffL) << 16)
+			| ((b[i + 3] & 0xffL) << 24)
+			| ((b[i + 4] & 0xffL) << 32)
+			| ((b[i + 5] & 0xffL) << 40)
+			| ((b[i + 6] & 0xffL) << 48)
+			| ((b[i + 7] & 0xffL) << 56);
+	}
+
+	/**
+	 * Spread the bits of a hash over all 64 bits (the MurmurHash3
+	 * finalizer).
+	 */
+	static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static String decode(byte[] key, int off, int len) {
 		try {
-			md5 = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("MD5 not supported", e);
+			return new String(key, off, len, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
 		}
+	}
+
+	/**
+	 * Get the md5 of the given key.
+	 */
+	public static byte[] computeMd5(String k) {
+		MessageDigest md5 = MD5.get().md5;
 		md5.reset();
 		md5.update(KeyUtil.getKeyBytes(k));
 		return md5.digest();
 	}
+
+	private static final class Md5State {
+		final MessageDigest md5;
+		final byte[] digest = new byte[MD5_LEN];
+
+		Md5State() {
+			super();
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("MD5 not supported", e);
+			}
+		}
+
+		// Digest the given bytes into this thread's digest buffer.
+		byte[] digest(byte[] key, int off, int len) {
+			md5.reset();
+			md5.update(key, off, len);
+			try {
+				md5.digest(digest, 0, MD5_LEN);
+			} catch (DigestException e) {
+				throw new RuntimeException("Failed to compute md5", e);
+			}
+			return digest;
+		}
+	}
 }
@@ -0,0 +1,24 @@
+package net.spy.memcached;
+
+import java.nio.ByteBuffer;
+
+/**
+ * BufferPool that simply allocates a new heap buffer for every request.
+ */
+public final class HeapBufferPool implements BufferPool {
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.BufferPool#allocate(int)
+	 */
+	public ByteBuffer allocate(int size) {
+		return ByteBuffer.allocate(size);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.BufferPool#release(java.nio.ByteBuffer)
+	 */
+	public void release(ByteBuffer b) {
+		// Nothing to do, the garbage collector will take it.
+	}
+
+}
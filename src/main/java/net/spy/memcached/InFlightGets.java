@@ -0,0 +1,157 @@
+package net.spy.memcached;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.spy.memcached.ops.Operation;
+
+/**
+ * Table of keys being fetched, so gets for a key that's already on its way
+ * can wait for that fetch instead of sending another.
+ *
+ * <p>
+ * Fetches that have been in flight for longer than the operation timeout
+ * aren't waited on, so a lost response can't hold up later gets.
+ * </p>
+ */
+final class InFlightGets {
+
+	private final ConcurrentMap<String, Fetch> fetches=
+		new ConcurrentHashMap<String, Fetch>();
+	private final long maxAge;
+
+	/**
+	 * Get a table whose fetches may be waited on for the given number of
+	 * milliseconds after they're started.
+	 */
+	InFlightGets(long maxWait) {
+		super();
+		maxAge=maxWait;
+	}
+
+	/**
+	 * Something waiting for a key to be fetched.
+	 */
+	interface Waiter {
+		/**
+		 * Called when the fetch is complete.
+		 *
+		 * @param key the key
+		 * @param op the operation that fetched the key
+		 * @param d the value, or null if it wasn't found or the operation
+		 *        failed
+		 */
+		void fetched(String key, Operation op, CachedData d);
+	}
+
+	/**
+	 * Get the fetch in flight for a key.
+	 *
+	 * @return the fetch, or null if the key isn't being fetched
+	 */
+	Fetch get(String key) {
+		Fetch f=fetches.get(key);
+		return f == null || f.isStale() ? null : f;
+	}
+
+	/**
+	 * Record a fetch as being in flight unless the key is already being
+	 * fetched.
+	 *
+	 * @return the fetch already in flight, or null if this one was
+	 *         recorded
+	 */
+	Fetch start(Fetch f) {
+		for(;;) {
+			Fetch existing=fetches.putIfAbsent(f.key, f);
+			if(existing == null) {
+				return null;
+			}
+			if(!existing.isStale()) {
+				return existing;
+			}
+			if(fetches.replace(f.key, existing, f)) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of keys being fetched.
+	 */
+	int size() {
+		return fetches.size();
+	}
+
+	/**
+	 * A fetch of one key.
+	 */
+	final class Fetch {
+		final String key;
+		private final long started=System.currentTimeMillis();
+		private volatile Operation op=null;
+		private List<Waiter> waiters=new ArrayList<Waiter>();
+		private CachedData result=null;
+
+		Fetch(String k) {
+			super();
+			key=k;
+		}
+
+		boolean isStale() {
+			return System.currentTimeMillis() - started > maxAge;
+		}
+
+		/**
+		 * Get the operation fetching the key.
+		 */
+		Operation getOperation() {
+			return op;
+		}
+
+		/**
+		 * Set the operation fetching the key.  It's set before the fetch
+		 * is started, and may be replaced if the key is looked for
+		 * elsewhere.
+		 */
+		void setOperation(Operation o) {
+			op=o;
+		}
+
+		/**
+		 * Wait for this fetch, calling the waiter right away if it's
+		 * already complete.
+		 */
+		void attach(Waiter w) {
+			synchronized(this) {
+				if(waiters != null) {
+					waiters.add(w);
+					return;
+				}
+			}
+			w.fetched(key, op, result);
+		}
+
+		/**
+		 * Complete the fetch, telling everything waiting for it.  Only the
+		 * first completion counts.
+		 */
+		void complete(CachedData d) {
+			fetches.remove(key, this);
+			List<Waiter> l;
+			synchronized(this) {
+				if(waiters == null) {
+					return;
+				}
+				result=d;
+				l=waiters;
+				waiters=null;
+			}
+			for(Waiter w : l) {
+				w.fetched(key, op, d);
+			}
+		}
+	}
+}
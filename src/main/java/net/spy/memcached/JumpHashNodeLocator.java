@@ -0,0 +1,142 @@
+package net.spy.memcached;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * NodeLocator using Lamping and Veach's jump consistent hash.
+ *
+ * <p>
+ * Keys are spread almost perfectly evenly and no memory is needed beyond
+ * the node list.  When a node is added to the end of the list, only the
+ * keys moving to the new node change location.  Unlike ketama, nodes are
+ * identified by their position, so the server list must only ever grow or
+ * shrink at the end for the mapping to stay consistent.
+ * </p>
+ *
+ * @see <a href="http://arxiv.org/abs/1406.2294">A Fast, Minimal Memory,
+ *      Consistent Hash Algorithm</a>
+ */
+public final class JumpHashNodeLocator implements EncodedKeyNodeLocator {
+
+	private final MemcachedNode[] nodes;
+	private final HashAlgorithm hashAlg;
+
+	/**
+	 * Construct a JumpHashNodeLocator over the given nodes using the given
+	 * hash algorithm.
+	 *
+	 * @param n the nodes, in a stable order
+	 * @param alg the hash algorithm
+	 */
+	public JumpHashNodeLocator(List<MemcachedNode> n, HashAlgorithm alg) {
+		this(n.toArray(new MemcachedNode[n.size()]), alg);
+	}
+
+	private JumpHashNodeLocator(MemcachedNode[] n, HashAlgorithm alg) {
+		super();
+		nodes=n;
+		hashAlg=alg;
+	}
+
+	/**
+	 * Compute the bucket in [0, buckets) for the given 64-bit key.
+	 */
+	static int jump(long key, int buckets) {
+		long b=-1;
+		long j=0;
+		while(j < buckets) {
+			b=j;
+			key=key * 2862933555777941757L + 1;
+			j=(long)((b + 1) * ((double)(1L << 31)
+				/ (double)((key >>> 33) + 1)));
+		}
+		return (int)b;
+	}
+
+	private long keyHash(String k) {
+		return HashAlgorithm.fmix64(hashAlg.hash(k));
+	}
+
+	private long keyHash(byte[] b) {
+		return HashAlgorithm.fmix64(hashAlg.hash(b, 0, b.length));
+	}
+
+	public Collection<MemcachedNode> getAll() {
+		return Arrays.asList(nodes);
+	}
+
+	public MemcachedNode getPrimary(String k) {
+		return nodes[jump(keyHash(k), nodes.length)];
+	}
+
+	public MemcachedNode getPrimary(String k, byte[] b) {
+		return nodes[jump(keyHash(b), nodes.length)];
+	}
+
+	public Iterator<MemcachedNode> getSequence(String k) {
+		return new JumpIterator(keyHash(k));
+	}
+
+	public NodeLocator getReadonlyCopy() {
+		MemcachedNode[] n=new MemcachedNode[nodes.length];
+		for(int i=0; i<nodes.length; i++) {
+			n[i]=new MemcachedNodeROImpl(nodes[i]);
+		}
+		return new JumpHashNodeLocator(n, hashAlg);
+	}
+
+	/**
+	 * Walks the nodes other than the primary.  Each step jumps over the
+	 * nodes not yet returned using a rehash of the key, so the backups for
+	 * a key are spread as evenly as the primaries.
+	 */
+	class JumpIterator implements Iterator<MemcachedNode> {
+
+		private final long hash;
+		private final int[] remaining;
+		private int left;
+		private int attempt=0;
+
+		public JumpIterator(long h) {
+			super();
+			hash=h;
+			remaining=new int[nodes.length];
+			for(int i=0; i<remaining.length; i++) {
+				remaining[i]=i;
+			}
+			left=remaining.length;
+			// The primary isn't part of the sequence.
+			if(left > 0) {
+				take(jump(hash, left));
+			}
+		}
+
+		private int take(int pos) {
+			int rv=remaining[pos];
+			remaining[pos]=remaining[--left];
+			remaining[left]=rv;
+			return rv;
+		}
+
+		public boolean hasNext() {
+			return left > 0;
+		}
+
+		public MemcachedNode next() {
+			if(left == 0) {
+				throw new NoSuchElementException();
+			}
+			attempt++;
+			long h=HashAlgorithm.fmix64(hash + attempt);
+			return nodes[take(jump(h, left))];
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("Can't remove a node");
+		}
+	}
+}
@@ -41,6 +41,7 @@ public class KetamaConnectionFactory extends DefaultConnectionFactory {
 	 */
 	@Override
 	public NodeLocator createLocator(List<MemcachedNode> nodes) {
-		return new KetamaNodeLocator(nodes, getHashAlg());
+		return new KetamaNodeLocator(nodes, getHashAlg(),
+			getKetamaNodeLocatorConfiguration());
 	}
 }
@@ -0,0 +1,96 @@
+package net.spy.memcached;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Immutable snapshot of a ketama continuum.
+ *
+ * <p>
+ * The points on the ring are kept sorted in a primitive array alongside
+ * the node owning each point, so finding the node for a hash is a binary
+ * search that neither boxes nor allocates.
+ * </p>
+ */
+final class KetamaContinuum {
+
+	final long[] points;
+	final MemcachedNode[] nodes;
+
+	/**
+	 * Build a continuum from the given point to node mapping.
+	 */
+	KetamaContinuum(SortedMap<Long, MemcachedNode> ring) {
+		super();
+		points=new long[ring.size()];
+		nodes=new MemcachedNode[ring.size()];
+		int i=0;
+		for(Map.Entry<Long, MemcachedNode> me : ring.entrySet()) {
+			points[i]=me.getKey();
+			nodes[i]=me.getValue();
+			i++;
+		}
+	}
+
+	private KetamaContinuum(long[] p, MemcachedNode[] n) {
+		super();
+		points=p;
+		nodes=n;
+	}
+
+	/**
+	 * Get the number of points on the ring.
+	 */
+	int size() {
+		return points.length;
+	}
+
+	/**
+	 * Get the highest point on the ring.
+	 */
+	long getMaxKey() {
+		return points[points.length - 1];
+	}
+
+	/**
+	 * Get the node owning the first point at or after the given hash,
+	 * wrapping around to the start of the ring.
+	 *
+	 * @return the node, or null if the ring is empty
+	 */
+	MemcachedNode getNodeForKey(long hash) {
+		final long[] p=points;
+		if(p.length == 0) {
+			return null;
+		}
+		if(hash > p[p.length - 1]) {
+			return nodes[0];
+		}
+		int low=0;
+		int high=p.length - 1;
+		while(low < high) {
+			int mid=(low + high) >>> 1;
+			if(p[mid] < hash) {
+				low=mid + 1;
+			} else {
+				high=mid;
+			}
+		}
+		return nodes[low];
+	}
+
+	/**
+	 * Get a copy of this continuum with every node replaced by the node it
+	 * maps to in the given map.
+	 */
+	KetamaContinuum replaceNodes(
+			IdentityHashMap<MemcachedNode, MemcachedNode> replacements) {
+		MemcachedNode[] n=new MemcachedNode[nodes.length];
+		for(int i=0; i<nodes.length; i++) {
+			n[i]=replacements.get(nodes[i]);
+			assert n[i] != null : "No replacement for " + nodes[i];
+		}
+		return new KetamaContinuum(points, n);
+	}
+}
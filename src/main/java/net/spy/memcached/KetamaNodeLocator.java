@@ -2,29 +2,33 @@ package net.spy.memcached;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 import net.spy.memcached.compat.SpyObject;
 import net.spy.memcached.util.DefaultKetamaNodeLocatorConfiguration;
 import net.spy.memcached.util.KetamaNodeLocatorConfiguration;
+import net.spy.memcached.util.WeightedKetamaNodeLocatorConfiguration;
 
 /**
  * This is an implementation of the Ketama consistent hash strategy from
  * last.fm.  This implementation may not be compatible with libketama as
  * hashing is considered separate from node location.
  *
- * Note that this implementation does not currently supported weighted nodes.
+ * Nodes may be weighted through the KetamaNodeLocatorConfiguration, in
+ * which case each node's share of the continuum is proportional to its
+ * weight, as with libketama.
  *
  * @see <a href="http://www.last.fm/user/RJ/journal/2007/04/10/392555/">RJ's blog post</a>
  */
-public final class KetamaNodeLocator extends SpyObject implements NodeLocator {
+public final class KetamaNodeLocator extends SpyObject
+	implements EncodedKeyNodeLocator {
 
 
-	final SortedMap<Long, MemcachedNode> ketamaNodes;
+	final KetamaContinuum continuum;
 	final Collection<MemcachedNode> allNodes;
 
 	final HashAlgorithm hashAlg;
@@ -39,14 +43,35 @@ public final class KetamaNodeLocator extends SpyObject implements NodeLocator {
 		super();
 		allNodes = nodes;
 		hashAlg = alg;
-		ketamaNodes=new TreeMap<Long, MemcachedNode>();
+		SortedMap<Long, MemcachedNode> ketamaNodes=
+			new TreeMap<Long, MemcachedNode>();
         config= conf;
 
         int numReps= config.getNodeRepetitions();
+		int[] weights=new int[nodes.size()];
+		long totalWeight=0;
+		boolean uniform=true;
+		for(int i=0; i<weights.length; i++) {
+			weights[i]=config instanceof WeightedKetamaNodeLocatorConfiguration
+				? ((WeightedKetamaNodeLocatorConfiguration)config)
+					.getNodeWeight(nodes.get(i))
+				: 1;
+			totalWeight += weights[i];
+			uniform &= weights[i] == weights[0];
+		}
+		int expectedSize=0;
+		int n=0;
 		for(MemcachedNode node : nodes) {
+			int reps=numReps;
+			if(!uniform && totalWeight > 0) {
+				reps=scaleRepetitions(numReps, weights[n], totalWeight,
+					weights.length, alg == HashAlgorithm.KETAMA_HASH);
+			}
+			n++;
+			expectedSize += reps;
 			// Ketama does some special work with md5 where it reuses chunks.
 			if(alg == HashAlgorithm.KETAMA_HASH) {
-				for(int i=0; i<numReps / 4; i++) {
+				for(int i=0; i<reps / 4; i++) {
 					byte[] digest=HashAlgorithm.computeMd5(config.getKeyForNode(node, i));
 					for(int h=0;h<4;h++) {
 						Long k = ((long)(digest[3+h*4]&0xFF) << 24)
@@ -58,24 +83,44 @@ public final class KetamaNodeLocator extends SpyObject implements NodeLocator {
 
 				}
 			} else {
-				for(int i=0; i<numReps; i++) {
+				for(int i=0; i<reps; i++) {
 
 					ketamaNodes.put(hashAlg.hash(config.getKeyForNode(node, i)), node);
 				}
 			}
 		}
-		assert ketamaNodes.size() == numReps * nodes.size();
+		assert ketamaNodes.size() == expectedSize;
+		continuum=new KetamaContinuum(ketamaNodes);
     }
 
-	private KetamaNodeLocator(SortedMap<Long, MemcachedNode> smn,
+	private KetamaNodeLocator(KetamaContinuum c,
 			Collection<MemcachedNode> an, HashAlgorithm alg, KetamaNodeLocatorConfiguration conf) {
 		super();
-		ketamaNodes=smn;
+		continuum=c;
 		allNodes=an;
 		hashAlg=alg;
         config=conf;
 	}
 
+	// Give a node a share of all of the points proportional to its weight,
+	// the way libketama does.  The ketama hash takes four points from each
+	// digest, so it gets a multiple of four.
+	private static int scaleRepetitions(int numReps, int weight,
+			long totalWeight, int numNodes, boolean ketama) {
+		int pointsPerHash=ketama ? 4 : 1;
+		return (int)((long)(numReps / pointsPerHash) * weight * numNodes
+			/ totalWeight) * pointsPerHash;
+	}
+
+	/**
+	 * Build a new locator over the same nodes, picking up any changes in the
+	 * configuration (such as node weights).
+	 */
+	KetamaNodeLocator rebuild() {
+		return new KetamaNodeLocator(new ArrayList<MemcachedNode>(allNodes),
+			hashAlg, config);
+	}
+
 	public Collection<MemcachedNode> getAll() {
 		return allNodes;
 	}
@@ -86,24 +131,18 @@ public final class KetamaNodeLocator extends SpyObject implements NodeLocator {
 		return rv;
 	}
 
+	public MemcachedNode getPrimary(String k, byte[] b) {
+		MemcachedNode rv=getNodeForKey(hashAlg.hash(b, 0, b.length));
+		assert rv != null : "Found no node for key " + k;
+		return rv;
+	}
+
 	long getMaxKey() {
-		return ketamaNodes.lastKey();
+		return continuum.getMaxKey();
 	}
 
 	MemcachedNode getNodeForKey(long hash) {
-		final MemcachedNode rv;
-		if(!ketamaNodes.containsKey(hash)) {
-			// Java 1.6 adds a ceilingKey method, but I'm still stuck in 1.5
-			// in a lot of places, so I'm doing this myself.
-			SortedMap<Long, MemcachedNode> tailMap=ketamaNodes.tailMap(hash);
-			if(tailMap.isEmpty()) {
-				hash=ketamaNodes.firstKey();
-			} else {
-				hash=tailMap.firstKey();
-			}
-		}
-		rv=ketamaNodes.get(hash);
-		return rv;
+		return continuum.getNodeForKey(hash);
 	}
 
 	public Iterator<MemcachedNode> getSequence(String k) {
@@ -111,21 +150,20 @@ public final class KetamaNodeLocator extends SpyObject implements NodeLocator {
 	}
 
 	public NodeLocator getReadonlyCopy() {
-		SortedMap<Long, MemcachedNode> smn=new TreeMap<Long, MemcachedNode>(
-			ketamaNodes);
+		IdentityHashMap<MemcachedNode, MemcachedNode> ro=
+			new IdentityHashMap<MemcachedNode, MemcachedNode>();
 		Collection<MemcachedNode> an=
 			new ArrayList<MemcachedNode>(allNodes.size());
 
-		// Rewrite the values a copy of the map.
-		for(Map.Entry<Long, MemcachedNode> me : smn.entrySet()) {
-			me.setValue(new MemcachedNodeROImpl(me.getValue()));
-		}
 		// Copy the allNodes collection.
 		for(MemcachedNode n : allNodes) {
-			an.add(new MemcachedNodeROImpl(n));
+			MemcachedNode roNode=new MemcachedNodeROImpl(n);
+			ro.put(n, roNode);
+			an.add(roNode);
 		}
 
-		return new KetamaNodeLocator(smn, an, hashAlg, config);
+		return new KetamaNodeLocator(continuum.replaceNodes(ro), an,
+			hashAlg, config);
 	}
 
 	class KetamaIterator implements Iterator<MemcachedNode> {
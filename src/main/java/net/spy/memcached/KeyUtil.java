@@ -16,6 +16,20 @@ public class KeyUtil {
 	 * @return the bytes
 	 */
 	public static byte[] getKeyBytes(String k) {
+		int len=k.length();
+		byte[] rv=new byte[len];
+		for(int i=0; i<len; i++) {
+			char c=k.charAt(i);
+			if(c >= 0x80) {
+				// Not plain ASCII, let the charset deal with it.
+				return encodeUTF8(k);
+			}
+			rv[i]=(byte)c;
+		}
+		return rv;
+	}
+
+	private static byte[] encodeUTF8(String k) {
 		try {
 			return k.getBytes("UTF-8");
 		} catch (UnsupportedEncodingException e) {
@@ -23,6 +37,37 @@ public class KeyUtil {
 		}
 	}
 
+	/**
+	 * Get the number of bytes in the encoded form of a key without
+	 * encoding it.
+	 *
+	 * @param k the key
+	 * @return the length of the array getKeyBytes would return
+	 */
+	public static int getKeyLength(String k) {
+		int len=k.length();
+		int rv=0;
+		for(int i=0; i<len; i++) {
+			char c=k.charAt(i);
+			if(c < 0x80) {
+				rv++;
+			} else if(c < 0x800) {
+				rv+=2;
+			} else if(Character.isHighSurrogate(c) && i + 1 < len
+					&& Character.isLowSurrogate(k.charAt(i + 1))) {
+				rv+=4;
+				i++;
+			} else if(Character.isHighSurrogate(c)
+					|| Character.isLowSurrogate(c)) {
+				// Unpaired surrogates are encoded as a single '?'.
+				rv++;
+			} else {
+				rv+=3;
+			}
+		}
+		return rv;
+	}
+
 	/**
 	 * Get the keys in byte form for all of the string keys.
 	 *
@@ -0,0 +1,73 @@
+package net.spy.memcached;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A percentile of recent latencies.
+ *
+ * <p>
+ * The most recent samples are kept in a ring, and the percentile is worked
+ * out again after every so many, so reading it is cheap.  Until there are
+ * enough samples to go by there's no percentile.
+ * </p>
+ */
+final class LatencyPercentile {
+
+	// Number of samples kept.
+	static final int SAMPLES=1000;
+	// Number of samples between working out the percentile.
+	static final int REFRESH=100;
+
+	private final double percentile;
+	private final AtomicLongArray samples=new AtomicLongArray(SAMPLES);
+	private final AtomicLong recorded=new AtomicLong();
+	private volatile long value=-1;
+
+	/**
+	 * Get a tracker for the given percentile.
+	 *
+	 * @param p the percentile, between 0 and 1
+	 */
+	LatencyPercentile(double p) {
+		super();
+		if(p <= 0 || p >= 1) {
+			throw new IllegalArgumentException(
+				"Percentile must be between 0 and 1, got " + p);
+		}
+		percentile=p;
+	}
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	void record(long nanos) {
+		long n=recorded.getAndIncrement();
+		samples.set((int)(n % SAMPLES), nanos);
+		if((n + 1) % REFRESH == 0) {
+			refresh((int)Math.min(n + 1, SAMPLES));
+		}
+	}
+
+	private void refresh(int n) {
+		long[] sorted=new long[n];
+		for(int i=0; i<n; i++) {
+			sorted[i]=samples.get(i);
+		}
+		Arrays.sort(sorted);
+		int i=(int)Math.ceil(percentile * n) - 1;
+		value=sorted[Math.max(i, 0)];
+	}
+
+	/**
+	 * Get the percentile in nanoseconds.
+	 *
+	 * @return the percentile, or -1 if there aren't enough samples yet
+	 */
+	long get() {
+		return value;
+	}
+}
@@ -0,0 +1,218 @@
+package net.spy.memcached;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.compat.SpyObject;
+import net.spy.memcached.internal.CheckedOperationTimeoutException;
+import net.spy.memcached.internal.CompletionListener;
+import net.spy.memcached.internal.ListenableFuture;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationCallback;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Operation callback that tells a listener the outcome, either right away
+ * or by running itself on an executor.
+ */
+abstract class ListenerCallback extends SpyObject
+	implements OperationCallback, Runnable {
+
+	final String key;
+	private final Executor executor;
+	private Operation op=null;
+	private Exception failure=null;
+	private boolean done=false;
+
+	ListenerCallback(String k, Executor e) {
+		super();
+		key=k;
+		executor=e;
+	}
+
+	/**
+	 * Set the operation this is the callback of.
+	 */
+	void setOperation(Operation o) {
+		op=o;
+	}
+
+	/**
+	 * Get the operation this is the callback of.
+	 */
+	Operation getOperation() {
+		return op;
+	}
+
+	public void complete() {
+		Exception e=null;
+		if(op.isTimedOut()) {
+			e=new CheckedOperationTimeoutException("Operation timed out", op);
+		} else if(op.hasErrored()) {
+			e=op.getException();
+		} else if(op.isCancelled()) {
+			e=new CancellationException("Cancelled");
+		}
+		finish(e);
+	}
+
+	/**
+	 * Tell the listener how it went.  Only the first call does anything,
+	 * as cancelling a completed operation completes it again.
+	 *
+	 * @param e why it failed, or null if it didn't
+	 */
+	final void finish(Exception e) {
+		synchronized(this) {
+			if(done) {
+				return;
+			}
+			done=true;
+			failure=e;
+		}
+		if(executor == null) {
+			run();
+		} else {
+			try {
+				executor.execute(this);
+			} catch(RejectedExecutionException x) {
+				getLogger().warn("Telling the listener for %s directly", key, x);
+				run();
+			}
+		}
+	}
+
+	// A broken listener mustn't break the IO thread.
+	public final void run() {
+		try {
+			if(failure == null) {
+				succeeded();
+			} else {
+				failed(failure);
+			}
+		} catch(RuntimeException e) {
+			getLogger().warn("Exception from listener for %s", key, e);
+		}
+	}
+
+	/**
+	 * Tell the listener the operation succeeded.
+	 */
+	abstract void succeeded();
+
+	/**
+	 * Tell the listener the operation failed.
+	 */
+	abstract void failed(Exception e);
+
+	/**
+	 * Callback for a get of one key, decoding the value in whatever thread
+	 * tells the listener.
+	 */
+	static final class Get<T> extends ListenerCallback
+		implements GetOperation.Callback, InFlightGets.Waiter {
+
+		private final Transcoder<T> tc;
+		private final GetListener<T> listener;
+		private int flags=0;
+		private byte[] data=null;
+		private CachedData fetched=null;
+
+		Get(String k, Transcoder<T> t, GetListener<T> l, Executor e) {
+			super(k, e);
+			tc=t;
+			listener=l;
+		}
+
+		public void receivedStatus(OperationStatus status) {
+			// Only the value matters.
+		}
+
+		public void gotData(String k, int f, byte[] d) {
+			assert key.equals(k) : "Wrong key returned";
+			flags=f;
+			data=d;
+		}
+
+		public void fetched(String k, Operation o, CachedData d) {
+			setOperation(o);
+			fetched=d;
+			complete();
+		}
+
+		@Override
+		void succeeded() {
+			T v=null;
+			try {
+				if(fetched != null) {
+					v=tc.decode(fetched);
+				} else if(data != null) {
+					v=tc.decode(new CachedData(flags, data, tc.getMaxSize()));
+				}
+			} catch(RuntimeException e) {
+				listener.onFailure(key, e);
+				return;
+			}
+			listener.onGet(key, v);
+		}
+
+		@Override
+		void failed(Exception e) {
+			listener.onFailure(key, e);
+		}
+	}
+
+	/**
+	 * Callback for a store of one key.  It can also listen to the future
+	 * of a store that went to more than one server.
+	 */
+	static final class Store extends ListenerCallback
+		implements CompletionListener<Boolean> {
+
+		private final StoreListener listener;
+		private boolean stored=false;
+
+		Store(String k, StoreListener l, Executor e) {
+			super(k, e);
+			listener=l;
+		}
+
+		public void receivedStatus(OperationStatus status) {
+			stored=status.isSuccess();
+		}
+
+		public void onComplete(ListenableFuture<Boolean> f) {
+			if(f.isCancelled()) {
+				finish(new CancellationException("Cancelled"));
+				return;
+			}
+			try {
+				stored=f.get(0, TimeUnit.MILLISECONDS);
+				finish(null);
+			} catch(ExecutionException e) {
+				finish(e.getCause() instanceof Exception
+					? (Exception)e.getCause() : e);
+			} catch(TimeoutException e) {
+				finish(e);
+			} catch(InterruptedException e) {
+				finish(e);
+			}
+		}
+
+		@Override
+		void succeeded() {
+			listener.onStore(key, stored);
+		}
+
+		@Override
+		void failed(Exception e) {
+			listener.onFailure(key, e);
+		}
+	}
+}
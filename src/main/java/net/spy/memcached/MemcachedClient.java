@@ -10,8 +10,11 @@ import java.nio.channels.ClosedSelectorException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -20,7 +23,12 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
@@ -30,14 +38,19 @@ import net.spy.memcached.auth.AuthDescriptor;
 import net.spy.memcached.auth.AuthThread;
 import net.spy.memcached.compat.SpyThread;
 import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.internal.GetCallbackFuture;
 import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.GetsCallbackFuture;
+import net.spy.memcached.internal.ListenableFuture;
+import net.spy.memcached.internal.OperationCallbackFuture;
 import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.internal.ReplicatedOperationFuture;
 import net.spy.memcached.ops.CASOperationStatus;
 import net.spy.memcached.ops.CancelledOperationStatus;
 import net.spy.memcached.ops.ConcatenationType;
 import net.spy.memcached.ops.DeleteOperation;
 import net.spy.memcached.ops.GetOperation;
-import net.spy.memcached.ops.GetsOperation;
+import net.spy.memcached.ops.KeyedOperation;
 import net.spy.memcached.ops.Mutator;
 import net.spy.memcached.ops.Operation;
 import net.spy.memcached.ops.OperationCallback;
@@ -47,6 +60,7 @@ import net.spy.memcached.ops.StatsOperation;
 import net.spy.memcached.ops.StoreType;
 import net.spy.memcached.transcoders.TranscodeService;
 import net.spy.memcached.transcoders.Transcoder;
+import net.spy.memcached.util.DefaultKetamaNodeLocatorConfiguration;
 
 /**
  * Client to a memcached server.
@@ -99,13 +113,15 @@ import net.spy.memcached.transcoders.Transcoder;
  * </pre>
  */
 public class MemcachedClient extends SpyThread
-	implements MemcachedClientIF, ConnectionObserver {
+	implements MemcachedClientIF, ConnectionHealthObserver,
+		NodeConnectionObserver {
 
 	private volatile boolean running=true;
 	private volatile boolean shuttingDown=false;
 
 	private final long operationTimeout;
 
+	private final ConnectionFactory connFactory;
 	private final MemcachedConnection conn;
 	final OperationFactory opFact;
 
@@ -115,6 +131,30 @@ public class MemcachedClient extends SpyThread
 
 	final AuthDescriptor authDescriptor;
 
+	// Keys being fetched, if concurrent gets for a key are coalesced.
+	private final InFlightGets inFlightGets;
+
+	// True if keys are written to more than one server.
+	private final boolean replicated;
+	private final ReplicaAck replicaAck;
+	// Recent get latencies and the timer that sends slow gets to replicas,
+	// if they're hedged.
+	private final LatencyPercentile getLatency;
+	private final ScheduledExecutorService hedgeTimer;
+	// True if a get only ever goes to the key's primary, so its future can
+	// be the get's callback.
+	private final boolean directGets;
+
+	// For operations whose outcome nothing waits on.
+	private static final OperationCallback IGNORED=new OperationCallback() {
+		public void receivedStatus(OperationStatus status) {
+			// Nothing to do.
+		}
+		public void complete() {
+			// Nothing to do.
+		}
+	};
+
 	/**
 	 * Get a memcache client operating on the specified memcached locations.
 	 *
@@ -160,12 +200,32 @@ public class MemcachedClient extends SpyThread
 				"Operation timeout must be positive.");
 		}
 		tcService = new TranscodeService();
+		connFactory=cf;
 		transcoder=cf.getDefaultTranscoder();
 		opFact=cf.getOperationFactory();
 		assert opFact != null : "Connection factory failed to make op factory";
 		conn=cf.createConnection(addrs);
 		assert conn != null : "Connection factory failed to make a connection";
 		operationTimeout = cf.getOperationTimeout();
+		inFlightGets = cf.shouldCoalesceGets()
+			? new InFlightGets(operationTimeout) : null;
+		replicated = cf.getReplicaCount() > 1;
+		replicaAck = cf.getReplicaAck();
+		if(replicated && cf.getHedgePercentile() > 0) {
+			getLatency=new LatencyPercentile(cf.getHedgePercentile());
+			hedgeTimer=Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t=new Thread(r, "Memcached hedge timer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		} else {
+			getLatency=null;
+			hedgeTimer=null;
+		}
+		directGets=getLatency == null && cf.getMigrationWindow() <= 0;
 		authDescriptor = cf.getAuthDescriptor();
 		if(authDescriptor != null) {
 			addObserver(this);
@@ -220,6 +280,58 @@ public class MemcachedClient extends SpyThread
 		return conn.getLocator().getReadonlyCopy();
 	}
 
+	/**
+	 * Add a server to the end of the server list.
+	 *
+	 * <p>
+	 * The server is connected to in the background.  Keys that now belong
+	 * to it are sent to it from here on.
+	 * </p>
+	 *
+	 * @param sa the server's address
+	 * @return false if the server was already in use
+	 * @throws IOException if the connection to the server can't be created
+	 */
+	public boolean addServer(InetSocketAddress sa) throws IOException {
+		return conn.addServer(sa);
+	}
+
+	/**
+	 * Remove a server from the server list.
+	 *
+	 * <p>
+	 * Operations already sent to the server are allowed to finish before
+	 * its connections are closed.  Anything that hadn't yet been sent to it
+	 * is sent to wherever its key lives now.
+	 * </p>
+	 *
+	 * @param sa the server's address
+	 * @return false if the server wasn't in use
+	 * @throws IOException if the server list can't be updated
+	 */
+	public boolean removeServer(InetSocketAddress sa) throws IOException {
+		return conn.removeServer(sa);
+	}
+
+	/**
+	 * Replace the server list.
+	 *
+	 * <p>
+	 * Servers in both the old and new lists keep their connections, new
+	 * servers are added and missing servers are removed as with
+	 * {@link #addServer(InetSocketAddress)} and
+	 * {@link #removeServer(InetSocketAddress)}.  The change is made all at
+	 * once, so any given operation sees either the old or the new list.
+	 * </p>
+	 *
+	 * @param addrs the addresses of the servers, in order
+	 * @throws IOException if a new connection can't be created
+	 */
+	public void updateServers(List<InetSocketAddress> addrs)
+		throws IOException {
+		conn.updateServers(addrs);
+	}
+
 	/**
 	 * Get the default transcoder that's in use.
 	 */
@@ -228,18 +340,24 @@ public class MemcachedClient extends SpyThread
 	}
 
 	private void validateKey(String key) {
-		byte[] keyBytes=KeyUtil.getKeyBytes(key);
-		if(keyBytes.length > MAX_KEY_LENGTH) {
+		validateKey(key, KeyUtil.getKeyLength(key));
+	}
+
+	private void validateKey(String key, int keyLength) {
+		if(keyLength > MAX_KEY_LENGTH) {
 			throw new IllegalArgumentException("Key is too long (maxlen = "
 					+ MAX_KEY_LENGTH + ")");
 		}
-		if(keyBytes.length == 0) {
+		if(keyLength == 0) {
 			throw new IllegalArgumentException(
 				"Key must contain at least one character.");
 		}
-		// Validate the key
-		for(byte b : keyBytes) {
-			if(b == ' ' || b == '\n' || b == '\r' || b == 0) {
+		// Validate the key.  The invalid characters are all ASCII, which
+		// never appears inside the encoding of anything else.
+		int len=key.length();
+		for(int i=0; i<len; i++) {
+			char c=key.charAt(i);
+			if(c == ' ' || c == '\n' || c == '\r' || c == 0) {
 				throw new IllegalArgumentException(
 					"Key contains invalid characters:  ``" + key + "''");
 			}
@@ -262,9 +380,12 @@ public class MemcachedClient extends SpyThread
 	 * @return the Operation
 	 */
 	Operation addOp(final String key, final Operation op) {
-		validateKey(key);
+		// The one encoding of the key, which is also used to locate its
+		// server and to write the operation.
+		byte[] keyBytes=KeyUtil.getKeyBytes(key);
+		validateKey(key, keyBytes.length);
 		checkState();
-		conn.addOperation(key, op);
+		conn.addOperation(key, keyBytes, op);
 		return op;
 	}
 
@@ -286,47 +407,148 @@ public class MemcachedClient extends SpyThread
 		return conn.broadcastOperation(of, nodes);
 	}
 
-	private <T> Future<Boolean> asyncStore(StoreType storeType, String key,
-						   int exp, T value, Transcoder<T> tc) {
+	// The connections to the servers keeping copies of a key other than
+	// its primary.
+	private List<MemcachedNode> getOtherReplicas(String key) {
+		if(!replicated) {
+			return Collections.emptyList();
+		}
+		List<MemcachedNode> rv=conn.getReplicas(key);
+		return rv.subList(1, rv.size());
+	}
+
+	// Makes the operation writing one copy of a key.
+	private interface CopyOpFactory {
+		Operation newOp(OperationCallback cb);
+	}
+
+	/**
+	 * Write every copy of a key.
+	 *
+	 * <p>
+	 * The future is true once as many servers as the replica ack requires
+	 * have accepted the write, and false once too many have failed.  All of
+	 * the copies are queued at once.
+	 * </p>
+	 *
+	 * @param deadlines if true, copies still waiting when the operation
+	 *        timeout has passed are timed out even if deadlines aren't
+	 *        enforced, as nothing may wait on the future with a timeout
+	 */
+	private ListenableFuture<Boolean> asyncReplicatedWrite(String key,
+			CopyOpFactory of, boolean deadlines) {
+		// Every copy shares the one encoding of the key.
+		byte[] keyBytes=KeyUtil.getKeyBytes(key);
+		validateKey(key, keyBytes.length);
+		checkState();
+		conn.invalidateMigrationSource(key);
+		List<MemcachedNode> nodes=conn.getReplicas(key, keyBytes);
+		final ReplicatedOperationFuture rv=new ReplicatedOperationFuture(
+			replicaAck.required(nodes.size()), nodes.size(), operationTimeout);
+		Map<MemcachedNode, Operation> ops=
+			new LinkedHashMap<MemcachedNode, Operation>();
+		for(MemcachedNode n : nodes) {
+			ops.put(n, of.newOp(new OperationCallback() {
+				private boolean success=false;
+				private boolean acked=false;
+				public synchronized void receivedStatus(OperationStatus s) {
+					success=s.isSuccess();
+				}
+				// Cancelling a completed operation completes it again.
+				public synchronized void complete() {
+					if(!acked) {
+						acked=true;
+						rv.acked(success);
+					}
+				}
+			}));
+		}
+		setKeyBytes(ops.values(), keyBytes);
+		rv.setOperations(new ArrayList<Operation>(ops.values()));
+		conn.addReplicaOperations(ops);
+		if(deadlines) {
+			for(Operation op : ops.values()) {
+				conn.addDeadline(op);
+			}
+		}
+		return rv;
+	}
+
+	// Makes the operations storing each copy of an encoded value.
+	private CopyOpFactory storeCopies(final StoreType storeType,
+			final String key, final int exp, final CachedData co) {
+		return new CopyOpFactory() {
+			public Operation newOp(OperationCallback cb) {
+				return opFact.store(storeType, key, co.getFlags(), exp,
+					co.getData(), cb);
+			}
+		};
+	}
+
+	// Delete the copies of a key that a write to its primary can't be
+	// repeated on, so reads of them miss rather than seeing the old value.
+	private void invalidateReplicas(String key) {
+		if(!replicated) {
+			return;
+		}
+		Map<MemcachedNode, Operation> ops=
+			new HashMap<MemcachedNode, Operation>();
+		for(MemcachedNode n : getOtherReplicas(key)) {
+			ops.put(n, opFact.delete(key, IGNORED));
+		}
+		setKeyBytes(ops.values(), KeyUtil.getKeyBytes(key));
+		conn.addReplicaOperations(ops);
+	}
+
+	// Give operations on copies of a key its encoding, so they don't each
+	// encode it again.
+	private void setKeyBytes(Collection<Operation> ops, byte[] keyBytes) {
+		for(Operation op : ops) {
+			if(op instanceof KeyedOperation) {
+				((KeyedOperation)op).setKeyBytes(keyBytes);
+			}
+		}
+	}
+
+	private <T> ListenableFuture<Boolean> asyncStore(StoreType storeType,
+			String key, int exp, T value, Transcoder<T> tc) {
 		CachedData co=tc.encode(value);
-		final CountDownLatch latch=new CountDownLatch(1);
-		final OperationFuture<Boolean> rv=new OperationFuture<Boolean>(latch,
-				operationTimeout);
+		if(replicated) {
+			return asyncReplicatedWrite(key,
+				storeCopies(storeType, key, exp, co), false);
+		}
+		OperationCallbackFuture<Boolean> rv=
+			new OperationCallbackFuture<Boolean>(operationTimeout) {
+				public void receivedStatus(OperationStatus val) {
+					set(val.isSuccess());
+				}
+			};
 		Operation op=opFact.store(storeType, key, co.getFlags(),
-				exp, co.getData(), new OperationCallback() {
-					public void receivedStatus(OperationStatus val) {
-						rv.set(val.isSuccess());
-					}
-					public void complete() {
-						latch.countDown();
-					}});
+				exp, co.getData(), rv);
 		rv.setOperation(op);
 		addOp(key, op);
 		return rv;
 	}
 
-	private Future<Boolean> asyncStore(StoreType storeType,
+	private ListenableFuture<Boolean> asyncStore(StoreType storeType,
 			String key, int exp, Object value) {
 		return asyncStore(storeType, key, exp, value, transcoder);
 	}
 
-	private <T> Future<Boolean> asyncCat(
+	private <T> ListenableFuture<Boolean> asyncCat(
 			ConcatenationType catType, long cas, String key,
 			T value, Transcoder<T> tc) {
 		CachedData co=tc.encode(value);
-		final CountDownLatch latch=new CountDownLatch(1);
-		final OperationFuture<Boolean> rv=new OperationFuture<Boolean>(latch,
-				operationTimeout);
-		Operation op=opFact.cat(catType, cas, key, co.getData(),
-				new OperationCallback() {
-			public void receivedStatus(OperationStatus val) {
-				rv.set(val.isSuccess());
-			}
-			public void complete() {
-				latch.countDown();
-			}});
+		OperationCallbackFuture<Boolean> rv=
+			new OperationCallbackFuture<Boolean>(operationTimeout) {
+				public void receivedStatus(OperationStatus val) {
+					set(val.isSuccess());
+				}
+			};
+		Operation op=opFact.cat(catType, cas, key, co.getData(), rv);
 		rv.setOperation(op);
 		addOp(key, op);
+		invalidateReplicas(key);
 		return rv;
 	}
 
@@ -340,7 +562,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Boolean> append(long cas, String key, Object val) {
+	public ListenableFuture<Boolean> append(long cas, String key, Object val) {
 		return append(cas, key, val, transcoder);
 	}
 
@@ -355,7 +577,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public <T> Future<Boolean> append(long cas, String key, T val,
+	public <T> ListenableFuture<Boolean> append(long cas, String key, T val,
 			Transcoder<T> tc) {
 		return asyncCat(ConcatenationType.append, cas, key, val, tc);
 	}
@@ -370,7 +592,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Boolean> prepend(long cas, String key, Object val) {
+	public ListenableFuture<Boolean> prepend(long cas, String key, Object val) {
 		return prepend(cas, key, val, transcoder);
 	}
 
@@ -385,7 +607,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public <T> Future<Boolean> prepend(long cas, String key, T val,
+	public <T> ListenableFuture<Boolean> prepend(long cas, String key, T val,
 			Transcoder<T> tc) {
 		return asyncCat(ConcatenationType.prepend, cas, key, val, tc);
 	}
@@ -401,9 +623,9 @@ public class MemcachedClient extends SpyThread
      * @throws IllegalStateException in the rare circumstance where queue
      *         is too full to accept any more requests
      */
-    public <T> Future<CASResponse> asyncCAS(String key, long casId, T value,
+    public <T> ListenableFuture<CASResponse> asyncCAS(String key, long casId, T value,
             Transcoder<T> tc) {
-        return asyncCAS(key, casId, 0, value, tc);
+        return asyncCASOp(key, casId, 0, value, tc);
 	}
 
 	/**
@@ -420,27 +642,30 @@ public class MemcachedClient extends SpyThread
 	 */
 	public <T> Future<CASResponse> asyncCAS(String key, long casId, int exp, T value,
 			Transcoder<T> tc) {
+		return asyncCASOp(key, casId, exp, value, tc);
+	}
+
+	private <T> ListenableFuture<CASResponse> asyncCASOp(String key,
+			long casId, int exp, T value, Transcoder<T> tc) {
 		CachedData co=tc.encode(value);
-		final CountDownLatch latch=new CountDownLatch(1);
-		final OperationFuture<CASResponse> rv=new OperationFuture<CASResponse>(
-				latch, operationTimeout);
-		Operation op=opFact.cas(StoreType.set, key, casId, co.getFlags(), exp,
-				co.getData(), new OperationCallback() {
-					public void receivedStatus(OperationStatus val) {
-						if(val instanceof CASOperationStatus) {
-							rv.set(((CASOperationStatus)val).getCASResponse());
-						} else if(val instanceof CancelledOperationStatus) {
-							// Cancelled, ignore and let it float up
-						} else {
-							throw new RuntimeException(
-								"Unhandled state: " + val);
-						}
+		OperationCallbackFuture<CASResponse> rv=
+			new OperationCallbackFuture<CASResponse>(operationTimeout) {
+				public void receivedStatus(OperationStatus val) {
+					if(val instanceof CASOperationStatus) {
+						set(((CASOperationStatus)val).getCASResponse());
+					} else if(val instanceof CancelledOperationStatus) {
+						// Cancelled, ignore and let it float up
+					} else {
+						throw new RuntimeException(
+							"Unhandled state: " + val);
 					}
-					public void complete() {
-						latch.countDown();
-					}});
+				}
+			};
+		Operation op=opFact.cas(StoreType.set, key, casId, co.getFlags(), exp,
+				co.getData(), rv);
 		rv.setOperation(op);
 		addOp(key, op);
+		invalidateReplicas(key);
 		return rv;
 	}
 
@@ -454,7 +679,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<CASResponse> asyncCAS(String key, long casId, Object value) {
+	public ListenableFuture<CASResponse> asyncCAS(String key, long casId, Object value) {
 		return asyncCAS(key, casId, value, transcoder);
 	}
 
@@ -548,7 +773,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public <T> Future<Boolean> add(String key, int exp, T o, Transcoder<T> tc) {
+	public <T> ListenableFuture<Boolean> add(String key, int exp, T o, Transcoder<T> tc) {
 		return asyncStore(StoreType.add, key, exp, o, tc);
 	}
 
@@ -580,7 +805,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Boolean> add(String key, int exp, Object o) {
+	public ListenableFuture<Boolean> add(String key, int exp, Object o) {
 		return asyncStore(StoreType.add, key, exp, o, transcoder);
 	}
 
@@ -612,7 +837,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public <T> Future<Boolean> set(String key, int exp, T o, Transcoder<T> tc) {
+	public <T> ListenableFuture<Boolean> set(String key, int exp, T o, Transcoder<T> tc) {
 		return asyncStore(StoreType.set, key, exp, o, tc);
 	}
 
@@ -644,7 +869,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Boolean> set(String key, int exp, Object o) {
+	public ListenableFuture<Boolean> set(String key, int exp, Object o) {
 		return asyncStore(StoreType.set, key, exp, o, transcoder);
 	}
 
@@ -677,7 +902,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public <T> Future<Boolean> replace(String key, int exp, T o,
+	public <T> ListenableFuture<Boolean> replace(String key, int exp, T o,
 		Transcoder<T> tc) {
 		return asyncStore(StoreType.replace, key, exp, o, tc);
 	}
@@ -710,10 +935,141 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Boolean> replace(String key, int exp, Object o) {
+	public ListenableFuture<Boolean> replace(String key, int exp, Object o) {
 		return asyncStore(StoreType.replace, key, exp, o, transcoder);
 	}
 
+	// Store a value, telling the listener how it went rather than returning
+	// a future.  Nothing else can give up on it, so it's always given a
+	// deadline.
+	private <T> void asyncStore(StoreType storeType, String key, int exp,
+			T value, Transcoder<T> tc, StoreListener l, Executor e) {
+		ListenerCallback.Store cb=new ListenerCallback.Store(key, l, e);
+		CachedData co=tc.encode(value);
+		if(replicated) {
+			asyncReplicatedWrite(key, storeCopies(storeType, key, exp, co),
+				true).addListener(cb);
+			return;
+		}
+		cb.setOperation(opFact.store(storeType, key, co.getFlags(), exp,
+			co.getData(), cb));
+		addOp(key, cb.getOperation());
+		conn.addDeadline(cb.getOperation());
+	}
+
+	/**
+	 * Add an object to the cache iff it does not exist already, telling a
+	 * listener on the IO thread whether it was added.
+	 *
+	 * @see #add(String, int, Object, Transcoder)
+	 * @param key the key under which this object should be added.
+	 * @param exp the expiration of this object
+	 * @param o the object to store
+	 * @param tc the transcoder to serialize and unserialize the value
+	 * @param l the listener to tell
+	 * @throws IllegalStateException in the rare circumstance where queue
+	 *         is too full to accept any more requests
+	 */
+	public <T> void add(String key, int exp, T o, Transcoder<T> tc,
+			StoreListener l) {
+		asyncStore(StoreType.add, key, exp, o, tc, l, null);
+	}
+
+	/**
+	 * Add an object to the cache iff it does not exist already, telling a
+	 * listener on the given executor whether it was added.
+	 *
+	 * @see #add(String, int, Object, Transcoder)
+	 * @param key the key under which this object should be added.
+	 * @param exp the expiration of this object
+	 * @param o the object to store
+	 * @param tc the transcoder to serialize and unserialize the value
+	 * @param l the listener to tell
+	 * @param e the executor to tell the listener on
+	 * @throws IllegalStateException in the rare circumstance where queue
+	 *         is too full to accept any more requests
+	 */
+	public <T> void add(String key, int exp, T o, Transcoder<T> tc,
+			StoreListener l, Executor e) {
+		asyncStore(StoreType.add, key, exp, o, tc, l, e);
+	}
+
+	/**
+	 * Set an object in the cache regardless of any existing value, telling
+	 * a listener on the IO thread whether it was set.
+	 *
+	 * @see #set(String, int, Object, Transcoder)
+	 * @param key the key under which this object should be added.
+	 * @param exp the expiration of this object
+	 * @param o the object to store
+	 * @param tc the transcoder to serialize and unserialize the value
+	 * @param l the listener to tell
+	 * @throws IllegalStateException in the rare circumstance where queue
+	 *         is too full to accept any more requests
+	 */
+	public <T> void set(String key, int exp, T o, Transcoder<T> tc,
+			StoreListener l) {
+		asyncStore(StoreType.set, key, exp, o, tc, l, null);
+	}
+
+	/**
+	 * Set an object in the cache regardless of any existing value, telling
+	 * a listener on the given executor whether it was set.
+	 *
+	 * @see #set(String, int, Object, Transcoder)
+	 * @param key the key under which this object should be added.
+	 * @param exp the expiration of this object
+	 * @param o the object to store
+	 * @param tc the transcoder to serialize and unserialize the value
+	 * @param l the listener to tell
+	 * @param e the executor to tell the listener on
+	 * @throws IllegalStateException in the rare circumstance where queue
+	 *         is too full to accept any more requests
+	 */
+	public <T> void set(String key, int exp, T o, Transcoder<T> tc,
+			StoreListener l, Executor e) {
+		asyncStore(StoreType.set, key, exp, o, tc, l, e);
+	}
+
+	/**
+	 * Replace an object with the given value iff there is already a value
+	 * for the given key, telling a listener on the IO thread whether it was
+	 * replaced.
+	 *
+	 * @see #replace(String, int, Object, Transcoder)
+	 * @param key the key under which this object should be added.
+	 * @param exp the expiration of this object
+	 * @param o the object to store
+	 * @param tc the transcoder to serialize and unserialize the value
+	 * @param l the listener to tell
+	 * @throws IllegalStateException in the rare circumstance where queue
+	 *         is too full to accept any more requests
+	 */
+	public <T> void replace(String key, int exp, T o, Transcoder<T> tc,
+			StoreListener l) {
+		asyncStore(StoreType.replace, key, exp, o, tc, l, null);
+	}
+
+	/**
+	 * Replace an object with the given value iff there is already a value
+	 * for the given key, telling a listener on the given executor whether
+	 * it was replaced.
+	 *
+	 * @see #replace(String, int, Object, Transcoder)
+	 * @param key the key under which this object should be added.
+	 * @param exp the expiration of this object
+	 * @param o the object to store
+	 * @param tc the transcoder to serialize and unserialize the value
+	 * @param l the listener to tell
+	 * @param e the executor to tell the listener on
+	 * @throws IllegalStateException in the rare circumstance where queue
+	 *         is too full to accept any more requests
+	 */
+	public <T> void replace(String key, int exp, T o, Transcoder<T> tc,
+			StoreListener l, Executor e) {
+		asyncStore(StoreType.replace, key, exp, o, tc, l, e);
+	}
+
 	/**
 	 * Get the given key asynchronously.
 	 *
@@ -723,28 +1079,319 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public <T> Future<T> asyncGet(final String key, final Transcoder<T> tc) {
+	public <T> ListenableFuture<T> asyncGet(final String key, final Transcoder<T> tc) {
+		if(inFlightGets != null) {
+			return asyncGetCoalesced(key, tc);
+		}
+		if(directGets) {
+			GetCallbackFuture<T> rv=
+				new GetCallbackFuture<T>(key, tc, operationTimeout);
+			rv.setOperation(opFact.get(key, rv));
+			addOp(key, rv.getOperation());
+			return rv;
+		}
 
 		final CountDownLatch latch=new CountDownLatch(1);
 		final GetFuture<T> rv=new GetFuture<T>(latch, operationTimeout);
+		KeyRead r=new KeyRead(key, tc.getMaxSize(), new InFlightGets.Waiter() {
+			public void fetched(String k, Operation op, CachedData d) {
+				rv.setOperation(op);
+				rv.set(d == null ? null : tcService.decode(tc, d));
+				latch.countDown();
+				rv.signalComplete();
+			}
+		});
+		rv.setOperation(r.getOperation());
+		addOp(key, r.getOperation());
+		r.sent();
+		return rv;
+	}
+
+	private <T> ListenableFuture<T> asyncGetCoalesced(final String key,
+			final Transcoder<T> tc) {
+		final CountDownLatch latch=new CountDownLatch(1);
+		final GetFuture<T> rv=new GetFuture<T>(latch, operationTimeout);
+		getCoalesced(key, new InFlightGets.Waiter() {
+			public void fetched(String k, Operation op, CachedData d) {
+				rv.setOperation(op);
+				rv.set(d == null ? null : tcService.decode(tc, d));
+				latch.countDown();
+				rv.signalComplete();
+			}
+		}, rv);
+		return rv;
+	}
+
+	// Wait for the fetch of the key already in flight, or start one,
+	// returning its operation.  The future, if there is one, gets the
+	// operation before the waiter can be told anything.
+	private Operation getCoalesced(String key, InFlightGets.Waiter w,
+			GetFuture<?> rv) {
+		InFlightGets.Fetch f=inFlightGets.get(key);
+		if(f == null) {
+			byte[] keyBytes=KeyUtil.getKeyBytes(key);
+			validateKey(key, keyBytes.length);
+			checkState();
+			final InFlightGets.Fetch mine=inFlightGets.new Fetch(key);
+			KeyRead r=new KeyRead(key, Integer.MAX_VALUE,
+					new InFlightGets.Waiter() {
+				public void fetched(String k, Operation op, CachedData d) {
+					mine.setOperation(op);
+					mine.complete(d);
+				}
+			});
+			Operation op=r.getOperation();
+			mine.setOperation(op);
+			f=inFlightGets.start(mine);
+			if(f == null) {
+				if(rv != null) {
+					rv.setOperation(op);
+				}
+				mine.attach(w);
+				try {
+					conn.addOperation(key, keyBytes, op);
+				} catch(RuntimeException e) {
+					// Let anything that started waiting on it go.
+					op.cancel();
+					throw e;
+				}
+				r.sent();
+				return op;
+			}
+		}
+		Operation op=f.getOperation();
+		if(rv != null) {
+			rv.setOperation(op);
+		}
+		f.attach(w);
+		return op;
+	}
+
+	/**
+	 * A get of one key.
+	 *
+	 * <p>
+	 * It's sent to the key's primary, and also to a replica if the primary
+	 * hasn't answered by the hedge percentile of recent gets, or to the
+	 * key's old server if the primary doesn't have it while the servers are
+	 * changing.  The primary's answer is used unless a replica comes back
+	 * with the value first, and whatever's still outstanding then is
+	 * cancelled.
+	 * </p>
+	 */
+	private final class KeyRead {
+		private final String key;
+		private final int maxSize;
+		private final InFlightGets.Waiter waiter;
+		private final long started=System.nanoTime();
+		private final Reader primary;
+		private Reader hedge=null;
+		private Reader previous=null;
+		private boolean fellBack=false;
+		private Future<?> hedgeTask=null;
+		private boolean decided=false;
+
+		KeyRead(String k, int max, InFlightGets.Waiter w) {
+			super();
+			key=k;
+			maxSize=max;
+			waiter=w;
+			primary=new Reader();
+			primary.op=opFact.get(key, primary);
+		}
+
+		/**
+		 * Get the operation to send to the primary.
+		 */
+		Operation getOperation() {
+			return primary.op;
+		}
 
+		/**
+		 * Called once the get has been sent to the primary, to arrange for
+		 * it to be hedged if the primary is slow.
+		 */
+		void sent() {
+			long delay=getLatency == null ? -1 : getLatency.get();
+			if(delay < 0) {
+				return;
+			}
+			synchronized(this) {
+				if(decided) {
+					return;
+				}
+				try {
+					hedgeTask=hedgeTimer.schedule(new Runnable() {
+						public void run() {
+							hedge();
+						}
+					}, delay, TimeUnit.NANOSECONDS);
+				} catch(RejectedExecutionException e) {
+					// Shutting down.
+				}
+			}
+		}
+
+		// Send the get to the first replica that's up.
+		@SuppressWarnings("synthetic-access")
+		void hedge() {
+			if(shuttingDown) {
+				return;
+			}
+			MemcachedNode node=null;
+			for(MemcachedNode n : getOtherReplicas(key)) {
+				if(n.isActive()) {
+					node=n;
+					break;
+				}
+			}
+			if(node == null) {
+				return;
+			}
+			Reader r=new Reader();
+			r.op=opFact.get(key, r);
+			synchronized(this) {
+				if(decided) {
+					return;
+				}
+				hedge=r;
+			}
+			getLogger().debug("Hedging get of %s to %s", key, node);
+			try {
+				conn.addOperation(node, r.op);
+			} catch(IllegalStateException e) {
+				// The queue's full, so just wait for the primary.
+				r.op.cancel();
+			}
+		}
+
+		@SuppressWarnings("synthetic-access")
+		void read(Reader r) {
+			Collection<Operation> losers=new ArrayList<Operation>(2);
+			CachedData d;
+			synchronized(this) {
+				if(decided) {
+					return;
+				}
+				boolean cancelled=r.op.isCancelled();
+				if(r == hedge && r.val == null) {
+					// Only a value from a replica is an answer.
+					return;
+				}
+				if(getLatency != null && !cancelled && r != previous) {
+					// When the replica wins this is only a lower bound on
+					// the primary's latency, which is close enough.
+					getLatency.record(System.nanoTime() - started);
+				}
+				if(r == primary && r.val == null && !cancelled && !fellBack) {
+					fellBack=true;
+					Reader p=new Reader();
+					p.op=getFromMigrationSource(key, p);
+					if(p.op != null) {
+						previous=p;
+						return;
+					}
+				}
+				decided=true;
+				d=cancelled ? null : r.val;
+				if(hedgeTask != null) {
+					hedgeTask.cancel(false);
+				}
+				for(Reader o : new Reader[]{primary, hedge, previous}) {
+					if(o != null && o != r
+							&& o.op.getState() != OperationState.COMPLETE) {
+						losers.add(o.op);
+					}
+				}
+			}
+			// Cancelling calls back into read, so it's done without the lock.
+			for(Operation op : losers) {
+				op.cancel();
+			}
+			waiter.fetched(key, r.op, d);
+		}
+
+		private final class Reader implements GetOperation.Callback {
+			Operation op=null;
+			CachedData val=null;
+
+			Reader() {
+				super();
+			}
+
+			public void receivedStatus(OperationStatus status) {
+				// Only the value matters.
+			}
+			public void gotData(String k, int flags, byte[] data) {
+				assert key.equals(k) : "Wrong key returned";
+				val=new CachedData(flags, data, maxSize);
+			}
+			public void complete() {
+				read(this);
+			}
+		}
+	}
+
+	/**
+	 * Look for a key that missed on its server on the server it lived on
+	 * before the servers changed, copying it back if it's found there.
+	 *
+	 * <p>
+	 * Every write during the window also deletes the key from its old
+	 * server, so what's found there hasn't been written since the change.
+	 * The copy is an add, so it never replaces a value written since, and
+	 * isn't made at all if the key was written while it was being read.
+	 * It expires when the window ends, as the original expiration isn't
+	 * returned by a get.
+	 * </p>
+	 *
+	 * @param key the key
+	 * @param cb the callback to tell what's found on the old server
+	 * @return the operation sent to the old server, or null if the key
+	 *         hasn't moved, so there's nowhere to look
+	 */
+	private Operation getFromMigrationSource(final String key,
+			final GetOperation.Callback cb) {
+		final MemcachedNode source=conn.getMigrationSource(key);
+		if(source == null || !source.isActive()) {
+			return null;
+		}
+		final long writes=conn.getMigrationWrites(key);
 		Operation op=opFact.get(key,
 				new GetOperation.Callback() {
-			private Future<T> val=null;
+			private int foundFlags=0;
+			private byte[] found=null;
 			public void receivedStatus(OperationStatus status) {
-				rv.set(val);
+				cb.receivedStatus(status);
 			}
 			public void gotData(String k, int flags, byte[] data) {
-				assert key.equals(k) : "Wrong key returned";
-				val=tcService.decode(tc,
-					new CachedData(flags, data, tc.getMaxSize()));
+				foundFlags=flags;
+				found=data;
+				cb.gotData(k, flags, data);
 			}
 			public void complete() {
-				latch.countDown();
+				int exp=conn.getMigrationTimeLeft();
+				if(found != null && exp > 0
+						&& conn.getMigrationWrites(key) == writes) {
+					getLogger().debug("Copying %s from %s", key, source);
+					conn.addMigratedCopy(key, opFact.store(StoreType.add, key,
+						foundFlags, exp, found,
+						new OperationCallback() {
+							public void receivedStatus(OperationStatus s) {
+								// Not added means it was written since.
+							}
+							public void complete() {
+								// Nothing waits on this.
+							}
+						}));
+				}
+				cb.complete();
 			}});
-		rv.setOperation(op);
-		addOp(key, op);
-		return rv;
+		conn.addOperation(source, op);
+		// Nothing holds this to give up on it, and the get waiting on it
+		// may only be reported to a listener.
+		conn.addDeadline(op);
+		return op;
 	}
 
 	/**
@@ -756,10 +1403,70 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Object> asyncGet(final String key) {
+	public ListenableFuture<Object> asyncGet(final String key) {
 		return asyncGet(key, transcoder);
 	}
 
+	/**
+	 * Get the given key, telling a listener on the IO thread what was
+	 * found rather than returning a future.
+	 *
+	 * @param key the key to fetch
+	 * @param tc the transcoder to serialize and unserialize value
+	 * @param l the listener to tell
+	 * @throws IllegalStateException in the rare circumstance where queue
+	 *         is too full to accept any more requests
+	 */
+	public <T> void asyncGet(String key, Transcoder<T> tc, GetListener<T> l) {
+		asyncGet(key, tc, l, null);
+	}
+
+	/**
+	 * Get the given key, telling a listener on the given executor what was
+	 * found rather than returning a future.  The value is decoded on the
+	 * executor too.
+	 *
+	 * @param key the key to fetch
+	 * @param tc the transcoder to serialize and unserialize value
+	 * @param l the listener to tell
+	 * @param e the executor to tell the listener on, or null to tell it on
+	 *        the IO thread
+	 * @throws IllegalStateException in the rare circumstance where queue
+	 *         is too full to accept any more requests
+	 */
+	public <T> void asyncGet(String key, Transcoder<T> tc, GetListener<T> l,
+			Executor e) {
+		ListenerCallback.Get<T> cb=new ListenerCallback.Get<T>(key, tc, l, e);
+		Operation op;
+		if(inFlightGets != null) {
+			op=getCoalesced(key, cb, null);
+		} else if(directGets) {
+			op=opFact.get(key, cb);
+			cb.setOperation(op);
+			addOp(key, op);
+		} else {
+			KeyRead r=new KeyRead(key, tc.getMaxSize(), cb);
+			op=r.getOperation();
+			addOp(key, op);
+			r.sent();
+		}
+		// Nothing else can give up on it.
+		conn.addDeadline(op);
+	}
+
+	/**
+	 * Get the given key, telling a listener on the IO thread what was
+	 * found, decoded with the default transcoder.
+	 *
+	 * @param key the key to fetch
+	 * @param l the listener to tell
+	 * @throws IllegalStateException in the rare circumstance where queue
+	 *         is too full to accept any more requests
+	 */
+	public void asyncGet(String key, GetListener<Object> l) {
+		asyncGet(key, transcoder, l, null);
+	}
+
 	/**
 	 * Gets (with CAS support) the given key asynchronously.
 	 *
@@ -769,28 +1476,12 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public <T> Future<CASValue<T>> asyncGets(final String key,
+	public <T> ListenableFuture<CASValue<T>> asyncGets(final String key,
 			final Transcoder<T> tc) {
 
-		final CountDownLatch latch=new CountDownLatch(1);
-		final OperationFuture<CASValue<T>> rv=
-			new OperationFuture<CASValue<T>>(latch, operationTimeout);
-
-		Operation op=opFact.gets(key,
-				new GetsOperation.Callback() {
-			private CASValue<T> val=null;
-			public void receivedStatus(OperationStatus status) {
-				rv.set(val);
-			}
-			public void gotData(String k, int flags, long cas, byte[] data) {
-				assert key.equals(k) : "Wrong key returned";
-				assert cas > 0 : "CAS was less than zero:  " + cas;
-				val=new CASValue<T>(cas, tc.decode(
-					new CachedData(flags, data, tc.getMaxSize())));
-			}
-			public void complete() {
-				latch.countDown();
-			}});
+		GetsCallbackFuture<T> rv=
+			new GetsCallbackFuture<T>(key, tc, operationTimeout);
+		Operation op=opFact.gets(key, rv);
 		rv.setOperation(op);
 		addOp(key, op);
 		return rv;
@@ -805,7 +1496,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<CASValue<Object>> asyncGets(final String key) {
+	public ListenableFuture<CASValue<Object>> asyncGets(final String key) {
 		return asyncGets(key, transcoder);
 	}
 
@@ -894,23 +1585,71 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public <T> Future<Map<String, T>> asyncGetBulk(Collection<String> keys,
+	public <T> ListenableFuture<Map<String, T>> asyncGetBulk(Collection<String> keys,
 		final Transcoder<T> tc) {
+		if(inFlightGets != null) {
+			return asyncGetBulkCoalesced(keys, tc);
+		}
 		final Map<String, Future<T>> m=new ConcurrentHashMap<String, Future<T>>();
-		// Break the gets down into groups by key
+		for(String key : keys) {
+			validateKey(key);
+		}
+		final Map<MemcachedNode, Collection<String>> chunks=chunkKeys(keys);
+
+		final CountDownLatch latch=new CountDownLatch(chunks.size());
+		final Collection<Operation> ops=new ArrayList<Operation>();
+		final BulkGetFuture<T> rv=new BulkGetFuture<T>(m, ops, latch);
+
+		GetOperation.Callback cb=new GetOperation.Callback() {
+				@SuppressWarnings("synthetic-access")
+				public void receivedStatus(OperationStatus status) {
+					if(!status.isSuccess()) {
+						getLogger().warn("Unsuccessful get:  %s", status);
+					}
+				}
+				public void gotData(String k, int flags, byte[] data) {
+					m.put(k, tcService.decode(tc,
+							new CachedData(flags, data, tc.getMaxSize())));
+				}
+				public void complete() {
+					latch.countDown();
+					rv.signalComplete();
+				}
+		};
+
+		// Now that we know how many servers it breaks down into, and the latch
+		// is all set up, convert all of these strings collections to operations
+		final Map<MemcachedNode, Operation> mops=
+			new HashMap<MemcachedNode, Operation>();
+
+		for(Map.Entry<MemcachedNode, Collection<String>> me
+				: chunks.entrySet()) {
+			Operation op=opFact.get(me.getValue(), cb);
+			mops.put(me.getKey(), op);
+			ops.add(op);
+		}
+		assert mops.size() == chunks.size();
+		checkState();
+		conn.addOperations(mops);
+		return rv;
+	}
+
+	// Break the gets down into groups by the node they're read from.
+	private Map<MemcachedNode, Collection<String>> chunkKeys(
+			Collection<String> keys) {
 		final Map<MemcachedNode, Collection<String>> chunks
 			=new HashMap<MemcachedNode, Collection<String>>();
 		final NodeLocator locator=conn.getLocator();
 		for(String key : keys) {
-			validateKey(key);
-			final MemcachedNode primaryNode=locator.getPrimary(key);
+			final MemcachedNode primaryNode=
+				conn.getNodeForKey(locator.getPrimary(key), key);
 			MemcachedNode node=null;
 			if(primaryNode.isActive()) {
 				node=primaryNode;
 			} else {
 				for(Iterator<MemcachedNode> i=locator.getSequence(key);
 					node == null && i.hasNext();) {
-					MemcachedNode n=i.next();
+					MemcachedNode n=conn.getNodeForKey(i.next(), key);
 					if(n.isActive()) {
 						node=n;
 					}
@@ -927,11 +1666,56 @@ public class MemcachedClient extends SpyThread
 			}
 			ks.add(key);
 		}
+		return chunks;
+	}
 
-		final CountDownLatch latch=new CountDownLatch(chunks.size());
+	// Wait for the keys already being fetched and fetch the rest, letting
+	// other gets wait for those.
+	private <T> ListenableFuture<Map<String, T>> asyncGetBulkCoalesced(
+			Collection<String> keys, final Transcoder<T> tc) {
+		final Map<String, Future<T>> m=new ConcurrentHashMap<String, Future<T>>();
+		Collection<InFlightGets.Fetch> inFlight=
+			new ArrayList<InFlightGets.Fetch>();
+		Collection<String> toFetch=new LinkedHashSet<String>();
+		for(String key : keys) {
+			validateKey(key);
+			InFlightGets.Fetch f=inFlightGets.get(key);
+			if(f == null) {
+				toFetch.add(key);
+			} else {
+				inFlight.add(f);
+			}
+		}
+		checkState();
+		Map<MemcachedNode, Collection<String>> chunks=chunkKeys(toFetch);
+
+		final CountDownLatch latch=new CountDownLatch(
+			chunks.size() + inFlight.size());
 		final Collection<Operation> ops=new ArrayList<Operation>();
+		final BulkGetFuture<T> rv=new BulkGetFuture<T>(m, ops, latch);
+		final Map<MemcachedNode, Operation> mops=
+			new HashMap<MemcachedNode, Operation>();
+		final InFlightGets.Waiter collector=new InFlightGets.Waiter() {
+			public void fetched(String k, Operation op, CachedData d) {
+				if(d != null) {
+					m.put(k, tcService.decode(tc, d));
+				}
+			}
+		};
 
-		GetOperation.Callback cb=new GetOperation.Callback() {
+		Collection<InFlightGets.Fetch> started=
+			new ArrayList<InFlightGets.Fetch>();
+		for(Map.Entry<MemcachedNode, Collection<String>> me
+				: chunks.entrySet()) {
+			final Map<String, InFlightGets.Fetch> fetches=
+				new HashMap<String, InFlightGets.Fetch>();
+			for(String k : me.getValue()) {
+				InFlightGets.Fetch f=inFlightGets.new Fetch(k);
+				f.attach(collector);
+				fetches.put(k, f);
+			}
+			Operation op=opFact.get(me.getValue(),
+					new GetOperation.Callback() {
 				@SuppressWarnings("synthetic-access")
 				public void receivedStatus(OperationStatus status) {
 					if(!status.isSuccess()) {
@@ -939,29 +1723,50 @@ public class MemcachedClient extends SpyThread
 					}
 				}
 				public void gotData(String k, int flags, byte[] data) {
-					m.put(k, tcService.decode(tc,
-							new CachedData(flags, data, tc.getMaxSize())));
+					fetches.get(k).complete(
+						new CachedData(flags, data, Integer.MAX_VALUE));
 				}
 				public void complete() {
+					for(InFlightGets.Fetch f : fetches.values()) {
+						f.complete(null);
+					}
 					latch.countDown();
+					rv.signalComplete();
 				}
-		};
-
-		// Now that we know how many servers it breaks down into, and the latch
-		// is all set up, convert all of these strings collections to operations
-		final Map<MemcachedNode, Operation> mops=
-			new HashMap<MemcachedNode, Operation>();
-
-		for(Map.Entry<MemcachedNode, Collection<String>> me
-				: chunks.entrySet()) {
-			Operation op=opFact.get(me.getValue(), cb);
+			});
+			for(InFlightGets.Fetch f : fetches.values()) {
+				f.setOperation(op);
+				started.add(f);
+			}
 			mops.put(me.getKey(), op);
 			ops.add(op);
 		}
-		assert mops.size() == chunks.size();
-		checkState();
-		conn.addOperations(mops);
-		return new BulkGetFuture<T>(m, ops, latch);
+		// If someone else started fetching a key in the meantime, it's
+		// fetched twice, which is harmless.
+		for(InFlightGets.Fetch f : started) {
+			inFlightGets.start(f);
+		}
+		for(InFlightGets.Fetch f : inFlight) {
+			f.attach(new InFlightGets.Waiter() {
+				public void fetched(String k, Operation op, CachedData d) {
+					if(d != null) {
+						m.put(k, tcService.decode(tc, d));
+					}
+					latch.countDown();
+					rv.signalComplete();
+				}
+			});
+		}
+		try {
+			conn.addOperations(mops);
+		} catch(RuntimeException e) {
+			// Let anything that started waiting on these go.
+			for(Operation op : ops) {
+				op.cancel();
+			}
+			throw e;
+		}
+		return rv;
 	}
 
 	/**
@@ -973,7 +1778,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Map<String, Object>> asyncGetBulk(Collection<String> keys) {
+	public ListenableFuture<Map<String, Object>> asyncGetBulk(Collection<String> keys) {
 		return asyncGetBulk(keys, transcoder);
 	}
 
@@ -986,7 +1791,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public <T> Future<Map<String, T>> asyncGetBulk(Transcoder<T> tc,
+	public <T> ListenableFuture<Map<String, T>> asyncGetBulk(Transcoder<T> tc,
 		String... keys) {
 		return asyncGetBulk(Arrays.asList(keys), tc);
 	}
@@ -999,7 +1804,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Map<String, Object>> asyncGetBulk(String... keys) {
+	public ListenableFuture<Map<String, Object>> asyncGetBulk(String... keys) {
 		return asyncGetBulk(Arrays.asList(keys), transcoder);
 	}
 
@@ -1154,10 +1959,55 @@ public class MemcachedClient extends SpyThread
 		return rv;
 	}
 
+	/**
+	 * Weight the servers by the memory each is configured to use.
+	 *
+	 * <p>
+	 * This fetches the stats from every server and rebuilds the ketama
+	 * continuum so each server's share of the keys is proportional to its
+	 * <code>limit_maxbytes</code>.  Servers that don't answer keep their
+	 * current weight.  Keys whose server changes are simply looked up on
+	 * the new server from then on.  The weights are kept in the connection
+	 * factory's ketama configuration, so they still apply after servers
+	 * are added or removed.
+	 * </p>
+	 *
+	 * @return the weights that were applied
+	 * @throws IllegalStateException if this client doesn't use a
+	 *         KetamaNodeLocator created by a DefaultConnectionFactory
+	 */
+	public Map<SocketAddress, Integer> weightNodesByCapacity() {
+		NodeLocator loc=conn.getLocator();
+		if(loc instanceof BoundedLoadNodeLocator) {
+			loc=((BoundedLoadNodeLocator)loc).getLocator();
+		}
+		if(!(loc instanceof KetamaNodeLocator)) {
+			throw new IllegalStateException(
+				"Weighting requires a KetamaNodeLocator, not " + loc);
+		}
+		// Only weights kept by the factory survive the locator being
+		// replaced.
+		DefaultKetamaNodeLocatorConfiguration config=null;
+		if(connFactory instanceof DefaultConnectionFactory) {
+			config=((DefaultConnectionFactory)connFactory)
+				.getKetamaNodeLocatorConfiguration();
+		}
+		KetamaNodeLocator kl=(KetamaNodeLocator)loc;
+		if(kl.config != config) {
+			throw new IllegalStateException(
+				"Can't set weights on " + kl.config);
+		}
+		Map<SocketAddress, Integer> rv=
+			config.setNodeWeightsFromStats(getStats());
+		conn.rebuildLocator();
+		return rv;
+	}
+
 	private long mutate(Mutator m, String key, int by, long def, int exp) {
 		final AtomicLong rv=new AtomicLong();
 		final CountDownLatch latch=new CountDownLatch(1);
-		addOp(key, opFact.mutate(m, key, by, def, exp, new OperationCallback() {
+		Operation op=addOp(key, opFact.mutate(m, key, by, def, exp,
+				new OperationCallback() {
 					public void receivedStatus(OperationStatus s) {
 						// XXX:  Potential abstraction leak.
 						// The handling of incr/decr in the binary protocol
@@ -1167,8 +2017,10 @@ public class MemcachedClient extends SpyThread
 					public void complete() {
 						latch.countDown();
 					}}));
+		invalidateReplicas(key);
 		try {
-			if (!latch.await(operationTimeout, TimeUnit.MILLISECONDS)) {
+			if (!latch.await(operationTimeout, TimeUnit.MILLISECONDS)
+					|| op.isTimedOut()) {
 				throw new OperationTimeoutException(
 					"Mutate operation timed out, unable to modify counter ["
 						+ key + "]");
@@ -1272,21 +2124,17 @@ public class MemcachedClient extends SpyThread
 		return rv;
 	}
 
-	private Future<Long> asyncMutate(Mutator m, String key, int by, long def,
+	private ListenableFuture<Long> asyncMutate(Mutator m, String key, int by, long def,
 			int exp) {
-		final CountDownLatch latch = new CountDownLatch(1);
-		final OperationFuture<Long> rv = new OperationFuture<Long>(
-				latch, operationTimeout);
-		Operation op = addOp(key, opFact.mutate(m, key, by, def, exp,
-				new OperationCallback() {
-			public void receivedStatus(OperationStatus s) {
-				rv.set(new Long(s.isSuccess() ? s.getMessage() : "-1"));
-			}
-			public void complete() {
-				latch.countDown();
-			}
-		}));
-		rv.setOperation(op);
+		OperationCallbackFuture<Long> rv =
+			new OperationCallbackFuture<Long>(operationTimeout) {
+				public void receivedStatus(OperationStatus s) {
+					set(new Long(s.isSuccess() ? s.getMessage() : "-1"));
+				}
+			};
+		rv.setOperation(opFact.mutate(m, key, by, def, exp, rv));
+		addOp(key, rv.getOperation());
+		invalidateReplicas(key);
 		return rv;
 	}
 
@@ -1298,7 +2146,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Long> asyncIncr(String key, int by) {
+	public ListenableFuture<Long> asyncIncr(String key, int by) {
 		return asyncMutate(Mutator.incr, key, by, 0, -1);
 	}
 
@@ -1310,7 +2158,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Long> asyncDecr(String key, int by) {
+	public ListenableFuture<Long> asyncDecr(String key, int by) {
 		return asyncMutate(Mutator.decr, key, by, 0, -1);
 	}
 
@@ -1376,18 +2224,21 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Boolean> delete(String key) {
-		final CountDownLatch latch=new CountDownLatch(1);
-		final OperationFuture<Boolean> rv=new OperationFuture<Boolean>(latch,
-			operationTimeout);
-		DeleteOperation op=opFact.delete(key,
-				new OperationCallback() {
-					public void receivedStatus(OperationStatus s) {
-						rv.set(s.isSuccess());
-					}
-					public void complete() {
-						latch.countDown();
-					}});
+	public ListenableFuture<Boolean> delete(final String key) {
+		if(replicated) {
+			return asyncReplicatedWrite(key, new CopyOpFactory() {
+				public Operation newOp(OperationCallback cb) {
+					return opFact.delete(key, cb);
+				}
+			}, false);
+		}
+		OperationCallbackFuture<Boolean> rv=
+			new OperationCallbackFuture<Boolean>(operationTimeout) {
+				public void receivedStatus(OperationStatus s) {
+					set(s.isSuccess());
+				}
+			};
+		DeleteOperation op=opFact.delete(key, rv);
 		rv.setOperation(op);
 		addOp(key, op);
 		return rv;
@@ -1398,26 +2249,17 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Boolean> flush(final int delay) {
+	public ListenableFuture<Boolean> flush(final int delay) {
 		final AtomicReference<Boolean> flushResult=
 			new AtomicReference<Boolean>(null);
 		final ConcurrentLinkedQueue<Operation> ops=
 			new ConcurrentLinkedQueue<Operation>();
-		CountDownLatch blatch = broadcastOp(new BroadcastOpFactory(){
-			public Operation newOp(final MemcachedNode n,
-					final CountDownLatch latch) {
-				Operation op=opFact.flush(delay, new OperationCallback(){
-					public void receivedStatus(OperationStatus s) {
-						flushResult.set(s.isSuccess());
-					}
-					public void complete() {
-						latch.countDown();
-					}});
-				ops.add(op);
-				return op;
-			}});
-		return new OperationFuture<Boolean>(blatch, flushResult,
-				operationTimeout) {
+		// The future needs to exist before any of the flushes can finish,
+		// so it counts them down on its own latch.
+		Collection<MemcachedNode> nodes=conn.getLocator().getAll();
+		final CountDownLatch blatch=new CountDownLatch(nodes.size());
+		final OperationFuture<Boolean> rv=new OperationFuture<Boolean>(
+				blatch, flushResult, operationTimeout) {
 			@Override
 			public boolean cancel(boolean ign) {
 				boolean rv=false;
@@ -1444,6 +2286,22 @@ public class MemcachedClient extends SpyThread
 				return rv || isCancelled();
 			}
 		};
+		broadcastOp(new BroadcastOpFactory(){
+			public Operation newOp(final MemcachedNode n,
+					final CountDownLatch latch) {
+				Operation op=opFact.flush(delay, new OperationCallback(){
+					public void receivedStatus(OperationStatus s) {
+						flushResult.set(s.isSuccess());
+					}
+					public void complete() {
+						latch.countDown();
+						blatch.countDown();
+						rv.signalComplete();
+					}});
+				ops.add(op);
+				return op;
+			}}, nodes);
+		return rv;
 	}
 
 	/**
@@ -1451,7 +2309,7 @@ public class MemcachedClient extends SpyThread
 	 * @throws IllegalStateException in the rare circumstance where queue
 	 *         is too full to accept any more requests
 	 */
-	public Future<Boolean> flush() {
+	public ListenableFuture<Boolean> flush() {
 		return flush(-1);
 	}
 
@@ -1549,6 +2407,9 @@ public class MemcachedClient extends SpyThread
 				conn.shutdown();
 				setName(baseName + " - SHUTTING DOWN (informed client)");
 				tcService.shutdown();
+				if(hedgeTimer != null) {
+					hedgeTimer.shutdown();
+				}
 			} catch (IOException e) {
 				getLogger().warn("exception while shutting down", e);
 			}
@@ -1576,7 +2437,7 @@ public class MemcachedClient extends SpyThread
 								// necessary to complete the interface
 							}
 						});
-			}}, conn.getLocator().getAll(), false);
+			}}, conn.getAllNodes(), false);
 		try {
 			// XXX:  Perhaps IllegalStateException should be caught here
 			// and the check retried.
@@ -1590,7 +2451,8 @@ public class MemcachedClient extends SpyThread
 	 * Add a connection observer.
 	 *
 	 * If connections are already established, your observer will be called
-	 * with the address and -1.
+	 * with the address and -1, and a {@link NodeConnectionObserver} also
+	 * with each established connection.
 	 *
 	 * @return true if the observer was added.
 	 */
@@ -1602,6 +2464,13 @@ public class MemcachedClient extends SpyThread
 					obs.connectionEstablished(node.getSocketAddress(), -1);
 				}
 			}
+			if(obs instanceof NodeConnectionObserver) {
+				for(MemcachedNode node : conn.getAllNodes()) {
+					if(node.isActive()) {
+						((NodeConnectionObserver)obs).nodeConnected(node, -1);
+					}
+				}
+			}
 		}
 		return rv;
 	}
@@ -1616,24 +2485,25 @@ public class MemcachedClient extends SpyThread
 	}
 
 	public void connectionEstablished(SocketAddress sa, int reconnectCount) {
-		if(authDescriptor != null) {
-			new AuthThread(conn, opFact, authDescriptor, findNode(sa));
-		}
+		// Authentication is per connection, in nodeConnected.
 	}
 
-	private MemcachedNode findNode(SocketAddress sa) {
-		MemcachedNode node = null;
-		for(MemcachedNode n : conn.getLocator().getAll()) {
-			if(n.getSocketAddress().equals(sa)) {
-				node = n;
-			}
+	public void nodeConnected(MemcachedNode node, int reconnectCount) {
+		if(authDescriptor != null) {
+			new AuthThread(conn, opFact, authDescriptor, node);
 		}
-		assert node != null : "Couldn't find node connected to " + sa;
-		return node;
 	}
 
 	public void connectionLost(SocketAddress sa) {
 		// Don't care.
 	}
 
+	public void connectionSuspended(SocketAddress sa) {
+		// Don't care.
+	}
+
+	public void connectionResumed(SocketAddress sa, int probeCount) {
+		// The connections are still authenticated.
+	}
+
 }
@@ -8,12 +8,17 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
@@ -23,13 +28,21 @@ import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import net.spy.memcached.compat.SpyObject;
+import net.spy.memcached.compat.SpyThread;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.GetsOperation;
 import net.spy.memcached.ops.KeyedOperation;
 import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationCallback;
 import net.spy.memcached.ops.OperationState;
+import net.spy.memcached.ops.OperationStatus;
 
 /**
  * Connection to a cluster of memcached servers.
@@ -48,18 +61,36 @@ public final class MemcachedConnection extends SpyObject {
 	private volatile boolean shutDown=false;
 	// If true, optimization will collapse multiple sequential get ops
 	private final boolean shouldOptimize;
-	private Selector selector=null;
-	private final NodeLocator locator;
+	private volatile Topology topology;
 	private final FailureMode failureMode;
 	// maximum amount of time to wait between reconnect attempts
 	private final long maxDelay;
-	private int emptySelects=0;
-	// AddedQueue is used to track the QueueAttachments for which operations
-	// have recently been queued.
-	private final ConcurrentLinkedQueue<MemcachedNode> addedQueue;
-	// reconnectQueue contains the attachments that need to be reconnected
-	// The key is the time at which they are eligible for reconnect
-	private final SortedMap<Long, MemcachedNode> reconnectQueue;
+	// Each node is pinned to exactly one of these for its whole life.
+	private final IOLoop[] loops;
+	// Every node that hasn't been closed, including those removed from the
+	// topology that are still finishing their operations.
+	private final Map<MemcachedNode, IOLoop> nodeLoops;
+	private final int connsPerServer;
+	private final ConnectionFactory connFactory;
+	private final int readBufSize;
+	private final long migrationWindow;
+	// Writes to moved keys during migration windows, counted in slots by
+	// the key's hash code, so a value read from a key's old server isn't
+	// copied back over a write made since it was read.
+	private final AtomicLongArray migrationWrites=
+		new AtomicLongArray(MIGRATION_WRITE_SLOTS);
+	private final int replicaCount;
+	// Nanoseconds after being queued that operations are timed out by
+	// their IO loop, or 0 if only those given a deadline are.
+	private final long opDeadline;
+	// Consecutive failures after which a node is suspended, or 0 if nodes
+	// aren't suspended.
+	private final int failureThreshold;
+	private final long opTimeout;
+	// The number of nodes ever created, used to spread them over the loops.
+	private int nodesCreated=0;
+
+	private static final int MIGRATION_WRITE_SLOTS=1024;
 
 	private final Collection<ConnectionObserver> connObservers =
 		new ConcurrentLinkedQueue<ConnectionObserver>();
@@ -79,172 +110,125 @@ public final class MemcachedConnection extends SpyObject {
 			FailureMode fm, OperationFactory opfactory)
 		throws IOException {
 		connObservers.addAll(obs);
-		reconnectQueue=new TreeMap<Long, MemcachedNode>();
-		addedQueue=new ConcurrentLinkedQueue<MemcachedNode>();
+		connFactory = f;
+		readBufSize = bufSize;
+		migrationWindow = f.getMigrationWindow();
+		replicaCount = f.getReplicaCount();
+		opTimeout = TimeUnit.MILLISECONDS.toNanos(f.getOperationTimeout());
+		opDeadline = f.shouldEnforceDeadlines() ? opTimeout : 0;
+		failureThreshold = f.getNodeFailureThreshold();
+		if(failureThreshold < 0) {
+			throw new IllegalArgumentException(
+				"Node failure threshold must not be negative, got "
+					+ failureThreshold);
+		}
+		if(replicaCount < 1) {
+			throw new IllegalArgumentException(
+				"Replica count must be positive, got " + replicaCount);
+		}
 		failureMode = fm;
 		shouldOptimize = f.shouldOptimize();
 		maxDelay = f.getMaxReconnectDelay();
 		opFact = opfactory;
-		selector=Selector.open();
+		int numLoops=f.getIOLoopCount();
+		if(numLoops < 1) {
+			throw new IllegalArgumentException(
+				"IO loop count must be positive, got " + numLoops);
+		}
+		loops=new IOLoop[numLoops];
+		for(int i=0; i<loops.length; i++) {
+			loops[i]=new IOLoop(i);
+		}
+		nodeLoops=new ConcurrentHashMap<MemcachedNode, IOLoop>();
+		connsPerServer=f.getConnectionsPerServer();
+		if(connsPerServer < 1) {
+			throw new IllegalArgumentException(
+				"Connections per server must be positive, got "
+					+ connsPerServer);
+		}
+		Map<MemcachedNode, MemcachedNode[]> stripes=
+			new IdentityHashMap<MemcachedNode, MemcachedNode[]>();
 		List<MemcachedNode> connections=new ArrayList<MemcachedNode>(a.size());
+		List<MemcachedNode> all=new ArrayList<MemcachedNode>(
+				a.size() * connsPerServer);
 		for(SocketAddress sa : a) {
-			SocketChannel ch=SocketChannel.open();
-			ch.configureBlocking(false);
-			MemcachedNode qa=f.createMemcachedNode(sa, ch, bufSize);
-			int ops=0;
-			ch.socket().setTcpNoDelay(!f.useNagleAlgorithm());
-			// Initially I had attempted to skirt this by queueing every
-			// connect, but it considerably slowed down start time.
-			try {
-				if(ch.connect(sa)) {
-					getLogger().info("Connected to %s immediately", qa);
-					connected(qa);
-				} else {
-					getLogger().info("Added %s to connect queue", qa);
-					ops=SelectionKey.OP_CONNECT;
-				}
-				qa.setSk(ch.register(selector, ops, qa));
-				assert ch.isConnected()
-					|| qa.getSk().interestOps() == SelectionKey.OP_CONNECT
-					: "Not connected, and not wanting to connect";
-			} catch(SocketException e) {
-				getLogger().warn("Socket error on initial connect", e);
-				queueReconnect(qa);
+			MemcachedNode[] s=createNodes(sa);
+			for(MemcachedNode qa : s) {
+				getLoop(qa).connect(qa);
+				all.add(qa);
 			}
-			connections.add(qa);
+			stripes.put(s[0], s);
+			connections.add(s[0]);
 		}
-		locator=f.createLocator(connections);
-	}
+		topology=new Topology(f.createLocator(connections), stripes,
+			Collections.unmodifiableList(all));
 
-	private boolean selectorsMakeSense() {
-		for(MemcachedNode qa : locator.getAll()) {
-			if(qa.getSk() != null && qa.getSk().isValid()) {
-				if(qa.getChannel().isConnected()) {
-					int sops=qa.getSk().interestOps();
-					int expected=0;
-					if(qa.hasReadOp()) {
-						expected |= SelectionKey.OP_READ;
-					}
-					if(qa.hasWriteOp()) {
-						expected |= SelectionKey.OP_WRITE;
-					}
-					if(qa.getBytesRemainingToWrite() > 0) {
-						expected |= SelectionKey.OP_WRITE;
-					}
-					assert sops == expected : "Invalid ops:  "
-						+ qa + ", expected " + expected + ", got " + sops;
-				} else {
-					int sops=qa.getSk().interestOps();
-					assert sops == SelectionKey.OP_CONNECT
-					: "Not connected, and not watching for connect: "
-						+ sops;
-				}
-			}
+		// The first loop is driven by the MemcachedClient thread, the rest
+		// get threads of their own.
+		for(int i=1; i<loops.length; i++) {
+			IOLoopThread t=new IOLoopThread(loops[i]);
+			t.setDaemon(f.isDaemon());
+			t.start();
 		}
-		getLogger().debug("Checked the selectors.");
-		return true;
 	}
 
-	/**
-	 * MemcachedClient calls this method to handle IO over the connections.
-	 */
-	public void handleIO() throws IOException {
-		if(shutDown) {
-			throw new IOException("No IO while shut down");
-		}
-
-		// Deal with all of the stuff that's been added, but may not be marked
-		// writable.
-		handleInputQueue();
-		getLogger().debug("Done dealing with queue.");
-
-		long delay=0;
-		if(!reconnectQueue.isEmpty()) {
-			long now=System.currentTimeMillis();
-			long then=reconnectQueue.firstKey();
-			delay=Math.max(then-now, 1);
-		}
-		getLogger().debug("Selecting with delay of %sms", delay);
-		assert selectorsMakeSense() : "Selectors don't make sense.";
-		int selected=selector.select(delay);
-		Set<SelectionKey> selectedKeys=selector.selectedKeys();
-
-		if(selectedKeys.isEmpty() && !shutDown) {
-			getLogger().debug("No selectors ready, interrupted: "
-					+ Thread.interrupted());
-			if(++emptySelects > DOUBLE_CHECK_EMPTY) {
-				for(SelectionKey sk : selector.keys()) {
-					getLogger().info("%s has %s, interested in %s",
-							sk, sk.readyOps(), sk.interestOps());
-					if(sk.readyOps() != 0) {
-						getLogger().info("%s has a ready op, handling IO", sk);
-						handleIO(sk);
-					} else {
-						lostConnection((MemcachedNode)sk.attachment());
-					}
-				}
-				assert emptySelects < EXCESSIVE_EMPTY
-					: "Too many empty selects";
-			}
-		} else {
-			getLogger().debug("Selected %d, selected %d keys",
-					selected, selectedKeys.size());
-			emptySelects=0;
-			for(SelectionKey sk : selectedKeys) {
-				handleIO(sk);
-			} // for each selector
-			selectedKeys.clear();
+	// Create (but don't connect) the connections to a server, spreading
+	// them across the loops.
+	private MemcachedNode[] createNodes(SocketAddress sa) throws IOException {
+		MemcachedNode[] rv=new MemcachedNode[connsPerServer];
+		for(int i=0; i<rv.length; i++) {
+			rv[i]=createNode(sa, loops[nodesCreated++ % loops.length]);
 		}
+		return rv;
+	}
 
-		if(!shutDown && !reconnectQueue.isEmpty()) {
-			attemptReconnects();
-		}
+	private MemcachedNode createNode(SocketAddress sa, IOLoop loop)
+		throws IOException {
+		SocketChannel ch=SocketChannel.open();
+		ch.configureBlocking(false);
+		MemcachedNode qa=connFactory.createMemcachedNode(sa, ch, readBufSize);
+		nodeLoops.put(qa, loop);
+		ch.socket().setTcpNoDelay(!connFactory.useNagleAlgorithm());
+		return qa;
 	}
 
-	// Handle any requests that have been made against the client.
-	private void handleInputQueue() {
-		if(!addedQueue.isEmpty()) {
-			getLogger().debug("Handling queue");
-			// If there's stuff in the added queue.  Try to process it.
-			Collection<MemcachedNode> toAdd=new HashSet<MemcachedNode>();
-			// Transfer the queue into a hashset.  There are very likely more
-			// additions than there are nodes.
-			Collection<MemcachedNode> todo=new HashSet<MemcachedNode>();
-			try {
-				MemcachedNode qa=null;
-				while((qa=addedQueue.remove()) != null) {
-					todo.add(qa);
-				}
-			} catch(NoSuchElementException e) {
-				// Found everything
-			}
+	private IOLoop getLoop(MemcachedNode node) {
+		IOLoop rv=nodeLoops.get(node);
+		assert rv != null : "No IO loop for " + node;
+		return rv;
+	}
 
-			// Now process the queue.
-			for(MemcachedNode qa : todo) {
-				boolean readyForIO=false;
-				if(qa.isActive()) {
-					if(qa.getCurrentWriteOp() != null) {
-						readyForIO=true;
-						getLogger().debug("Handling queued write %s", qa);
-					}
-				} else {
-					toAdd.add(qa);
-				}
-				qa.copyInputQueue();
-				if(readyForIO) {
-					try {
-						if(qa.getWbuf().hasRemaining()) {
-							handleWrites(qa.getSk(), qa);
-						}
-					} catch(IOException e) {
-						getLogger().warn("Exception handling write", e);
-						lostConnection(qa);
-					}
-				}
-				qa.fixupOps();
-			}
-			addedQueue.addAll(toAdd);
+	// Tell the node's IO loop that it has operations waiting.  If the node
+	// has been removed and closed, there's no loop to tell, so its
+	// operations go wherever their keys live now.
+	private IOLoop queued(MemcachedNode node) {
+		IOLoop loop=nodeLoops.get(node);
+		if(loop == null) {
+			redistributeOperations(node.destroyInputQueue());
+		} else {
+			loop.addedQueue.offer(node);
 		}
+		return loop;
+	}
+
+	/**
+	 * Get the number of IO loops servicing this connection.
+	 */
+	int getIOLoopCount() {
+		return loops.length;
+	}
+
+	/**
+	 * MemcachedClient calls this method to handle IO over the connections.
+	 *
+	 * <p>
+	 * This only drives the first IO loop.  Any additional loops configured
+	 * via {@link ConnectionFactory#getIOLoopCount()} run on threads owned by
+	 * this connection.
+	 * </p>
+	 */
+	public void handleIO() throws IOException {
+		loops[0].handleIO();
 	}
 
 	/**
@@ -271,172 +255,28 @@ public final class MemcachedConnection extends SpyObject {
 		qa.connected();
 		for(ConnectionObserver observer : connObservers) {
 			observer.connectionEstablished(qa.getSocketAddress(), rt);
-		}
-	}
-
-	private void lostConnection(MemcachedNode qa) {
-		queueReconnect(qa);
-		for(ConnectionObserver observer : connObservers) {
-			observer.connectionLost(qa.getSocketAddress());
-		}
-	}
-
-	// Handle IO for a specific selector.  Any IOException will cause a
-	// reconnect
-	private void handleIO(SelectionKey sk) {
-		MemcachedNode qa=(MemcachedNode)sk.attachment();
-		try {
-			getLogger().debug(
-					"Handling IO for:  %s (r=%s, w=%s, c=%s, op=%s)",
-					sk, sk.isReadable(), sk.isWritable(),
-					sk.isConnectable(), sk.attachment());
-			if(sk.isConnectable()) {
-				getLogger().info("Connection state changed for %s", sk);
-				final SocketChannel channel=qa.getChannel();
-				if(channel.finishConnect()) {
-					connected(qa);
-					addedQueue.offer(qa);
-					if(qa.getWbuf().hasRemaining()) {
-						handleWrites(sk, qa);
-					}
-				} else {
-					assert !channel.isConnected() : "connected";
-				}
-			} else {
-				if(sk.isReadable()) {
-					handleReads(sk, qa);
-				}
-				if(sk.isWritable()) {
-					handleWrites(sk, qa);
-				}
-			}
-		} catch(ClosedChannelException e) {
-			if(!shutDown) {
-				getLogger().info("Closed channel and not shutting down.  "
-					+ "Queueing reconnect on %s", qa, e);
-				lostConnection(qa);
-			}
-		} catch(ConnectException e) {
-			// Failures to establish a connection should attempt a reconnect
-			// without signaling the observers.
-			getLogger().info("Reconnecting due to failure to connect to %s",
-					qa, e);
-			queueReconnect(qa);
-		} catch(Exception e) {
-			// Various errors occur on Linux that wind up here.  However, any
-			// particular error processing an item should simply cause us to
-			// reconnect to the server.
-			getLogger().info("Reconnecting due to exception on %s", qa, e);
-			lostConnection(qa);
-		}
-		qa.fixupOps();
-	}
-
-	private void handleWrites(SelectionKey sk, MemcachedNode qa)
-		throws IOException {
-		qa.fillWriteBuffer(shouldOptimize);
-		boolean canWriteMore=qa.getBytesRemainingToWrite() > 0;
-		while(canWriteMore) {
-			int wrote=qa.writeSome();
-			qa.fillWriteBuffer(shouldOptimize);
-			canWriteMore = wrote > 0 && qa.getBytesRemainingToWrite() > 0;
-		}
-	}
-
-	private void handleReads(SelectionKey sk, MemcachedNode qa)
-		throws IOException {
-		Operation currentOp = qa.getCurrentReadOp();
-		ByteBuffer rbuf=qa.getRbuf();
-		final SocketChannel channel = qa.getChannel();
-		int read=channel.read(rbuf);
-		if (read < 0) {
-		    // GRUMBLE.
-		    throw new IOException("Disconnected");
-		}
-		while(read > 0) {
-			getLogger().debug("Read %d bytes", read);
-			rbuf.flip();
-			while(rbuf.remaining() > 0) {
-				if(currentOp == null) {
-					throw new IllegalStateException("No read operation.");
-				}
-				currentOp.readFromBuffer(rbuf);
-				if(currentOp.getState() == OperationState.COMPLETE) {
-					getLogger().debug(
-							"Completed read op: %s and giving the next %d bytes",
-							currentOp, rbuf.remaining());
-					Operation op=qa.removeCurrentReadOp();
-					assert op == currentOp
-					: "Expected to pop " + currentOp + " got " + op;
-					currentOp=qa.getCurrentReadOp();
-				}
+			if(observer instanceof NodeConnectionObserver) {
+				((NodeConnectionObserver)observer).nodeConnected(qa, rt);
 			}
-			rbuf.clear();
-			read=channel.read(rbuf);
 		}
 	}
 
 	// Make a debug string out of the given buffer's values
 	static String dbgBuffer(ByteBuffer b, int size) {
 		StringBuilder sb=new StringBuilder();
-		byte[] bytes=b.array();
 		for(int i=0; i<size; i++) {
-			char ch=(char)bytes[i];
+			byte bt=b.get(i);
+			char ch=(char)bt;
 			if(Character.isWhitespace(ch) || Character.isLetterOrDigit(ch)) {
 				sb.append(ch);
 			} else {
 				sb.append("\\x");
-				sb.append(Integer.toHexString(bytes[i] & 0xff));
+				sb.append(Integer.toHexString(bt & 0xff));
 			}
 		}
 		return sb.toString();
 	}
 
-	private void queueReconnect(MemcachedNode qa) {
-		if(!shutDown) {
-			getLogger().warn("Closing, and reopening %s, attempt %d.",
-					qa, qa.getReconnectCount());
-			if(qa.getSk() != null) {
-				qa.getSk().cancel();
-				assert !qa.getSk().isValid() : "Cancelled selection key is valid";
-			}
-			qa.reconnecting();
-			try {
-				if(qa.getChannel() != null && qa.getChannel().socket() != null) {
-					qa.getChannel().socket().close();
-				} else {
-					getLogger().info("The channel or socket was null for %s",
-						qa);
-				}
-			} catch(IOException e) {
-				getLogger().warn("IOException trying to close a socket", e);
-			}
-			qa.setChannel(null);
-
-			long delay = (long)Math.min(maxDelay,
-					Math.pow(2, qa.getReconnectCount())) * 1000;
-			long reconTime = System.currentTimeMillis() + delay;
-
-			// Avoid potential condition where two connections are scheduled
-			// for reconnect at the exact same time.  This is expected to be
-			// a rare situation.
-			while(reconnectQueue.containsKey(reconTime)) {
-				reconTime++;
-			}
-
-			reconnectQueue.put(reconTime, qa);
-
-			// Need to do a little queue management.
-			qa.setupResend();
-
-			if(failureMode == FailureMode.Redistribute) {
-				redistributeOperations(qa.destroyInputQueue());
-			} else if(failureMode == FailureMode.Cancel) {
-				cancelOperations(qa.destroyInputQueue());
-			}
-		}
-	}
-
 	private void cancelOperations(Collection<Operation> ops) {
 		for(Operation op : ops) {
 			op.cancel();
@@ -463,178 +303,602 @@ public final class MemcachedConnection extends SpyObject {
 		}
 	}
 
-	private void attemptReconnects() throws IOException {
-		final long now=System.currentTimeMillis();
-		final Map<MemcachedNode, Boolean> seen=
-			new IdentityHashMap<MemcachedNode, Boolean>();
-		final List<MemcachedNode> rereQueue=new ArrayList<MemcachedNode>();
-		for(Iterator<MemcachedNode> i=
-				reconnectQueue.headMap(now).values().iterator(); i.hasNext();) {
-			final MemcachedNode qa=i.next();
-			i.remove();
-			try {
-				if(!seen.containsKey(qa)) {
-					seen.put(qa, Boolean.TRUE);
-					getLogger().info("Reconnecting %s", qa);
-					final SocketChannel ch=SocketChannel.open();
-					ch.configureBlocking(false);
-					int ops=0;
-					if(ch.connect(qa.getSocketAddress())) {
-						getLogger().info("Immediately reconnected to %s", qa);
-						assert ch.isConnected();
-					} else {
-						ops=SelectionKey.OP_CONNECT;
-					}
-					qa.registerChannel(ch, ch.register(selector, ops, qa));
-					assert qa.getChannel() == ch : "Channel was lost.";
-				} else {
-					getLogger().debug(
-						"Skipping duplicate reconnect request for %s", qa);
-				}
-			} catch(SocketException e) {
-				getLogger().warn("Error on reconnect", e);
-				rereQueue.add(qa);
-			}
-		}
-		// Requeue any fast-failed connects.
-		for(MemcachedNode n : rereQueue) {
-			queueReconnect(n);
-		}
-	}
-
 	/**
 	 * Get the node locator used by this connection.
 	 */
 	NodeLocator getLocator() {
-		return locator;
+		return topology.locator;
 	}
 
 	/**
-	 * Add an operation to the given connection.
+	 * Replace the node locator with a new one from the connection factory
+	 * over the same servers, picking up any changes to the factory's
+	 * configuration (such as node weights).
+	 */
+	synchronized void rebuildLocator() {
+		setLocator(connFactory.createLocator(
+			new ArrayList<MemcachedNode>(topology.locator.getAll())));
+	}
+
+	/**
+	 * Replace the node locator used by this connection.
 	 *
-	 * @param key the key the operation is operating upon
-	 * @param o the operation
+	 * @throws IllegalStateException if the new locator doesn't locate the
+	 *         same nodes as the current one
 	 */
-	public void addOperation(final String key, final Operation o) {
-		MemcachedNode placeIn=null;
-		MemcachedNode primary = locator.getPrimary(key);
-		if(primary.isActive() || failureMode == FailureMode.Retry) {
-			placeIn=primary;
-		} else if(failureMode == FailureMode.Cancel) {
-			o.cancel();
-		} else {
-			// Look for another node in sequence that is ready.
-			for(Iterator<MemcachedNode> i=locator.getSequence(key);
-				placeIn == null && i.hasNext(); ) {
-				MemcachedNode n=i.next();
-				if(n.isActive()) {
-					placeIn=n;
+	synchronized void setLocator(NodeLocator l) {
+		Topology t=topology;
+		if(!new ArrayList<MemcachedNode>(l.getAll()).equals(
+				new ArrayList<MemcachedNode>(t.locator.getAll()))) {
+			throw new IllegalStateException(
+				"Servers changed while replacing the locator");
+		}
+		topology=new Topology(l, t.stripes, t.allNodes, t, migrationWindow);
+	}
+
+	/**
+	 * Change the servers this connection talks to.
+	 *
+	 * <p>
+	 * Connections to servers that are still in the list are kept.  The new
+	 * locator is swapped in as a whole, so every operation sees either the
+	 * old servers or the new ones.  New servers are connected in the
+	 * background.  Connections to servers that are no longer in the list
+	 * finish the operations already sent to them and are then closed, and
+	 * anything still waiting to be sent to them goes wherever its key lives
+	 * now.
+	 * </p>
+	 *
+	 * <p>
+	 * If the connection factory has a migration window, the old servers
+	 * are remembered (and removed ones kept connected) for that long so
+	 * keys that moved can be read from where they used to live.
+	 * </p>
+	 *
+	 * @param a the addresses of the servers, in order
+	 * @throws IOException if a new connection can't be created
+	 */
+	public synchronized void updateServers(List<InetSocketAddress> a)
+		throws IOException {
+		if(shutDown) {
+			throw new IllegalStateException("Shut down");
+		}
+		if(a.isEmpty()) {
+			throw new IllegalArgumentException(
+				"You must have at least one server to connect to");
+		}
+		for(InetSocketAddress sa : a) {
+			if(sa.isUnresolved()) {
+				throw new IllegalArgumentException("Unresolved address " + sa);
+			}
+		}
+		Topology old=topology;
+		Map<SocketAddress, MemcachedNode> removed=
+			new HashMap<SocketAddress, MemcachedNode>();
+		for(MemcachedNode qa : old.locator.getAll()) {
+			removed.put(qa.getSocketAddress(), qa);
+		}
+		Map<MemcachedNode, MemcachedNode[]> stripes=
+			new IdentityHashMap<MemcachedNode, MemcachedNode[]>();
+		List<MemcachedNode> connections=new ArrayList<MemcachedNode>(a.size());
+		List<MemcachedNode> all=new ArrayList<MemcachedNode>(
+				a.size() * connsPerServer);
+		List<MemcachedNode> added=new ArrayList<MemcachedNode>();
+		try {
+			for(SocketAddress sa : a) {
+				MemcachedNode existing=removed.remove(sa);
+				MemcachedNode[] s=existing == null
+					? null : old.stripes.get(existing);
+				if(s == null) {
+					s=createNodes(sa);
+					added.addAll(Arrays.asList(s));
 				}
+				stripes.put(s[0], s);
+				connections.add(s[0]);
+				all.addAll(Arrays.asList(s));
 			}
-			// If we didn't find an active node, queue it in the primary node
-			// and wait for it to come back online.
-			if(placeIn == null) {
-				placeIn = primary;
+		} catch(IOException e) {
+			for(MemcachedNode qa : added) {
+				nodeLoops.remove(qa);
+				qa.getChannel().close();
 			}
+			throw e;
 		}
+		topology=new Topology(connFactory.createLocator(connections), stripes,
+			Collections.unmodifiableList(all), old, migrationWindow);
+		getLogger().info("Servers are now %s", a);
 
-		assert o.isCancelled() || placeIn != null
-			: "No node found for key " + key;
-		if(placeIn != null) {
-			addOperation(placeIn, o);
-		} else {
-			assert o.isCancelled() : "No not found for "
-				+ key + " (and not immediately cancelled)";
+		for(MemcachedNode qa : added) {
+			IOLoop loop=getLoop(qa);
+			loop.connectQueue.offer(qa);
+			loop.wakeup();
+		}
+		for(MemcachedNode primary : removed.values()) {
+			for(MemcachedNode qa : old.stripes.get(primary)) {
+				IOLoop loop=getLoop(qa);
+				loop.retireQueue.offer(qa);
+				loop.wakeup();
+			}
 		}
 	}
 
-	public void insertOperation(final MemcachedNode node, final Operation o) {
-		o.setHandlingNode(node);
-		o.initialize();
-		node.insertOp(o);
-		addedQueue.offer(node);
-		Selector s=selector.wakeup();
-		assert s == selector : "Wakeup returned the wrong selector.";
-		getLogger().debug("Added %s to %s", o, node);
+	/**
+	 * Add a server to the end of the server list.
+	 *
+	 * @return false if the server was already in the list
+	 * @throws IOException if the new connection can't be created
+	 */
+	public synchronized boolean addServer(InetSocketAddress sa)
+		throws IOException {
+		List<InetSocketAddress> a=getServers();
+		if(a.contains(sa)) {
+			return false;
+		}
+		a.add(sa);
+		updateServers(a);
+		return true;
 	}
 
-	public void addOperation(final MemcachedNode node, final Operation o) {
-		o.setHandlingNode(node);
-		o.initialize();
-		node.addOp(o);
-		addedQueue.offer(node);
-		Selector s=selector.wakeup();
-		assert s == selector : "Wakeup returned the wrong selector.";
-		getLogger().debug("Added %s to %s", o, node);
+	/**
+	 * Remove a server from the server list.
+	 *
+	 * @return false if the server wasn't in the list
+	 * @throws IOException if the server list can't be updated
+	 */
+	public synchronized boolean removeServer(InetSocketAddress sa)
+		throws IOException {
+		List<InetSocketAddress> a=getServers();
+		if(!a.remove(sa)) {
+			return false;
+		}
+		updateServers(a);
+		return true;
 	}
 
-	public void addOperations(final Map<MemcachedNode, Operation> ops) {
-
-		for(Map.Entry<MemcachedNode, Operation> me : ops.entrySet()) {
-			final MemcachedNode node=me.getKey();
-			Operation o=me.getValue();
-			o.setHandlingNode(node);
-			o.initialize();
-			node.addOp(o);
-			addedQueue.offer(node);
+	private List<InetSocketAddress> getServers() {
+		List<InetSocketAddress> rv=new ArrayList<InetSocketAddress>();
+		for(MemcachedNode qa : topology.locator.getAll()) {
+			rv.add((InetSocketAddress)qa.getSocketAddress());
 		}
-		Selector s=selector.wakeup();
-		assert s == selector : "Wakeup returned the wrong selector.";
+		return rv;
 	}
 
 	/**
-	 * Broadcast an operation to all nodes.
+	 * Get all of the connections to all of the servers.
+	 *
+	 * <p>
+	 * When more than one connection per server is configured, this is a
+	 * superset of the nodes known to the locator.
+	 * </p>
 	 */
-	public CountDownLatch broadcastOperation(BroadcastOpFactory of) {
-		return broadcastOperation(of, locator.getAll());
+	Collection<MemcachedNode> getAllNodes() {
+		return topology.allNodes;
 	}
 
 	/**
-	 * Broadcast an operation to a specific collection of nodes.
+	 * Get the connection to the given server that handles the given key.
+	 *
+	 * <p>
+	 * Any given key always maps to the same connection so operations on it
+	 * are processed in order, while different keys are spread across all of
+	 * the connections to the server.
+	 * </p>
+	 *
+	 * @param node a node as returned by the locator
+	 * @param key the key
+	 * @return the connection to node's server for this key
 	 */
-	public CountDownLatch broadcastOperation(final BroadcastOpFactory of,
-			Collection<MemcachedNode> nodes) {
-		final CountDownLatch latch=new CountDownLatch(locator.getAll().size());
-		for(MemcachedNode node : nodes) {
-			Operation op = of.newOp(node, latch);
-			op.initialize();
-			node.addOp(op);
-			op.setHandlingNode(node);
-			addedQueue.offer(node);
+	MemcachedNode getNodeForKey(MemcachedNode node, String key) {
+		return getNodeForKey(topology.stripes, node, key);
+	}
+
+	private MemcachedNode getNodeForKey(
+			Map<MemcachedNode, MemcachedNode[]> stripes,
+			MemcachedNode node, String key) {
+		if(connsPerServer == 1) {
+			return node;
 		}
-		Selector s=selector.wakeup();
-		assert s == selector : "Wakeup returned the wrong selector.";
-		return latch;
+		MemcachedNode[] s=stripes.get(node);
+		if(s == null) {
+			// The server was removed after the node was located.
+			return node;
+		}
+		return s[stripeIndex(key, s.length)];
 	}
 
 	/**
-	 * Shut down all of the connections.
+	 * Get the connection to the server that owned the given key before the
+	 * servers last changed.
+	 *
+	 * @param key the key
+	 * @return the connection, or null if the key hasn't moved or the
+	 *         migration window has passed
 	 */
-	public void shutdown() throws IOException {
-		shutDown=true;
-		Selector s=selector.wakeup();
-		assert s == selector : "Wakeup returned the wrong selector.";
-		for(MemcachedNode qa : locator.getAll()) {
-			if(qa.getChannel() != null) {
-				qa.getChannel().close();
-				qa.setSk(null);
-				if(qa.getBytesRemainingToWrite() > 0) {
-					getLogger().warn(
-						"Shut down with %d bytes remaining to write",
-							qa.getBytesRemainingToWrite());
-				}
-				getLogger().debug("Shut down channel %s", qa.getChannel());
-			}
+	MemcachedNode getMigrationSource(String key) {
+		Topology t=topology;
+		if(t.previousLocator == null
+				|| System.currentTimeMillis() >= t.migrationEnds) {
+			return null;
+		}
+		MemcachedNode old=t.previousLocator.getPrimary(key);
+		if(old.getSocketAddress().equals(
+				t.locator.getPrimary(key).getSocketAddress())) {
+			return null;
+		}
+		return getNodeForKey(t.previousStripes, old, key);
+	}
+
+	/**
+	 * Get the number of seconds left in the migration window.
+	 *
+	 * @return the seconds, rounded up, or 0 if there's no window open
+	 */
+	int getMigrationTimeLeft() {
+		Topology t=topology;
+		long left=t.previousLocator == null
+			? 0 : t.migrationEnds - System.currentTimeMillis();
+		return left <= 0 ? 0 : (int)((left + 999) / 1000);
+	}
+
+	/**
+	 * Get a count that changes whenever the given key, or another sharing
+	 * its slot, is written while it has a migration source.
+	 */
+	long getMigrationWrites(String key) {
+		return migrationWrites.get(stripeIndex(key, MIGRATION_WRITE_SLOTS));
+	}
+
+	/**
+	 * Delete the copy of a key being written from the server it lived on
+	 * before the servers changed, so a later miss on its new server doesn't
+	 * find the old value there.
+	 *
+	 * @param key the key
+	 */
+	void invalidateMigrationSource(final String key) {
+		MemcachedNode source=getMigrationSource(key);
+		if(source == null) {
+			return;
+		}
+		migrationWrites.incrementAndGet(
+			stripeIndex(key, MIGRATION_WRITE_SLOTS));
+		getLogger().debug("Deleting %s from %s", key, source);
+		Operation op=opFact.delete(key, new OperationCallback() {
+			public void receivedStatus(OperationStatus s) {
+				// Not found is as good as deleted.
+			}
+			public void complete() {
+				// Nothing waits on this.
+			}
+		});
+		addOperation(source, op);
+		addDeadline(op);
+	}
+
+	/**
+	 * Get the connections to the servers keeping copies of the given key,
+	 * the key's primary first.
+	 *
+	 * <p>
+	 * The copies are on the first distinct servers in the key's sequence,
+	 * then in server list order if the sequence runs out, so there are
+	 * fewer than the replica count only when there aren't enough servers.
+	 * </p>
+	 *
+	 * @param key the key
+	 * @return the connections, one per server
+	 */
+	List<MemcachedNode> getReplicas(String key) {
+		return getReplicas(key, null);
+	}
+
+	/**
+	 * Get the connections to the servers keeping copies of the given key,
+	 * locating its primary by the encoded key when the locator can.
+	 *
+	 * @param key the key
+	 * @param keyBytes the encoded key, or null
+	 * @return the connections, one per server
+	 */
+	List<MemcachedNode> getReplicas(String key, byte[] keyBytes) {
+		Topology t=topology;
+		MemcachedNode primary;
+		if(keyBytes != null && t.locator instanceof EncodedKeyNodeLocator) {
+			primary=((EncodedKeyNodeLocator)t.locator).getPrimary(key,
+				keyBytes);
+		} else {
+			primary=t.locator.getPrimary(key);
+		}
+		if(replicaCount == 1) {
+			return Collections.singletonList(
+				getNodeForKey(t.stripes, primary, key));
+		}
+		List<MemcachedNode> servers=new ArrayList<MemcachedNode>(replicaCount);
+		Set<SocketAddress> seen=new HashSet<SocketAddress>();
+		servers.add(primary);
+		seen.add(primary.getSocketAddress());
+		for(Iterator<MemcachedNode> i=t.locator.getSequence(key);
+				servers.size() < replicaCount && i.hasNext(); ) {
+			MemcachedNode n=i.next();
+			if(seen.add(n.getSocketAddress())) {
+				servers.add(n);
+			}
+		}
+		// Some sequences give up before they've been to every server.
+		for(Iterator<MemcachedNode> i=t.locator.getAll().iterator();
+				servers.size() < replicaCount && i.hasNext(); ) {
+			MemcachedNode n=i.next();
+			if(seen.add(n.getSocketAddress())) {
+				servers.add(n);
+			}
+		}
+		List<MemcachedNode> rv=new ArrayList<MemcachedNode>(servers.size());
+		for(MemcachedNode n : servers) {
+			rv.add(getNodeForKey(t.stripes, n, key));
+		}
+		return rv;
+	}
+
+	// Pick a connection by the key's own hash code.  This is mixed so that
+	// it doesn't correlate with whatever the locator chose the server by.
+	private static int stripeIndex(String key, int n) {
+		int h=key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return (h & 0x7fffffff) % n;
+	}
+
+	/**
+	 * Add an operation to the given connection.
+	 *
+	 * @param key the key the operation is operating upon
+	 * @param o the operation
+	 */
+	public void addOperation(final String key, final Operation o) {
+		addOperation(key, null, o);
+	}
+
+	/**
+	 * Add an operation on a key that has already been encoded.  The
+	 * encoded key is used to locate the server, and given to the operation
+	 * so it isn't encoded again.
+	 *
+	 * @param key the key the operation is operating upon
+	 * @param keyBytes the UTF-8 encoded key, or null if it isn't encoded
+	 * @param o the operation
+	 */
+	void addOperation(String key, byte[] keyBytes, Operation o) {
+		if(!(o instanceof GetOperation || o instanceof GetsOperation)) {
+			invalidateMigrationSource(key);
+		}
+		placeOperation(key, keyBytes, o);
+	}
+
+	/**
+	 * Add the copy of a key read from its migration source to its new
+	 * server.  Unlike any other write, this leaves the old copy alone.
+	 *
+	 * @param key the key
+	 * @param o the operation storing the copy
+	 */
+	void addMigratedCopy(String key, Operation o) {
+		placeOperation(key, null, o);
+	}
+
+	private void placeOperation(String key, byte[] keyBytes, Operation o) {
+		MemcachedNode placeIn=null;
+		NodeLocator loc=topology.locator;
+		MemcachedNode located;
+		if(keyBytes != null && loc instanceof EncodedKeyNodeLocator) {
+			located=((EncodedKeyNodeLocator)loc).getPrimary(key, keyBytes);
+		} else {
+			located=loc.getPrimary(key);
+		}
+		if(keyBytes != null && o instanceof KeyedOperation) {
+			((KeyedOperation)o).setKeyBytes(keyBytes);
+		}
+		MemcachedNode primary = getNodeForKey(located, key);
+		if(primary.isActive() || failureMode == FailureMode.Retry) {
+			placeIn=primary;
+		} else if(failureMode == FailureMode.Cancel) {
+			o.cancel();
+		} else {
+			// Look for another node in sequence that is ready.
+			for(Iterator<MemcachedNode> i=loc.getSequence(key);
+				placeIn == null && i.hasNext(); ) {
+				MemcachedNode n=getNodeForKey(i.next(), key);
+				if(n.isActive()) {
+					placeIn=n;
+				}
+			}
+			// If we didn't find an active node, queue it in the primary node
+			// and wait for it to come back online.
+			if(placeIn == null) {
+				placeIn = primary;
+			}
+		}
+
+		assert o.isCancelled() || placeIn != null
+			: "No node found for key " + key;
+		if(placeIn != null) {
+			addOperation(placeIn, o);
+		} else {
+			assert o.isCancelled() : "No not found for "
+				+ key + " (and not immediately cancelled)";
+		}
+	}
+
+	public void insertOperation(final MemcachedNode node, final Operation o) {
+		o.setHandlingNode(node);
+		o.initialize();
+		node.insertOp(o);
+		IOLoop loop=queued(node);
+		if(loop != null) {
+			loop.wakeup();
+		}
+		getLogger().debug("Added %s to %s", o, node);
+	}
+
+	public void addOperation(final MemcachedNode node, final Operation o) {
+		o.setHandlingNode(node);
+		o.initialize();
+		node.addOp(o);
+		IOLoop loop=queued(node);
+		if(loop != null) {
+			track(loop, o);
+			loop.wakeup();
+		}
+		getLogger().debug("Added %s to %s", o, node);
+	}
+
+	// Have the loop time out the operation if it's still waiting at its
+	// deadline.
+	private void track(IOLoop loop, Operation o) {
+		if(opDeadline > 0) {
+			loop.deadlines.add(o, System.nanoTime() + opDeadline);
+		}
+	}
+
+	/**
+	 * Time out an operation that has been added if it's still waiting when
+	 * the operation timeout has passed, whether or not deadlines are
+	 * enforced.
+	 *
+	 * <p>
+	 * This is for operations whose outcome is only ever reported by their
+	 * callback, so nothing else would give up on them.
+	 * </p>
+	 */
+	void addDeadline(Operation o) {
+		if(opDeadline > 0 || o.isCancelled()) {
+			// Already tracked, or nothing to wait for.
+			return;
+		}
+		MemcachedNode node=o.getHandlingNode();
+		IOLoop loop=node == null ? null : nodeLoops.get(node);
+		if(loop == null) {
+			// Its node has been removed, but it still has to complete.
+			loop=loops[0];
+		}
+		loop.deadlines.add(o, System.nanoTime() + opTimeout);
+		// The loop may already be waiting without a timeout.
+		loop.wakeup();
+	}
+
+	public void addOperations(final Map<MemcachedNode, Operation> ops) {
+		Set<IOLoop> toWake=new HashSet<IOLoop>();
+		for(Map.Entry<MemcachedNode, Operation> me : ops.entrySet()) {
+			final MemcachedNode node=me.getKey();
+			Operation o=me.getValue();
+			o.setHandlingNode(node);
+			o.initialize();
+			node.addOp(o);
+			IOLoop loop=queued(node);
+			if(loop != null) {
+				track(loop, o);
+				toWake.add(loop);
+			}
+		}
+		for(IOLoop loop : toWake) {
+			loop.wakeup();
+		}
+	}
+
+	/**
+	 * Add the operations writing the copies of a key to their servers.
+	 *
+	 * <p>
+	 * Operations for servers that are down wait for them with the retry
+	 * failure mode, and are cancelled with the cancel failure mode.
+	 * Otherwise they're cancelled if another of the servers is up, since
+	 * it has the key too, and wait if none of them are.
+	 * </p>
+	 *
+	 * @param ops the operations by the connections from getReplicas
+	 */
+	void addReplicaOperations(final Map<MemcachedNode, Operation> ops) {
+		boolean anyActive=false;
+		for(MemcachedNode n : ops.keySet()) {
+			anyActive |= n.isActive();
+		}
+		Map<MemcachedNode, Operation> live=
+			new HashMap<MemcachedNode, Operation>(ops.size() * 2);
+		for(Map.Entry<MemcachedNode, Operation> me : ops.entrySet()) {
+			if(me.getKey().isActive() || failureMode == FailureMode.Retry
+					|| (failureMode == FailureMode.Redistribute
+						&& !anyActive)) {
+				live.put(me.getKey(), me.getValue());
+			} else {
+				me.getValue().cancel();
+			}
+		}
+		addOperations(live);
+	}
+
+	/**
+	 * Broadcast an operation to all nodes.
+	 */
+	public CountDownLatch broadcastOperation(BroadcastOpFactory of) {
+		return broadcastOperation(of, topology.locator.getAll());
+	}
+
+	/**
+	 * Broadcast an operation to a specific collection of nodes.
+	 */
+	public CountDownLatch broadcastOperation(final BroadcastOpFactory of,
+			Collection<MemcachedNode> nodes) {
+		final CountDownLatch latch=new CountDownLatch(nodes.size());
+		Set<IOLoop> toWake=new HashSet<IOLoop>();
+		for(MemcachedNode node : nodes) {
+			Operation op = of.newOp(node, latch);
+			op.setHandlingNode(node);
+			op.initialize();
+			node.addOp(op);
+			IOLoop loop=queued(node);
+			if(loop != null) {
+				toWake.add(loop);
+			}
+		}
+		for(IOLoop loop : toWake) {
+			loop.wakeup();
+		}
+		return latch;
+	}
+
+	/**
+	 * Shut down all of the connections.
+	 */
+	public void shutdown() throws IOException {
+		shutDown=true;
+		for(IOLoop loop : loops) {
+			loop.wakeup();
+		}
+		for(MemcachedNode qa : nodeLoops.keySet()) {
+			if(qa.getChannel() != null) {
+				qa.getChannel().close();
+				qa.setSk(null);
+				if(qa.getBytesRemainingToWrite() > 0) {
+					getLogger().warn(
+						"Shut down with %d bytes remaining to write",
+							qa.getBytesRemainingToWrite());
+				}
+				getLogger().debug("Shut down channel %s", qa.getChannel());
+			}
+		}
+		for(IOLoop loop : loops) {
+			loop.selector.close();
+			getLogger().debug("Shut down selector %s", loop.selector);
 		}
-		selector.close();
-		getLogger().debug("Shut down selector %s", selector);
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder sb=new StringBuilder();
 		sb.append("{MemcachedConnection to");
-		for(MemcachedNode qa : locator.getAll()) {
+		for(MemcachedNode qa : topology.locator.getAll()) {
 			sb.append(" ");
 			sb.append(qa.getSocketAddress());
 		}
@@ -642,4 +906,723 @@ public final class MemcachedConnection extends SpyObject {
 		return sb.toString();
 	}
 
+	/**
+	 * The servers and how keys map onto them.  These are never modified;
+	 * a new one is swapped in when anything changes.
+	 */
+	private static final class Topology {
+
+		final NodeLocator locator;
+		// The locator only knows about the first connection to each server,
+		// this maps that connection to all of the connections to the server.
+		final Map<MemcachedNode, MemcachedNode[]> stripes;
+		final Collection<MemcachedNode> allNodes;
+		// Where keys lived before the last change, until migrationEnds.
+		final NodeLocator previousLocator;
+		final Map<MemcachedNode, MemcachedNode[]> previousStripes;
+		final Collection<MemcachedNode> previousNodes;
+		final long migrationEnds;
+
+		Topology(NodeLocator l, Map<MemcachedNode, MemcachedNode[]> s,
+				Collection<MemcachedNode> a) {
+			this(l, s, a, null, 0);
+		}
+
+		// Replace the given topology, remembering it for window ms.
+		Topology(NodeLocator l, Map<MemcachedNode, MemcachedNode[]> s,
+				Collection<MemcachedNode> a, Topology prev, long window) {
+			super();
+			locator=l;
+			stripes=s;
+			allNodes=a;
+			if(prev == null || window <= 0) {
+				previousLocator=null;
+				previousStripes=null;
+				previousNodes=Collections.emptyList();
+				migrationEnds=0;
+			} else {
+				previousLocator=prev.locator;
+				previousStripes=prev.stripes;
+				previousNodes=prev.allNodes;
+				migrationEnds=System.currentTimeMillis() + window;
+			}
+		}
+	}
+
+	/**
+	 * A selector along with the nodes pinned to it and the queues feeding it.
+	 *
+	 * <p>
+	 * All of the state in here other than the added queue is only touched
+	 * from the thread driving the loop.
+	 * </p>
+	 */
+	private final class IOLoop {
+
+		final int id;
+		final Selector selector;
+		// AddedQueue is used to track the QueueAttachments for which
+		// operations have recently been queued.
+		final ConcurrentLinkedQueue<MemcachedNode> addedQueue=
+			new ConcurrentLinkedQueue<MemcachedNode>();
+		// reconnectQueue contains the attachments that need to be reconnected
+		// The key is the time at which they are eligible for reconnect
+		final SortedMap<Long, MemcachedNode> reconnectQueue=
+			new TreeMap<Long, MemcachedNode>();
+		// New nodes waiting to be connected from this loop's thread.
+		final ConcurrentLinkedQueue<MemcachedNode> connectQueue=
+			new ConcurrentLinkedQueue<MemcachedNode>();
+		// Nodes that have been removed from the topology.
+		final ConcurrentLinkedQueue<MemcachedNode> retireQueue=
+			new ConcurrentLinkedQueue<MemcachedNode>();
+		// Removed nodes that are finishing their operations.
+		private final List<MemcachedNode> draining=
+			new ArrayList<MemcachedNode>();
+		private int emptySelects=0;
+		// Deadlines of the operations queued to this loop's nodes that
+		// have them.
+		final DeadlineWheel deadlines=new DeadlineWheel(System.nanoTime());
+		// Circuit breakers of this loop's nodes, if nodes that stop
+		// answering are suspended.
+		private final Map<MemcachedNode, NodeHealth> health=
+			failureThreshold > 0
+				? new IdentityHashMap<MemcachedNode, NodeHealth>() : null;
+
+		IOLoop(int i) throws IOException {
+			super();
+			id=i;
+			selector=Selector.open();
+		}
+
+		void wakeup() {
+			Selector s=selector.wakeup();
+			assert s == selector : "Wakeup returned the wrong selector.";
+		}
+
+		void connect(MemcachedNode qa) throws IOException {
+			SocketChannel ch=qa.getChannel();
+			int ops=0;
+			// Initially I had attempted to skirt this by queueing every
+			// connect, but it considerably slowed down start time.
+			try {
+				if(ch.connect(qa.getSocketAddress())) {
+					getLogger().info("Connected to %s immediately", qa);
+					connected(qa);
+				} else {
+					getLogger().info("Added %s to connect queue", qa);
+					ops=SelectionKey.OP_CONNECT;
+				}
+				qa.setSk(ch.register(selector, ops, qa));
+				assert ch.isConnected()
+					|| qa.getSk().interestOps() == SelectionKey.OP_CONNECT
+					: "Not connected, and not wanting to connect";
+			} catch(SocketException e) {
+				getLogger().warn("Socket error on initial connect", e);
+				queueReconnect(qa);
+			}
+		}
+
+		// Pick up nodes added to or removed from the topology.
+		private void handleTopologyChanges() {
+			MemcachedNode qa=null;
+			while((qa=connectQueue.poll()) != null) {
+				try {
+					connect(qa);
+				} catch(IOException e) {
+					getLogger().warn("Error connecting to %s", qa, e);
+					queueReconnect(qa);
+				}
+			}
+			while((qa=retireQueue.poll()) != null) {
+				getLogger().info("Draining removed node %s", qa);
+				draining.add(qa);
+			}
+		}
+
+		// Close removed nodes once they've finished what was sent to them.
+		// Nodes that aren't connected won't finish anything, so they're
+		// closed right away.  Connected nodes that moved keys may still be
+		// read from are left alone until the migration window has passed.
+		private void closeDrainedNodes() {
+			Topology t=topology;
+			boolean migrating=System.currentTimeMillis() < t.migrationEnds;
+			for(Iterator<MemcachedNode> i=draining.iterator(); i.hasNext(); ) {
+				MemcachedNode qa=i.next();
+				if(migrating && qa.isActive() && t.previousNodes.contains(qa)) {
+					continue;
+				}
+				if(!qa.isActive() || qa.getInFlightCount() == 0) {
+					i.remove();
+					retire(qa);
+				}
+			}
+		}
+
+		private void retire(MemcachedNode qa) {
+			getLogger().info("Closing removed node %s", qa);
+			nodeLoops.remove(qa);
+			while(reconnectQueue.values().remove(qa)) {
+				// Removed one
+			}
+			if(qa.getSk() != null) {
+				qa.getSk().cancel();
+			}
+			// A suspended node is closed while still connected, so what it
+			// was sent will never be answered.
+			qa.setupResend();
+			try {
+				if(qa.getChannel() != null) {
+					qa.getChannel().close();
+				}
+			} catch(IOException e) {
+				getLogger().warn("IOException closing %s", qa, e);
+			}
+			// Anything that never made it onto the wire goes wherever its
+			// key lives now.
+			Collection<Operation> ops=
+				new ArrayList<Operation>(qa.destroyInputQueue());
+			while(qa.hasWriteOp()) {
+				ops.add(qa.removeCurrentWriteOp());
+			}
+			redistributeOperations(ops);
+		}
+
+		private boolean selectorsMakeSense() {
+			for(SelectionKey sk : selector.keys()) {
+				MemcachedNode qa=(MemcachedNode)sk.attachment();
+				if(qa.getSk() != sk || !sk.isValid()) {
+					continue;
+				}
+				if(qa.getChannel().isConnected()) {
+					int sops=sk.interestOps();
+					int expected=0;
+					if(qa.hasReadOp()) {
+						expected |= SelectionKey.OP_READ;
+					}
+					if(qa.hasWriteOp()) {
+						expected |= SelectionKey.OP_WRITE;
+					}
+					if(qa.getBytesRemainingToWrite() > 0) {
+						expected |= SelectionKey.OP_WRITE;
+					}
+					assert sops == expected : "Invalid ops:  "
+						+ qa + ", expected " + expected + ", got " + sops;
+				} else {
+					int sops=sk.interestOps();
+					assert sops == SelectionKey.OP_CONNECT
+					: "Not connected, and not watching for connect: "
+						+ sops;
+				}
+			}
+			getLogger().debug("Checked the selectors.");
+			return true;
+		}
+
+		void handleIO() throws IOException {
+			if(shutDown) {
+				throw new IOException("No IO while shut down");
+			}
+
+			handleTopologyChanges();
+			expireOperations();
+
+			// Deal with all of the stuff that's been added, but may not be
+			// marked writable.
+			handleInputQueue();
+			getLogger().debug("Done dealing with queue.");
+			closeDrainedNodes();
+
+			long delay=checkHealth();
+			if(!reconnectQueue.isEmpty()) {
+				long now=System.currentTimeMillis();
+				long then=reconnectQueue.firstKey();
+				long next=Math.max(then-now, 1);
+				delay=delay == 0 ? next : Math.min(delay, next);
+			}
+			if(!draining.isEmpty()) {
+				// Wake up to close them when the migration window ends.
+				long left=topology.migrationEnds - System.currentTimeMillis();
+				if(left > 0) {
+					delay=delay == 0 ? left : Math.min(delay, left);
+				}
+			}
+			// Wake up to turn the wheel.
+			long next=deadlines.getDelay(System.nanoTime());
+			if(next > 0) {
+				delay=delay == 0 ? next : Math.min(delay, next);
+			}
+			getLogger().debug("Selecting with delay of %sms", delay);
+			assert selectorsMakeSense() : "Selectors don't make sense.";
+			int selected=selector.select(delay);
+			Set<SelectionKey> selectedKeys=selector.selectedKeys();
+
+			if(selectedKeys.isEmpty() && !shutDown) {
+				getLogger().debug("No selectors ready, interrupted: "
+						+ Thread.interrupted());
+				if(++emptySelects > DOUBLE_CHECK_EMPTY) {
+					for(SelectionKey sk : selector.keys()) {
+						getLogger().info("%s has %s, interested in %s",
+								sk, sk.readyOps(), sk.interestOps());
+						if(sk.readyOps() != 0) {
+							getLogger().info("%s has a ready op, handling IO",
+								sk);
+							handleIO(sk);
+						} else {
+							lostConnection((MemcachedNode)sk.attachment());
+						}
+					}
+					assert emptySelects < EXCESSIVE_EMPTY
+						: "Too many empty selects";
+				}
+			} else {
+				getLogger().debug("Selected %d, selected %d keys",
+						selected, selectedKeys.size());
+				emptySelects=0;
+				for(SelectionKey sk : selectedKeys) {
+					handleIO(sk);
+				} // for each selector
+				selectedKeys.clear();
+			}
+			closeDrainedNodes();
+			expireOperations();
+
+			if(!shutDown && !reconnectQueue.isEmpty()) {
+				attemptReconnects();
+			}
+		}
+
+		// Time out the operations whose deadlines have passed.  Those that
+		// haven't been sent are skipped when they reach the front of their
+		// write queues, and those awaiting an answer complete now, their
+		// answers being discarded when they arrive.
+		private void expireOperations() {
+			int n=deadlines.expire(System.nanoTime());
+			if(n > 0) {
+				getLogger().info("Timed out %d operations", n);
+			}
+		}
+
+		private NodeHealth getHealth(MemcachedNode qa) {
+			NodeHealth rv=health.get(qa);
+			if(rv == null) {
+				rv=new NodeHealth(failureThreshold, opTimeout,
+					maxDelay * 1000);
+				health.put(qa, rv);
+			}
+			return rv;
+		}
+
+		// Suspend the nodes that have stopped answering, probe those that
+		// are suspended, and resume those that answered.  Returns the
+		// number of milliseconds until this needs doing again, or 0.
+		private long checkHealth() {
+			long delay=0;
+			if(health != null) {
+				long now=System.nanoTime();
+				for(Iterator<Map.Entry<MemcachedNode, NodeHealth>> i=
+						health.entrySet().iterator(); i.hasNext(); ) {
+					Map.Entry<MemcachedNode, NodeHealth> me=i.next();
+					MemcachedNode qa=me.getKey();
+					NodeHealth h=me.getValue();
+					if(nodeLoops.get(qa) != this) {
+						i.remove();
+						continue;
+					}
+					if(h.check(now, qa.hasReadOp())) {
+						suspend(qa);
+					} else if(h.recover()) {
+						resume(qa, h.getProbeCount());
+					}
+					if(h.shouldProbe(now)) {
+						if(qa.getChannel() != null
+								&& qa.getChannel().isConnected()) {
+							probe(qa, h, now);
+						} else {
+							h.postpone(now);
+						}
+					}
+					long next=h.getDelay(now);
+					if(next > 0) {
+						delay=delay == 0 ? next : Math.min(delay, next);
+					}
+				}
+			}
+			return delay;
+		}
+
+		// Stop sending operations to a node that has stopped answering.
+		// Those it hasn't been sent yet are handled as if its connection
+		// was lost, but the connection is kept for probing it.
+		private void suspend(MemcachedNode qa) {
+			getLogger().warn("Suspending %s after %d timeouts or slow answers",
+				qa, failureThreshold);
+			qa.setSuspended(true);
+			if(failureMode != FailureMode.Retry) {
+				Collection<Operation> ops=new ArrayList<Operation>();
+				for(Operation op : qa.destroyInputQueue()) {
+					if(!op.isCancelled()) {
+						ops.add(op);
+					}
+				}
+				// Nothing in the write queue has been gathered for writing.
+				while(qa.hasWriteOp()) {
+					Operation op=qa.removeCurrentWriteOp();
+					if(!op.isCancelled()) {
+						ops.add(op);
+					}
+				}
+				qa.fixupOps();
+				if(failureMode == FailureMode.Redistribute) {
+					redistributeOperations(ops);
+				} else {
+					cancelOperations(ops);
+				}
+			}
+			for(ConnectionObserver observer : connObservers) {
+				if(observer instanceof ConnectionHealthObserver) {
+					((ConnectionHealthObserver)observer).connectionSuspended(
+						qa.getSocketAddress());
+				} else {
+					observer.connectionLost(qa.getSocketAddress());
+				}
+			}
+		}
+
+		private void resume(MemcachedNode qa, int probes) {
+			getLogger().info("Resuming %s after %d probes", qa, probes);
+			qa.setSuspended(false);
+			for(ConnectionObserver observer : connObservers) {
+				if(observer instanceof ConnectionHealthObserver) {
+					((ConnectionHealthObserver)observer).connectionResumed(
+						qa.getSocketAddress(), probes);
+				} else {
+					observer.connectionEstablished(qa.getSocketAddress(),
+						probes);
+				}
+			}
+		}
+
+		// Send a noop to a suspended node, ahead of anything else queued.
+		private void probe(MemcachedNode qa, NodeHealth h, long now) {
+			getLogger().info("Probing %s", qa);
+			Probe cb=new Probe(h);
+			cb.op=opFact.noop(cb);
+			h.probing(cb.op, now);
+			insertOperation(qa, cb.op);
+		}
+
+		// Handle any requests that have been made against the client.
+		private void handleInputQueue() {
+			if(!addedQueue.isEmpty()) {
+				getLogger().debug("Handling queue");
+				// If there's stuff in the added queue.  Try to process it.
+				Collection<MemcachedNode> toAdd=new HashSet<MemcachedNode>();
+				// Transfer the queue into a hashset.  There are very likely
+				// more additions than there are nodes.
+				Collection<MemcachedNode> todo=new HashSet<MemcachedNode>();
+				try {
+					MemcachedNode qa=null;
+					while((qa=addedQueue.remove()) != null) {
+						todo.add(qa);
+					}
+				} catch(NoSuchElementException e) {
+					// Found everything
+				}
+
+				// Now process the queue.
+				for(MemcachedNode qa : todo) {
+					if(nodeLoops.get(qa) != this) {
+						// Raced with the node being closed.
+						redistributeOperations(qa.destroyInputQueue());
+						continue;
+					}
+					boolean readyForIO=false;
+					if(qa.isActive()) {
+						if(qa.getCurrentWriteOp() != null) {
+							readyForIO=true;
+							getLogger().debug("Handling queued write %s", qa);
+						}
+					} else {
+						toAdd.add(qa);
+					}
+					qa.copyInputQueue();
+					if(readyForIO) {
+						try {
+							handleWrites(qa.getSk(), qa);
+						} catch(IOException e) {
+							getLogger().warn("Exception handling write", e);
+							lostConnection(qa);
+						}
+					}
+					qa.fixupOps();
+				}
+				addedQueue.addAll(toAdd);
+			}
+		}
+
+		private void lostConnection(MemcachedNode qa) {
+			queueReconnect(qa);
+			for(ConnectionObserver observer : connObservers) {
+				observer.connectionLost(qa.getSocketAddress());
+			}
+		}
+
+		// Handle IO for a specific selector.  Any IOException will cause a
+		// reconnect
+		private void handleIO(SelectionKey sk) {
+			MemcachedNode qa=(MemcachedNode)sk.attachment();
+			try {
+				getLogger().debug(
+						"Handling IO for:  %s (r=%s, w=%s, c=%s, op=%s)",
+						sk, sk.isReadable(), sk.isWritable(),
+						sk.isConnectable(), sk.attachment());
+				if(sk.isConnectable()) {
+					getLogger().info("Connection state changed for %s", sk);
+					final SocketChannel channel=qa.getChannel();
+					if(channel.finishConnect()) {
+						connected(qa);
+						addedQueue.offer(qa);
+						handleWrites(sk, qa);
+					} else {
+						assert !channel.isConnected() : "connected";
+					}
+				} else {
+					if(sk.isReadable()) {
+						handleReads(sk, qa);
+					}
+					if(sk.isWritable()) {
+						handleWrites(sk, qa);
+					}
+				}
+			} catch(ClosedChannelException e) {
+				if(!shutDown) {
+					getLogger().info("Closed channel and not shutting down.  "
+						+ "Queueing reconnect on %s", qa, e);
+					lostConnection(qa);
+				}
+			} catch(ConnectException e) {
+				// Failures to establish a connection should attempt a
+				// reconnect without signaling the observers.
+				getLogger().info(
+						"Reconnecting due to failure to connect to %s", qa, e);
+				queueReconnect(qa);
+			} catch(Exception e) {
+				// Various errors occur on Linux that wind up here.  However,
+				// any particular error processing an item should simply cause
+				// us to reconnect to the server.
+				getLogger().info("Reconnecting due to exception on %s", qa, e);
+				lostConnection(qa);
+			}
+			qa.fixupOps();
+		}
+
+		private void handleWrites(SelectionKey sk, MemcachedNode qa)
+			throws IOException {
+			qa.fillWriteBuffer(shouldOptimize);
+			boolean canWriteMore=qa.getBytesRemainingToWrite() > 0;
+			while(canWriteMore) {
+				int wrote=qa.writeSome();
+				qa.fillWriteBuffer(shouldOptimize);
+				canWriteMore = wrote > 0 && qa.getBytesRemainingToWrite() > 0;
+			}
+			if(health != null && qa.hasReadOp()) {
+				getHealth(qa).sent(System.nanoTime());
+			}
+		}
+
+		private void handleReads(SelectionKey sk, MemcachedNode qa)
+			throws IOException {
+			Operation currentOp = qa.getCurrentReadOp();
+			NodeHealth h=health == null ? null : getHealth(qa);
+			ByteBuffer rbuf=qa.getRbuf();
+			final SocketChannel channel = qa.getChannel();
+			int read=channel.read(rbuf);
+			if (read < 0) {
+			    // GRUMBLE.
+			    throw new IOException("Disconnected");
+			}
+			while(read > 0) {
+				getLogger().debug("Read %d bytes", read);
+				rbuf.flip();
+				while(rbuf.remaining() > 0) {
+					if(currentOp == null) {
+						throw new IllegalStateException("No read operation.");
+					}
+					currentOp.readFromBuffer(rbuf);
+					if(currentOp.getState() == OperationState.COMPLETE) {
+						getLogger().debug(
+							"Completed read op: %s and giving the next %d bytes",
+							currentOp, rbuf.remaining());
+						Operation op=qa.removeCurrentReadOp();
+						assert op == currentOp
+						: "Expected to pop " + currentOp + " got " + op;
+						currentOp=qa.getCurrentReadOp();
+						if(h != null) {
+							h.answered(System.nanoTime(), currentOp != null);
+						}
+					}
+				}
+				rbuf.clear();
+				read=channel.read(rbuf);
+			}
+		}
+
+		void queueReconnect(MemcachedNode qa) {
+			if(!shutDown) {
+				getLogger().warn("Closing, and reopening %s, attempt %d.",
+						qa, qa.getReconnectCount());
+				if(qa.getSk() != null) {
+					qa.getSk().cancel();
+					assert !qa.getSk().isValid()
+						: "Cancelled selection key is valid";
+				}
+				qa.reconnecting();
+				try {
+					if(qa.getChannel() != null
+							&& qa.getChannel().socket() != null) {
+						qa.getChannel().socket().close();
+					} else {
+						getLogger().info(
+							"The channel or socket was null for %s", qa);
+					}
+				} catch(IOException e) {
+					getLogger().warn("IOException trying to close a socket", e);
+				}
+				qa.setChannel(null);
+
+				long delay = (long)Math.min(maxDelay,
+						Math.pow(2, qa.getReconnectCount())) * 1000;
+				long reconTime = System.currentTimeMillis() + delay;
+
+				// Avoid potential condition where two connections are
+				// scheduled for reconnect at the exact same time.  This is
+				// expected to be a rare situation.
+				while(reconnectQueue.containsKey(reconTime)) {
+					reconTime++;
+				}
+
+				reconnectQueue.put(reconTime, qa);
+
+				// Need to do a little queue management.
+				qa.setupResend();
+
+				if(failureMode == FailureMode.Redistribute) {
+					redistributeOperations(qa.destroyInputQueue());
+				} else if(failureMode == FailureMode.Cancel) {
+					cancelOperations(qa.destroyInputQueue());
+				}
+			}
+		}
+
+		private void attemptReconnects() throws IOException {
+			final long now=System.currentTimeMillis();
+			final Map<MemcachedNode, Boolean> seen=
+				new IdentityHashMap<MemcachedNode, Boolean>();
+			final List<MemcachedNode> rereQueue=new ArrayList<MemcachedNode>();
+			for(Iterator<MemcachedNode> i=
+					reconnectQueue.headMap(now).values().iterator();
+					i.hasNext();) {
+				final MemcachedNode qa=i.next();
+				i.remove();
+				try {
+					if(!seen.containsKey(qa)) {
+						seen.put(qa, Boolean.TRUE);
+						getLogger().info("Reconnecting %s", qa);
+						final SocketChannel ch=SocketChannel.open();
+						ch.configureBlocking(false);
+						int ops=0;
+						if(ch.connect(qa.getSocketAddress())) {
+							getLogger().info("Immediately reconnected to %s",
+								qa);
+							assert ch.isConnected();
+						} else {
+							ops=SelectionKey.OP_CONNECT;
+						}
+						qa.registerChannel(ch, ch.register(selector, ops, qa));
+						assert qa.getChannel() == ch : "Channel was lost.";
+					} else {
+						getLogger().debug(
+							"Skipping duplicate reconnect request for %s", qa);
+					}
+				} catch(SocketException e) {
+					getLogger().warn("Error on reconnect", e);
+					rereQueue.add(qa);
+				}
+			}
+			// Requeue any fast-failed connects.
+			for(MemcachedNode n : rereQueue) {
+				queueReconnect(n);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "{IOLoop #" + id + " of " + MemcachedConnection.this + "}";
+		}
+	}
+
+	/**
+	 * Callback of a noop probing a suspended node.
+	 */
+	private static final class Probe implements OperationCallback {
+
+		private final NodeHealth health;
+		Operation op=null;
+		private boolean answered=false;
+
+		Probe(NodeHealth h) {
+			super();
+			health=h;
+		}
+
+		public void receivedStatus(OperationStatus s) {
+			answered=s.isSuccess();
+		}
+
+		public void complete() {
+			health.probed(op, System.nanoTime(),
+				answered && !op.isCancelled());
+		}
+	}
+
+	/**
+	 * Thread driving one of the additional IO loops.
+	 */
+	private final class IOLoopThread extends SpyThread {
+
+		private final IOLoop loop;
+
+		IOLoopThread(IOLoop l) {
+			super("Memcached IO loop #" + l.id + " over "
+				+ MemcachedConnection.this);
+			loop=l;
+		}
+
+		private void logRunException(Exception e) {
+			if(shutDown) {
+				getLogger().debug("Exception occurred during shutdown", e);
+			} else {
+				getLogger().warn("Problem handling memcached IO", e);
+			}
+		}
+
+		@Override
+		public void run() {
+			while(!shutDown) {
+				try {
+					loop.handleIO();
+				} catch(IOException e) {
+					logRunException(e);
+				} catch(CancelledKeyException e) {
+					logRunException(e);
+				} catch(ClosedSelectorException e) {
+					logRunException(e);
+				} catch(IllegalStateException e) {
+					logRunException(e);
+				}
+			}
+			getLogger().info("Shut down %s", loop);
+		}
+	}
+
 }
@@ -34,7 +34,8 @@ public interface MemcachedNode {
 	void setupResend();
 
 	/**
-	 * Fill the write buffer with data from the next operations in the queue.
+	 * Gather the buffers of the next operations in the queue so they may be
+	 * written out directly by writeSome.
 	 *
 	 * @param optimizeGets if true, combine sequential gets into a single
 	 *                     multi-key get
@@ -102,9 +103,10 @@ public interface MemcachedNode {
 	ByteBuffer getRbuf();
 
 	/**
-	 * Get the buffer used for writing data to this node.
+	 * Get the pool operations handled by this node should take their
+	 * buffers from.
 	 */
-	ByteBuffer getWbuf();
+	BufferPool getBufferPool();
 
 	/**
 	 * Get the SocketAddress of the server to which this node is connected.
@@ -117,6 +119,12 @@ public interface MemcachedNode {
 	 */
 	boolean isActive();
 
+	/**
+	 * Take this node out of or put it back into service while its
+	 * connection stays up.  A suspended node isn't active.
+	 */
+	void setSuspended(boolean to);
+
 	/**
 	 * Notify this node that it will be reconnecting.
 	 */
@@ -132,6 +140,16 @@ public interface MemcachedNode {
 	 */
 	int getReconnectCount();
 
+	/**
+	 * Get the number of operations on this node that haven't completed,
+	 * whether they're waiting to be written or waiting for a response.
+	 *
+	 * <p>
+	 * This is only an estimate when called from outside the IO thread.
+	 * </p>
+	 */
+	int getInFlightCount();
+
 	/**
 	 * Register a channel with this node.
 	 */
@@ -70,10 +70,18 @@ class MemcachedNodeROImpl implements MemcachedNode {
 		throw new UnsupportedOperationException();
 	}
 
+	public BufferPool getBufferPool() {
+		throw new UnsupportedOperationException();
+	}
+
 	public int getReconnectCount() {
 		throw new UnsupportedOperationException();
 	}
 
+	public int getInFlightCount() {
+		throw new UnsupportedOperationException();
+	}
+
 	public int getSelectionOps() {
 		throw new UnsupportedOperationException();
 	}
@@ -86,10 +94,6 @@ class MemcachedNodeROImpl implements MemcachedNode {
 		return root.getSocketAddress();
 	}
 
-	public ByteBuffer getWbuf() {
-		throw new UnsupportedOperationException();
-	}
-
 	public boolean hasReadOp() {
 		throw new UnsupportedOperationException();
 	}
@@ -102,6 +106,10 @@ class MemcachedNodeROImpl implements MemcachedNode {
 		throw new UnsupportedOperationException();
 	}
 
+	public void setSuspended(boolean to) {
+		throw new UnsupportedOperationException();
+	}
+
 	public void reconnecting() {
 		throw new UnsupportedOperationException();
 	}
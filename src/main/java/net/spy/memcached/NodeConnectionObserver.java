@@ -0,0 +1,25 @@
+package net.spy.memcached;
+
+/**
+ * Connection observer that's also told which connection was established.
+ *
+ * <p>
+ * With more than one connection per server, {@link
+ * #connectionEstablished(java.net.SocketAddress, int)} can't say which of
+ * the server's connections came up.  Observers implementing this are
+ * additionally given the node for the connection itself.
+ * </p>
+ *
+ * @see ConnectionFactory#getConnectionsPerServer()
+ */
+public interface NodeConnectionObserver extends ConnectionObserver {
+
+	/**
+	 * A connection has just successfully been established.
+	 *
+	 * @param node the node whose connection was established
+	 * @param reconnectCount the number of attempts before the connection was
+	 *                       established
+	 */
+	void nodeConnected(MemcachedNode node, int reconnectCount);
+}
@@ -0,0 +1,227 @@
+package net.spy.memcached;
+
+/**
+ * Circuit breaker for a connection whose server may stop answering without
+ * the connection dropping.
+ *
+ * <p>
+ * The connection fails when it goes an operation timeout without answering
+ * anything it has been sent, and again for each further timeout it stays
+ * silent.  An answer that takes more than half the operation timeout is
+ * also a failure, any quicker answer resets the count.  After enough
+ * failures in a row the breaker opens, and stays open until a probe sent
+ * to the server is answered within the operation timeout.  Probes are
+ * spaced out like reconnect attempts.
+ * </p>
+ *
+ * <p>
+ * This is only used from the thread running the connection's IO loop, so
+ * times are passed in rather than read, and nothing is synchronized.
+ * </p>
+ */
+final class NodeHealth {
+
+	private final int threshold;
+	private final long timeout;
+	private final long slow;
+	private final long maxDelay;
+
+	// Consecutive failures while closed.
+	private int failures=0;
+	// Whether anything sent is awaiting an answer, and since when the
+	// connection last made progress answering.
+	private boolean waiting=false;
+	private long since=0;
+	private boolean open=false;
+	// Set when a probe has been answered, until the loop resumes the node.
+	private boolean recovered=false;
+	// Probes sent since the breaker opened.
+	private int probes=0;
+	private long nextProbe=0;
+	private Object probe=null;
+	private long probeSent=0;
+
+	/**
+	 * Get a breaker.
+	 *
+	 * @param t the number of consecutive failures that open it
+	 * @param opTimeout the operation timeout in nanoseconds
+	 * @param maxDelayMs the longest wait between probes in milliseconds
+	 */
+	NodeHealth(int t, long opTimeout, long maxDelayMs) {
+		super();
+		assert t > 0 : "Threshold must be positive";
+		threshold=t;
+		timeout=opTimeout;
+		slow=opTimeout / 2;
+		maxDelay=maxDelayMs * 1000000;
+	}
+
+	/**
+	 * Note that operations have been sent.
+	 *
+	 * @param now the current System.nanoTime()
+	 */
+	void sent(long now) {
+		if(!waiting) {
+			waiting=true;
+			since=now;
+		}
+	}
+
+	/**
+	 * Note that an operation has been answered.
+	 *
+	 * @param now the current System.nanoTime()
+	 * @param more whether other operations are still awaiting answers
+	 */
+	void answered(long now, boolean more) {
+		if(waiting && !open) {
+			if(now - since > slow) {
+				failures++;
+			} else {
+				failures=0;
+			}
+		}
+		waiting=more;
+		since=now;
+	}
+
+	/**
+	 * Count a failure if the connection has been silent for too long.
+	 *
+	 * @param now the current System.nanoTime()
+	 * @param awaiting whether anything is still awaiting an answer
+	 * @return true if the breaker has just opened
+	 */
+	boolean check(long now, boolean awaiting) {
+		if(!awaiting) {
+			waiting=false;
+		} else if(waiting && now - since >= timeout) {
+			since=now;
+			if(!open) {
+				failures++;
+			}
+		}
+		if(probe != null && now - probeSent >= timeout) {
+			// Lost this one, any answer to it comes too late to count.
+			probe=null;
+			scheduleProbe(now);
+		}
+		if(!open && failures >= threshold) {
+			open=true;
+			probes=0;
+			scheduleProbe(now);
+			return true;
+		}
+		return false;
+	}
+
+	private void scheduleProbe(long now) {
+		long delay=Math.min(maxDelay,
+			(long)Math.pow(2, probes) * 1000000000L);
+		nextProbe=now + delay;
+	}
+
+	/**
+	 * True if the breaker is open.
+	 */
+	boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * True if the breaker is open and it's time to send another probe.
+	 *
+	 * @param now the current System.nanoTime()
+	 */
+	boolean shouldProbe(long now) {
+		return open && !recovered && probe == null && now - nextProbe >= 0;
+	}
+
+	/**
+	 * Note that a probe has been sent.
+	 *
+	 * @param p the probe
+	 * @param now the current System.nanoTime()
+	 */
+	void probing(Object p, long now) {
+		probe=p;
+		probeSent=now;
+		probes++;
+	}
+
+	/**
+	 * Put off a probe that's due but can't be sent yet.
+	 *
+	 * @param now the current System.nanoTime()
+	 */
+	void postpone(long now) {
+		scheduleProbe(now);
+	}
+
+	/**
+	 * Note that a probe has finished.
+	 *
+	 * @param p the probe
+	 * @param now the current System.nanoTime()
+	 * @param ok whether the server answered it
+	 */
+	void probed(Object p, long now, boolean ok) {
+		if(p == probe) {
+			probe=null;
+			if(ok && now - probeSent < timeout) {
+				recovered=true;
+			} else {
+				scheduleProbe(now);
+			}
+		}
+	}
+
+	/**
+	 * Close the breaker if a probe has been answered.
+	 *
+	 * @return true if it was closed
+	 */
+	boolean recover() {
+		if(!recovered) {
+			return false;
+		}
+		recovered=false;
+		open=false;
+		failures=0;
+		return true;
+	}
+
+	/**
+	 * Get the number of probes sent since the breaker opened.
+	 */
+	int getProbeCount() {
+		return probes;
+	}
+
+	/**
+	 * Get the number of milliseconds until this next needs checking.
+	 *
+	 * @param now the current System.nanoTime()
+	 * @return the delay, or 0 if nothing will happen without IO
+	 */
+	long getDelay(long now) {
+		long next=Long.MAX_VALUE;
+		if(recovered) {
+			return 1;
+		}
+		if(waiting && !open) {
+			next=Math.min(next, since + timeout - now);
+		}
+		if(probe != null) {
+			next=Math.min(next, probeSent + timeout - now);
+		} else if(open) {
+			next=Math.min(next, nextProbe - now);
+		}
+		if(next == Long.MAX_VALUE) {
+			return 0;
+		}
+		return Math.max(next / 1000000, 1);
+	}
+}
@@ -0,0 +1,162 @@
+package net.spy.memcached;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * NodeLocator using rendezvous (highest random weight) hashing.
+ *
+ * <p>
+ * Every node scores every key and the highest score wins.  Keys are spread
+ * evenly without any virtual nodes, and since a node's score doesn't depend
+ * on the other nodes, adding or removing a node only moves the keys it wins
+ * or held.  Nodes are identified by their socket address, so the order of
+ * the server list doesn't matter.  Finding a key's node is linear in the
+ * number of nodes.
+ * </p>
+ */
+public final class RendezvousNodeLocator implements EncodedKeyNodeLocator {
+
+	private static final long FNV_64_INIT = 0xcbf29ce484222325L;
+	private static final long FNV_64_PRIME = 0x100000001b3L;
+
+	private final MemcachedNode[] nodes;
+	private final long[] seeds;
+	private final HashAlgorithm hashAlg;
+
+	/**
+	 * Construct a RendezvousNodeLocator over the given nodes using the given
+	 * hash algorithm for keys.
+	 *
+	 * @param n the nodes
+	 * @param alg the hash algorithm
+	 */
+	public RendezvousNodeLocator(List<MemcachedNode> n, HashAlgorithm alg) {
+		super();
+		nodes=n.toArray(new MemcachedNode[n.size()]);
+		seeds=new long[nodes.length];
+		for(int i=0; i<nodes.length; i++) {
+			seeds[i]=nodeSeed(String.valueOf(nodes[i].getSocketAddress()));
+		}
+		hashAlg=alg;
+	}
+
+	private RendezvousNodeLocator(MemcachedNode[] n, long[] s,
+			HashAlgorithm alg) {
+		super();
+		nodes=n;
+		seeds=s;
+		hashAlg=alg;
+	}
+
+	// 64-bit FNV-1a of the node's name.
+	static long nodeSeed(String name) {
+		long rv=FNV_64_INIT;
+		int len=name.length();
+		for(int i=0; i<len; i++) {
+			rv ^= name.charAt(i);
+			rv *= FNV_64_PRIME;
+		}
+		return rv;
+	}
+
+	private long keyHash(String k) {
+		return HashAlgorithm.fmix64(hashAlg.hash(k));
+	}
+
+	private long keyHash(byte[] b) {
+		return HashAlgorithm.fmix64(hashAlg.hash(b, 0, b.length));
+	}
+
+	private long score(int node, long keyHash) {
+		return HashAlgorithm.fmix64(seeds[node] ^ keyHash);
+	}
+
+	public Collection<MemcachedNode> getAll() {
+		return Arrays.asList(nodes);
+	}
+
+	public MemcachedNode getPrimary(String k) {
+		return getPrimary(keyHash(k));
+	}
+
+	public MemcachedNode getPrimary(String k, byte[] b) {
+		return getPrimary(keyHash(b));
+	}
+
+	// The node with the highest score for the key's hash.
+	private MemcachedNode getPrimary(long h) {
+		int best=-1;
+		long bestScore=0;
+		for(int i=0; i<nodes.length; i++) {
+			long s=score(i, h);
+			if(best < 0 || s > bestScore) {
+				best=i;
+				bestScore=s;
+			}
+		}
+		return best < 0 ? null : nodes[best];
+	}
+
+	public Iterator<MemcachedNode> getSequence(String k) {
+		return new RendezvousIterator(keyHash(k));
+	}
+
+	public NodeLocator getReadonlyCopy() {
+		MemcachedNode[] n=new MemcachedNode[nodes.length];
+		for(int i=0; i<nodes.length; i++) {
+			n[i]=new MemcachedNodeROImpl(nodes[i]);
+		}
+		return new RendezvousNodeLocator(n, seeds, hashAlg);
+	}
+
+	/**
+	 * Walks the nodes other than the primary from highest to lowest score,
+	 * so a key fails over to the same node no matter which other nodes are
+	 * down.
+	 */
+	class RendezvousIterator implements Iterator<MemcachedNode> {
+
+		private final long[] scores;
+		private final int[] order;
+		private int next=1;
+
+		public RendezvousIterator(long h) {
+			super();
+			scores=new long[nodes.length];
+			order=new int[nodes.length];
+			for(int i=0; i<nodes.length; i++) {
+				scores[i]=score(i, h);
+				order[i]=i;
+			}
+			// Insertion sort by descending score; the first is the primary.
+			for(int i=1; i<order.length; i++) {
+				int n=order[i];
+				int j=i - 1;
+				while(j >= 0 && scores[order[j]] < scores[n]) {
+					order[j + 1]=order[j];
+					j--;
+				}
+				order[j + 1]=n;
+			}
+		}
+
+		public boolean hasNext() {
+			return next < order.length;
+		}
+
+		public MemcachedNode next() {
+			if(next >= order.length) {
+				throw new NoSuchElementException();
+			}
+			return nodes[order[next++]];
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("Can't remove a node");
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package net.spy.memcached;
+
+/**
+ * How many of the servers keeping copies of a key must accept a write
+ * before it's considered successful.
+ */
+public enum ReplicaAck {
+
+	/**
+	 * The first server to accept the write is enough.
+	 */
+	ANY,
+	/**
+	 * A majority of the servers must accept the write.
+	 */
+	QUORUM,
+	/**
+	 * Every server must accept the write.
+	 */
+	ALL;
+
+	/**
+	 * Get the number of servers that must accept a write.
+	 *
+	 * @param copies the number of servers the write is sent to
+	 */
+	public int required(int copies) {
+		switch(this) {
+			case ANY:
+				return 1;
+			case QUORUM:
+				return copies / 2 + 1;
+			default:
+				return copies;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package net.spy.memcached;
+
+/**
+ * Listener told the outcome of a store instead of it being returned in a
+ * future.
+ *
+ * <p>
+ * It's called on the thread running the client's IO loop unless an
+ * executor was given with the store, so it shouldn't block.  The store
+ * times out after the operation timeout whether or not deadlines are
+ * enforced.
+ * </p>
+ */
+public interface StoreListener {
+
+	/**
+	 * The store is complete.
+	 *
+	 * @param key the key
+	 * @param stored whether the server stored the value
+	 */
+	void onStore(String key, boolean stored);
+
+	/**
+	 * The store failed: it timed out, was cancelled, or the server
+	 * returned an error.
+	 *
+	 * @param key the key
+	 * @param e why it failed
+	 */
+	void onFailure(String key, Exception e);
+}
@@ -20,10 +20,12 @@ import net.spy.memcached.ops.OperationState;
  *
  * @param <T> types of objects returned from the GET
  */
-public class BulkGetFuture<T> implements Future<Map<String, T>> {
+public class BulkGetFuture<T> implements ListenableFuture<Map<String, T>> {
 	private final Map<String, Future<T>> rvMap;
 	private final Collection<Operation> ops;
 	private final CountDownLatch latch;
+	private final CompletionListeners<Map<String, T>> listeners=
+		new CompletionListeners<Map<String, T>>(this);
 	private boolean cancelled=false;
 
 	public BulkGetFuture(Map<String, Future<T>> m,
@@ -69,6 +71,16 @@ public class BulkGetFuture<T> implements Future<Map<String, T>> {
 			throw new CheckedOperationTimeoutException("Operation timed out.",
 					timedoutOps);
 		}
+		Collection<Operation> timedoutOps = new HashSet<Operation>();
+		for(Operation op : ops) {
+			if(op.isTimedOut()) {
+				timedoutOps.add(op);
+			}
+		}
+		if(!timedoutOps.isEmpty()) {
+			throw new CheckedOperationTimeoutException("Operation timed out.",
+					timedoutOps);
+		}
 		for(Operation op : ops) {
 			if(op.isCancelled()) {
 				throw new ExecutionException(
@@ -89,6 +101,21 @@ public class BulkGetFuture<T> implements Future<Map<String, T>> {
 		return cancelled;
 	}
 
+	public void addListener(CompletionListener<Map<String, T>> l) {
+		listeners.add(l);
+		signalComplete();
+	}
+
+	/**
+	 * Tell the listeners the gets are done if the latch has been counted
+	 * down.
+	 */
+	public void signalComplete() {
+		if(latch.getCount() == 0) {
+			listeners.complete();
+		}
+	}
+
 	public boolean isDone() {
 		return latch.getCount() == 0;
 	}
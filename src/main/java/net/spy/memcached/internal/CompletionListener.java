@@ -0,0 +1,16 @@
+package net.spy.memcached.internal;
+
+/**
+ * Listener told when a {@link ListenableFuture} is done.
+ *
+ * @param <T> Type of object returned from the future.
+ */
+public interface CompletionListener<T> {
+
+	/**
+	 * The given future is done.
+	 *
+	 * @param future the future, whose get() won't wait
+	 */
+	void onComplete(ListenableFuture<T> future);
+}
@@ -0,0 +1,70 @@
+package net.spy.memcached.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.spy.memcached.compat.SpyObject;
+
+/**
+ * The listeners of a future, each told once when it's done.
+ *
+ * @param <T> Type of object returned from the future.
+ */
+final class CompletionListeners<T> extends SpyObject {
+
+	private final ListenableFuture<T> future;
+	private List<CompletionListener<T>> listeners=null;
+	private boolean done=false;
+
+	CompletionListeners(ListenableFuture<T> f) {
+		super();
+		future=f;
+	}
+
+	/**
+	 * Add a listener, telling it now if the future is already done.
+	 */
+	void add(CompletionListener<T> l) {
+		synchronized(this) {
+			if(!done) {
+				if(listeners == null) {
+					listeners=new ArrayList<CompletionListener<T>>(2);
+				}
+				listeners.add(l);
+				return;
+			}
+		}
+		tell(l);
+	}
+
+	/**
+	 * Tell the listeners the future is done.  Only the first call does
+	 * anything.
+	 */
+	void complete() {
+		List<CompletionListener<T>> toTell=null;
+		synchronized(this) {
+			if(done) {
+				return;
+			}
+			done=true;
+			toTell=listeners;
+			listeners=null;
+		}
+		if(toTell != null) {
+			for(CompletionListener<T> l : toTell) {
+				tell(l);
+			}
+		}
+	}
+
+	// A broken listener mustn't keep the others from hearing about it, or
+	// break the IO thread.
+	private void tell(CompletionListener<T> l) {
+		try {
+			l.onComplete(future);
+		} catch(RuntimeException e) {
+			getLogger().warn("Exception from listener of %s", future, e);
+		}
+	}
+}
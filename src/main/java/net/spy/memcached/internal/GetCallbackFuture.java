@@ -0,0 +1,59 @@
+package net.spy.memcached.internal;
+
+import java.util.concurrent.ExecutionException;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Future that is the callback of a get of one key.
+ *
+ * <p>
+ * The value is kept as it was read, and decoded by the first call to get()
+ * in the calling thread, so neither the IO thread nor a decode pool does
+ * anything for it.
+ * </p>
+ *
+ * Not intended for general use.
+ *
+ * @param <T> Type of object returned from the get
+ */
+public class GetCallbackFuture<T> extends OperationCallbackFuture<T>
+	implements GetOperation.Callback {
+
+	private final String key;
+	private final Transcoder<T> tc;
+	private int flags=0;
+	private byte[] data=null;
+
+	public GetCallbackFuture(String k, Transcoder<T> t, long opTimeout) {
+		super(opTimeout);
+		key=k;
+		tc=t;
+	}
+
+	public void receivedStatus(OperationStatus status) {
+		// Only the value matters.
+	}
+
+	public void gotData(String k, int f, byte[] d) {
+		assert key.equals(k) : "Wrong key returned";
+		flags=f;
+		data=d;
+	}
+
+	@Override
+	protected synchronized T getResult() throws ExecutionException {
+		if(data != null) {
+			try {
+				set(tc.decode(new CachedData(flags, data, tc.getMaxSize())));
+			} catch(RuntimeException e) {
+				throw new ExecutionException(e);
+			}
+			data=null;
+		}
+		return super.getResult();
+	}
+}
@@ -15,12 +15,16 @@ import net.spy.memcached.ops.Operation;
  *
  * @param <T> Type of object returned from the get
  */
-public class GetFuture<T> implements Future<T> {
+public class GetFuture<T> implements ListenableFuture<T> {
 
 	private final OperationFuture<Future<T>> rv;
+	private final CountDownLatch latch;
+	private final CompletionListeners<T> listeners=
+		new CompletionListeners<T>(this);
 
 	public GetFuture(CountDownLatch l, long opTimeout) {
 		this.rv = new OperationFuture<Future<T>>(l, opTimeout);
+		this.latch = l;
 	}
 
 	public boolean cancel(boolean ign) {
@@ -46,6 +50,21 @@ public class GetFuture<T> implements Future<T> {
 		rv.setOperation(to);
 	}
 
+	public void addListener(CompletionListener<T> l) {
+		listeners.add(l);
+		signalComplete();
+	}
+
+	/**
+	 * Tell the listeners the get is done if the latch has been counted
+	 * down.
+	 */
+	public void signalComplete() {
+		if(latch.getCount() == 0) {
+			listeners.complete();
+		}
+	}
+
 	public boolean isCancelled() {
 		return rv.isCancelled();
 	}
@@ -0,0 +1,64 @@
+package net.spy.memcached.internal;
+
+import java.util.concurrent.ExecutionException;
+
+import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.ops.GetsOperation;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Future that is the callback of a gets of one key.
+ *
+ * <p>
+ * Like {@link GetCallbackFuture}, the value is decoded by the first call
+ * to get().
+ * </p>
+ *
+ * Not intended for general use.
+ *
+ * @param <T> Type of object returned from the gets
+ */
+public class GetsCallbackFuture<T> extends OperationCallbackFuture<CASValue<T>>
+	implements GetsOperation.Callback {
+
+	private final String key;
+	private final Transcoder<T> tc;
+	private int flags=0;
+	private long cas=0;
+	private byte[] data=null;
+
+	public GetsCallbackFuture(String k, Transcoder<T> t, long opTimeout) {
+		super(opTimeout);
+		key=k;
+		tc=t;
+	}
+
+	public void receivedStatus(OperationStatus status) {
+		// Only the value matters.
+	}
+
+	public void gotData(String k, int f, long c, byte[] d) {
+		assert key.equals(k) : "Wrong key returned";
+		assert c > 0 : "CAS was less than zero:  " + c;
+		flags=f;
+		cas=c;
+		data=d;
+	}
+
+	@Override
+	protected synchronized CASValue<T> getResult()
+		throws ExecutionException {
+		if(data != null) {
+			try {
+				set(new CASValue<T>(cas, tc.decode(
+					new CachedData(flags, data, tc.getMaxSize()))));
+			} catch(RuntimeException e) {
+				throw new ExecutionException(e);
+			}
+			data=null;
+		}
+		return super.getResult();
+	}
+}
@@ -0,0 +1,32 @@
+package net.spy.memcached.internal;
+
+import java.util.concurrent.Future;
+
+/**
+ * A future that can tell listeners when it's done, so nothing has to wait
+ * in get() for it.
+ *
+ * @param <T> Type of object returned from this future.
+ */
+public interface ListenableFuture<T> extends Future<T> {
+
+	/**
+	 * Have the given listener told when this future is done.
+	 *
+	 * <p>
+	 * The listener is called on the thread that completes the future, which
+	 * is usually a memcached IO thread, so it must not block.  If the future
+	 * is already done, it's called right away on the calling thread.  Once
+	 * it's called, get() returns or throws without waiting for a server.
+	 * </p>
+	 *
+	 * <p>
+	 * A future that times out in get() isn't done.  Its listeners are told
+	 * when the operation eventually completes, or is timed out by the IO
+	 * thread when deadlines are enforced.
+	 * </p>
+	 *
+	 * @param l the listener
+	 */
+	void addListener(CompletionListener<T> l);
+}
@@ -0,0 +1,235 @@
+package net.spy.memcached.internal;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import net.spy.memcached.compat.log.Logger;
+import net.spy.memcached.compat.log.LoggerFactory;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationCallback;
+import net.spy.memcached.ops.OperationState;
+
+/**
+ * Future that is also the callback of the one operation it waits for.
+ *
+ * <p>
+ * Everything it needs to track is in a single volatile field, which is
+ * null until something waits, then a stack of the threads parked in get()
+ * and the listeners added, and finally a marker once the operation is
+ * complete.  So an operation nobody waits on before it completes costs
+ * this object and nothing else.  Subclasses record the outcome in
+ * receivedStatus, which happens before complete().
+ * </p>
+ *
+ * Not intended for general use.
+ *
+ * @param <T> Type of object returned from this future.
+ */
+public abstract class OperationCallbackFuture<T>
+	implements ListenableFuture<T>, OperationCallback {
+
+	private static final Logger logger=
+		LoggerFactory.getLogger(OperationCallbackFuture.class);
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static final AtomicReferenceFieldUpdater<OperationCallbackFuture,
+		Object> STATE=AtomicReferenceFieldUpdater.newUpdater(
+			OperationCallbackFuture.class, Object.class, "state");
+
+	private static final Object DONE=new Object();
+
+	private final long timeout;
+	private volatile Object state=null;
+	private Operation op=null;
+	private T value=null;
+
+	/**
+	 * Get a future.
+	 *
+	 * @param opTimeout the default timeout for get() in milliseconds
+	 */
+	protected OperationCallbackFuture(long opTimeout) {
+		super();
+		timeout=opTimeout;
+	}
+
+	/**
+	 * Set the operation this is the callback of.  This must be done before
+	 * the operation is sent.
+	 */
+	public void setOperation(Operation to) {
+		op=to;
+	}
+
+	/**
+	 * Get the operation this is the callback of.
+	 */
+	public Operation getOperation() {
+		return op;
+	}
+
+	/**
+	 * Set the value get() returns.
+	 */
+	protected void set(T o) {
+		value=o;
+	}
+
+	/**
+	 * Get the value get() returns once the operation is complete.
+	 */
+	protected T getResult() throws ExecutionException {
+		return value;
+	}
+
+	/**
+	 * Mark this done, waking everything waiting and telling the listeners.
+	 * Only the first call does anything.
+	 */
+	public final void complete() {
+		Object s;
+		do {
+			s=state;
+			if(s == DONE) {
+				return;
+			}
+		} while(!STATE.compareAndSet(this, s, DONE));
+		// Tell them in the order they started waiting.
+		Waiter w=null;
+		for(Waiter n=(Waiter)s; n != null; ) {
+			Waiter next=n.next;
+			n.next=w;
+			w=n;
+			n=next;
+		}
+		for(; w != null; w=w.next) {
+			if(w.listener != null) {
+				tell(listener(w));
+			} else if(w.thread != null) {
+				LockSupport.unpark(w.thread);
+			}
+		}
+	}
+
+	// A broken listener mustn't keep the others from hearing about it, or
+	// break the IO thread.
+	private void tell(CompletionListener<T> l) {
+		try {
+			l.onComplete(this);
+		} catch(RuntimeException e) {
+			logger.warn("Exception from listener of %s", this, e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private CompletionListener<T> listener(Waiter w) {
+		return (CompletionListener<T>)w.listener;
+	}
+
+	public void addListener(CompletionListener<T> l) {
+		Waiter w=new Waiter(null, l);
+		Object s;
+		do {
+			s=state;
+			if(s == DONE) {
+				tell(l);
+				return;
+			}
+			w.next=(Waiter)s;
+		} while(!STATE.compareAndSet(this, s, w));
+	}
+
+	// Wait until done, returning false if it isn't done in time.
+	private boolean await(long nanos) throws InterruptedException {
+		if(state == DONE) {
+			return true;
+		}
+		long deadline=System.nanoTime() + nanos;
+		Waiter w=new Waiter(Thread.currentThread(), null);
+		Object s;
+		do {
+			s=state;
+			if(s == DONE) {
+				return true;
+			}
+			w.next=(Waiter)s;
+		} while(!STATE.compareAndSet(this, s, w));
+		try {
+			while(state != DONE) {
+				if(Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				long left=deadline - System.nanoTime();
+				if(left <= 0) {
+					return false;
+				}
+				LockSupport.parkNanos(left);
+			}
+			return true;
+		} finally {
+			// Left on the stack until done, but not woken.
+			w.thread=null;
+		}
+	}
+
+	public boolean cancel(boolean ign) {
+		assert op != null : "No operation";
+		op.cancel();
+		// This isn't exactly correct, but it's close enough.  If we're in
+		// a writing state, we *probably* haven't started.
+		return op.getState() == OperationState.WRITING;
+	}
+
+	public T get() throws InterruptedException, ExecutionException {
+		try {
+			return get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new RuntimeException(
+				"Timed out waiting for operation", e);
+		}
+	}
+
+	public T get(long duration, TimeUnit units)
+		throws InterruptedException, TimeoutException, ExecutionException {
+		if(!await(units.toNanos(duration))) {
+			throw new CheckedOperationTimeoutException(
+					"Timed out waiting for operation", op);
+		}
+		if(op != null && op.isTimedOut()) {
+			throw new CheckedOperationTimeoutException(
+					"Operation timed out", op);
+		}
+		if(op != null && op.hasErrored()) {
+			throw new ExecutionException(op.getException());
+		}
+		if(isCancelled()) {
+			throw new ExecutionException(new RuntimeException("Cancelled"));
+		}
+		return getResult();
+	}
+
+	public boolean isCancelled() {
+		assert op != null : "No operation";
+		return op.isCancelled() && !op.isTimedOut();
+	}
+
+	public boolean isDone() {
+		return state == DONE;
+	}
+
+	// A thread parked in get(), or a listener.
+	private static final class Waiter {
+		volatile Thread thread;
+		final CompletionListener<?> listener;
+		Waiter next=null;
+
+		Waiter(Thread t, CompletionListener<?> l) {
+			super();
+			thread=t;
+			listener=l;
+		}
+	}
+}
@@ -2,7 +2,6 @@ package net.spy.memcached.internal;
 
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
@@ -17,11 +16,13 @@ import net.spy.memcached.ops.OperationState;
  *
  * @param <T> Type of object returned from this future.
  */
-public class OperationFuture<T> implements Future<T> {
+public class OperationFuture<T> implements ListenableFuture<T> {
 
 	private final CountDownLatch latch;
 	private final AtomicReference<T> objRef;
 	private final long timeout;
+	private final CompletionListeners<T> listeners=
+		new CompletionListeners<T>(this);
 	private Operation op;
 
 	public OperationFuture(CountDownLatch l, long opTimeout) {
@@ -59,6 +60,10 @@ public class OperationFuture<T> implements Future<T> {
 			throw new CheckedOperationTimeoutException(
 					"Timed out waiting for operation", op);
 		}
+		if(op != null && op.isTimedOut()) {
+			throw new CheckedOperationTimeoutException(
+					"Operation timed out", op);
+		}
 		if(op != null && op.hasErrored()) {
 			throw new ExecutionException(op.getException());
 		}
@@ -77,9 +82,24 @@ public class OperationFuture<T> implements Future<T> {
 		op=to;
 	}
 
+	public void addListener(CompletionListener<T> l) {
+		listeners.add(l);
+		signalComplete();
+	}
+
+	/**
+	 * Tell the listeners the future is done if the latch has been counted
+	 * down.
+	 */
+	public void signalComplete() {
+		if(latch.getCount() == 0) {
+			listeners.complete();
+		}
+	}
+
 	public boolean isCancelled() {
 		assert op != null : "No operation";
-		return op.isCancelled();
+		return op.isCancelled() && !op.isTimedOut();
 	}
 
 	public boolean isDone() {
@@ -0,0 +1,154 @@
+package net.spy.memcached.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationState;
+
+/**
+ * Future for a write sent to every server keeping a copy of a key.
+ *
+ * <p>
+ * It's true once enough of the servers have accepted the write, and false
+ * once so many have failed that that can't happen.
+ * </p>
+ *
+ * Not intended for general use.
+ */
+public class ReplicatedOperationFuture implements ListenableFuture<Boolean> {
+
+	private final CountDownLatch latch=new CountDownLatch(1);
+	private final int required;
+	private final int total;
+	private final long timeout;
+	private final AtomicInteger successes=new AtomicInteger();
+	private final AtomicInteger failures=new AtomicInteger();
+	private volatile Boolean result=null;
+	private volatile boolean cancelled=false;
+	private final CompletionListeners<Boolean> listeners=
+		new CompletionListeners<Boolean>(this);
+	private Collection<Operation> ops=Collections.emptyList();
+
+	/**
+	 * Get a future for a write.
+	 *
+	 * @param req the number of servers that must accept the write
+	 * @param n the number of servers the write is sent to
+	 * @param opTimeout the default timeout for get()
+	 */
+	public ReplicatedOperationFuture(int req, int n, long opTimeout) {
+		super();
+		assert req > 0 && req <= n : "Can't require " + req + " of " + n;
+		required=req;
+		total=n;
+		timeout=opTimeout;
+	}
+
+	/**
+	 * Set the operations writing the copies.
+	 */
+	public void setOperations(Collection<Operation> to) {
+		ops=to;
+	}
+
+	/**
+	 * Record the outcome of writing one copy.  This must be called exactly
+	 * once for each operation.
+	 */
+	public void acked(boolean success) {
+		if(success) {
+			if(successes.incrementAndGet() == required) {
+				decide(true);
+			}
+		} else if(failures.incrementAndGet() == total - required + 1) {
+			decide(false);
+		}
+	}
+
+	private void decide(boolean b) {
+		result=b;
+		latch.countDown();
+		listeners.complete();
+	}
+
+	public void addListener(CompletionListener<Boolean> l) {
+		listeners.add(l);
+	}
+
+	public boolean cancel(boolean ign) {
+		boolean rv=false;
+		for(Operation op : ops) {
+			rv |= op.getState() == OperationState.WRITING;
+			op.cancel();
+		}
+		cancelled=true;
+		return rv;
+	}
+
+	public Boolean get() throws InterruptedException, ExecutionException {
+		try {
+			return get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new RuntimeException(
+				"Timed out waiting for operation", e);
+		}
+	}
+
+	public Boolean get(long duration, TimeUnit units)
+		throws InterruptedException, TimeoutException, ExecutionException {
+		if(!latch.await(duration, units)) {
+			Collection<Operation> timedoutOps=new HashSet<Operation>();
+			for(Operation op : ops) {
+				if(op.getState() != OperationState.COMPLETE) {
+					timedoutOps.add(op);
+				}
+			}
+			throw new CheckedOperationTimeoutException(
+					"Timed out waiting for operation", timedoutOps);
+		}
+		if(isCancelled()) {
+			throw new ExecutionException(new RuntimeException("Cancelled"));
+		}
+		if(!result) {
+			Collection<Operation> timedoutOps=new HashSet<Operation>();
+			for(Operation op : ops) {
+				if(op.isTimedOut()) {
+					timedoutOps.add(op);
+				}
+			}
+			if(!timedoutOps.isEmpty()) {
+				throw new CheckedOperationTimeoutException(
+						"Operation timed out", timedoutOps);
+			}
+			for(Operation op : ops) {
+				if(op.hasErrored()) {
+					throw new ExecutionException(op.getException());
+				}
+			}
+		}
+		return result;
+	}
+
+	public boolean isCancelled() {
+		if(cancelled) {
+			return true;
+		}
+		for(Operation op : ops) {
+			if(!op.isCancelled() || op.isTimedOut()) {
+				return false;
+			}
+		}
+		return !ops.isEmpty();
+	}
+
+	public boolean isDone() {
+		return latch.getCount() == 0;
+	}
+}
@@ -0,0 +1,106 @@
+package net.spy.memcached.nearcache;
+
+/**
+ * Approximate count of how often keys have been seen recently.
+ *
+ * <p>
+ * This is a count-min sketch of 4-bit counters, four to a key, packed
+ * sixteen to a long.  Once ten times as many increments as the cache
+ * holds entries have been counted, every counter is halved so the counts
+ * follow what is popular now rather than what was popular once.
+ * </p>
+ *
+ * <p>
+ * Not thread safe; the near cache only uses it while holding its lock.
+ * </p>
+ */
+final class FrequencySketch {
+
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+		0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNT = 15;
+
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int additions=0;
+
+	/**
+	 * Get a sketch sized for a cache of the given number of entries.
+	 */
+	FrequencySketch(int maximumSize) {
+		super();
+		int n=16;
+		while(n < maximumSize && n < (1 << 30)) {
+			n <<= 1;
+		}
+		table=new long[n];
+		tableMask=n - 1;
+		sampleSize=(int)Math.min(10L * Math.max(maximumSize, 1),
+			Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Spread a hash code so nearby codes don't share counters.
+	 */
+	static int spread(int h) {
+		h=((h >>> 16) ^ h) * 0x45d9f3b;
+		h=((h >>> 16) ^ h) * 0x45d9f3b;
+		return (h >>> 16) ^ h;
+	}
+
+	/**
+	 * Get the estimated number of times the given (spread) hash has been
+	 * seen, from 0 to 15.
+	 */
+	int frequency(int hash) {
+		int start=(hash & 3) << 2;
+		int rv=MAX_COUNT;
+		for(int i=0; i<4; i++) {
+			int index=indexOf(hash, i);
+			int count=(int)((table[index] >>> ((start + i) << 2)) & 0xfL);
+			rv=Math.min(rv, count);
+		}
+		return rv;
+	}
+
+	/**
+	 * Count another sighting of the given (spread) hash.
+	 */
+	void increment(int hash) {
+		int start=(hash & 3) << 2;
+		boolean added=false;
+		for(int i=0; i<4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if(added && ++additions == sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(int i, int j) {
+		int offset=j << 2;
+		long mask=0xfL << offset;
+		if((table[i] & mask) != mask) {
+			table[i] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	private int indexOf(int hash, int i) {
+		long h=(hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return ((int)h) & tableMask;
+	}
+
+	// Halve every counter.
+	private void reset() {
+		for(int i=0; i<table.length; i++) {
+			table[i]=(table[i] >>> 1) & RESET_MASK;
+		}
+		additions=additions >>> 1;
+	}
+}
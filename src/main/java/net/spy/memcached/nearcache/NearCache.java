@@ -0,0 +1,500 @@
+package net.spy.memcached.nearcache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.spy.memcached.CachedData;
+
+/**
+ * Bounded in-process cache of raw memcached values.
+ *
+ * <p>
+ * Entries are bounded both in number and in the total bytes of their
+ * values, and each one lives for at most a fixed time after it was
+ * fetched, or until the item's own expiration if that's sooner and known.
+ * </p>
+ *
+ * <p>
+ * Eviction is W-TinyLFU: new entries go into a small LRU window, and when
+ * they fall out of it they're only admitted to the main space if they've
+ * been asked for more often than the entry they would evict.  The main
+ * space is a segmented LRU, so entries asked for again while on probation
+ * are protected from being evicted by a scan.  How often keys are asked
+ * for is estimated by a {@link FrequencySketch}.
+ * </p>
+ *
+ * <p>
+ * Lookups don't block.  They read from a concurrent map and only update
+ * the eviction order if the cache's lock is free, so under heavy
+ * contention some reads simply aren't counted towards a key's popularity.
+ * </p>
+ *
+ * @see <a href="http://arxiv.org/abs/1512.00727">TinyLFU: A Highly
+ *      Efficient Cache Admission Policy</a>
+ */
+public final class NearCache {
+
+	private static final int STAMP_STRIPES = 64;
+
+	// Which queue a node is in.
+	private static final int REMOVED = 0;
+	private static final int WINDOW = 1;
+	private static final int PROBATION = 2;
+	private static final int PROTECTED = 3;
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long ttl;
+	private final int maxWindow;
+	private final int maxProtected;
+
+	private final ConcurrentMap<String, Node> data;
+	private final AtomicLongArray stamps=new AtomicLongArray(STAMP_STRIPES);
+	private final ReentrantLock lock=new ReentrantLock();
+	private final FrequencySketch sketch;
+	private final AccessOrder window=new AccessOrder();
+	private final AccessOrder probation=new AccessOrder();
+	private final AccessOrder protectedSpace=new AccessOrder();
+	private int count=0;
+	private long weightedSize=0;
+
+	private final AtomicLong hits=new AtomicLong();
+	private final AtomicLong misses=new AtomicLong();
+	private final AtomicLong evictions=new AtomicLong();
+	private final AtomicLong rejections=new AtomicLong();
+	private final AtomicLong expirations=new AtomicLong();
+	private final AtomicLong invalidations=new AtomicLong();
+
+	/**
+	 * Get a near cache.
+	 *
+	 * @param entries the most entries to hold
+	 * @param bytes the most bytes of values to hold
+	 * @param ttlMillis the longest an entry is served for after it's
+	 *        fetched
+	 */
+	public NearCache(int entries, long bytes, long ttlMillis) {
+		super();
+		if(entries <= 0 || bytes <= 0 || ttlMillis <= 0) {
+			throw new IllegalArgumentException("Sizes and ttl must be "
+				+ "positive, got " + entries + ", " + bytes + ", "
+				+ ttlMillis);
+		}
+		maxEntries=entries;
+		maxBytes=bytes;
+		ttl=ttlMillis;
+		maxWindow=Math.max(1, entries / 100);
+		maxProtected=(int)((entries - maxWindow) * 0.8);
+		data=new ConcurrentHashMap<String, Node>(
+			Math.min(entries, 1 << 16), 0.75f, 16);
+		sketch=new FrequencySketch(entries);
+	}
+
+	/**
+	 * Get the value cached for the given key.
+	 *
+	 * @return the value, or null if it's not cached or has expired
+	 */
+	public CachedData get(String key) {
+		Node n=data.get(key);
+		if(n == null || n.value == null) {
+			misses.incrementAndGet();
+			recordMiss(key);
+			return null;
+		}
+		if(n.expiresAt <= System.currentTimeMillis()) {
+			misses.incrementAndGet();
+			expire(n);
+			return null;
+		}
+		hits.incrementAndGet();
+		if(lock.tryLock()) {
+			try {
+				sketch.increment(n.hash);
+				onHit(n);
+			} finally {
+				lock.unlock();
+			}
+		}
+		return n.value;
+	}
+
+	/**
+	 * Get the stamp to pass to {@link #put} for a value about to be fetched
+	 * for the given key.
+	 */
+	public long getStamp(String key) {
+		return stamps.get(stripe(key));
+	}
+
+	/**
+	 * Cache a value fetched for a key.
+	 *
+	 * <p>
+	 * If the key has been invalidated since the stamp was taken the value
+	 * may be stale, so it isn't cached.
+	 * </p>
+	 *
+	 * @param key the key
+	 * @param value the value fetched
+	 * @param stamp the key's stamp from before the value was fetched
+	 * @return true if the value was cached
+	 */
+	public boolean put(String key, CachedData value, long stamp) {
+		int weight=value.getData().length;
+		if(weight > maxBytes) {
+			return false;
+		}
+		int hash=FrequencySketch.spread(key.hashCode());
+		lock.lock();
+		try {
+			if(stamps.get(stripe(key)) != stamp) {
+				return false;
+			}
+			long now=System.currentTimeMillis();
+			Node old=data.get(key);
+			long itemExpires=old == null ? 0 : old.itemExpires;
+			if(old != null) {
+				remove(old);
+			}
+			if(itemExpires != 0 && itemExpires <= now) {
+				return false;
+			}
+			long expiresAt=now + ttl;
+			if(itemExpires != 0) {
+				expiresAt=Math.min(expiresAt, itemExpires);
+			}
+			add(new Node(key, hash, value, weight, expiresAt, itemExpires));
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop anything cached for the given key.
+	 */
+	public void invalidate(String key) {
+		invalidate(key, 0);
+	}
+
+	/**
+	 * Drop anything cached for the given key, remembering when the item
+	 * was set to expire so nothing fetched for it later is cached past
+	 * then.
+	 *
+	 * @param key the key
+	 * @param itemExpires when the item expires, in milliseconds since the
+	 *        epoch, or 0 if it doesn't
+	 */
+	public void invalidate(String key, long itemExpires) {
+		stamps.incrementAndGet(stripe(key));
+		invalidations.incrementAndGet();
+		lock.lock();
+		try {
+			Node old=data.get(key);
+			if(old != null) {
+				remove(old);
+			}
+			if(itemExpires != 0) {
+				add(new Node(key, FrequencySketch.spread(key.hashCode()),
+					null, 0, itemExpires, itemExpires));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop everything.
+	 */
+	public void clear() {
+		for(int i=0; i<STAMP_STRIPES; i++) {
+			stamps.incrementAndGet(i);
+		}
+		lock.lock();
+		try {
+			for(AccessOrder q : new AccessOrder[]{
+					window, probation, protectedSpace}) {
+				while(q.first != null) {
+					remove(q.first);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of entries cached.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the total bytes of the values cached.
+	 */
+	public long getWeightedSize() {
+		lock.lock();
+		try {
+			return weightedSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of lookups that found a value.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of lookups that didn't find a value.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the fraction of lookups that found a value.
+	 */
+	public double getHitRate() {
+		long h=hits.get();
+		long total=h + misses.get();
+		return total == 0 ? 0 : (double)h / total;
+	}
+
+	/**
+	 * Get the number of entries evicted to make room for others.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Get the number of new entries dropped because they were asked for
+	 * less often than what they would have evicted.
+	 */
+	public long getRejectionCount() {
+		return rejections.get();
+	}
+
+	/**
+	 * Get the number of entries found to have expired.
+	 */
+	public long getExpirationCount() {
+		return expirations.get();
+	}
+
+	/**
+	 * Get the number of invalidations.
+	 */
+	public long getInvalidationCount() {
+		return invalidations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "{NearCache size=" + size() + " bytes=" + getWeightedSize()
+			+ " hits=" + hits + " misses=" + misses
+			+ " evictions=" + evictions + " rejections=" + rejections + "}";
+	}
+
+	private int stripe(String key) {
+		return key.hashCode() & (STAMP_STRIPES - 1);
+	}
+
+	private void recordMiss(String key) {
+		if(lock.tryLock()) {
+			try {
+				sketch.increment(FrequencySketch.spread(key.hashCode()));
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void expire(Node n) {
+		if(lock.tryLock()) {
+			try {
+				if(n.queue != REMOVED) {
+					remove(n);
+					expirations.incrementAndGet();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// Everything below is only called while holding the lock.
+
+	private void onHit(Node n) {
+		switch(n.queue) {
+			case WINDOW:
+				window.moveToBack(n);
+				break;
+			case PROBATION:
+				probation.remove(n);
+				n.queue=PROTECTED;
+				protectedSpace.add(n);
+				if(protectedSpace.size > maxProtected) {
+					Node demoted=protectedSpace.first;
+					protectedSpace.remove(demoted);
+					demoted.queue=PROBATION;
+					probation.add(demoted);
+				}
+				break;
+			case PROTECTED:
+				protectedSpace.moveToBack(n);
+				break;
+			default:
+				// Removed since it was looked up.
+		}
+	}
+
+	private void add(Node n) {
+		data.put(n.key, n);
+		n.queue=WINDOW;
+		window.add(n);
+		count++;
+		weightedSize += n.weight;
+		evict();
+	}
+
+	private void remove(Node n) {
+		switch(n.queue) {
+			case WINDOW: window.remove(n); break;
+			case PROBATION: probation.remove(n); break;
+			case PROTECTED: protectedSpace.remove(n); break;
+			default: return;
+		}
+		n.queue=REMOVED;
+		data.remove(n.key, n);
+		count--;
+		weightedSize -= n.weight;
+	}
+
+	private boolean overCapacity() {
+		return count > maxEntries || weightedSize > maxBytes;
+	}
+
+	// Move whatever has fallen out of the window onto probation, then
+	// evict until everything fits, with each entry that came from the
+	// window having to be more popular than the victim it displaces.
+	private void evict() {
+		Node candidate=null;
+		while(window.size > maxWindow) {
+			Node n=window.first;
+			window.remove(n);
+			n.queue=PROBATION;
+			probation.add(n);
+			if(candidate == null) {
+				candidate=n;
+			}
+		}
+		while(overCapacity()) {
+			Node victim=probation.first;
+			if(victim == null) {
+				victim=protectedSpace.first;
+			}
+			if(victim == null) {
+				victim=window.first;
+			}
+			if(candidate != null && candidate != victim) {
+				if(sketch.frequency(candidate.hash)
+						> sketch.frequency(victim.hash)) {
+					remove(victim);
+					evictions.incrementAndGet();
+				} else {
+					Node next=candidate.next;
+					remove(candidate);
+					rejections.incrementAndGet();
+					candidate=next;
+				}
+			} else {
+				if(candidate == victim) {
+					candidate=candidate.next;
+				}
+				remove(victim);
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	static final class Node {
+		final String key;
+		final int hash;
+		// null for an entry that only remembers when the item expires
+		final CachedData value;
+		final int weight;
+		final long expiresAt;
+		final long itemExpires;
+		int queue=REMOVED;
+		Node prev=null;
+		Node next=null;
+
+		Node(String k, int h, CachedData v, int w, long e, long ie) {
+			super();
+			key=k;
+			hash=h;
+			value=v;
+			weight=w;
+			expiresAt=e;
+			itemExpires=ie;
+		}
+	}
+
+	// Doubly linked list of nodes from least to most recently used.
+	static final class AccessOrder {
+		Node first=null;
+		Node last=null;
+		int size=0;
+
+		void add(Node n) {
+			n.prev=last;
+			n.next=null;
+			if(last == null) {
+				first=n;
+			} else {
+				last.next=n;
+			}
+			last=n;
+			size++;
+		}
+
+		void remove(Node n) {
+			if(n.prev == null) {
+				first=n.next;
+			} else {
+				n.prev.next=n.next;
+			}
+			if(n.next == null) {
+				last=n.prev;
+			} else {
+				n.next.prev=n.prev;
+			}
+			n.prev=null;
+			n.next=null;
+			size--;
+		}
+
+		void moveToBack(Node n) {
+			if(n != last) {
+				remove(n);
+				add(n);
+			}
+		}
+	}
+}
@@ -0,0 +1,510 @@
+package net.spy.memcached.nearcache;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.ConnectionObserver;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * A client that keeps recently read values in a {@link NearCache} in front
+ * of another client.
+ *
+ * <p>
+ * Gets are answered from the near cache when they can be, and values
+ * fetched from the servers are cached there as raw data, so every hit is
+ * decoded afresh and callers never share a mutable object.  Writes made
+ * through this client drop the key from the near cache before they're
+ * sent, and a get that was already on its way when a write was made isn't
+ * cached.  Writes made by other clients aren't seen until the cached copy
+ * expires, so the near cache's ttl is how stale a read may be.
+ * </p>
+ *
+ * <p>
+ * Gets with CAS values always go to the servers.
+ * </p>
+ */
+public class NearCachedClient implements MemcachedClientIF {
+
+	// Memcached treats expirations larger than this as absolute times.
+	private static final int MAX_RELATIVE_EXPIRATION = 60*60*24*30;
+
+	private final MemcachedClientIF client;
+	private final NearCache cache;
+
+	/**
+	 * Put a near cache in front of a client.
+	 *
+	 * @param c the client to read through to
+	 * @param nc the near cache
+	 */
+	public NearCachedClient(MemcachedClientIF c, NearCache nc) {
+		super();
+		client=c;
+		cache=nc;
+	}
+
+	/**
+	 * Get the near cache, e.g. to see how well it's doing.
+	 */
+	public NearCache getNearCache() {
+		return cache;
+	}
+
+	/**
+	 * Get the client this one reads through to.
+	 */
+	public MemcachedClientIF getClient() {
+		return client;
+	}
+
+	// Invalidate a key being stored with the given expiration.
+	private void invalidate(String key, int exp) {
+		long expires=0;
+		if(exp < 0) {
+			expires=System.currentTimeMillis();
+		} else if(exp > MAX_RELATIVE_EXPIRATION) {
+			expires=exp * 1000L;
+		} else if(exp > 0) {
+			expires=System.currentTimeMillis() + exp * 1000L;
+		}
+		cache.invalidate(key, expires);
+	}
+
+	public Collection<SocketAddress> getAvailableServers() {
+		return client.getAvailableServers();
+	}
+
+	public Collection<SocketAddress> getUnavailableServers() {
+		return client.getUnavailableServers();
+	}
+
+	public Transcoder<Object> getTranscoder() {
+		return client.getTranscoder();
+	}
+
+	public NodeLocator getNodeLocator() {
+		return client.getNodeLocator();
+	}
+
+	public Future<Boolean> append(long cas, String key, Object val) {
+		cache.invalidate(key);
+		return client.append(cas, key, val);
+	}
+
+	public <T> Future<Boolean> append(long cas, String key, T val,
+			Transcoder<T> tc) {
+		cache.invalidate(key);
+		return client.append(cas, key, val, tc);
+	}
+
+	public Future<Boolean> prepend(long cas, String key, Object val) {
+		cache.invalidate(key);
+		return client.prepend(cas, key, val);
+	}
+
+	public <T> Future<Boolean> prepend(long cas, String key, T val,
+			Transcoder<T> tc) {
+		cache.invalidate(key);
+		return client.prepend(cas, key, val, tc);
+	}
+
+	public <T> Future<CASResponse> asyncCAS(String key, long casId, T value,
+			Transcoder<T> tc) {
+		cache.invalidate(key);
+		return client.asyncCAS(key, casId, value, tc);
+	}
+
+	public Future<CASResponse> asyncCAS(String key, long casId,
+			Object value) {
+		cache.invalidate(key);
+		return client.asyncCAS(key, casId, value);
+	}
+
+	public <T> CASResponse cas(String key, long casId, T value,
+			Transcoder<T> tc) {
+		cache.invalidate(key);
+		return client.cas(key, casId, value, tc);
+	}
+
+	public CASResponse cas(String key, long casId, Object value) {
+		cache.invalidate(key);
+		return client.cas(key, casId, value);
+	}
+
+	public <T> Future<Boolean> add(String key, int exp, T o,
+			Transcoder<T> tc) {
+		invalidate(key, exp);
+		return client.add(key, exp, o, tc);
+	}
+
+	public Future<Boolean> add(String key, int exp, Object o) {
+		invalidate(key, exp);
+		return client.add(key, exp, o);
+	}
+
+	public <T> Future<Boolean> set(String key, int exp, T o,
+			Transcoder<T> tc) {
+		invalidate(key, exp);
+		return client.set(key, exp, o, tc);
+	}
+
+	public Future<Boolean> set(String key, int exp, Object o) {
+		invalidate(key, exp);
+		return client.set(key, exp, o);
+	}
+
+	public <T> Future<Boolean> replace(String key, int exp, T o,
+			Transcoder<T> tc) {
+		invalidate(key, exp);
+		return client.replace(key, exp, o, tc);
+	}
+
+	public Future<Boolean> replace(String key, int exp, Object o) {
+		invalidate(key, exp);
+		return client.replace(key, exp, o);
+	}
+
+	public <T> Future<T> asyncGet(String key, Transcoder<T> tc) {
+		CachedData d=cache.get(key);
+		if(d != null) {
+			return new CachedFuture<T>(tc.decode(d));
+		}
+		long stamp=cache.getStamp(key);
+		return new FetchFuture<T>(key, stamp,
+			client.asyncGet(key, new RawTranscoder(tc)), tc);
+	}
+
+	public Future<Object> asyncGet(String key) {
+		return asyncGet(key, getTranscoder());
+	}
+
+	public <T> Future<CASValue<T>> asyncGets(String key, Transcoder<T> tc) {
+		return client.asyncGets(key, tc);
+	}
+
+	public Future<CASValue<Object>> asyncGets(String key) {
+		return client.asyncGets(key);
+	}
+
+	public <T> CASValue<T> gets(String key, Transcoder<T> tc) {
+		return client.gets(key, tc);
+	}
+
+	public CASValue<Object> gets(String key) {
+		return client.gets(key);
+	}
+
+	public <T> T get(String key, Transcoder<T> tc) {
+		CachedData d=cache.get(key);
+		if(d == null) {
+			long stamp=cache.getStamp(key);
+			d=client.get(key, new RawTranscoder(tc));
+			if(d == null) {
+				return null;
+			}
+			cache.put(key, d, stamp);
+		}
+		return tc.decode(d);
+	}
+
+	public Object get(String key) {
+		return get(key, getTranscoder());
+	}
+
+	// Split the keys into those found in the near cache and the stamps of
+	// those that have to be fetched.
+	private <T> Map<String, Long> lookup(Collection<String> keys,
+			Transcoder<T> tc, Map<String, T> found) {
+		Map<String, Long> missing=new HashMap<String, Long>();
+		for(String key : keys) {
+			CachedData d=cache.get(key);
+			if(d == null) {
+				missing.put(key, cache.getStamp(key));
+			} else {
+				T v=tc.decode(d);
+				if(v != null) {
+					found.put(key, v);
+				}
+			}
+		}
+		return missing;
+	}
+
+	private <T> Map<String, T> merge(Map<String, Long> stamps,
+			Map<String, CachedData> fetched, Transcoder<T> tc,
+			Map<String, T> found) {
+		for(Map.Entry<String, CachedData> me : fetched.entrySet()) {
+			cache.put(me.getKey(), me.getValue(),
+				stamps.get(me.getKey()));
+			T v=tc.decode(me.getValue());
+			if(v != null) {
+				found.put(me.getKey(), v);
+			}
+		}
+		return found;
+	}
+
+	public <T> Future<Map<String, T>> asyncGetBulk(Collection<String> keys,
+			Transcoder<T> tc) {
+		Map<String, T> found=new HashMap<String, T>();
+		Map<String, Long> missing=lookup(keys, tc, found);
+		if(missing.isEmpty()) {
+			return new CachedFuture<Map<String, T>>(found);
+		}
+		return new BulkFetchFuture<T>(missing, client.asyncGetBulk(
+			new ArrayList<String>(missing.keySet()), new RawTranscoder(tc)),
+			tc, found);
+	}
+
+	public Future<Map<String, Object>> asyncGetBulk(
+			Collection<String> keys) {
+		return asyncGetBulk(keys, getTranscoder());
+	}
+
+	public <T> Future<Map<String, T>> asyncGetBulk(Transcoder<T> tc,
+			String... keys) {
+		return asyncGetBulk(Arrays.asList(keys), tc);
+	}
+
+	public Future<Map<String, Object>> asyncGetBulk(String... keys) {
+		return asyncGetBulk(Arrays.asList(keys), getTranscoder());
+	}
+
+	public <T> Map<String, T> getBulk(Collection<String> keys,
+			Transcoder<T> tc) {
+		Map<String, T> found=new HashMap<String, T>();
+		Map<String, Long> missing=lookup(keys, tc, found);
+		if(missing.isEmpty()) {
+			return found;
+		}
+		return merge(missing, client.getBulk(
+			new ArrayList<String>(missing.keySet()), new RawTranscoder(tc)),
+			tc, found);
+	}
+
+	public Map<String, Object> getBulk(Collection<String> keys) {
+		return getBulk(keys, getTranscoder());
+	}
+
+	public <T> Map<String, T> getBulk(Transcoder<T> tc, String... keys) {
+		return getBulk(Arrays.asList(keys), tc);
+	}
+
+	public Map<String, Object> getBulk(String... keys) {
+		return getBulk(Arrays.asList(keys), getTranscoder());
+	}
+
+	public Map<SocketAddress, String> getVersions() {
+		return client.getVersions();
+	}
+
+	public Map<SocketAddress, Map<String, String>> getStats() {
+		return client.getStats();
+	}
+
+	public Map<SocketAddress, Map<String, String>> getStats(String prefix) {
+		return client.getStats(prefix);
+	}
+
+	public long incr(String key, int by) {
+		cache.invalidate(key);
+		return client.incr(key, by);
+	}
+
+	public long decr(String key, int by) {
+		cache.invalidate(key);
+		return client.decr(key, by);
+	}
+
+	public long incr(String key, int by, long def, int exp) {
+		invalidate(key, exp);
+		return client.incr(key, by, def, exp);
+	}
+
+	public long decr(String key, int by, long def, int exp) {
+		invalidate(key, exp);
+		return client.decr(key, by, def, exp);
+	}
+
+	public Future<Long> asyncIncr(String key, int by) {
+		cache.invalidate(key);
+		return client.asyncIncr(key, by);
+	}
+
+	public Future<Long> asyncDecr(String key, int by) {
+		cache.invalidate(key);
+		return client.asyncDecr(key, by);
+	}
+
+	public long incr(String key, int by, long def) {
+		cache.invalidate(key);
+		return client.incr(key, by, def);
+	}
+
+	public long decr(String key, int by, long def) {
+		cache.invalidate(key);
+		return client.decr(key, by, def);
+	}
+
+	public Future<Boolean> delete(String key) {
+		cache.invalidate(key);
+		return client.delete(key);
+	}
+
+	public Future<Boolean> flush(int delay) {
+		cache.clear();
+		return client.flush(delay);
+	}
+
+	public Future<Boolean> flush() {
+		cache.clear();
+		return client.flush();
+	}
+
+	public void shutdown() {
+		client.shutdown();
+	}
+
+	public boolean shutdown(long timeout, TimeUnit unit) {
+		return client.shutdown(timeout, unit);
+	}
+
+	public boolean waitForQueues(long timeout, TimeUnit unit) {
+		return client.waitForQueues(timeout, unit);
+	}
+
+	public boolean addObserver(ConnectionObserver obs) {
+		return client.addObserver(obs);
+	}
+
+	public boolean removeObserver(ConnectionObserver obs) {
+		return client.removeObserver(obs);
+	}
+
+	public Set<String> listSaslMechanisms() {
+		return client.listSaslMechanisms();
+	}
+
+	// A value that was found in the near cache.
+	static final class CachedFuture<T> implements Future<T> {
+		private final T value;
+
+		CachedFuture(T v) {
+			super();
+			value=v;
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public T get() {
+			return value;
+		}
+
+		public T get(long timeout, TimeUnit unit) {
+			return value;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return true;
+		}
+	}
+
+	// A value being fetched, which is cached once it arrives.
+	abstract static class FetchingFuture<F, T> implements Future<T> {
+		private final Future<F> fetch;
+
+		FetchingFuture(Future<F> f) {
+			super();
+			fetch=f;
+		}
+
+		abstract T fetched(F f);
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return fetch.cancel(mayInterruptIfRunning);
+		}
+
+		public T get() throws InterruptedException, ExecutionException {
+			return fetched(fetch.get());
+		}
+
+		public T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+			return fetched(fetch.get(timeout, unit));
+		}
+
+		public boolean isCancelled() {
+			return fetch.isCancelled();
+		}
+
+		public boolean isDone() {
+			return fetch.isDone();
+		}
+	}
+
+	final class FetchFuture<T> extends FetchingFuture<CachedData, T> {
+		private final String key;
+		private final long stamp;
+		private final Transcoder<T> tc;
+
+		FetchFuture(String k, long s, Future<CachedData> f,
+				Transcoder<T> t) {
+			super(f);
+			key=k;
+			stamp=s;
+			tc=t;
+		}
+
+		@Override
+		T fetched(CachedData d) {
+			if(d == null) {
+				return null;
+			}
+			cache.put(key, d, stamp);
+			return tc.decode(d);
+		}
+	}
+
+	final class BulkFetchFuture<T>
+		extends FetchingFuture<Map<String, CachedData>, Map<String, T>> {
+		private final Map<String, Long> stamps;
+		private final Transcoder<T> tc;
+		private final Map<String, T> found;
+
+		BulkFetchFuture(Map<String, Long> s,
+				Future<Map<String, CachedData>> f, Transcoder<T> t,
+				Map<String, T> fnd) {
+			super(f);
+			stamps=s;
+			tc=t;
+			found=fnd;
+		}
+
+		@Override
+		Map<String, T> fetched(Map<String, CachedData> m) {
+			// Copy, since get may be called more than once.
+			return merge(stamps, m, tc, new HashMap<String, T>(found));
+		}
+	}
+}
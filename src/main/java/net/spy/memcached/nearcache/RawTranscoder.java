@@ -0,0 +1,38 @@
+package net.spy.memcached.nearcache;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Transcoder that leaves values as the raw data read from the server, so
+ * they can be cached before they're decoded.
+ */
+final class RawTranscoder implements Transcoder<CachedData> {
+
+	private final int maxSize;
+
+	/**
+	 * Get a raw transcoder accepting values as large as the given
+	 * transcoder accepts.
+	 */
+	RawTranscoder(Transcoder<?> tc) {
+		super();
+		maxSize=tc.getMaxSize();
+	}
+
+	public boolean asyncDecode(CachedData d) {
+		return false;
+	}
+
+	public CachedData encode(CachedData o) {
+		return o;
+	}
+
+	public CachedData decode(CachedData d) {
+		return d;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+}
@@ -6,7 +6,11 @@ package net.spy.memcached.ops;
 public class CancelledOperationStatus extends OperationStatus {
 
 	public CancelledOperationStatus() {
-		super(false, "cancelled");
+		this("cancelled");
+	}
+
+	protected CancelledOperationStatus(String msg) {
+		super(false, msg);
 	}
 
 }
@@ -12,4 +12,18 @@ public interface KeyedOperation extends Operation {
 	 */
 	Collection<String> getKeys();
 
+	/**
+	 * Give the operation its key already encoded, so it isn't encoded
+	 * again when the operation is written.  Only operations on a single key
+	 * use it.
+	 *
+	 * @param b the UTF-8 encoded key
+	 */
+	void setKeyBytes(byte[] b);
+
+	/**
+	 * Get the encoded key the operation was given, or null if it wasn't.
+	 */
+	byte[] getKeyBytes();
+
 }
@@ -36,6 +36,17 @@ public interface Operation {
 	 */
 	void cancel();
 
+	/**
+	 * Has this operation been given up on because its deadline passed?
+	 * An operation that's timed out has also been cancelled.
+	 */
+	boolean isTimedOut();
+
+	/**
+	 * Cancel this operation because its deadline passed.
+	 */
+	void timeOut();
+
 	/**
 	 * Get the current state of this operation.
 	 */
@@ -0,0 +1,13 @@
+package net.spy.memcached.ops;
+
+/**
+ * Operation status indicating an operation was cancelled because its
+ * deadline passed.
+ */
+public class TimedOutOperationStatus extends CancelledOperationStatus {
+
+	public TimedOutOperationStatus() {
+		super("timed out");
+	}
+
+}
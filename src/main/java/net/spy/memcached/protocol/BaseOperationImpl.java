@@ -3,6 +3,8 @@ package net.spy.memcached.protocol;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import net.spy.memcached.BufferPool;
+import net.spy.memcached.KeyUtil;
 import net.spy.memcached.MemcachedNode;
 import net.spy.memcached.compat.SpyObject;
 import net.spy.memcached.ops.CancelledOperationStatus;
@@ -11,6 +13,7 @@ import net.spy.memcached.ops.OperationErrorType;
 import net.spy.memcached.ops.OperationException;
 import net.spy.memcached.ops.OperationState;
 import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.TimedOutOperationStatus;
 
 /**
  * Base class for protocol-specific operation implementations.
@@ -22,12 +25,22 @@ public abstract class BaseOperationImpl extends SpyObject {
 	 */
 	public static final OperationStatus CANCELLED =
 		new CancelledOperationStatus();
+	/**
+	 * Status object for operations cancelled because their deadline passed.
+	 */
+	public static final OperationStatus TIMED_OUT =
+		new TimedOutOperationStatus();
 	private OperationState state = OperationState.WRITING;
 	private ByteBuffer cmd = null;
+	// Where cmd came from, if it should be given back.
+	private BufferPool cmdPool = null;
 	private boolean cancelled = false;
+	private volatile boolean timedOut = false;
 	private OperationException exception = null;
 	protected OperationCallback callback = null;
 	private volatile MemcachedNode handlingNode = null;
+	// The operation's key as it was encoded when the operation was added.
+	private byte[] keyBytes = null;
 
 	public BaseOperationImpl() {
 		super();
@@ -47,6 +60,22 @@ public abstract class BaseOperationImpl extends SpyObject {
 		callback=to;
 	}
 
+	public final void setKeyBytes(byte[] b) {
+		keyBytes=b;
+	}
+
+	public final byte[] getKeyBytes() {
+		return keyBytes;
+	}
+
+	/**
+	 * Get the encoded form of the operation's only key, which is only
+	 * encoded here if the operation wasn't given it already.
+	 */
+	protected final byte[] encodeKey(String k) {
+		return keyBytes == null ? KeyUtil.getKeyBytes(k) : keyBytes;
+	}
+
 	public final boolean isCancelled() {
 		return cancelled;
 	}
@@ -65,6 +94,22 @@ public abstract class BaseOperationImpl extends SpyObject {
 		callback.complete();
 	}
 
+	public final boolean isTimedOut() {
+		return timedOut;
+	}
+
+	public final void timeOut() {
+		timedOut=true;
+		cancel();
+	}
+
+	/**
+	 * Get the status to report when this operation is cancelled.
+	 */
+	protected final OperationStatus getCancelledStatus() {
+		return timedOut ? TIMED_OUT : CANCELLED;
+	}
+
 	/**
 	 * This is called on each subclass whenever an operation was cancelled.
 	 */
@@ -89,6 +134,28 @@ public abstract class BaseOperationImpl extends SpyObject {
 		cmd.mark();
 	}
 
+	/**
+	 * Allocate a buffer of the given size to build the request in.
+	 *
+	 * <p>
+	 * The buffer comes from the handling node's pool when there is one.  If
+	 * it's later passed to setBuffer, it is returned to the pool once this
+	 * operation is done writing.
+	 * </p>
+	 */
+	protected final ByteBuffer allocateBuffer(int size) {
+		MemcachedNode n=handlingNode;
+		BufferPool pool=n == null ? null : n.getBufferPool();
+		ByteBuffer rv=null;
+		if(pool == null) {
+			rv=ByteBuffer.allocate(size);
+		} else {
+			rv=pool.allocate(size);
+			cmdPool=pool;
+		}
+		return rv;
+	}
+
 	/**
 	 * Transition the state of this operation to the given state.
 	 */
@@ -97,6 +164,13 @@ public abstract class BaseOperationImpl extends SpyObject {
 		state=newState;
 		// Discard our buffer when we no longer need it.
 		if(state != OperationState.WRITING) {
+			// A buffer with bytes left to write may still be referenced by
+			// the node (e.g. the server answered early), so only completely
+			// drained buffers go back to the pool.
+			if(cmd != null && cmdPool != null && !cmd.hasRemaining()) {
+				cmdPool.release(cmd);
+			}
+			cmdPool=null;
 			cmd=null;
 		}
 		if(state == OperationState.COMPLETE) {
@@ -105,7 +179,11 @@ public abstract class BaseOperationImpl extends SpyObject {
 	}
 
 	public final void writeComplete() {
-		transitionState(OperationState.READING);
+		// The response may have already been processed if the server didn't
+		// wait for the entire request.
+		if(state == OperationState.WRITING) {
+			transitionState(OperationState.READING);
+		}
 	}
 
 	public abstract void initialize();
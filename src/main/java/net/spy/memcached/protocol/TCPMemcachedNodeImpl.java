@@ -7,9 +7,13 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import net.spy.memcached.BufferPool;
+import net.spy.memcached.HeapBufferPool;
 import net.spy.memcached.MemcachedNode;
 import net.spy.memcached.compat.SpyObject;
 import net.spy.memcached.ops.Operation;
@@ -22,9 +26,24 @@ import net.spy.memcached.ops.OperationState;
 public abstract class TCPMemcachedNodeImpl extends SpyObject
 	implements MemcachedNode {
 
+	// Most buffers we'll hand to a single gathering write.
+	private static final int MAX_GATHER_BUFFERS = 128;
+
 	private final SocketAddress socketAddress;
+	private final BufferPool bufferPool;
 	private final ByteBuffer rbuf;
-	private final ByteBuffer wbuf;
+	// Soft limit on the number of bytes gathered for a single write.
+	private final int writeLimit;
+	// Buffers of operations that have left the write queue, but haven't yet
+	// made it completely onto the wire, along with their operations.
+	private final ByteBuffer[] gatherBufs=new ByteBuffer[MAX_GATHER_BUFFERS];
+	private final Operation[] gatherOps=new Operation[MAX_GATHER_BUFFERS];
+	private int gatherStart=0;
+	private int gatherEnd=0;
+	// Operations that were gathered, but hadn't completely made it onto the
+	// wire when the connection was lost.  They're written again ahead of
+	// everything else.
+	private final LinkedList<Operation> resendQ=new LinkedList<Operation>();
 	protected final BlockingQueue<Operation> writeQ;
 	private final BlockingQueue<Operation> readQ;
 	private final BlockingQueue<Operation> inputQueue;
@@ -32,6 +51,7 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 	// This has been declared volatile so it can be used as an availability
 	// indicator.
 	private volatile int reconnectAttempt=1;
+	private volatile boolean suspended=false;
 	private SocketChannel channel;
 	private int toWrite=0;
 	protected Operation optimizedOp=null;
@@ -41,6 +61,14 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 			int bufSize, BlockingQueue<Operation> rq,
 			BlockingQueue<Operation> wq, BlockingQueue<Operation> iq,
 			long opQueueMaxBlockTime) {
+		this(sa, c, bufSize, rq, wq, iq, opQueueMaxBlockTime,
+				new HeapBufferPool());
+	}
+
+	public TCPMemcachedNodeImpl(SocketAddress sa, SocketChannel c,
+			int bufSize, BlockingQueue<Operation> rq,
+			BlockingQueue<Operation> wq, BlockingQueue<Operation> iq,
+			long opQueueMaxBlockTime, BufferPool bp) {
 		super();
 		assert sa != null : "No SocketAddress";
 		assert c != null : "No SocketChannel";
@@ -48,11 +76,12 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 		assert rq != null : "No operation read queue";
 		assert wq != null : "No operation write queue";
 		assert iq != null : "No input queue";
+		assert bp != null : "No buffer pool";
 		socketAddress=sa;
 		setChannel(c);
-		rbuf=ByteBuffer.allocate(bufSize);
-		wbuf=ByteBuffer.allocate(bufSize);
-		getWbuf().clear();
+		bufferPool=bp;
+		rbuf=bp.allocate(bufSize);
+		writeLimit=bufSize;
 		readQ=rq;
 		writeQ=wq;
 		inputQueue=iq;
@@ -84,32 +113,39 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 	 * @see net.spy.memcached.MemcachedNode#setupResend()
 	 */
 	public final void setupResend() {
-		// First, reset the current write op.
-		Operation op=getCurrentWriteOp();
-		if(op != null) {
-			ByteBuffer buf=op.getBuffer();
-			if(buf != null) {
-				buf.reset();
-			} else {
-				getLogger().info("No buffer for current write op, removing");
-				removeCurrentWriteOp();
-			}
+		// Anything gathered that isn't completely written goes out again,
+		// from the start, once reconnected.
+		List<Operation> unwritten=new ArrayList<Operation>();
+		for(int i=gatherStart; i<gatherEnd; i++) {
+			gatherBufs[i].reset();
+			unwritten.add(gatherOps[i]);
 		}
+		resendQ.addAll(0, unwritten);
 		// Now cancel all the pending read operations.  Might be better to
-		// to requeue them.
+		// to requeue them.  This includes anything that was written but
+		// not yet answered.
 		while(hasReadOp()) {
-			op=removeCurrentReadOp();
-			if (op != getCurrentWriteOp()) {
+			Operation op=removeCurrentReadOp();
+			if(!unwritten.contains(op)) {
 				getLogger().warn("Discarding partially completed op: %s", op);
 				op.cancel();
 			}
 		}
 
-		getWbuf().clear();
+		clearGather();
 		getRbuf().clear();
 		toWrite=0;
 	}
 
+	private void clearGather() {
+		for(int i=gatherStart; i<gatherEnd; i++) {
+			gatherBufs[i]=null;
+			gatherOps[i]=null;
+		}
+		gatherStart=0;
+		gatherEnd=0;
+	}
+
 	// Prepare the pending operations.  Return true if there are any pending
 	// ops
 	private boolean preparePending() {
@@ -131,46 +167,41 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 	 */
 	public final void fillWriteBuffer(boolean shouldOptimize) {
 		if(toWrite == 0 && readQ.remainingCapacity() > 0) {
-			getWbuf().clear();
+			assert gatherStart == gatherEnd : "Stale buffers in " + this;
+			clearGather();
+			// Skip anything cancelled or timed out while it was waiting.
+			preparePending();
 			Operation o=getCurrentWriteOp();
-			while(o != null && toWrite < getWbuf().capacity()) {
+			// Operations move to the read queue as soon as their buffers
+			// are gathered, but they aren't considered written until every
+			// byte of the buffer has gone out in writeSome.
+			while(o != null && toWrite < writeLimit
+					&& gatherEnd < MAX_GATHER_BUFFERS
+					&& readQ.remainingCapacity() > 0) {
 				assert o.getState() == OperationState.WRITING;
-				// This isn't the most optimal way to do this, but it hints
-				// at a larger design problem that may need to be taken care
-				// if in the bowels of the client.
-				// In practice, readQ should be small, however.
-				if(!readQ.contains(o)) {
-					readQ.add(o);
-				}
-
 				ByteBuffer obuf=o.getBuffer();
 				assert obuf != null : "Didn't get a write buffer from " + o;
-				int bytesToCopy=Math.min(getWbuf().remaining(),
-						obuf.remaining());
-				byte b[]=new byte[bytesToCopy];
-				obuf.get(b);
-				getWbuf().put(b);
-				getLogger().debug("After copying stuff from %s: %s",
-						o, getWbuf());
-				if(!o.getBuffer().hasRemaining()) {
+				readQ.add(o);
+				transitionWriteItem();
+				if(obuf.hasRemaining()) {
+					gatherBufs[gatherEnd]=obuf;
+					gatherOps[gatherEnd]=o;
+					gatherEnd++;
+					toWrite += obuf.remaining();
+				} else {
 					o.writeComplete();
-					transitionWriteItem();
-
-					preparePending();
-					if(shouldOptimize) {
-						optimize();
-					}
+				}
 
-					o=getCurrentWriteOp();
+				preparePending();
+				// Don't replace an optimized op waiting behind a resend.
+				if(shouldOptimize && optimizedOp == null) {
+					optimize();
 				}
-				toWrite += bytesToCopy;
+
+				o=getCurrentWriteOp();
 			}
-			getWbuf().flip();
-			assert toWrite <= getWbuf().capacity()
-				: "toWrite exceeded capacity: " + this;
-			assert toWrite == getWbuf().remaining()
-				: "Expected " + toWrite + " remaining, got "
-				+ getWbuf().remaining();
+			getLogger().debug("Gathered %d buffers (%d bytes) for %s",
+					gatherEnd, toWrite, this);
 		} else {
 			getLogger().debug("Buffer is full, skipping");
 		}
@@ -208,6 +239,9 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 	 * @see net.spy.memcached.MemcachedNode#getCurrentWriteOp()
 	 */
 	public final Operation getCurrentWriteOp() {
+		if(!resendQ.isEmpty()) {
+			return resendQ.peek();
+		}
 		return optimizedOp == null ? writeQ.peek() : optimizedOp;
 	}
 
@@ -215,6 +249,9 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 	 * @see net.spy.memcached.MemcachedNode#removeCurrentWriteOp()
 	 */
 	public final Operation removeCurrentWriteOp() {
+		if(!resendQ.isEmpty()) {
+			return resendQ.remove();
+		}
 		Operation rv=optimizedOp;
 		if(rv == null) {
 			rv=writeQ.remove();
@@ -235,7 +272,8 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 	 * @see net.spy.memcached.MemcachedNode#hasWriteOp()
 	 */
 	public final boolean hasWriteOp() {
-		return !(optimizedOp == null && writeQ.isEmpty());
+		return !(resendQ.isEmpty() && optimizedOp == null
+			&& writeQ.isEmpty());
 	}
 
 	/* (non-Javadoc)
@@ -293,10 +331,10 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 	}
 
 	/* (non-Javadoc)
-	 * @see net.spy.memcached.MemcachedNode#getWbuf()
+	 * @see net.spy.memcached.MemcachedNode#getBufferPool()
 	 */
-	public final ByteBuffer getWbuf() {
-		return wbuf;
+	public final BufferPool getBufferPool() {
+		return bufferPool;
 	}
 
 	/* (non-Javadoc)
@@ -310,10 +348,17 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 	 * @see net.spy.memcached.MemcachedNode#isActive()
 	 */
 	public final boolean isActive() {
-		return reconnectAttempt == 0
+		return reconnectAttempt == 0 && !suspended
 			&& getChannel() != null && getChannel().isConnected();
 	}
 
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.MemcachedNode#setSuspended(boolean)
+	 */
+	public final void setSuspended(boolean to) {
+		suspended=to;
+	}
+
 	/* (non-Javadoc)
 	 * @see net.spy.memcached.MemcachedNode#reconnecting()
 	 */
@@ -335,6 +380,14 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 		return reconnectAttempt;
 	}
 
+	/* (non-Javadoc)
+	 * @see net.spy.memcached.MemcachedNode#getInFlightCount()
+	 */
+	public final int getInFlightCount() {
+		return inputQueue.size() + resendQ.size() + writeQ.size()
+			+ readQ.size() + (optimizedOp == null ? 0 : 1);
+	}
+
 	/* (non-Javadoc)
 	 * @see net.spy.memcached.MemcachedNode#toString()
 	 */
@@ -345,7 +398,7 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 			sops=getSk().interestOps();
 		}
 		int rsize=readQ.size() + (optimizedOp == null ? 0 : 1);
-		int wsize=writeQ.size();
+		int wsize=resendQ.size() + writeQ.size();
 		int isize=inputQueue.size();
 		return "{QA sa=" + getSocketAddress() + ", #Rops=" + rsize
 			+ ", #Wops=" + wsize
@@ -405,12 +458,23 @@ public abstract class TCPMemcachedNodeImpl extends SpyObject
 	 * @see net.spy.memcached.MemcachedNode#writeSome()
 	 */
 	public final int writeSome() throws IOException {
-		int wrote=channel.write(wbuf);
+		int wrote=(int)channel.write(gatherBufs, gatherStart,
+				gatherEnd - gatherStart);
 		assert wrote >= 0 : "Wrote negative bytes?";
 		toWrite -= wrote;
 		assert toWrite >= 0
 			: "toWrite went negative after writing " + wrote
 				+ " bytes for " + this;
+		// Anything whose buffer has been drained is now fully written.
+		while(gatherStart < gatherEnd
+				&& !gatherBufs[gatherStart].hasRemaining()) {
+			Operation o=gatherOps[gatherStart];
+			gatherBufs[gatherStart]=null;
+			gatherOps[gatherStart]=null;
+			gatherStart++;
+			o.writeComplete();
+			getLogger().debug("Wrote the last of %s", o);
+		}
 		getLogger().debug("Wrote %d bytes", wrote);
 		return wrote;
 	}
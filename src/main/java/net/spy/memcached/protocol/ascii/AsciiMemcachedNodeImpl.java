@@ -4,6 +4,7 @@ import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.BlockingQueue;
 
+import net.spy.memcached.BufferPool;
 import net.spy.memcached.ops.GetOperation;
 import net.spy.memcached.ops.Operation;
 import net.spy.memcached.ops.OperationState;
@@ -21,6 +22,13 @@ public final class AsciiMemcachedNodeImpl extends TCPMemcachedNodeImpl {
 		super(sa, c, bufSize, rq, wq, iq, opQueueMaxBlockTimeNs);
 	}
 
+	public AsciiMemcachedNodeImpl(SocketAddress sa, SocketChannel c,
+			int bufSize, BlockingQueue<Operation> rq,
+			BlockingQueue<Operation> wq, BlockingQueue<Operation> iq,
+			Long opQueueMaxBlockTimeNs, BufferPool bp) {
+		super(sa, c, bufSize, rq, wq, iq, opQueueMaxBlockTimeNs, bp);
+	}
+
 	@Override
 	protected void optimize() {
 		// make sure there are at least two get operations in a row before
@@ -40,6 +48,7 @@ public final class AsciiMemcachedNodeImpl extends TCPMemcachedNodeImpl {
 				}
 
 				// Initialize the new mega get
+				optimizedOp.setHandlingNode(this);
 				optimizedOp.initialize();
 				assert optimizedOp.getState() == OperationState.WRITING;
 				ProxyCallback pcb=(ProxyCallback) og.getCallback();
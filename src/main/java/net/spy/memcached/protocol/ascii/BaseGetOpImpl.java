@@ -1,5 +1,7 @@
 package net.spy.memcached.protocol.ascii;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 
@@ -16,8 +18,14 @@ import net.spy.memcached.ops.OperationStatus;
 abstract class BaseGetOpImpl extends OperationImpl {
 
 	private static final OperationStatus END = new OperationStatus(true, "END");
+	private static final String VALUE = "VALUE ";
 	private final String cmd;
 	private final Collection<String> keys;
+	// The requested keys and their encodings, used to map the keys in the
+	// responses back to the caller's strings without decoding them.
+	private String[] keyNames = null;
+	private byte[][] keyBytes = null;
+	private int nextKey = 0;
 	private String currentKey = null;
 	private long casValue=0;
 	private int currentFlags = 0;
@@ -64,6 +72,90 @@ abstract class BaseGetOpImpl extends OperationImpl {
 		}
 	}
 
+	@Override
+	protected final void handleLine(byte[] line, int off, int len)
+		throws IOException {
+		if(lineEquals(line, off, len, END.getMessage())) {
+			getCallback().receivedStatus(END);
+			transitionState(OperationState.COMPLETE);
+			data=null;
+		} else if(lineStartsWith(line, off, len, VALUE)) {
+			// VALUE <key> <flags> <bytes> [<cas unique>]
+			int end=off + len;
+			int keyStart=off + VALUE.length();
+			int keyEnd=nextField(line, keyStart, end);
+			int flagsEnd=nextField(line, keyEnd + 1, end);
+			int lenEnd=nextField(line, flagsEnd + 1, end);
+			currentKey=findKey(line, keyStart, keyEnd);
+			currentFlags=(int)parseNumber(line, keyEnd + 1, flagsEnd);
+			data=new byte[(int)parseNumber(line, flagsEnd + 1, lenEnd)];
+			if(lenEnd < end) {
+				casValue=parseNumber(line, lenEnd + 1, nextField(line,
+					lenEnd + 1, end));
+			}
+			readOffset=0;
+			setReadType(OperationReadType.DATA);
+		} else {
+			super.handleLine(line, off, len);
+		}
+	}
+
+	// Find the end of the space-separated field starting at the given offset.
+	private static int nextField(byte[] line, int start, int end) {
+		int rv=start;
+		while(rv < end && line[rv] != ' ') {
+			rv++;
+		}
+		return rv;
+	}
+
+	private static long parseNumber(byte[] line, int start, int end) {
+		if(start >= end) {
+			throw new NumberFormatException("Missing number");
+		}
+		long rv=0;
+		for(int i=start; i<end; i++) {
+			int digit=line[i] - '0';
+			if(digit < 0 || digit > 9) {
+				throw new NumberFormatException("Invalid number: "
+					+ new String(line, start, end - start));
+			}
+			rv=rv * 10 + digit;
+		}
+		return rv;
+	}
+
+	// Map the key in a response back to one of the requested keys.  Values
+	// come back in the order they were requested, so start looking after
+	// the last one found.
+	private String findKey(byte[] line, int start, int end)
+		throws UnsupportedEncodingException {
+		String rv=null;
+		if(keyBytes != null) {
+			int n=keyBytes.length;
+			for(int i=0; rv == null && i < n; i++) {
+				int k=(nextKey + i) % n;
+				byte[] kb=keyBytes[k];
+				if(kb.length == end - start && regionEquals(kb, line, start)) {
+					rv=keyNames[k];
+					nextKey=k + 1;
+				}
+			}
+		}
+		if(rv == null) {
+			rv=new String(line, start, end - start, "UTF-8");
+		}
+		return rv;
+	}
+
+	private static boolean regionEquals(byte[] a, byte[] b, int off) {
+		boolean rv=true;
+		for(int i=0; rv && i < a.length; i++) {
+			rv=a[i] == b[off + i];
+		}
+		return rv;
+	}
+
 	@Override
 	public final void handleRead(ByteBuffer b) {
 		assert currentKey != null;
@@ -72,14 +164,11 @@ abstract class BaseGetOpImpl extends OperationImpl {
 		assert readOffset <= data.length
 			: "readOffset is " + readOffset + " data.length is " + data.length;
 
-		getLogger().debug("readOffset: %d, length: %d",
-				readOffset, data.length);
 		// If we're not looking for termination, we're still looking for data
 		if(lookingFor == '\0') {
 			int toRead=data.length - readOffset;
 			int available=b.remaining();
 			toRead=Math.min(toRead, available);
-			getLogger().debug("Reading %d bytes", toRead);
 			b.get(data, readOffset, toRead);
 			readOffset+=toRead;
 		}
@@ -88,12 +177,12 @@ abstract class BaseGetOpImpl extends OperationImpl {
 		if(readOffset == data.length && lookingFor == '\0') {
 			// The callback is most likely a get callback.  If it's not, then
 			// it's a gets callback.
-			try {
-				GetOperation.Callback gcb=(GetOperation.Callback)getCallback();
+			OperationCallback cb=getCallback();
+			if(cb instanceof GetOperation.Callback) {
+				GetOperation.Callback gcb=(GetOperation.Callback)cb;
 				gcb.gotData(currentKey, currentFlags, data);
-			} catch(ClassCastException e) {
-				GetsOperation.Callback gcb=(GetsOperation.Callback)
-					getCallback();
+			} else {
+				GetsOperation.Callback gcb=(GetsOperation.Callback)cb;
 				gcb.gotData(currentKey, currentFlags, casValue, data);
 			}
 			lookingFor='\r';
@@ -118,7 +207,6 @@ abstract class BaseGetOpImpl extends OperationImpl {
 				data=null;
 				readOffset=0;
 				currentFlags=0;
-				getLogger().debug("Setting read type back to line.");
 				setReadType(OperationReadType.LINE);
 			}
 		}
@@ -128,12 +216,15 @@ abstract class BaseGetOpImpl extends OperationImpl {
 	public final void initialize() {
 		// Figure out the length of the request
 		int size=6; // Enough for gets\r\n
-		Collection<byte[]> keyBytes=KeyUtil.getKeyBytes(keys);
-		for(byte[] k : keyBytes) {
-			size+=k.length;
+		keyNames=keys.toArray(new String[keys.size()]);
+		keyBytes=new byte[keyNames.length][];
+		for(int i=0; i<keyNames.length; i++) {
+			keyBytes[i]=keyNames.length == 1
+				? encodeKey(keyNames[i]) : KeyUtil.getKeyBytes(keyNames[i]);
+			size+=keyBytes[i].length;
 			size++;
 		}
-		ByteBuffer b=ByteBuffer.allocate(size);
+		ByteBuffer b=allocateBuffer(size);
 		b.put(cmd.getBytes());
 		for(byte[] k : keyBytes) {
 			b.put((byte)' ');
@@ -146,7 +237,7 @@ abstract class BaseGetOpImpl extends OperationImpl {
 
 	@Override
 	protected final void wasCancelled() {
-		getCallback().receivedStatus(CANCELLED);
+		getCallback().receivedStatus(getCancelledStatus());
 	}
 
 }
@@ -1,10 +1,10 @@
 package net.spy.memcached.protocol.ascii;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 
-import net.spy.memcached.KeyUtil;
 import net.spy.memcached.ops.OperationCallback;
 import net.spy.memcached.ops.OperationState;
 import net.spy.memcached.ops.OperationStatus;
@@ -41,11 +41,25 @@ abstract class BaseStoreOperationImpl extends OperationImpl {
 		transitionState(OperationState.COMPLETE);
 	}
 
+	@Override
+	protected void handleLine(byte[] line, int off, int len)
+		throws IOException {
+		if(lineEquals(line, off, len, STORED.getMessage())) {
+			assert getState() == OperationState.READING
+				: "Read STORED when in " + getState() + " state";
+			getCallback().receivedStatus(STORED);
+			transitionState(OperationState.COMPLETE);
+		} else {
+			super.handleLine(line, off, len);
+		}
+	}
+
 	@Override
 	public void initialize() {
-		ByteBuffer bb=ByteBuffer.allocate(data.length
-				+ KeyUtil.getKeyBytes(key).length + OVERHEAD);
-		setArguments(bb, type, key, flags, exp, data.length);
+		byte[] keyBytes=encodeKey(key);
+		ByteBuffer bb=allocateBuffer(data.length
+				+ keyBytes.length + OVERHEAD);
+		setArguments(bb, type, keyBytes, flags, exp, data.length);
 		assert bb.remaining() >= data.length + 2
 			: "Not enough room in buffer, need another "
 				+ (2 + data.length - bb.remaining());
@@ -58,7 +72,7 @@ abstract class BaseStoreOperationImpl extends OperationImpl {
 	@Override
 	protected void wasCancelled() {
 		// XXX:  Replace this comment with why I did this
-		getCallback().receivedStatus(CANCELLED);
+		getCallback().receivedStatus(getCancelledStatus());
 	}
 
 	public Collection<String> getKeys() {
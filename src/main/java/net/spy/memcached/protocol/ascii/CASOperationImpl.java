@@ -1,11 +1,11 @@
 package net.spy.memcached.protocol.ascii;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 
 import net.spy.memcached.CASResponse;
-import net.spy.memcached.KeyUtil;
 import net.spy.memcached.ops.CASOperation;
 import net.spy.memcached.ops.CASOperationStatus;
 import net.spy.memcached.ops.OperationCallback;
@@ -26,6 +26,7 @@ class CASOperationImpl extends OperationImpl implements CASOperation {
 		new CASOperationStatus(false, "NOT_FOUND", CASResponse.NOT_FOUND);
 	private static final OperationStatus EXISTS=
 		new CASOperationStatus(false, "EXISTS", CASResponse.EXISTS);
+	private static final OperationStatus[] STATII={STORED, NOT_FOUND, EXISTS};
 
 	private final String key;
 	private final long casValue;
@@ -47,16 +48,30 @@ class CASOperationImpl extends OperationImpl implements CASOperation {
 	public void handleLine(String line) {
 		assert getState() == OperationState.READING
 			: "Read ``" + line + "'' when in " + getState() + " state";
-		getCallback().receivedStatus(matchStatus(line,
-			STORED, NOT_FOUND, EXISTS));
+		getCallback().receivedStatus(matchStatus(line, STATII));
 		transitionState(OperationState.COMPLETE);
 	}
 
+	@Override
+	protected void handleLine(byte[] line, int off, int len)
+		throws IOException {
+		OperationStatus status=matchStatus(line, off, len, STATII);
+		if(status != null) {
+			assert getState() == OperationState.READING
+				: "Read " + status + " when in " + getState() + " state";
+			getCallback().receivedStatus(status);
+			transitionState(OperationState.COMPLETE);
+		} else {
+			super.handleLine(line, off, len);
+		}
+	}
+
 	@Override
 	public void initialize() {
-		ByteBuffer bb=ByteBuffer.allocate(data.length
-				+ KeyUtil.getKeyBytes(key).length + OVERHEAD);
-		setArguments(bb, "cas", key, flags, exp, data.length, casValue);
+		byte[] keyBytes=encodeKey(key);
+		ByteBuffer bb=allocateBuffer(data.length
+				+ keyBytes.length + OVERHEAD);
+		setArguments(bb, "cas", keyBytes, flags, exp, data.length, casValue);
 		assert bb.remaining() >= data.length + 2
 			: "Not enough room in buffer, need another "
 				+ (2 + data.length - bb.remaining());
@@ -69,7 +84,7 @@ class CASOperationImpl extends OperationImpl implements CASOperation {
 	@Override
 	protected void wasCancelled() {
 		// XXX:  Replace this comment with why I did this
-		getCallback().receivedStatus(CANCELLED);
+		getCallback().receivedStatus(getCancelledStatus());
 	}
 
 	public Collection<String> getKeys() {
@@ -2,11 +2,11 @@
 
 package net.spy.memcached.protocol.ascii;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 
-import net.spy.memcached.KeyUtil;
 import net.spy.memcached.ops.DeleteOperation;
 import net.spy.memcached.ops.OperationCallback;
 import net.spy.memcached.ops.OperationState;
@@ -24,6 +24,7 @@ final class DeleteOperationImpl extends OperationImpl
 		new OperationStatus(true, "DELETED");
 	private static final OperationStatus NOT_FOUND=
 		new OperationStatus(false, "NOT_FOUND");
+	private static final OperationStatus[] STATII={DELETED, NOT_FOUND};
 
 	private final String key;
 
@@ -35,15 +36,27 @@ final class DeleteOperationImpl extends OperationImpl
 	@Override
 	public void handleLine(String line) {
 		getLogger().debug("Delete of %s returned %s", key, line);
-		getCallback().receivedStatus(matchStatus(line, DELETED, NOT_FOUND));
+		getCallback().receivedStatus(matchStatus(line, STATII));
 		transitionState(OperationState.COMPLETE);
 	}
 
+	@Override
+	protected void handleLine(byte[] line, int off, int len)
+		throws IOException {
+		OperationStatus status=matchStatus(line, off, len, STATII);
+		if(status != null) {
+			getCallback().receivedStatus(status);
+			transitionState(OperationState.COMPLETE);
+		} else {
+			super.handleLine(line, off, len);
+		}
+	}
+
 	@Override
 	public void initialize() {
-		ByteBuffer b=ByteBuffer.allocate(
-			KeyUtil.getKeyBytes(key).length + OVERHEAD);
-		setArguments(b, "delete", key);
+		byte[] keyBytes=encodeKey(key);
+		ByteBuffer b=allocateBuffer(keyBytes.length + OVERHEAD);
+		setArguments(b, "delete", keyBytes);
 		b.flip();
 		setBuffer(b);
 	}
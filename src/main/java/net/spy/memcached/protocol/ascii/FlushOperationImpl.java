@@ -40,7 +40,7 @@ final class FlushOperationImpl extends OperationImpl
 		if(delay == -1) {
 			b=ByteBuffer.wrap(FLUSH);
 		} else {
-			b=ByteBuffer.allocate(32);
+			b=allocateBuffer(32);
 			b.put( ("flush_all " + delay + "\r\n").getBytes());
 			b.flip();
 		}
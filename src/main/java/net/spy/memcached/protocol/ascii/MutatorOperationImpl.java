@@ -6,7 +6,6 @@ import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 
-import net.spy.memcached.KeyUtil;
 import net.spy.memcached.ops.MutatorOperation;
 import net.spy.memcached.ops.Mutator;
 import net.spy.memcached.ops.OperationCallback;
@@ -51,9 +50,9 @@ final class MutatorOperationImpl extends OperationImpl
 
 	@Override
 	public void initialize() {
-		int size=KeyUtil.getKeyBytes(key).length + OVERHEAD;
-		ByteBuffer b=ByteBuffer.allocate(size);
-		setArguments(b, mutator.name(), key, amount);
+		byte[] keyBytes=encodeKey(key);
+		ByteBuffer b=allocateBuffer(keyBytes.length + OVERHEAD);
+		setArguments(b, mutator.name(), keyBytes, amount);
 		b.flip();
 		setBuffer(b);
 	}
@@ -61,7 +60,7 @@ final class MutatorOperationImpl extends OperationImpl
 	@Override
 	protected void wasCancelled() {
 		// XXX:  Replace this comment with why the hell I did this.
-		getCallback().receivedStatus(CANCELLED);
+		getCallback().receivedStatus(getCancelledStatus());
 	}
 
 	public Collection<String> getKeys() {
@@ -2,7 +2,6 @@
 
 package net.spy.memcached.protocol.ascii;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -22,9 +21,12 @@ abstract class OperationImpl extends BaseOperationImpl implements Operation {
 	protected static final byte[] CRLF={'\r', '\n'};
 	private static final String CHARSET = "UTF-8";
 
-	private final ByteArrayOutputStream byteBuffer=new ByteArrayOutputStream();
+	private static final int MIN_LINE_BUFFER = 128;
+
+	// Holds the start of a line split across reads.
+	private byte[] lineBuffer=null;
+	private int lineLength=0;
 	OperationReadType readType=OperationReadType.LINE;
-	boolean foundCr=false;
 
 	protected OperationImpl() {
 		super();
@@ -58,6 +60,49 @@ abstract class OperationImpl extends BaseOperationImpl implements Operation {
 		return rv;
 	}
 
+	/**
+	 * Match the status line provided against one of the given
+	 * OperationStatus objects without decoding the line.
+	 *
+	 * @param line the buffer holding the current line
+	 * @param off the offset of the line within the buffer
+	 * @param len the length of the line
+	 * @param statii several status objects
+	 * @return the matching status object, or null if none matched
+	 */
+	protected static OperationStatus matchStatus(byte[] line, int off,
+			int len, OperationStatus... statii) {
+		OperationStatus rv=null;
+		for(int i=0; rv == null && i < statii.length; i++) {
+			if(lineEquals(line, off, len, statii[i].getMessage())) {
+				rv=statii[i];
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Check whether the line in the given buffer is the given (ASCII) text.
+	 */
+	protected static boolean lineEquals(byte[] line, int off, int len,
+			String text) {
+		boolean rv=len == text.length();
+		for(int i=0; rv && i < len; i++) {
+			rv=line[off + i] == text.charAt(i);
+		}
+		return rv;
+	}
+
+	/**
+	 * Check whether the line in the given buffer starts with the given
+	 * (ASCII) text.
+	 */
+	protected static boolean lineStartsWith(byte[] line, int off, int len,
+			String text) {
+		return len >= text.length()
+			&& lineEquals(line, off, text.length(), text);
+	}
+
 	/* (non-Javadoc)
 	 * @see net.spy.memcached.protocol.ascii.Operation#getReadType()
 	 */
@@ -74,6 +119,7 @@ abstract class OperationImpl extends BaseOperationImpl implements Operation {
 
 	/**
 	 * Set some arguments for an operation into the given byte buffer.
+	 * Byte arrays (such as already encoded keys) are written as they are.
 	 */
 	protected final void setArguments(ByteBuffer bb, Object... args) {
 		boolean wasFirst=true;
@@ -83,7 +129,11 @@ abstract class OperationImpl extends BaseOperationImpl implements Operation {
 			} else {
 				bb.put((byte)' ');
 			}
-			bb.put(KeyUtil.getKeyBytes(String.valueOf(o)));
+			if(o instanceof byte[]) {
+				bb.put((byte[])o);
+			} else {
+				bb.put(KeyUtil.getKeyBytes(String.valueOf(o)));
+			}
 		}
 		bb.put(CRLF);
 	}
@@ -107,35 +157,80 @@ abstract class OperationImpl extends BaseOperationImpl implements Operation {
 			if(readType == OperationReadType.DATA) {
 				handleRead(data);
 			} else {
-				int offset=-1;
-				for(int i=0; data.remaining() > 0; i++) {
-					byte b=data.get();
-					if(b == '\r') {
-						foundCr=true;
-					} else if(b == '\n') {
-						assert foundCr: "got a \\n without a \\r";
-						offset=i;
-						foundCr=false;
-						break;
-					} else {
-						assert !foundCr : "got a \\r without a \\n";
-						byteBuffer.write(b);
-					}
+				int start=data.position();
+				int end=data.limit();
+				int eol=start;
+				while(eol < end && data.get(eol) != '\n') {
+					eol++;
 				}
-				if(offset >= 0) {
-					String line=new String(byteBuffer.toByteArray(), CHARSET);
-					byteBuffer.reset();
-					OperationErrorType eType=classifyError(line);
-					if(eType != null) {
-						handleError(eType, line);
-					} else {
-						handleLine(line);
-					}
+				if(eol == end) {
+					appendLine(data, end - start);
+				} else if(lineLength == 0 && data.hasArray()) {
+					// The whole line is in the buffer, parse it where it is.
+					data.position(eol + 1);
+					processLine(data.array(), data.arrayOffset() + start,
+						eol - start);
+				} else {
+					appendLine(data, eol - start);
+					data.get();
+					int len=lineLength;
+					lineLength=0;
+					processLine(lineBuffer, 0, len);
 				}
 			}
 		}
 	}
 
+	// Copy the next len bytes of the given buffer onto the current line.
+	private void appendLine(ByteBuffer data, int len) {
+		int needed=lineLength + len;
+		if(lineBuffer == null || lineBuffer.length < needed) {
+			byte[] newBuffer=new byte[Math.max(needed,
+				lineBuffer == null ? MIN_LINE_BUFFER : lineBuffer.length * 2)];
+			if(lineLength > 0) {
+				System.arraycopy(lineBuffer, 0, newBuffer, 0, lineLength);
+			}
+			lineBuffer=newBuffer;
+		}
+		data.get(lineBuffer, lineLength, len);
+		lineLength=needed;
+	}
+
+	// Strip the \r from a line ending in \r\n and hand it off.
+	private void processLine(byte[] line, int off, int len)
+		throws IOException {
+		assert len > 0 && line[off + len - 1] == '\r'
+			: "got a \\n without a \\r";
+		handleLine(line, off, len - 1);
+	}
+
+	/**
+	 * Handle a line read from the server, without its trailing \r\n.
+	 *
+	 * <p>
+	 * The default implementation decodes the line and passes it to
+	 * {@link #handleError(OperationErrorType, String)} or
+	 * {@link #handleLine(String)}.  Operations can override this to pick
+	 * out the lines they expect without decoding them first.  The buffer
+	 * may be the connection's read buffer, so it must not be held onto
+	 * after this returns.
+	 * </p>
+	 *
+	 * @param line the buffer holding the line
+	 * @param off the offset of the line within the buffer
+	 * @param len the length of the line
+	 */
+	protected void handleLine(byte[] line, int off, int len)
+		throws IOException {
+		String s=new String(line, off, len, CHARSET);
+		OperationErrorType eType=classifyError(s);
+		if(eType != null) {
+			handleError(eType, s);
+		} else {
+			handleLine(s);
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see net.spy.memcached.protocol.ascii.Operation#handleLine(java.lang.String)
 	 */
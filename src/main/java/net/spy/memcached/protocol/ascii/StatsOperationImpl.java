@@ -50,7 +50,7 @@ final class StatsOperationImpl extends OperationImpl
 
 	@Override
 	protected void wasCancelled() {
-		cb.receivedStatus(CANCELLED);
+		cb.receivedStatus(getCancelledStatus());
 	}
 
 }
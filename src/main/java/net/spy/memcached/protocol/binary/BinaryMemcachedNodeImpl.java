@@ -4,6 +4,7 @@ import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.BlockingQueue;
 
+import net.spy.memcached.BufferPool;
 import net.spy.memcached.ops.CASOperation;
 import net.spy.memcached.ops.GetOperation;
 import net.spy.memcached.ops.Operation;
@@ -26,6 +27,13 @@ public class BinaryMemcachedNodeImpl extends TCPMemcachedNodeImpl {
 		super(sa, c, bufSize, rq, wq, iq, opQueueMaxBlockTimeNs);
 	}
 
+	public BinaryMemcachedNodeImpl(SocketAddress sa, SocketChannel c,
+			int bufSize, BlockingQueue<Operation> rq,
+			BlockingQueue<Operation> wq, BlockingQueue<Operation> iq,
+			Long opQueueMaxBlockTimeNs, BufferPool bp) {
+		super(sa, c, bufSize, rq, wq, iq, opQueueMaxBlockTimeNs, bp);
+	}
+
 	@Override
 	protected void optimize() {
 		Operation firstOp = writeQ.peek();
@@ -53,6 +61,7 @@ public class BinaryMemcachedNodeImpl extends TCPMemcachedNodeImpl {
 			}
 
 			// Initialize the new mega get
+			optimizedOp.setHandlingNode(this);
 			optimizedOp.initialize();
 			assert optimizedOp.getState() == OperationState.WRITING;
 			ProxyCallback pcb=(ProxyCallback) og.getCallback();
@@ -80,6 +89,7 @@ public class BinaryMemcachedNodeImpl extends TCPMemcachedNodeImpl {
 			}
 
 			// Initialize the new mega set
+			optimizedOp.setHandlingNode(this);
 			optimizedOp.initialize();
 			assert optimizedOp.getState() == OperationState.WRITING;
 		}
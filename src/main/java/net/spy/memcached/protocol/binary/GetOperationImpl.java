@@ -1,10 +1,13 @@
 package net.spy.memcached.protocol.binary;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 
 import net.spy.memcached.ops.GetOperation;
 import net.spy.memcached.ops.GetsOperation;
+import net.spy.memcached.ops.OperationState;
 import net.spy.memcached.ops.OperationStatus;
 
 class GetOperationImpl extends OperationImpl
@@ -34,11 +37,29 @@ class GetOperationImpl extends OperationImpl
 		prepareBuffer(key, 0, EMPTY_BYTES);
 	}
 
+	@Override
+	protected void finishedPayload(ByteBuffer b, int len) throws IOException {
+		if(errorCode == 0) {
+			// Copy the value straight out of the read buffer.
+			final int flags=b.getInt();
+			final byte[] data=new byte[len - EXTRA_HDR_LEN];
+			b.get(data);
+			gotData(flags, data);
+			transitionState(OperationState.COMPLETE);
+		} else {
+			super.finishedPayload(b, len);
+		}
+	}
+
 	@Override
 	protected void decodePayload(byte[] pl) {
 		final int flags=decodeInt(pl, 0);
 		final byte[] data=new byte[pl.length - EXTRA_HDR_LEN];
 		System.arraycopy(pl, EXTRA_HDR_LEN, data, 0, pl.length-EXTRA_HDR_LEN);
+		gotData(flags, data);
+	}
+
+	private void gotData(int flags, byte[] data) {
 		// Assume we're processing a get unless the cast fails.
 		try {
 			GetOperation.Callback cb=(GetOperation.Callback)getCallback();
@@ -18,8 +18,8 @@ class MultiGetOperationImpl extends OperationImpl implements GetOperation {
 
 	private static final int CMD_GETQ=9;
 
-	private final Map<Integer, String> keys=new HashMap<Integer, String>();
-	private final Map<Integer, byte[]> bkeys=new HashMap<Integer, byte[]>();
+	private final OpaqueMap<String> keys=new OpaqueMap<String>();
+	private final OpaqueMap<byte[]> bkeys=new OpaqueMap<byte[]>();
 	private final Map<String, Integer> rkeys=new HashMap<String, Integer>();
 
 	private final int terminalOpaque=generateOpaque();
@@ -35,11 +35,23 @@ class MultiGetOperationImpl extends OperationImpl implements GetOperation {
 	 * Add a key (and return its new opaque value).
 	 */
 	protected int addKey(String k) {
+		return addKey(k, null);
+	}
+
+	/**
+	 * Add a key that may already be encoded (and return its new opaque
+	 * value).
+	 *
+	 * @param k the key
+	 * @param b the encoded key, or null if it hasn't been encoded
+	 */
+	protected int addKey(String k, byte[] b) {
 		Integer rv=rkeys.get(k);
 		if(rv == null) {
-			rv=generateOpaque();
-			keys.put(rv, k);
-			bkeys.put(rv, KeyUtil.getKeyBytes(k));
+			int opaque=generateOpaque();
+			keys.put(opaque, k);
+			bkeys.put(opaque, b == null ? KeyUtil.getKeyBytes(k) : b);
+			rv=opaque;
 			rkeys.put(k, rv);
 		}
 		return rv;
@@ -48,13 +60,19 @@ class MultiGetOperationImpl extends OperationImpl implements GetOperation {
 	@Override
 	public void initialize() {
 		int size=(1+keys.size()) * MIN_RECV_PACKET;
-		for(byte[] b : bkeys.values()) {
-			size += b.length;
+		for(int i=0; i<bkeys.capacity(); i++) {
+			byte[] b=bkeys.valueAt(i);
+			if(b != null) {
+				size += b.length;
+			}
 		}
 		// set up the initial header stuff
-		ByteBuffer bb=ByteBuffer.allocate(size);
-		for(Map.Entry<Integer, byte[]> me : bkeys.entrySet()) {
-			final byte[] keyBytes=me.getValue();
+		ByteBuffer bb=allocateBuffer(size);
+		for(int i=0; i<bkeys.capacity(); i++) {
+			final byte[] keyBytes=bkeys.valueAt(i);
+			if(keyBytes == null) {
+				continue;
+			}
 
 			// Custom header
 			bb.put(REQ_MAGIC);
@@ -64,7 +82,7 @@ class MultiGetOperationImpl extends OperationImpl implements GetOperation {
 			bb.put((byte)0); // data type
 			bb.putShort((short)0); // reserved
 			bb.putInt(keyBytes.length);
-			bb.putInt(me.getKey());
+			bb.putInt(bkeys.opaqueAt(i));
 			bb.putLong(0); // cas
 			// the actual key
 			bb.put(keyBytes);
@@ -84,6 +102,21 @@ class MultiGetOperationImpl extends OperationImpl implements GetOperation {
 		setBuffer(bb);
 	}
 
+	@Override
+	protected void finishedPayload(ByteBuffer b, int len) throws IOException {
+		if(responseOpaque != terminalOpaque && errorCode == 0) {
+			// Copy the value straight out of the read buffer.
+			final int flags=b.getInt();
+			final byte[] data=new byte[len - EXTRA_HDR_LEN];
+			b.get(data);
+			Callback cb=(Callback)getCallback();
+			cb.gotData(keys.get(responseOpaque), flags, data);
+			resetInput();
+		} else {
+			super.finishedPayload(b, len);
+		}
+	}
+
 	@Override
 	protected void finishedPayload(byte[] pl) throws IOException {
 		if(responseOpaque == terminalOpaque) {
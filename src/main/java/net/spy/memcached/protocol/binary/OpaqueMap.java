@@ -0,0 +1,191 @@
+package net.spy.memcached.protocol.binary;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Map from opaque values to whatever is waiting on their responses.
+ *
+ * <p>
+ * This is an open addressing table over primitive ints, so looking up a
+ * response doesn't box its opaque.  Values may not be null.  Not thread
+ * safe; it's filled in before the operation is handed to the IO thread
+ * and only used by that thread afterwards.
+ * </p>
+ */
+final class OpaqueMap<T> {
+
+	private static final int MIN_CAPACITY = 8;
+
+	private int[] opaques;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+
+	/**
+	 * Construct an empty map.
+	 */
+	public OpaqueMap() {
+		this(MIN_CAPACITY / 2);
+	}
+
+	/**
+	 * Construct an empty map sized to hold the given number of entries
+	 * without growing.
+	 */
+	public OpaqueMap(int expected) {
+		super();
+		int cap=MIN_CAPACITY;
+		while(cap < expected * 2) {
+			cap <<= 1;
+		}
+		opaques=new int[cap];
+		values=new Object[cap];
+		mask=cap - 1;
+	}
+
+	private int slot(int opaque) {
+		int h=opaque * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private int indexOf(int opaque) {
+		int i=slot(opaque);
+		while(values[i] != null) {
+			if(opaques[i] == opaque) {
+				return i;
+			}
+			i=(i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the value for the given opaque, or null if there isn't one.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int opaque) {
+		int i=indexOf(opaque);
+		return i < 0 ? null : (T)values[i];
+	}
+
+	/**
+	 * True if there's a value for the given opaque.
+	 */
+	public boolean containsKey(int opaque) {
+		return indexOf(opaque) >= 0;
+	}
+
+	/**
+	 * Set the value for the given opaque.
+	 *
+	 * @return the previous value, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public T put(int opaque, T value) {
+		assert value != null : "Null values aren't allowed";
+		int i=slot(opaque);
+		while(values[i] != null) {
+			if(opaques[i] == opaque) {
+				T rv=(T)values[i];
+				values[i]=value;
+				return rv;
+			}
+			i=(i + 1) & mask;
+		}
+		opaques[i]=opaque;
+		values[i]=value;
+		if(++size * 2 > values.length) {
+			resize(values.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the value for the given opaque.
+	 *
+	 * @return the removed value, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public T remove(int opaque) {
+		int gap=indexOf(opaque);
+		if(gap < 0) {
+			return null;
+		}
+		T rv=(T)values[gap];
+		// Shift back any following entries that would no longer be found.
+		for(int i=(gap + 1) & mask; values[i] != null; i=(i + 1) & mask) {
+			int home=slot(opaques[i]);
+			if(((i - home) & mask) >= ((i - gap) & mask)) {
+				opaques[gap]=opaques[i];
+				values[gap]=values[i];
+				gap=i;
+			}
+		}
+		values[gap]=null;
+		size--;
+		return rv;
+	}
+
+	/**
+	 * Get the number of entries in this map.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get a copy of the values in this map.
+	 */
+	@SuppressWarnings("unchecked")
+	public Collection<T> values() {
+		Collection<T> rv=new ArrayList<T>(size);
+		for(Object o : values) {
+			if(o != null) {
+				rv.add((T)o);
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Get the number of slots to iterate with opaqueAt and valueAt.
+	 */
+	int capacity() {
+		return values.length;
+	}
+
+	/**
+	 * Get the opaque in the given slot (only meaningful if valueAt is not
+	 * null).
+	 */
+	int opaqueAt(int i) {
+		return opaques[i];
+	}
+
+	/**
+	 * Get the value in the given slot, or null if the slot is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	T valueAt(int i) {
+		return (T)values[i];
+	}
+
+	private void resize(int newCapacity) {
+		int[] oldOpaques=opaques;
+		Object[] oldValues=values;
+		opaques=new int[newCapacity];
+		values=new Object[newCapacity];
+		mask=newCapacity - 1;
+		for(int i=0; i<oldValues.length; i++) {
+			if(oldValues[i] != null) {
+				int j=slot(oldOpaques[i]);
+				while(values[j] != null) {
+					j=(j + 1) & mask;
+				}
+				opaques[j]=oldOpaques[i];
+				values[j]=oldValues[i];
+			}
+		}
+	}
+}
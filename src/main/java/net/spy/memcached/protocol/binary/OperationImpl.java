@@ -6,7 +6,6 @@ import java.nio.ByteOrder;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.spy.memcached.CASResponse;
-import net.spy.memcached.KeyUtil;
 import net.spy.memcached.ops.CASOperationStatus;
 import net.spy.memcached.ops.OperationCallback;
 import net.spy.memcached.ops.OperationErrorType;
@@ -59,6 +58,7 @@ abstract class OperationImpl extends BaseOperationImpl {
 	protected int errorCode;
 	protected int responseOpaque;
 	protected long responseCas;
+	private int bodyLen;
 
 	private int payloadOffset=0;
 
@@ -92,46 +92,44 @@ abstract class OperationImpl extends BaseOperationImpl {
 	public void readFromBuffer(ByteBuffer b) throws IOException {
 		// First process headers if we haven't completed them yet
 		if(headerOffset < MIN_RECV_PACKET) {
-			int toRead=MIN_RECV_PACKET - headerOffset;
-			int available=b.remaining();
-			toRead=Math.min(toRead, available);
-			getLogger().debug("Reading %d header bytes", toRead);
-			b.get(header, headerOffset, toRead);
-			headerOffset+=toRead;
-
-			// We've completed reading the header.  Prepare body read.
-			if(headerOffset == MIN_RECV_PACKET) {
-				int magic=header[0];
-				assert magic == RES_MAGIC : "Invalid magic:  " + magic;
-				responseCmd=header[1];
-				assert cmd == -1 || responseCmd == cmd
-					: "Unexpected response command value";
-				keyLen=decodeShort(header, 2);
-				// TODO:  Examine extralen and datatype
-				errorCode=decodeShort(header, 6);
-				int bytesToRead=decodeInt(header, 8);
-				payload=new byte[bytesToRead];
-				responseOpaque=decodeInt(header, 12);
-				responseCas=decodeLong(header, 16);
-				assert opaqueIsValid() : "Opaque is not valid";
+			if(headerOffset == 0 && b.remaining() >= MIN_RECV_PACKET) {
+				// The whole header is available, decode it where it is.
+				decodeHeader(b);
+				headerOffset=MIN_RECV_PACKET;
+			} else {
+				int toRead=MIN_RECV_PACKET - headerOffset;
+				int available=b.remaining();
+				toRead=Math.min(toRead, available);
+				getLogger().debug("Reading %d header bytes", toRead);
+				b.get(header, headerOffset, toRead);
+				headerOffset+=toRead;
+
+				// We've completed reading the header.  Prepare body read.
+				if(headerOffset == MIN_RECV_PACKET) {
+					decodeHeader(ByteBuffer.wrap(header));
+				}
 			}
 		}
 
 		// Now process the payload if we can.
 		if(headerOffset >= MIN_RECV_PACKET && payload == null) {
-			finishedPayload(EMPTY_BYTES);
-		} else if(payload != null) {
-			int toRead=payload.length - payloadOffset;
-			int available=b.remaining();
-			toRead=Math.min(toRead, available);
-			getLogger().debug("Reading %d payload bytes", toRead);
-			b.get(payload, payloadOffset, toRead);
-			payloadOffset+=toRead;
-
-			// Have we read it all?
-			if(payloadOffset == payload.length) {
-				finishedPayload(payload);
+			if(bodyLen == 0) {
+				finishedPayload(EMPTY_BYTES);
+			} else if(b.remaining() >= bodyLen) {
+				// The whole body is here too, so let the op consume it
+				// directly from the read buffer.
+				int end=b.position() + bodyLen;
+				try {
+					finishedPayload(b, bodyLen);
+				} finally {
+					b.position(end);
+				}
+			} else {
+				payload=new byte[bodyLen];
+				readPayload(b);
 			}
+		} else if(payload != null) {
+			readPayload(b);
 		} else {
 			// Haven't read enough to make up a payload.  Must read more.
 			getLogger().debug("Only read %d of the %d needed to fill a header",
@@ -140,6 +138,58 @@ abstract class OperationImpl extends BaseOperationImpl {
 
 	}
 
+	private void decodeHeader(ByteBuffer h) {
+		int magic=h.get();
+		assert magic == RES_MAGIC : "Invalid magic:  " + magic;
+		responseCmd=h.get();
+		assert cmd == -1 || responseCmd == cmd
+			: "Unexpected response command value";
+		keyLen=h.getShort() & 0xffff;
+		// TODO:  Examine extralen and datatype
+		h.get();
+		h.get();
+		errorCode=h.getShort() & 0xffff;
+		bodyLen=h.getInt();
+		responseOpaque=h.getInt();
+		responseCas=h.getLong();
+		assert opaqueIsValid() : "Opaque is not valid";
+	}
+
+	// Accumulate a payload that spans more than one read.
+	private void readPayload(ByteBuffer b) throws IOException {
+		int toRead=payload.length - payloadOffset;
+		int available=b.remaining();
+		toRead=Math.min(toRead, available);
+		getLogger().debug("Reading %d payload bytes", toRead);
+		b.get(payload, payloadOffset, toRead);
+		payloadOffset+=toRead;
+
+		// Have we read it all?
+		if(payloadOffset == payload.length) {
+			finishedPayload(payload);
+		}
+	}
+
+	/**
+	 * Process a payload that is entirely contained within the read buffer.
+	 *
+	 * <p>
+	 * The payload starts at the buffer's current position.  Overriding
+	 * implementations may read as much or as little of it as they like, the
+	 * buffer will be positioned past the payload afterwards regardless.  By
+	 * default, this copies the payload out and hands it to
+	 * {@link #finishedPayload(byte[])}.
+	 * </p>
+	 *
+	 * @param b the read buffer
+	 * @param len the length of the payload
+	 */
+	protected void finishedPayload(ByteBuffer b, int len) throws IOException {
+		byte[] pl=new byte[len];
+		b.get(pl);
+		finishedPayload(pl);
+	}
+
 	protected void finishedPayload(byte[] pl) throws IOException {
 		if(errorCode != 0) {
 			OperationStatus status=getStatusForErrorCode(errorCode, pl);
@@ -240,7 +290,7 @@ abstract class OperationImpl extends BaseOperationImpl {
 				assert false : "Unhandled extra header type:  " + o.getClass();
 			}
 		}
-		final byte[] keyBytes=KeyUtil.getKeyBytes(key);
+		final byte[] keyBytes=encodeKey(key);
 		int bufSize=MIN_RECV_PACKET + keyBytes.length + val.length;
 
 		//	# magic, opcode, keylen, extralen, datatype, [reserved],
@@ -248,7 +298,7 @@ abstract class OperationImpl extends BaseOperationImpl {
 		//	REQ_PKT_FMT=">BBHBBxxIIQ"
 
 		// set up the initial header stuff
-		ByteBuffer bb=ByteBuffer.allocate(bufSize + extraLen);
+		ByteBuffer bb=allocateBuffer(bufSize + extraLen);
 		assert bb.order() == ByteOrder.BIG_ENDIAN;
 		bb.put(REQ_MAGIC);
 		bb.put((byte)cmd);
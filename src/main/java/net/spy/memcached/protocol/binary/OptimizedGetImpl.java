@@ -26,8 +26,10 @@ final class OptimizedGetImpl extends MultiGetOperationImpl {
 	 */
 	public void addOperation(GetOperation o) {
 		pcb.addCallbacks(o);
+		// A get of one key may have been given it encoded.
+		byte[] b=o.getKeys().size() == 1 ? o.getKeyBytes() : null;
 		for(String k : o.getKeys()) {
-			addKey(k);
+			addKey(k, b);
 		}
 	}
 
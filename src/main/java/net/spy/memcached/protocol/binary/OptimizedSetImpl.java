@@ -3,10 +3,8 @@ package net.spy.memcached.protocol.binary;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import net.spy.memcached.KeyUtil;
 import net.spy.memcached.ops.CASOperation;
@@ -21,9 +19,11 @@ public class OptimizedSetImpl extends OperationImpl implements Operation {
 	private static final OperationCallback NOOP_CALLBACK = new NoopCallback();
 
 	private final int terminalOpaque=generateOpaque();
-	private final Map<Integer, OperationCallback> callbacks =
-		new HashMap<Integer, OperationCallback>();
+	private final OpaqueMap<OperationCallback> callbacks =
+		new OpaqueMap<OperationCallback>();
 	private final List<CASOperation> ops = new ArrayList<CASOperation>();
+	// Encoded keys of the ops, in the same order.
+	private final List<byte[]> keys = new ArrayList<byte[]>();
 
 	// If nothing else, this will be a NOOP.
 	private int byteCount = MIN_RECV_PACKET;
@@ -42,10 +42,15 @@ public class OptimizedSetImpl extends OperationImpl implements Operation {
 		// Count the bytes required by this operation.
 		Iterator<String> is = op.getKeys().iterator();
 		String k = is.next();
-		int keylen = KeyUtil.getKeyBytes(k).length;
+		assert !is.hasNext();
+		byte[] keyBytes = op.getKeyBytes();
+		if(keyBytes == null) {
+			keyBytes = KeyUtil.getKeyBytes(k);
+		}
+		keys.add(keyBytes);
 
 		byteCount += MIN_RECV_PACKET + StoreOperationImpl.EXTRA_LEN
-			+ keylen + op.getBytes().length;
+			+ keyBytes.length + op.getBytes().length;
 	}
 
 	public int size() {
@@ -59,12 +64,10 @@ public class OptimizedSetImpl extends OperationImpl implements Operation {
 	@Override
 	public void initialize() {
 		// Now create a buffer.
-		ByteBuffer bb=ByteBuffer.allocate(byteCount);
-		for(CASOperation so : ops) {
-			Iterator<String> is = so.getKeys().iterator();
-			String k = is.next();
-			byte[] keyBytes = KeyUtil.getKeyBytes(k);
-			assert !is.hasNext();
+		ByteBuffer bb=allocateBuffer(byteCount);
+		for(int i=0; i<ops.size(); i++) {
+			CASOperation so = ops.get(i);
+			byte[] keyBytes = keys.get(i);
 
 			int myOpaque = generateOpaque();
 			callbacks.put(myOpaque, so.getCallback());
@@ -119,9 +122,12 @@ public class OptimizedSetImpl extends OperationImpl implements Operation {
 	@Override
 	protected void finishedPayload(byte[] pl) throws IOException {
 		if(responseOpaque == terminalOpaque) {
-			for(OperationCallback cb : callbacks.values()) {
-				cb.receivedStatus(STATUS_OK);
-				cb.complete();
+			for(int i=0; i<callbacks.capacity(); i++) {
+				OperationCallback cb=callbacks.valueAt(i);
+				if(cb != null) {
+					cb.receivedStatus(STATUS_OK);
+					cb.complete();
+				}
 			}
 			transitionState(OperationState.COMPLETE);
 		} else {
@@ -1,7 +1,9 @@
 package net.spy.memcached.util;
 
+import java.net.SocketAddress;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.spy.memcached.MemcachedNode;
 
@@ -10,10 +12,23 @@ import net.spy.memcached.MemcachedNode;
  * KetamaNodeLocator algorithm to run.
  */
 public class DefaultKetamaNodeLocatorConfiguration implements
-		KetamaNodeLocatorConfiguration {
+		WeightedKetamaNodeLocatorConfiguration {
 
 	final int NUM_REPS=160;
 
+	/**
+	 * The weight of a node that hasn't been given one.
+	 */
+	public static final int DEFAULT_WEIGHT=1;
+
+	/**
+	 * The name of the stat holding a server's memory limit.
+	 */
+	public static final String MAX_BYTES_STAT="limit_maxbytes";
+
+	private final Map<SocketAddress, Integer> weights=
+		new ConcurrentHashMap<SocketAddress, Integer>();
+
 	// Internal lookup map to try to carry forward the optimisation that was
 	// previously in KetamaNodeLocator
 	protected Map<MemcachedNode, String> socketAddresses=
@@ -89,4 +104,76 @@ public class DefaultKetamaNodeLocatorConfiguration implements
 	public String getKeyForNode(MemcachedNode node, int repetition) {
 		return getSocketAddressForNode(node) + "-" + repetition;
 	}
+
+	/**
+	 * Returns the weight assigned to the node's socket address, or
+	 * DEFAULT_WEIGHT if it hasn't been given one.
+	 */
+	public int getNodeWeight(MemcachedNode node) {
+		Integer rv=weights.get(node.getSocketAddress());
+		return rv == null ? DEFAULT_WEIGHT : rv.intValue();
+	}
+
+	/**
+	 * Set the weight of the server at the given address.
+	 *
+	 * <p>
+	 * This only affects locators built after the change.
+	 * </p>
+	 *
+	 * @param sa the server's address
+	 * @param weight the weight, relative to the other servers
+	 * @throws IllegalArgumentException if the weight is negative
+	 */
+	public void setNodeWeight(SocketAddress sa, int weight) {
+		if(weight < 0) {
+			throw new IllegalArgumentException(
+				"Weight must not be negative, got " + weight + " for " + sa);
+		}
+		weights.put(sa, weight);
+	}
+
+	/**
+	 * Set the weights of all of the servers in the given map.
+	 *
+	 * @param w map of server address to weight
+	 * @throws IllegalArgumentException if any weight is negative
+	 */
+	public void setNodeWeights(Map<SocketAddress, Integer> w) {
+		for(Map.Entry<SocketAddress, Integer> me : w.entrySet()) {
+			setNodeWeight(me.getKey(), me.getValue());
+		}
+	}
+
+	/**
+	 * Weight each server by the memory it's configured to use.
+	 *
+	 * <p>
+	 * The weight is the server's <code>limit_maxbytes</code> stat in
+	 * megabytes (at least 1).  Servers that didn't report the stat keep
+	 * whatever weight they had.
+	 * </p>
+	 *
+	 * @param stats the stats as returned by MemcachedClient.getStats()
+	 * @return the weights that were set
+	 */
+	public Map<SocketAddress, Integer> setNodeWeightsFromStats(
+			Map<SocketAddress, Map<String, String>> stats) {
+		Map<SocketAddress, Integer> rv=new HashMap<SocketAddress, Integer>();
+		for(Map.Entry<SocketAddress, Map<String, String>> me
+				: stats.entrySet()) {
+			String max=me.getValue().get(MAX_BYTES_STAT);
+			if(max != null) {
+				try {
+					long mb=Long.parseLong(max.trim()) >> 20;
+					rv.put(me.getKey(),
+						(int)Math.max(1, Math.min(mb, Integer.MAX_VALUE)));
+				} catch(NumberFormatException e) {
+					// Leave this one alone.
+				}
+			}
+		}
+		setNodeWeights(rv);
+		return rv;
+	}
 }
@@ -0,0 +1,28 @@
+package net.spy.memcached.util;
+
+import net.spy.memcached.MemcachedNode;
+
+/**
+ * Configuration for the KetamaNodeLocator that also weights the nodes.
+ * Nodes located with a configuration that doesn't implement this all have
+ * a weight of 1.
+ */
+public interface WeightedKetamaNodeLocatorConfiguration
+	extends KetamaNodeLocatorConfiguration {
+
+    /**
+     * Returns the weight of the given node.
+     *
+     * <p>
+     * Weights are relative; each node's share of the continuum is
+     * proportional to its weight over the total of all of the nodes'
+     * weights.  When every node has the same weight, each gets exactly
+     * {@link #getNodeRepetitions()} points.
+     * </p>
+     *
+     * @param node the node in question
+     * @return a value of at least 0
+     */
+    int getNodeWeight(MemcachedNode node);
+
+}
@@ -45,6 +45,18 @@ public abstract class AbstractNodeLocationCase extends MockObjectTestCase {
 			instanceof MemcachedNodeROImpl);
 	}
 
+	public final void testEncodedKeyGetPrimary() {
+		setupNodes(5);
+		EncodedKeyNodeLocator l=(EncodedKeyNodeLocator)locator;
+		for(String k : new String[]{"hi", "key42", "k\u00e9y", "\u4e2d\u6587"}) {
+			for(int i=0; i<20; i++) {
+				String key=k + i;
+				assertSame(key, l.getPrimary(key),
+					l.getPrimary(key, KeyUtil.getKeyBytes(key)));
+			}
+		}
+	}
+
 	protected final void assertSequence(String k, int... seq) {
 		runSequenceAssertion(locator, k, seq);
 		runSequenceAssertion(locator.getReadonlyCopy(), k, seq);
@@ -0,0 +1,122 @@
+package net.spy.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the bounded load locator.
+ */
+public class BoundedLoadNodeLocatorTest extends TestCase {
+
+	private MockMemcachedNode[] nodes;
+	private NodeLocator ketama;
+	private BoundedLoadNodeLocator locator;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		nodes=new MockMemcachedNode[4];
+		for(int i=0; i<nodes.length; i++) {
+			nodes[i]=new MockMemcachedNode(
+				new InetSocketAddress("127.0.0.1", 10000 + i));
+		}
+		List<MemcachedNode> l=Arrays.<MemcachedNode>asList(nodes);
+		ketama=new KetamaNodeLocator(l, HashAlgorithm.KETAMA_HASH);
+		locator=new BoundedLoadNodeLocator(ketama, 0.25,
+			Collections.singletonList("hot:"));
+	}
+
+	public void testUnloaded() {
+		for(int i=0; i<1000; i++) {
+			assertSame(ketama.getPrimary("hot:" + i),
+				locator.getPrimary("hot:" + i));
+		}
+	}
+
+	public void testOverloadedPrimary() {
+		String k="hot:celebrity";
+		MemcachedNode primary=ketama.getPrimary(k);
+		((MockMemcachedNode)primary).setInFlightCount(100);
+		MemcachedNode n=locator.getPrimary(k);
+		assertNotSame(primary, n);
+		// The first other node in the sequence is chosen.
+		MemcachedNode expected=null;
+		for(Iterator<MemcachedNode> i=ketama.getSequence(k);
+			expected == null; ) {
+			MemcachedNode m=i.next();
+			if(m != primary) {
+				expected=m;
+			}
+		}
+		assertSame(expected, n);
+		// Deterministically.
+		assertSame(n, locator.getPrimary(k));
+		// Also when located by the encoded key.
+		assertSame(n, locator.getPrimary(k, KeyUtil.getKeyBytes(k)));
+	}
+
+	public void testUnboundedPrefix() {
+		String k="cold:celebrity";
+		MemcachedNode primary=ketama.getPrimary(k);
+		((MockMemcachedNode)primary).setInFlightCount(100);
+		assertSame(primary, locator.getPrimary(k));
+	}
+
+	public void testWithinBound() {
+		// Counting the new op, 44 are in flight over four nodes, so the
+		// bound is 14.
+		for(MockMemcachedNode n : nodes) {
+			n.setInFlightCount(10);
+		}
+		String k="hot:x";
+		MockMemcachedNode primary=(MockMemcachedNode)ketama.getPrimary(k);
+		primary.setInFlightCount(13);
+		assertEquals(14, locator.getCapacity());
+		assertSame(primary, locator.getPrimary(k));
+		primary.setInFlightCount(20);
+		assertNotSame(primary, locator.getPrimary(k));
+	}
+
+	public void testAllOverloaded() {
+		String k="hot:y";
+		MockMemcachedNode primary=(MockMemcachedNode)ketama.getPrimary(k);
+		primary.setInFlightCount(1000);
+		for(Iterator<MemcachedNode> i=ketama.getSequence(k); i.hasNext(); ) {
+			MockMemcachedNode n=(MockMemcachedNode)i.next();
+			if(n != primary) {
+				n.setInFlightCount(1000);
+			}
+		}
+		assertSame(primary, locator.getPrimary(k));
+	}
+
+	public void testEmptyPrefix() {
+		locator=new BoundedLoadNodeLocator(ketama, 0.25,
+			Collections.singletonList(""));
+		String k="anything";
+		MockMemcachedNode primary=(MockMemcachedNode)ketama.getPrimary(k);
+		primary.setInFlightCount(100);
+		assertNotSame(primary, locator.getPrimary(k));
+	}
+
+	public void testDelegation() {
+		assertSame(ketama.getAll(), locator.getAll());
+		assertSame(ketama, locator.getLocator());
+		assertTrue(locator.getReadonlyCopy() instanceof KetamaNodeLocator);
+	}
+
+	public void testBadEpsilon() {
+		try {
+			new BoundedLoadNodeLocator(ketama, 0,
+				Collections.singletonList("hot:"));
+			fail("Accepted zero epsilon");
+		} catch(IllegalArgumentException e) {
+			// pass
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package net.spy.memcached;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import net.spy.memcached.transcoders.WhalinTranscoder;
+
+/**
+ * Test gets for keys already being fetched waiting for those fetches.
+ */
+public class CoalescedGetTest extends ClientBaseCase {
+
+	@Override
+	protected void initClient() throws Exception {
+		initClient(new ConnectionFactoryBuilder()
+			.setOpTimeout(15000)
+			.setCoalesceGets(true)
+			.build());
+	}
+
+	public void testConcurrentGets() throws Exception {
+		assertTrue(client.set("coalesced", 0, "value").get());
+		Collection<Future<Object>> futures=new ArrayList<Future<Object>>();
+		for(int i=0; i<100; i++) {
+			futures.add(client.asyncGet("coalesced"));
+		}
+		Object first=null;
+		for(Future<Object> f : futures) {
+			Object v=f.get();
+			assertEquals("value", v);
+			// Each caller gets its own copy.
+			assertNotSame(first, v);
+			first=v;
+		}
+	}
+
+	public void testMisses() throws Exception {
+		Future<Object> a=client.asyncGet("coalescedmiss");
+		Future<Object> b=client.asyncGet("coalescedmiss");
+		assertNull(a.get());
+		assertNull(b.get());
+	}
+
+	public void testTranscoders() throws Exception {
+		assertTrue(client.set("coalesced", 0, "value",
+			new WhalinTranscoder()).get());
+		Future<Object> a=client.asyncGet("coalesced", new WhalinTranscoder());
+		Future<Object> b=client.asyncGet("coalesced",
+			new WhalinTranscoder());
+		// Each is decoded by its own transcoder.
+		assertEquals("value", a.get());
+		assertEquals("value", b.get());
+	}
+
+	public void testBulkWithSingles() throws Exception {
+		for(int i=0; i<10; i++) {
+			assertTrue(client.set("coalesced" + i, 0, "v" + i).get());
+		}
+		Future<Object> single=client.asyncGet("coalesced3");
+		Future<Map<String, Object>> bulk=client.asyncGetBulk(
+			Arrays.asList("coalesced1", "coalesced3", "coalesced5",
+				"coalescedmiss"));
+		Future<Object> later=client.asyncGet("coalesced5");
+		Map<String, Object> m=bulk.get();
+		assertEquals(3, m.size());
+		assertEquals("v1", m.get("coalesced1"));
+		assertEquals("v3", m.get("coalesced3"));
+		assertEquals("v5", m.get("coalesced5"));
+		assertEquals("v3", single.get());
+		assertEquals("v5", later.get());
+	}
+
+	public void testWriteAfterCompletion() throws Exception {
+		assertTrue(client.set("coalesced", 0, "one").get());
+		assertEquals("one", client.get("coalesced"));
+		assertTrue(client.set("coalesced", 0, "two").get());
+		assertEquals("two", client.get("coalesced"));
+	}
+}
@@ -3,7 +3,11 @@ package net.spy.memcached;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -74,8 +78,25 @@ public class ConnectionFactoryBuilderTest extends BaseMockCase {
 		assertTrue(f.isDaemon());
 		assertTrue(f.shouldOptimize());
 		assertFalse(f.useNagleAlgorithm());
+		assertFalse(f.shouldCoalesceGets());
+		assertFalse(f.shouldEnforceDeadlines());
 		assertEquals(f.getOpQueueMaxBlockTime(),
 				DefaultConnectionFactory.DEFAULT_OP_QUEUE_MAX_BLOCK_TIME);
+		assertEquals(DefaultConnectionFactory.DEFAULT_IO_LOOP_COUNT,
+				f.getIOLoopCount());
+		assertEquals(DefaultConnectionFactory.DEFAULT_CONNECTIONS_PER_SERVER,
+				f.getConnectionsPerServer());
+		assertTrue(f.getBufferPool() instanceof HeapBufferPool);
+		assertEquals(DefaultConnectionFactory.DEFAULT_MIGRATION_WINDOW,
+				f.getMigrationWindow());
+		assertEquals(DefaultConnectionFactory.DEFAULT_REPLICA_COUNT,
+				f.getReplicaCount());
+		assertEquals(DefaultConnectionFactory.DEFAULT_HEDGE_PERCENTILE,
+				f.getHedgePercentile(), 0.0);
+		assertSame(DefaultConnectionFactory.DEFAULT_REPLICA_ACK,
+				f.getReplicaAck());
+		assertEquals(DefaultConnectionFactory.DEFAULT_NODE_FAILURE_THRESHOLD,
+				f.getNodeFailureThreshold());
 	}
 
 	public void testModifications() throws Exception {
@@ -94,6 +115,7 @@ public class ConnectionFactoryBuilderTest extends BaseMockCase {
 		OperationQueueFactory opQueueFactory = new DirectFactory(oQueue);
 		OperationQueueFactory rQueueFactory = new DirectFactory(rQueue);
 		OperationQueueFactory wQueueFactory = new DirectFactory(wQueue);
+		BufferPool pool = new DirectBufferPool();
 
 		ConnectionFactory f = b.setDaemon(false)
 			.setShouldOptimize(false)
@@ -110,6 +132,16 @@ public class ConnectionFactoryBuilderTest extends BaseMockCase {
 			.setUseNagleAlgorithm(true)
 			.setLocatorType(Locator.CONSISTENT)
 			.setOpQueueMaxBlockTime(19)
+			.setIOLoopCount(3)
+			.setConnectionsPerServer(4)
+			.setBufferPool(pool)
+			.setMigrationWindow(30000)
+			.setCoalesceGets(true)
+			.setEnforceDeadlines(true)
+			.setReplicaCount(2)
+			.setHedgePercentile(0.9)
+			.setReplicaAck(ReplicaAck.ALL)
+			.setNodeFailureThreshold(5)
 			.build();
 
 		assertEquals(4225, f.getOperationTimeout());
@@ -126,7 +158,17 @@ public class ConnectionFactoryBuilderTest extends BaseMockCase {
 		assertFalse(f.isDaemon());
 		assertFalse(f.shouldOptimize());
 		assertTrue(f.useNagleAlgorithm());
+		assertTrue(f.shouldCoalesceGets());
+		assertTrue(f.shouldEnforceDeadlines());
 		assertEquals(f.getOpQueueMaxBlockTime(), 19);
+		assertEquals(3, f.getIOLoopCount());
+		assertEquals(4, f.getConnectionsPerServer());
+		assertSame(pool, f.getBufferPool());
+		assertEquals(30000, f.getMigrationWindow());
+		assertEquals(2, f.getReplicaCount());
+		assertEquals(0.9, f.getHedgePercentile(), 0.0);
+		assertSame(ReplicaAck.ALL, f.getReplicaAck());
+		assertEquals(5, f.getNodeFailureThreshold());
 
 		MemcachedNode n = new MockMemcachedNode(
 			InetSocketAddress.createUnresolved("localhost", 11211));
@@ -144,6 +186,49 @@ public class ConnectionFactoryBuilderTest extends BaseMockCase {
 		}
 	}
 
+	public void testLocatorSetters() {
+		MemcachedNode n = new MockMemcachedNode(
+			InetSocketAddress.createUnresolved("localhost", 11211));
+		assertTrue(b.setLocatorType(Locator.JUMP).build()
+			.createLocator(Collections.singletonList(n))
+				instanceof JumpHashNodeLocator);
+		assertTrue(b.setLocatorType(Locator.RENDEZVOUS).build()
+			.createLocator(Collections.singletonList(n))
+				instanceof RendezvousNodeLocator);
+		NodeLocator l=b.setLocatorType(Locator.CONSISTENT)
+			.setBoundedLoadPrefixes(Collections.singletonList("hot:"))
+			.setBoundedLoadEpsilon(0.5)
+			.build().createLocator(Collections.singletonList(n));
+		assertTrue(l instanceof BoundedLoadNodeLocator);
+		assertTrue(((BoundedLoadNodeLocator)l).getLocator()
+			instanceof KetamaNodeLocator);
+	}
+
+	public void testNodeWeights() {
+		MemcachedNode n1 = new MockMemcachedNode(
+			new InetSocketAddress("127.0.0.1", 11211));
+		MemcachedNode n2 = new MockMemcachedNode(
+			new InetSocketAddress("127.0.0.1", 11212));
+		Map<SocketAddress, Integer> weights =
+			new HashMap<SocketAddress, Integer>();
+		weights.put(n2.getSocketAddress(), 3);
+		ConnectionFactory f = b.setLocatorType(Locator.CONSISTENT)
+			.setNodeWeights(weights).build();
+		List<MemcachedNode> nodes = Arrays.asList(n1, n2);
+		// Every locator the factory creates keeps the weights.
+		for(int i=0; i<2; i++) {
+			KetamaNodeLocator l = (KetamaNodeLocator)f.createLocator(nodes);
+			int heavy=0;
+			for(MemcachedNode m : l.continuum.nodes) {
+				if(m == n2) {
+					heavy++;
+				}
+			}
+			assertEquals(240, heavy);
+			assertEquals(320, l.continuum.nodes.length);
+		}
+	}
+
 	public void testProtocolSetterBinary() {
 		assertTrue(
 			b.setProtocol(Protocol.BINARY).build().getOperationFactory()
@@ -2,10 +2,9 @@ package net.spy.memcached;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
-import java.util.SortedMap;
 
 import junit.framework.TestCase;
 
@@ -43,15 +42,18 @@ public class ConsistentHashingTest extends TestCase {
 		KetamaNodeLocator smLocator = new KetamaNodeLocator(
 			smaller, HashAlgorithm.KETAMA_HASH);
 
-		SortedMap<Long, MemcachedNode> lgMap = lgLocator.ketamaNodes;
-		SortedMap<Long, MemcachedNode> smMap = smLocator.ketamaNodes;
+		KetamaContinuum lgRing = lgLocator.continuum;
+		KetamaContinuum smRing = smLocator.continuum;
 
 		// Verify that EVERY entry in the smaller map has an equivalent
 		// mapping in the larger map.
 		boolean failed = false;
-		for (final Long key : smMap.keySet()) {
-			final MemcachedNode largeNode = lgMap.get(key);
-			final MemcachedNode smallNode = smMap.get(key);
+		for (int i = 0; i < smRing.size(); i++) {
+			final long key = smRing.points[i];
+			final int lgIndex = Arrays.binarySearch(lgRing.points, key);
+			assertTrue("Missing key " + key, lgIndex >= 0);
+			final MemcachedNode largeNode = lgRing.nodes[lgIndex];
+			final MemcachedNode smallNode = smRing.nodes[i];
 			if (!largeNode.equals(smallNode)) {
 				failed = true;
 				System.out.println("---------------");
@@ -62,9 +64,9 @@ public class ConsistentHashingTest extends TestCase {
 		}
 		assertFalse(failed);
 
-		for (final Map.Entry<Long, MemcachedNode> entry : lgMap.entrySet()) {
-			final Long key = entry.getKey();
-			final MemcachedNode node = entry.getValue();
+		for (int i = 0; i < lgRing.size(); i++) {
+			final long key = lgRing.points[i];
+			final MemcachedNode node = lgRing.nodes[i];
 			if (node.equals(oddManOut)) {
 				final MemcachedNode newNode = smLocator.getNodeForKey(key);
 				if (!smaller.contains(newNode)) {
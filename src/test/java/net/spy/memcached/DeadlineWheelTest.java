@@ -0,0 +1,93 @@
+package net.spy.memcached;
+
+import junit.framework.TestCase;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.TimedOutOperationStatus;
+import net.spy.memcached.protocol.ascii.AsciiOperationFactory;
+
+/**
+ * Test the operation deadline wheel.
+ */
+public class DeadlineWheelTest extends TestCase {
+
+	private static final long MS=1000000;
+
+	private OperationStatus status=null;
+	private int completions=0;
+
+	private Operation op() {
+		return new AsciiOperationFactory().get("k",
+				new GetOperation.Callback() {
+			public void receivedStatus(OperationStatus s) {
+				status=s;
+			}
+			public void gotData(String k, int flags, byte[] data) {
+				fail("Got data");
+			}
+			public void complete() {
+				completions++;
+			}
+		});
+	}
+
+	public void testExpire() {
+		DeadlineWheel w=new DeadlineWheel(0);
+		Operation op=op();
+		w.add(op, 25 * MS);
+		assertEquals(1, w.size());
+		assertEquals(0, w.expire(20 * MS));
+		assertFalse(op.isTimedOut());
+		// It's timed out once its tick has passed.
+		assertEquals(0, w.expire(29 * MS));
+		assertEquals(1, w.expire(30 * MS));
+		assertTrue(op.isTimedOut());
+		assertTrue(op.isCancelled());
+		assertTrue(status instanceof TimedOutOperationStatus);
+		assertEquals(1, completions);
+		assertEquals(0, w.size());
+	}
+
+	public void testFinishedOperationsArentTimedOut() {
+		DeadlineWheel w=new DeadlineWheel(0);
+		Operation op=op();
+		w.add(op, 5 * MS);
+		op.cancel();
+		assertEquals(0, w.expire(100 * MS));
+		assertFalse(op.isTimedOut());
+		assertEquals(0, w.size());
+	}
+
+	public void testLaterTurnsOfTheWheel() {
+		DeadlineWheel w=new DeadlineWheel(0);
+		long round=DeadlineWheel.SLOTS * DeadlineWheel.TICK;
+		Operation soon=op();
+		Operation later=op();
+		w.add(soon, 5 * MS);
+		w.add(later, round + 5 * MS);
+		assertEquals(1, w.expire(round));
+		assertTrue(soon.isTimedOut());
+		assertFalse(later.isTimedOut());
+		assertEquals(1, w.size());
+		// Far past the deadline, a single turn expires it.
+		assertEquals(1, w.expire(10 * round));
+		assertTrue(later.isTimedOut());
+	}
+
+	public void testPastDeadline() {
+		DeadlineWheel w=new DeadlineWheel(0);
+		assertEquals(0, w.expire(100 * MS));
+		Operation op=op();
+		w.add(op, 50 * MS);
+		assertEquals(1, w.expire(111 * MS));
+	}
+
+	public void testDelay() {
+		DeadlineWheel w=new DeadlineWheel(0);
+		assertEquals(0, w.getDelay(0));
+		w.add(op(), 100 * MS);
+		assertEquals(7, w.getDelay(3 * MS));
+		assertEquals(1, w.getDelay(10 * MS));
+	}
+}
@@ -0,0 +1,86 @@
+package net.spy.memcached;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the direct buffer pool.
+ */
+public class DirectBufferPoolTest extends TestCase {
+
+	private DirectBufferPool pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		pool=new DirectBufferPool(4096, 8192);
+	}
+
+	public void testSizeClasses() {
+		assertEquals(0, DirectBufferPool.sizeClass(1));
+		assertEquals(0, DirectBufferPool.sizeClass(64));
+		assertEquals(1, DirectBufferPool.sizeClass(65));
+		assertEquals(1, DirectBufferPool.sizeClass(128));
+		assertEquals(2, DirectBufferPool.sizeClass(129));
+		assertEquals(64, DirectBufferPool.classSize(0));
+		assertEquals(4096, DirectBufferPool.classSize(6));
+	}
+
+	public void testAllocate() {
+		ByteBuffer b=pool.allocate(100);
+		assertTrue(b.isDirect());
+		assertEquals(128, b.capacity());
+		assertEquals(0, b.position());
+		assertEquals(100, b.limit());
+	}
+
+	public void testReuse() {
+		ByteBuffer b=pool.allocate(100);
+		b.put((byte)1);
+		assertEquals(0, pool.getIdleCount(100));
+		pool.release(b);
+		assertEquals(1, pool.getIdleCount(100));
+		ByteBuffer b2=pool.allocate(70);
+		assertSame(b, b2);
+		assertEquals(0, b2.position());
+		assertEquals(70, b2.limit());
+		assertEquals(0, pool.getIdleCount(100));
+	}
+
+	public void testIdleLimit() {
+		ByteBuffer a=pool.allocate(4096);
+		ByteBuffer b=pool.allocate(4096);
+		ByteBuffer c=pool.allocate(4096);
+		pool.release(a);
+		pool.release(b);
+		pool.release(c);
+		assertEquals(2, pool.getIdleCount(4096));
+	}
+
+	public void testOversize() {
+		ByteBuffer b=pool.allocate(5000);
+		assertFalse(b.isDirect());
+		assertEquals(5000, b.capacity());
+		pool.release(b);
+		assertEquals(0, pool.getIdleCount(4096));
+	}
+
+	public void testForeignBuffers() {
+		pool.release(ByteBuffer.allocate(128));
+		pool.release(ByteBuffer.allocateDirect(100));
+		pool.release(ByteBuffer.allocateDirect(128).asReadOnlyBuffer());
+		assertEquals(0, pool.getIdleCount(128));
+		pool.release(ByteBuffer.allocateDirect(128));
+		assertEquals(1, pool.getIdleCount(128));
+	}
+
+	public void testTooSmall() {
+		try {
+			new DirectBufferPool(10, 100);
+			fail("Allowed a tiny max buffer size");
+		} catch(IllegalArgumentException e) {
+			// pass
+		}
+	}
+}
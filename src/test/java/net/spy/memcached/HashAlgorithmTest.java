@@ -1,7 +1,12 @@
 package net.spy.memcached;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import junit.framework.TestCase;
 
@@ -15,6 +20,17 @@ public class HashAlgorithmTest extends TestCase {
 		// System.out.println(ha + "(" + key + ") = " + exp);
 		assertEquals("Invalid " + ha + " for key ``" + key + "''",
 			exp, ha.hash(key));
+		assertEquals("Invalid " + ha + " for bytes of ``" + key + "''",
+			exp, hashBytes(ha, key));
+	}
+
+	// Hash the encoded key from the middle of a larger array.
+	private long hashBytes(HashAlgorithm ha, String key) {
+		byte[] kb=KeyUtil.getKeyBytes(key);
+		byte[] padded=new byte[kb.length + 7];
+		Arrays.fill(padded, (byte)'x');
+		System.arraycopy(kb, 0, padded, 3, kb.length);
+		return ha.hash(padded, 3, kb.length);
 	}
 
 	// I don't hardcode any values here because they're subject to change
@@ -122,4 +138,127 @@ public class HashAlgorithmTest extends TestCase {
 				Math.abs(me.getValue()));
 		}
 	}
+
+	public void testMurmur3Hash() {
+		HashMap<String, Long> exp = new HashMap<String, Long>();
+		exp.put("", 0L);
+		exp.put("hello", 0x248bfa47L);
+		exp.put("The quick brown fox jumps over the lazy dog", 0x2e4ff723L);
+
+		for (Map.Entry<String, Long> me : exp.entrySet()) {
+			assertHash(HashAlgorithm.MURMUR3_HASH, me.getKey(), me.getValue());
+		}
+	}
+
+	// Low 32 bits of the reference xxHash64 values.
+	public void testXxHash64() {
+		HashMap<String, Long> exp = new HashMap<String, Long>();
+		exp.put("", 0xEF46DB3751D8E999L & 0xffffffffL);
+		exp.put("abc", 0x44BC2CF5AD770999L & 0xffffffffL);
+		exp.put("Nobody inspects the spammish repetition",
+				0xfbcea83c8a378bf1L & 0xffffffffL);
+
+		for (Map.Entry<String, Long> me : exp.entrySet()) {
+			assertHash(HashAlgorithm.XXHASH64_HASH, me.getKey(),
+				me.getValue());
+		}
+	}
+
+	// Sequential numeric keys should spread evenly over the buckets.
+	private void assertDistribution(HashAlgorithm ha) {
+		final int buckets=64;
+		final int keys=64000;
+		int[] counts=new int[buckets];
+		for (int i = 0; i < keys; i++) {
+			counts[(int)(ha.hash(String.valueOf(i)) % buckets)]++;
+		}
+		double expected=(double)keys / buckets;
+		double chiSquare=0;
+		for (int c : counts) {
+			chiSquare+=(c - expected) * (c - expected) / expected;
+		}
+		// 63 degrees of freedom; 110 is well past the 99.9th percentile.
+		assertTrue(ha + " distribution chi-square " + chiSquare,
+			chiSquare < 110);
+	}
+
+	public void testDistribution() {
+		assertDistribution(HashAlgorithm.MURMUR3_HASH);
+		assertDistribution(HashAlgorithm.XXHASH64_HASH);
+	}
+
+	private long timeHashes(HashAlgorithm ha, byte[][] keys) {
+		long start=System.nanoTime();
+		long sum=0;
+		for (byte[] k : keys) {
+			sum+=ha.hash(k, 0, k.length);
+		}
+		// Keep the loop from being optimized away.
+		assertTrue(sum >= 0);
+		return System.nanoTime() - start;
+	}
+
+	// The whole point of these is to be cheaper than md5.
+	public void testThroughput() {
+		byte[][] keys=new byte[100000][];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i]=KeyUtil.getKeyBytes("user:session:" + i);
+		}
+		for (int i = 0; i < 3; i++) {
+			timeHashes(HashAlgorithm.KETAMA_HASH, keys);
+			timeHashes(HashAlgorithm.MURMUR3_HASH, keys);
+			timeHashes(HashAlgorithm.XXHASH64_HASH, keys);
+		}
+		long md5=timeHashes(HashAlgorithm.KETAMA_HASH, keys);
+		long murmur=timeHashes(HashAlgorithm.MURMUR3_HASH, keys);
+		long xx=timeHashes(HashAlgorithm.XXHASH64_HASH, keys);
+		assertTrue("murmur3 took " + murmur + "ns vs md5 " + md5,
+			murmur < md5);
+		assertTrue("xxhash64 took " + xx + "ns vs md5 " + md5, xx < md5);
+	}
+
+	public void testNonAsciiBytes() {
+		String[] keys={"café", "日本語", "😀", "mixed ü and ascii"};
+		for (HashAlgorithm ha : HashAlgorithm.values()) {
+			for (String k : keys) {
+				assertEquals(ha + " " + k, ha.hash(k), hashBytes(ha, k));
+			}
+		}
+	}
+
+	// The digest and CRC are per thread, make sure threads don't collide.
+	public void testConcurrentHashing() throws Exception {
+		final String[] keys=new String[1000];
+		final long[] ketama=new long[keys.length];
+		final long[] crc=new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i]="key" + i;
+			ketama[i]=HashAlgorithm.KETAMA_HASH.hash(keys[i]);
+			crc[i]=HashAlgorithm.CRC32_HASH.hash(keys[i]);
+		}
+		ExecutorService ex=Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] fs=new Future<?>[8];
+			for (int t = 0; t < fs.length; t++) {
+				fs[t]=ex.submit(new Callable<Object>() {
+					public Object call() {
+						for (int n = 0; n < 50; n++) {
+							for (int i = 0; i < keys.length; i++) {
+								assertEquals(ketama[i],
+									HashAlgorithm.KETAMA_HASH.hash(keys[i]));
+								assertEquals(crc[i],
+									HashAlgorithm.CRC32_HASH.hash(keys[i]));
+							}
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<?> f : fs) {
+				f.get();
+			}
+		} finally {
+			ex.shutdown();
+		}
+	}
 }
@@ -0,0 +1,78 @@
+package net.spy.memcached;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.spy.memcached.ops.Operation;
+
+/**
+ * Test the table of gets in flight.
+ */
+public class InFlightGetsTest extends TestCase {
+
+	private InFlightGets gets;
+	private List<CachedData> seen;
+	private InFlightGets.Waiter waiter;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		gets=new InFlightGets(60000);
+		seen=new ArrayList<CachedData>();
+		waiter=new InFlightGets.Waiter() {
+			public void fetched(String k, Operation op, CachedData d) {
+				seen.add(d);
+			}
+		};
+	}
+
+	public void testStartAndComplete() {
+		InFlightGets.Fetch f=gets.new Fetch("k");
+		assertNull(gets.get("k"));
+		assertNull(gets.start(f));
+		assertSame(f, gets.get("k"));
+		InFlightGets.Fetch other=gets.new Fetch("k");
+		assertSame(f, gets.start(other));
+
+		f.attach(waiter);
+		f.attach(waiter);
+		assertEquals(0, seen.size());
+		CachedData d=new CachedData(0, new byte[1], CachedData.MAX_SIZE);
+		f.complete(d);
+		assertEquals(2, seen.size());
+		assertSame(d, seen.get(0));
+		assertSame(d, seen.get(1));
+		assertNull(gets.get("k"));
+		assertEquals(0, gets.size());
+
+		// Only the first completion counts.
+		f.complete(null);
+		assertEquals(2, seen.size());
+		// Waiters attaching late are told right away.
+		f.attach(waiter);
+		assertEquals(3, seen.size());
+		assertSame(d, seen.get(2));
+	}
+
+	public void testUnstartedFetch() {
+		InFlightGets.Fetch f=gets.new Fetch("k");
+		f.attach(waiter);
+		f.complete(null);
+		assertEquals(1, seen.size());
+		assertNull(seen.get(0));
+	}
+
+	public void testStaleFetch() throws Exception {
+		gets=new InFlightGets(10);
+		InFlightGets.Fetch f=gets.new Fetch("k");
+		assertNull(gets.start(f));
+		Thread.sleep(50);
+		assertNull(gets.get("k"));
+		InFlightGets.Fetch replacement=gets.new Fetch("k");
+		assertNull(gets.start(replacement));
+		// The stale fetch completing doesn't remove its replacement.
+		f.complete(null);
+		assertEquals(1, gets.size());
+	}
+}
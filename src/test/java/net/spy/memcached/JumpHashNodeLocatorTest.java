@@ -0,0 +1,88 @@
+package net.spy.memcached;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Test the jump consistent hash locator.
+ */
+public class JumpHashNodeLocatorTest extends AbstractNodeLocationCase {
+
+	@Override
+	protected void setupNodes(int n) {
+		super.setupNodes(n);
+		locator=new JumpHashNodeLocator(Arrays.asList(nodes),
+			HashAlgorithm.NATIVE_HASH);
+	}
+
+	// Values from the C++ implementation in the paper.
+	public void testJump() {
+		assertEquals(0, JumpHashNodeLocator.jump(0, 1));
+		assertEquals(0, JumpHashNodeLocator.jump(0, 100));
+		assertEquals(6, JumpHashNodeLocator.jump(1, 10));
+		assertEquals(3, JumpHashNodeLocator.jump(256, 10));
+		assertEquals(34, JumpHashNodeLocator.jump(123456789, 37));
+		assertEquals(144, JumpHashNodeLocator.jump(0xdeadbeefcafebabeL, 1000));
+		for(int i=0; i<1000; i++) {
+			int b=JumpHashNodeLocator.jump(i * 7919L, 13);
+			assertTrue(b >= 0 && b < 13);
+		}
+	}
+
+	public void testAll() {
+		setupNodes(4);
+		assertEquals(Arrays.asList(nodes), locator.getAll());
+	}
+
+	public void testBalance() {
+		setupNodes(8);
+		int[] counts=new int[nodes.length];
+		for(int i=0; i<80000; i++) {
+			counts[Arrays.asList(nodes).indexOf(
+				locator.getPrimary("key" + i))]++;
+		}
+		for(int c : counts) {
+			assertTrue("Unbalanced: " + Arrays.toString(counts),
+				Math.abs(c - 10000) < 500);
+		}
+	}
+
+	// Growing the node list only moves keys to the new node.
+	public void testGrowing() {
+		setupNodes(6);
+		NodeLocator smaller=new JumpHashNodeLocator(
+			Arrays.asList(nodes).subList(0, 5), HashAlgorithm.NATIVE_HASH);
+		int moved=0;
+		for(int i=0; i<10000; i++) {
+			String k="key" + i;
+			MemcachedNode before=smaller.getPrimary(k);
+			MemcachedNode after=locator.getPrimary(k);
+			if(before != after) {
+				assertSame(nodes[5], after);
+				moved++;
+			}
+		}
+		assertTrue("Moved " + moved, moved > 1200 && moved < 2200);
+	}
+
+	public void testSequence() {
+		setupNodes(5);
+		for(int i=0; i<100; i++) {
+			String k="key" + i;
+			Set<MemcachedNode> seen=new HashSet<MemcachedNode>();
+			seen.add(locator.getPrimary(k));
+			for(Iterator<MemcachedNode> it=locator.getSequence(k);
+				it.hasNext(); ) {
+				assertTrue(seen.add(it.next()));
+			}
+			assertEquals(5, seen.size());
+		}
+	}
+
+	public void testSeqOnlyOneServer() {
+		setupNodes(1);
+		assertSequence("noelani");
+	}
+}
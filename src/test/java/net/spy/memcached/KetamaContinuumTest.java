@@ -0,0 +1,69 @@
+package net.spy.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.IdentityHashMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the ketama continuum snapshot.
+ */
+public class KetamaContinuumTest extends TestCase {
+
+	private MemcachedNode a;
+	private MemcachedNode b;
+	private KetamaContinuum continuum;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		a=new MockMemcachedNode(new InetSocketAddress("10.0.0.1", 11211));
+		b=new MockMemcachedNode(new InetSocketAddress("10.0.0.2", 11211));
+		SortedMap<Long, MemcachedNode> ring=
+			new TreeMap<Long, MemcachedNode>();
+		ring.put(300L, b);
+		ring.put(100L, a);
+		ring.put(200L, b);
+		continuum=new KetamaContinuum(ring);
+	}
+
+	public void testOrdering() {
+		assertEquals(3, continuum.size());
+		assertEquals(100L, continuum.points[0]);
+		assertEquals(300L, continuum.getMaxKey());
+	}
+
+	public void testLookups() {
+		assertSame(a, continuum.getNodeForKey(0));
+		assertSame(a, continuum.getNodeForKey(100));
+		assertSame(b, continuum.getNodeForKey(101));
+		assertSame(b, continuum.getNodeForKey(200));
+		assertSame(b, continuum.getNodeForKey(300));
+		// Wraps around to the first point.
+		assertSame(a, continuum.getNodeForKey(301));
+		assertSame(a, continuum.getNodeForKey(0xffffffffL));
+	}
+
+	public void testEmpty() {
+		KetamaContinuum empty=new KetamaContinuum(
+			new TreeMap<Long, MemcachedNode>());
+		assertEquals(0, empty.size());
+		assertNull(empty.getNodeForKey(42));
+	}
+
+	public void testReplaceNodes() {
+		IdentityHashMap<MemcachedNode, MemcachedNode> ro=
+			new IdentityHashMap<MemcachedNode, MemcachedNode>();
+		MemcachedNode roA=new MemcachedNodeROImpl(a);
+		MemcachedNode roB=new MemcachedNodeROImpl(b);
+		ro.put(a, roA);
+		ro.put(b, roB);
+		KetamaContinuum copy=continuum.replaceNodes(ro);
+		assertSame(roA, copy.getNodeForKey(50));
+		assertSame(roB, copy.getNodeForKey(250));
+		// The original is untouched.
+		assertSame(b, continuum.getNodeForKey(250));
+	}
+}
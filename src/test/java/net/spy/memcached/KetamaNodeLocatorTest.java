@@ -3,6 +3,10 @@ package net.spy.memcached;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+
+import net.spy.memcached.util.DefaultKetamaNodeLocatorConfiguration;
+import net.spy.memcached.util.KetamaNodeLocatorConfiguration;
 
 /**
  * Test ketama node location.
@@ -123,4 +127,123 @@ public class KetamaNodeLocatorTest extends AbstractNodeLocationCase {
 		assertSame(nodes[1], locator.getPrimary("noelani"));
 		assertSame(nodes[4], locator.getPrimary("some other key"));
 	}
+
+	private List<MemcachedNode> weightedNodes(int n) {
+		MemcachedNode[] rv=new MemcachedNode[n];
+		for(int i=0; i<n; i++) {
+			rv[i]=new MockMemcachedNode(
+				new InetSocketAddress("127.0.0.1", 10000 + i));
+		}
+		return Arrays.asList(rv);
+	}
+
+	private int countPoints(KetamaNodeLocator l, MemcachedNode n) {
+		int rv=0;
+		for(MemcachedNode m : l.continuum.nodes) {
+			if(m == n) {
+				rv++;
+			}
+		}
+		return rv;
+	}
+
+	public void testUniformWeights() {
+		List<MemcachedNode> n=weightedNodes(4);
+		DefaultKetamaNodeLocatorConfiguration conf=
+			new DefaultKetamaNodeLocatorConfiguration();
+		for(MemcachedNode node : n) {
+			conf.setNodeWeight(node.getSocketAddress(), 7);
+		}
+		KetamaNodeLocator plain=new KetamaNodeLocator(n,
+			HashAlgorithm.KETAMA_HASH);
+		KetamaNodeLocator weighted=new KetamaNodeLocator(n,
+			HashAlgorithm.KETAMA_HASH, conf);
+		assertTrue(Arrays.equals(plain.continuum.points,
+			weighted.continuum.points));
+		assertTrue(Arrays.equals(plain.continuum.nodes,
+			weighted.continuum.nodes));
+	}
+
+	public void testWeightedNodes() {
+		List<MemcachedNode> n=weightedNodes(3);
+		DefaultKetamaNodeLocatorConfiguration conf=
+			new DefaultKetamaNodeLocatorConfiguration();
+		conf.setNodeWeight(n.get(2).getSocketAddress(), 4);
+		KetamaNodeLocator l=new KetamaNodeLocator(n,
+			HashAlgorithm.KETAMA_HASH, conf);
+		assertEquals(80, countPoints(l, n.get(0)));
+		assertEquals(80, countPoints(l, n.get(1)));
+		assertEquals(320, countPoints(l, n.get(2)));
+
+		int[] counts=new int[3];
+		for(int i=0; i<60000; i++) {
+			counts[n.indexOf(l.getPrimary("key" + i))]++;
+		}
+		// The heavy node should get about two thirds of the keys.
+		assertTrue(Arrays.toString(counts),
+			counts[2] > 35000 && counts[2] < 45000);
+		assertTrue(Arrays.toString(counts), counts[0] > 5000);
+		assertTrue(Arrays.toString(counts), counts[1] > 5000);
+	}
+
+	public void testWeightedNodesOtherHash() {
+		List<MemcachedNode> n=weightedNodes(2);
+		DefaultKetamaNodeLocatorConfiguration conf=
+			new DefaultKetamaNodeLocatorConfiguration();
+		conf.setNodeWeight(n.get(0).getSocketAddress(), 1);
+		conf.setNodeWeight(n.get(1).getSocketAddress(), 3);
+		KetamaNodeLocator l=new KetamaNodeLocator(n,
+			HashAlgorithm.FNV1A_32_HASH, conf);
+		assertEquals(80, countPoints(l, n.get(0)));
+		assertEquals(240, countPoints(l, n.get(1)));
+	}
+
+	public void testZeroWeight() {
+		List<MemcachedNode> n=weightedNodes(3);
+		DefaultKetamaNodeLocatorConfiguration conf=
+			new DefaultKetamaNodeLocatorConfiguration();
+		conf.setNodeWeight(n.get(1).getSocketAddress(), 0);
+		KetamaNodeLocator l=new KetamaNodeLocator(n,
+			HashAlgorithm.KETAMA_HASH, conf);
+		assertEquals(0, countPoints(l, n.get(1)));
+		for(int i=0; i<1000; i++) {
+			assertNotSame(n.get(1), l.getPrimary("key" + i));
+		}
+		assertEquals(3, l.getAll().size());
+	}
+
+	public void testUnweightedConfiguration() {
+		List<MemcachedNode> n=weightedNodes(3);
+		final DefaultKetamaNodeLocatorConfiguration conf=
+			new DefaultKetamaNodeLocatorConfiguration();
+		conf.setNodeWeight(n.get(0).getSocketAddress(), 5);
+		// A configuration without weights gives every node the same share.
+		KetamaNodeLocator l=new KetamaNodeLocator(n,
+			HashAlgorithm.KETAMA_HASH, new KetamaNodeLocatorConfiguration() {
+				public String getKeyForNode(MemcachedNode node, int r) {
+					return conf.getKeyForNode(node, r);
+				}
+				public int getNodeRepetitions() {
+					return conf.getNodeRepetitions();
+				}
+			});
+		for(MemcachedNode node : n) {
+			assertEquals(160, countPoints(l, node));
+		}
+	}
+
+	public void testRebuild() {
+		List<MemcachedNode> n=weightedNodes(2);
+		DefaultKetamaNodeLocatorConfiguration conf=
+			new DefaultKetamaNodeLocatorConfiguration();
+		KetamaNodeLocator l=new KetamaNodeLocator(n,
+			HashAlgorithm.KETAMA_HASH, conf);
+		assertEquals(160, countPoints(l, n.get(0)));
+		conf.setNodeWeight(n.get(0).getSocketAddress(), 3);
+		// Existing locators aren't affected.
+		assertEquals(160, countPoints(l, n.get(0)));
+		KetamaNodeLocator l2=l.rebuild();
+		assertEquals(240, countPoints(l2, n.get(0)));
+		assertEquals(80, countPoints(l2, n.get(1)));
+	}
 }
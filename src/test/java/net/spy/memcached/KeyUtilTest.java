@@ -0,0 +1,32 @@
+package net.spy.memcached;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the key utilities.
+ */
+public class KeyUtilTest extends TestCase {
+
+	private static final String[] KEYS={
+		"", "simple", "with space", "\u0000\u007f",
+		"café", "ÿĀ߿ࠀ",
+		"日本語", "😀 emoji",
+		"lone \ud83d high", "lone \ude00 low", "trailing \ud83d",
+	};
+
+	public void testKeyBytes() throws Exception {
+		for(String k : KEYS) {
+			assertTrue(k, Arrays.equals(k.getBytes("UTF-8"),
+				KeyUtil.getKeyBytes(k)));
+		}
+	}
+
+	public void testKeyLength() throws Exception {
+		for(String k : KEYS) {
+			assertEquals(k, k.getBytes("UTF-8").length,
+				KeyUtil.getKeyLength(k));
+		}
+	}
+}
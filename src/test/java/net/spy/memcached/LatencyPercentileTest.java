@@ -0,0 +1,48 @@
+package net.spy.memcached;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the latency percentile tracker.
+ */
+public class LatencyPercentileTest extends TestCase {
+
+	public void testNotEnoughSamples() {
+		LatencyPercentile p=new LatencyPercentile(0.95);
+		for(int i=1; i<LatencyPercentile.REFRESH; i++) {
+			p.record(i);
+		}
+		assertEquals(-1, p.get());
+		p.record(LatencyPercentile.REFRESH);
+		assertEquals(95, p.get());
+	}
+
+	public void testRecentSamplesOnly() {
+		LatencyPercentile p=new LatencyPercentile(0.5);
+		for(int i=0; i<LatencyPercentile.SAMPLES; i++) {
+			p.record(1000);
+		}
+		assertEquals(1000, p.get());
+		// Slower answers push out the old ones.
+		for(int i=0; i<LatencyPercentile.SAMPLES / 2 + LatencyPercentile.REFRESH;
+				i++) {
+			p.record(5000);
+		}
+		assertEquals(5000, p.get());
+	}
+
+	public void testBadPercentile() {
+		try {
+			new LatencyPercentile(1);
+			fail("Accepted the 100th percentile");
+		} catch(IllegalArgumentException e) {
+			// pass
+		}
+		try {
+			new LatencyPercentile(0);
+			fail("Accepted the 0th percentile");
+		} catch(IllegalArgumentException e) {
+			// pass
+		}
+	}
+}
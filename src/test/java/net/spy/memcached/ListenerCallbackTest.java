@@ -0,0 +1,162 @@
+package net.spy.memcached;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+import net.spy.memcached.internal.CheckedOperationTimeoutException;
+import net.spy.memcached.internal.ReplicatedOperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StoreType;
+import net.spy.memcached.protocol.ascii.AsciiOperationFactory;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Test the callbacks that tell get and store listeners how it went.
+ */
+public class ListenerCallbackTest extends TestCase {
+
+	private final OperationFactory opFact=new AsciiOperationFactory();
+	private final Transcoder<Object> tc=new SerializingTranscoder();
+	private final List<Object> told=new ArrayList<Object>();
+	private final List<Runnable> queued=new ArrayList<Runnable>();
+
+	private final GetListener<Object> getListener=new GetListener<Object>() {
+		public void onGet(String key, Object value) {
+			told.add(key + "=" + value);
+		}
+		public void onFailure(String key, Exception e) {
+			told.add(e);
+		}
+	};
+
+	private final StoreListener storeListener=new StoreListener() {
+		public void onStore(String key, boolean stored) {
+			told.add(key + "=" + stored);
+		}
+		public void onFailure(String key, Exception e) {
+			told.add(e);
+		}
+	};
+
+	private final Executor executor=new Executor() {
+		public void execute(Runnable r) {
+			queued.add(r);
+		}
+	};
+
+	private ListenerCallback.Get<Object> get(Executor e) {
+		ListenerCallback.Get<Object> cb=
+			new ListenerCallback.Get<Object>("k", tc, getListener, e);
+		cb.setOperation(opFact.get("k", cb));
+		return cb;
+	}
+
+	private ListenerCallback.Store store() {
+		ListenerCallback.Store cb=
+			new ListenerCallback.Store("k", storeListener, null);
+		cb.setOperation(opFact.store(StoreType.set, "k", 0, 0,
+			new byte[0], cb));
+		return cb;
+	}
+
+	public void testGet() {
+		ListenerCallback.Get<Object> cb=get(null);
+		CachedData d=tc.encode("value");
+		cb.gotData("k", d.getFlags(), d.getData());
+		cb.receivedStatus(new OperationStatus(true, "END"));
+		cb.complete();
+		assertEquals("[k=value]", told.toString());
+		// Cancelling a completed operation completes it again.
+		cb.getOperation().cancel();
+		assertEquals("[k=value]", told.toString());
+	}
+
+	public void testGetMiss() {
+		ListenerCallback.Get<Object> cb=get(null);
+		cb.receivedStatus(new OperationStatus(true, "END"));
+		cb.complete();
+		assertEquals("[k=null]", told.toString());
+	}
+
+	public void testGetFetched() {
+		ListenerCallback.Get<Object> cb=
+			new ListenerCallback.Get<Object>("k", tc, getListener, null);
+		cb.fetched("k", opFact.get("k", cb), tc.encode("value"));
+		assertEquals("[k=value]", told.toString());
+	}
+
+	public void testGetOnExecutor() {
+		ListenerCallback.Get<Object> cb=get(executor);
+		CachedData d=tc.encode("value");
+		cb.gotData("k", d.getFlags(), d.getData());
+		cb.complete();
+		assertTrue(told.isEmpty());
+		assertEquals(1, queued.size());
+		queued.get(0).run();
+		assertEquals("[k=value]", told.toString());
+	}
+
+	public void testUndecodable() {
+		ListenerCallback.Get<Object> cb=new ListenerCallback.Get<Object>("k",
+			new SerializingTranscoder() {
+				@Override
+				public Object decode(CachedData d) {
+					throw new IllegalArgumentException("Undecodable");
+				}
+			}, getListener, null);
+		cb.setOperation(opFact.get("k", cb));
+		cb.gotData("k", 0, new byte[]{1, 2, 3});
+		cb.complete();
+		assertEquals(1, told.size());
+		assertTrue(told.get(0) instanceof IllegalArgumentException);
+	}
+
+	public void testCancelled() {
+		ListenerCallback.Get<Object> cb=get(null);
+		cb.getOperation().cancel();
+		assertEquals(1, told.size());
+		assertTrue(told.get(0) instanceof CancellationException);
+	}
+
+	public void testTimedOut() {
+		ListenerCallback.Store cb=store();
+		cb.getOperation().timeOut();
+		assertEquals(1, told.size());
+		assertTrue(told.get(0) instanceof CheckedOperationTimeoutException);
+	}
+
+	public void testStore() {
+		ListenerCallback.Store cb=store();
+		cb.receivedStatus(new OperationStatus(false, "NOT_STORED"));
+		cb.complete();
+		assertEquals("[k=false]", told.toString());
+	}
+
+	public void testBrokenListener() {
+		ListenerCallback.Store cb=new ListenerCallback.Store("k",
+			new StoreListener() {
+				public void onStore(String key, boolean stored) {
+					throw new RuntimeException("Broken listener");
+				}
+				public void onFailure(String key, Exception e) {
+					throw new RuntimeException("Broken listener");
+				}
+			}, null);
+		cb.setOperation(opFact.store(StoreType.set, "k", 0, 0,
+			new byte[0], cb));
+		cb.complete();
+	}
+
+	public void testReplicatedStore() {
+		ReplicatedOperationFuture f=new ReplicatedOperationFuture(2, 3, 1000);
+		f.addListener(store());
+		f.acked(true);
+		assertTrue(told.isEmpty());
+		f.acked(true);
+		assertEquals("[k=true]", told.toString());
+	}
+}
@@ -1,8 +1,27 @@
 package net.spy.memcached;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
+import net.spy.memcached.ops.DeleteOperation;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationCallback;
+import net.spy.memcached.ops.OperationState;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StoreType;
 
 /**
  * Test stuff that can be tested within a MemcachedConnection separately.
@@ -16,4 +35,343 @@ public class MemcachedConnectionTest extends TestCase {
 		assertEquals("this is a test \\x5f", s);
 	}
 
+	public void testConnectionsPerServer() throws Exception {
+		ConnectionFactory cf=new ConnectionFactoryBuilder()
+			.setConnectionsPerServer(4)
+			.setIOLoopCount(3)
+			.build();
+		MemcachedConnection conn=cf.createConnection(
+			AddrUtil.getAddresses("127.0.0.1:11211 127.0.0.1:11212"));
+		try {
+			assertEquals(2, conn.getLocator().getAll().size());
+			Collection<MemcachedNode> all=conn.getAllNodes();
+			assertEquals(8, all.size());
+			assertEquals(3, conn.getIOLoopCount());
+
+			Collection<MemcachedNode> seen=new HashSet<MemcachedNode>();
+			for(int i=0; i<1000; i++) {
+				String k="key" + i;
+				MemcachedNode primary=conn.getLocator().getPrimary(k);
+				MemcachedNode n=conn.getNodeForKey(primary, k);
+				assertTrue(all.contains(n));
+				assertEquals(primary.getSocketAddress(), n.getSocketAddress());
+				assertSame(n, conn.getNodeForKey(primary, k));
+				seen.add(n);
+			}
+			assertEquals(8, seen.size());
+		} finally {
+			conn.shutdown();
+		}
+	}
+
+	public void testNodeConnected() throws Exception {
+		final List<MemcachedNode> connected=
+			Collections.synchronizedList(new ArrayList<MemcachedNode>());
+		final CountDownLatch latch=new CountDownLatch(3);
+		ConnectionObserver obs=new NodeConnectionObserver() {
+			public void nodeConnected(MemcachedNode node, int reconnectCount) {
+				connected.add(node);
+				latch.countDown();
+			}
+			public void connectionEstablished(SocketAddress sa,
+					int reconnectCount) {
+				// Not interesting here.
+			}
+			public void connectionLost(SocketAddress sa) {
+				// Not interesting here.
+			}
+		};
+		ConnectionFactory cf=new ConnectionFactoryBuilder()
+			.setConnectionsPerServer(3)
+			.setInitialObservers(Collections.singleton(obs))
+			.build();
+		MemcachedClient c=new MemcachedClient(cf,
+			AddrUtil.getAddresses("127.0.0.1:11211"));
+		try {
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			// Each connection is reported once, by itself.
+			assertEquals(3, connected.size());
+			assertEquals(3, new HashSet<MemcachedNode>(connected).size());
+
+			connected.clear();
+			c.addObserver(obs);
+			assertEquals(3, connected.size());
+		} finally {
+			c.shutdown();
+		}
+	}
+
+	private List<InetSocketAddress> addresses(Collection<MemcachedNode> n) {
+		List<InetSocketAddress> rv=new ArrayList<InetSocketAddress>();
+		for(MemcachedNode qa : n) {
+			rv.add((InetSocketAddress)qa.getSocketAddress());
+		}
+		return rv;
+	}
+
+	public void testUpdateServers() throws Exception {
+		ConnectionFactory cf=new ConnectionFactoryBuilder()
+			.setConnectionsPerServer(2)
+			.build();
+		MemcachedConnection conn=cf.createConnection(
+			AddrUtil.getAddresses("127.0.0.1:11211 127.0.0.1:11212"));
+		try {
+			Collection<MemcachedNode> before=conn.getAllNodes();
+			NodeLocator oldLocator=conn.getLocator();
+			List<InetSocketAddress> want=
+				AddrUtil.getAddresses("127.0.0.1:11212 127.0.0.1:11213");
+			conn.updateServers(want);
+			assertNotSame(oldLocator, conn.getLocator());
+			assertEquals(want, addresses(conn.getLocator().getAll()));
+			Collection<MemcachedNode> after=conn.getAllNodes();
+			assertEquals(4, after.size());
+			// The connections to the server that stayed are kept.
+			int kept=0;
+			for(MemcachedNode n : after) {
+				if(before.contains(n)) {
+					assertEquals(want.get(0), n.getSocketAddress());
+					kept++;
+				}
+			}
+			assertEquals(2, kept);
+			// Nodes located before the change still map to something.
+			MemcachedNode gone=oldLocator.getAll().iterator().next();
+			assertSame(gone, conn.getNodeForKey(gone, "k"));
+
+			assertFalse(conn.addServer(want.get(1)));
+			assertTrue(conn.addServer(
+				new InetSocketAddress("127.0.0.1", 11214)));
+			assertEquals(3, conn.getLocator().getAll().size());
+			assertFalse(conn.removeServer(
+				new InetSocketAddress("127.0.0.1", 11211)));
+			assertTrue(conn.removeServer(want.get(0)));
+			assertEquals(
+				AddrUtil.getAddresses("127.0.0.1:11213 127.0.0.1:11214"),
+				addresses(conn.getLocator().getAll()));
+			assertEquals(4, conn.getAllNodes().size());
+
+			try {
+				conn.updateServers(Collections.<InetSocketAddress>emptyList());
+				fail("Accepted an empty server list");
+			} catch(IllegalArgumentException e) {
+				// pass
+			}
+			try {
+				conn.setLocator(oldLocator);
+				fail("Replaced the locator with one for other servers");
+			} catch(IllegalStateException e) {
+				// pass
+			}
+		} finally {
+			conn.shutdown();
+		}
+	}
+
+	public void testMigrationSource() throws Exception {
+		ConnectionFactory cf=new ConnectionFactoryBuilder()
+			.setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+			.setHashAlg(HashAlgorithm.KETAMA_HASH)
+			.setMigrationWindow(60000)
+			.build();
+		MemcachedConnection conn=cf.createConnection(
+			AddrUtil.getAddresses("127.0.0.1:11211 127.0.0.1:11212"));
+		try {
+			for(int i=0; i<100; i++) {
+				assertNull(conn.getMigrationSource("key" + i));
+			}
+			NodeLocator oldLocator=conn.getLocator();
+			conn.addServer(new InetSocketAddress("127.0.0.1", 11213));
+			int moved=0;
+			for(int i=0; i<1000; i++) {
+				String k="key" + i;
+				MemcachedNode was=oldLocator.getPrimary(k);
+				MemcachedNode is=conn.getLocator().getPrimary(k);
+				MemcachedNode source=conn.getMigrationSource(k);
+				if(was.getSocketAddress().equals(is.getSocketAddress())) {
+					assertNull(source);
+				} else {
+					assertSame(was, source);
+					assertEquals(11213,
+						((InetSocketAddress)is.getSocketAddress()).getPort());
+					moved++;
+				}
+			}
+			assertTrue("Only " + moved + " keys moved", moved > 100);
+		} finally {
+			conn.shutdown();
+		}
+	}
+
+	public void testNoMigrationWindow() throws Exception {
+		ConnectionFactory cf=new ConnectionFactoryBuilder()
+			.setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+			.setHashAlg(HashAlgorithm.KETAMA_HASH)
+			.build();
+		MemcachedConnection conn=cf.createConnection(
+			AddrUtil.getAddresses("127.0.0.1:11211 127.0.0.1:11212"));
+		try {
+			conn.addServer(new InetSocketAddress("127.0.0.1", 11213));
+			for(int i=0; i<1000; i++) {
+				assertNull(conn.getMigrationSource("key" + i));
+			}
+		} finally {
+			conn.shutdown();
+		}
+	}
+
+	public void testMigrationWrites() throws Exception {
+		ConnectionFactory cf=new ConnectionFactoryBuilder()
+			.setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+			.setHashAlg(HashAlgorithm.KETAMA_HASH)
+			.setMigrationWindow(60000)
+			.build();
+		MemcachedConnection conn=cf.createConnection(
+			AddrUtil.getAddresses("127.0.0.1:11211 127.0.0.1:11212"));
+		try {
+			assertEquals(0, conn.getMigrationTimeLeft());
+			conn.addServer(new InetSocketAddress("127.0.0.1", 11213));
+			int left=conn.getMigrationTimeLeft();
+			assertTrue("Time left:  " + left, left > 0 && left <= 60);
+			String k=null;
+			for(int i=0; k == null; i++) {
+				if(conn.getMigrationSource("key" + i) != null) {
+					k="key" + i;
+				}
+			}
+			MemcachedNode source=conn.getMigrationSource(k);
+			OperationFactory opFact=cf.getOperationFactory();
+			OperationCallback cb=new GetOperation.Callback() {
+				public void receivedStatus(OperationStatus status) {
+					// Not interesting.
+				}
+				public void gotData(String key, int flags, byte[] data) {
+					// Never sent.
+				}
+				public void complete() {
+					// Not interesting.
+				}
+			};
+			long writes=conn.getMigrationWrites(k);
+
+			// Reading the key leaves its old copy alone.
+			conn.addOperation(k, opFact.get(k, (GetOperation.Callback)cb));
+			source.copyInputQueue();
+			assertFalse(source.hasWriteOp());
+			assertEquals(writes, conn.getMigrationWrites(k));
+
+			// Writing it deletes the old copy.
+			conn.addOperation(k, opFact.store(StoreType.set, k, 0, 0,
+				new byte[0], cb));
+			source.copyInputQueue();
+			Operation op=source.getCurrentWriteOp();
+			assertTrue(String.valueOf(op), op instanceof DeleteOperation);
+			assertEquals(Collections.singleton(k),
+				new HashSet<String>(((DeleteOperation)op).getKeys()));
+			assertTrue(writes != conn.getMigrationWrites(k));
+		} finally {
+			conn.shutdown();
+		}
+	}
+
+	public void testReplicas() throws Exception {
+		ConnectionFactory cf=new ConnectionFactoryBuilder()
+			.setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+			.setHashAlg(HashAlgorithm.KETAMA_HASH)
+			.setConnectionsPerServer(2)
+			.setReplicaCount(2)
+			.build();
+		MemcachedConnection conn=cf.createConnection(
+			AddrUtil.getAddresses("127.0.0.1:11211 127.0.0.1:11212"));
+		try {
+			for(int i=0; i<100; i++) {
+				String k="key" + i;
+				List<MemcachedNode> replicas=conn.getReplicas(k);
+				assertEquals(2, replicas.size());
+				assertSame(conn.getNodeForKey(
+					conn.getLocator().getPrimary(k), k), replicas.get(0));
+				assertFalse(replicas.get(0).getSocketAddress().equals(
+					replicas.get(1).getSocketAddress()));
+				assertEquals(replicas, conn.getReplicas(k));
+				assertEquals(replicas,
+					conn.getReplicas(k, KeyUtil.getKeyBytes(k)));
+			}
+			// There are only as many replicas as servers.
+			cf=new ConnectionFactoryBuilder().setReplicaCount(3).build();
+			MemcachedConnection one=cf.createConnection(
+				AddrUtil.getAddresses("127.0.0.1:11211"));
+			try {
+				assertEquals(1, one.getReplicas("key").size());
+			} finally {
+				one.shutdown();
+			}
+		} finally {
+			conn.shutdown();
+		}
+	}
+
+	public void testRemoveSuspendedNode() throws Exception {
+		// Servers that accept connections but never answer.
+		ServerSocket silent=new ServerSocket(0, 10,
+			InetAddress.getByName("127.0.0.1"));
+		ServerSocket other=new ServerSocket(0, 10,
+			InetAddress.getByName("127.0.0.1"));
+		InetSocketAddress sa=new InetSocketAddress("127.0.0.1",
+			silent.getLocalPort());
+		ConnectionFactory cf=new ConnectionFactoryBuilder().build();
+		final MemcachedConnection conn=cf.createConnection(Arrays.asList(sa,
+			new InetSocketAddress("127.0.0.1", other.getLocalPort())));
+		Thread io=new Thread("Test IO") {
+			@Override
+			public void run() {
+				try {
+					for(;;) {
+						conn.handleIO();
+					}
+				} catch(Exception e) {
+					// Shut down.
+				}
+			}
+		};
+		io.setDaemon(true);
+		io.start();
+		try {
+			MemcachedNode node=null;
+			for(MemcachedNode n : conn.getLocator().getAll()) {
+				if(sa.equals(n.getSocketAddress())) {
+					node=n;
+				}
+			}
+			final CountDownLatch latch=new CountDownLatch(1);
+			Operation op=cf.getOperationFactory().get("k",
+					new GetOperation.Callback() {
+				public void receivedStatus(OperationStatus status) {
+					// Not interesting.
+				}
+				public void gotData(String k, int flags, byte[] data) {
+					// Never sent.
+				}
+				public void complete() {
+					latch.countDown();
+				}
+			});
+			conn.addOperation(node, op);
+			for(int i=0; i<500 && op.getState() != OperationState.READING;
+					i++) {
+				Thread.sleep(10);
+			}
+			assertSame(OperationState.READING, op.getState());
+
+			// Removing it while it's suspended closes it right away, so what
+			// it was waiting to read must be let go.
+			node.setSuspended(true);
+			assertTrue(conn.removeServer(sa));
+			assertTrue("Outstanding read was never completed",
+				latch.await(5, TimeUnit.SECONDS));
+			assertTrue(op.isCancelled());
+		} finally {
+			conn.shutdown();
+			silent.close();
+			other.close();
+		}
+	}
 }
@@ -72,8 +72,11 @@ public class MockMemcachedNode implements MemcachedNode {
 	}
 	public int getSelectionOps() {return 0;}
 	public ByteBuffer getRbuf() {return null;}
-	public ByteBuffer getWbuf() {return null;}
+	public BufferPool getBufferPool() {return null;}
 	public boolean isActive() {return false;}
+	public void setSuspended(boolean to) {
+		// noop
+	}
 	public void reconnecting() {
 		// noop
 	}
@@ -81,6 +84,9 @@ public class MockMemcachedNode implements MemcachedNode {
 		// noop
 	}
 	public int getReconnectCount() {return 0;}
+	private int inFlight=0;
+	public int getInFlightCount() {return inFlight;}
+	public void setInFlightCount(int to) {inFlight=to;}
 	public void registerChannel(SocketChannel ch, SelectionKey selectionKey) {
 		// noop
 	}
@@ -0,0 +1,132 @@
+package net.spy.memcached;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the node circuit breaker.
+ */
+public class NodeHealthTest extends TestCase {
+
+	private static final long MS=1000000;
+
+	// Three failures, a 100ms operation timeout, at most 4s between probes.
+	private NodeHealth h=new NodeHealth(3, 100 * MS, 4000);
+
+	public void testQuietIdleNode() {
+		assertFalse(h.check(10000 * MS, false));
+		assertEquals(0, h.getDelay(10000 * MS));
+	}
+
+	public void testSilence() {
+		h.sent(0);
+		assertEquals(100, h.getDelay(0));
+		assertFalse(h.check(99 * MS, true));
+		assertFalse(h.check(100 * MS, true));
+		assertFalse(h.check(150 * MS, true));
+		assertFalse(h.check(200 * MS, true));
+		assertFalse(h.isOpen());
+		assertTrue(h.check(300 * MS, true));
+		assertTrue(h.isOpen());
+		// Only reported once.
+		assertFalse(h.check(400 * MS, true));
+	}
+
+	public void testNothingAwaited() {
+		h.sent(0);
+		assertFalse(h.check(100 * MS, true));
+		assertFalse(h.check(200 * MS, true));
+		// Everything sent was lost with the connection.
+		assertFalse(h.check(250 * MS, false));
+		assertFalse(h.check(1000 * MS, false));
+		assertFalse(h.isOpen());
+	}
+
+	public void testAnswersReset() {
+		h.sent(0);
+		assertFalse(h.check(100 * MS, true));
+		assertFalse(h.check(200 * MS, true));
+		h.answered(210 * MS, true);
+		assertFalse(h.check(300 * MS, true));
+		assertFalse(h.check(310 * MS, true));
+		assertFalse(h.check(400 * MS, true));
+		assertFalse(h.isOpen());
+	}
+
+	public void testSlowAnswers() {
+		h.sent(0);
+		h.answered(60 * MS, true);
+		h.answered(120 * MS, true);
+		assertFalse(h.check(120 * MS, true));
+		h.answered(180 * MS, false);
+		assertTrue(h.check(180 * MS, false));
+	}
+
+	public void testFastAnswersAfterIdle() {
+		for(int i=0; i<10; i++) {
+			// Idle time between requests isn't counted.
+			h.sent(i * 1000 * MS);
+			h.answered(i * 1000 * MS + MS, false);
+			assertFalse(h.check(i * 1000 * MS + MS, false));
+		}
+	}
+
+	private void open() {
+		h.sent(0);
+		for(int i=1; i<=3; i++) {
+			h.check(i * 100 * MS, true);
+		}
+		assertTrue(h.isOpen());
+	}
+
+	public void testProbeAnswered() {
+		open();
+		long now=300 * MS;
+		assertFalse(h.shouldProbe(now));
+		assertEquals(1000, h.getDelay(now));
+		now += 1000 * MS;
+		assertTrue(h.shouldProbe(now));
+		Object p=new Object();
+		h.probing(p, now);
+		assertFalse(h.shouldProbe(now));
+		assertFalse(h.recover());
+		h.probed(p, now + 10 * MS, true);
+		assertTrue(h.recover());
+		assertFalse(h.isOpen());
+		assertFalse(h.recover());
+		assertEquals(1, h.getProbeCount());
+	}
+
+	public void testProbeBackoff() {
+		open();
+		long now=1300 * MS;
+		Object p=new Object();
+		h.probing(p, now);
+		// Lost, so the next probe waits longer.
+		assertFalse(h.check(now + 100 * MS, true));
+		assertFalse(h.shouldProbe(now + 2000 * MS));
+		assertTrue(h.shouldProbe(now + 2100 * MS));
+		// An answer to the lost probe doesn't count.
+		h.probed(p, now + 2100 * MS, true);
+		assertFalse(h.recover());
+		now += 2100 * MS;
+		Object p2=new Object();
+		h.probing(p2, now);
+		h.probed(p2, now + 5 * MS, false);
+		assertFalse(h.recover());
+		assertFalse(h.shouldProbe(now + 3000 * MS));
+		// Capped at the max delay.
+		h.probing(p2, now + 4000 * MS);
+		h.probed(p2, now + 4001 * MS, false);
+		assertTrue(h.shouldProbe(now + 8001 * MS));
+		assertEquals(3, h.getProbeCount());
+	}
+
+	public void testProbeTooSlow() {
+		open();
+		Object p=new Object();
+		h.probing(p, 1300 * MS);
+		h.probed(p, 1450 * MS, true);
+		assertFalse(h.recover());
+		assertTrue(h.isOpen());
+	}
+}
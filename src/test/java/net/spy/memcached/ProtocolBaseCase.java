@@ -1,5 +1,6 @@
 package net.spy.memcached;
 
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -9,11 +10,17 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import net.spy.memcached.compat.SyncThread;
+import net.spy.memcached.internal.CompletionListener;
+import net.spy.memcached.internal.ListenableFuture;
 import net.spy.memcached.ops.OperationErrorType;
 import net.spy.memcached.ops.OperationException;
 import net.spy.memcached.transcoders.SerializingTranscoder;
@@ -40,6 +47,48 @@ public abstract class ProtocolBaseCase extends ClientBaseCase {
 		assertTrue(oneStat.containsKey("total_items"));
 	}
 
+	public void testWeightNodesByCapacity() throws Exception {
+		try {
+			client.weightNodesByCapacity();
+			fail("Weighted nodes without a ketama locator");
+		} catch(IllegalStateException e) {
+			// pass
+		}
+		MemcachedClient kc=new MemcachedClient(new KetamaConnectionFactory(),
+			AddrUtil.getAddresses("127.0.0.1:11211"));
+		try {
+			Map<SocketAddress, Integer> weights=kc.weightNodesByCapacity();
+			assertEquals(1, weights.size());
+			assertTrue(weights.values().iterator().next() > 0);
+			assertTrue(kc.set("weighted", 0, "hi").get());
+			assertEquals("hi", kc.get("weighted"));
+		} finally {
+			kc.shutdown();
+		}
+	}
+
+	public void testAddAndRemoveServer() throws Exception {
+		InetSocketAddress down=new InetSocketAddress("127.0.0.1", 11311);
+		assertTrue(client.addServer(down));
+		assertFalse(client.addServer(down));
+		assertEquals(2, client.getNodeLocator().getAll().size());
+		assertTrue(client.getUnavailableServers().contains(down));
+		// Some of these will be queued for the server that isn't there.
+		Collection<Future<Boolean>> futures=new ArrayList<Future<Boolean>>();
+		for(int i=0; i<50; i++) {
+			futures.add(client.set("topology" + i, 0, "v" + i));
+		}
+		assertTrue(client.removeServer(down));
+		assertFalse(client.removeServer(down));
+		assertEquals(1, client.getNodeLocator().getAll().size());
+		for(Future<Boolean> f : futures) {
+			assertTrue(f.get(5, TimeUnit.SECONDS));
+		}
+		for(int i=0; i<50; i++) {
+			assertEquals("v" + i, client.get("topology" + i));
+		}
+	}
+
 	public void testGetStatsSlabs() throws Exception {
 		// There needs to at least have been one value set or there may be
 		// no slabs to check.
@@ -487,6 +536,120 @@ public abstract class ProtocolBaseCase extends ClientBaseCase {
 		assertNull(client.get("test2"));
 	}
 
+	public void testListeners() throws Exception {
+		final Map<String, Object> results=
+			new ConcurrentHashMap<String, Object>();
+		final CountDownLatch latch=new CountDownLatch(4);
+		client.set("listened", 5, "value").addListener(
+				new CompletionListener<Boolean>() {
+			public void onComplete(ListenableFuture<Boolean> f) {
+				try {
+					results.put("set", f.get(0, TimeUnit.MILLISECONDS));
+				} catch(Exception e) {
+					results.put("set", e);
+				}
+				client.asyncGet("listened").addListener(
+						new CompletionListener<Object>() {
+					public void onComplete(ListenableFuture<Object> g) {
+						try {
+							results.put("get", g.get(0, TimeUnit.MILLISECONDS));
+						} catch(Exception e) {
+							results.put("get", e);
+						}
+						latch.countDown();
+					}
+				});
+				latch.countDown();
+			}
+		});
+		client.asyncGetBulk("listened", "notlistened").addListener(
+				new CompletionListener<Map<String, Object>>() {
+			public void onComplete(ListenableFuture<Map<String, Object>> f) {
+				results.put("bulkDone", f.isDone());
+				latch.countDown();
+			}
+		});
+		client.asyncIncr("notlistened", 1).addListener(
+				new CompletionListener<Long>() {
+			public void onComplete(ListenableFuture<Long> f) {
+				results.put("incrDone", f.isDone());
+				latch.countDown();
+			}
+		});
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Boolean.TRUE, results.get("set"));
+		assertEquals("value", results.get("get"));
+		assertEquals(Boolean.TRUE, results.get("bulkDone"));
+		assertEquals(Boolean.TRUE, results.get("incrDone"));
+
+		// Listeners added to a done future are told right away.
+		final boolean[] told={false};
+		ListenableFuture<Object> done=client.asyncGet("listened");
+		done.get();
+		done.addListener(new CompletionListener<Object>() {
+			public void onComplete(ListenableFuture<Object> f) {
+				told[0]=true;
+			}
+		});
+		assertTrue(told[0]);
+	}
+
+	public void testGetAndStoreListeners() throws Exception {
+		final Map<String, Object> results=
+			new ConcurrentHashMap<String, Object>();
+		final CountDownLatch latch=new CountDownLatch(3);
+		final Transcoder<Object> tc=new SerializingTranscoder();
+		final ExecutorService ex=Executors.newSingleThreadExecutor();
+		final GetListener<Object> gl=new GetListener<Object>() {
+			public void onGet(String key, Object value) {
+				results.put(key, value == null ? "missing" : value);
+				results.put(key + "Thread", Thread.currentThread());
+				latch.countDown();
+			}
+			public void onFailure(String key, Exception e) {
+				results.put(key, e);
+				latch.countDown();
+			}
+		};
+		client.set("listened", 5, "value", tc, new StoreListener() {
+			public void onStore(String key, boolean stored) {
+				results.put("stored", stored);
+				client.asyncGet(key, tc, gl, ex);
+				latch.countDown();
+			}
+			public void onFailure(String key, Exception e) {
+				results.put("stored", e);
+				latch.countDown();
+			}
+		});
+		client.asyncGet("notlistened", gl);
+		try {
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertEquals(Boolean.TRUE, results.get("stored"));
+			assertEquals("value", results.get("listened"));
+			assertEquals("missing", results.get("notlistened"));
+			assertNotSame(results.get("notlistenedThread"),
+				results.get("listenedThread"));
+		} finally {
+			ex.shutdown();
+		}
+
+		// Not added over an existing value.
+		final CountDownLatch added=new CountDownLatch(1);
+		client.add("listened", 5, "other", tc, new StoreListener() {
+			public void onStore(String key, boolean stored) {
+				results.put("added", stored);
+				added.countDown();
+			}
+			public void onFailure(String key, Exception e) {
+				results.put("added", e);
+				added.countDown();
+			}
+		});
+		assertTrue(added.await(5, TimeUnit.SECONDS));
+		assertEquals(Boolean.FALSE, results.get("added"));
+	}
+
 	public void testGracefulShutdown() throws Exception {
 		for(int i=0; i<1000; i++) {
 			client.set("t" + i, 10, i);
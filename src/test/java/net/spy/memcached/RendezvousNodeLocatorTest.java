@@ -0,0 +1,101 @@
+package net.spy.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test the rendezvous hashing locator.
+ */
+public class RendezvousNodeLocatorTest extends AbstractNodeLocationCase {
+
+	@Override
+	protected void setupNodes(int n) {
+		super.setupNodes(n);
+		for(int i=0; i<nodeMocks.length; i++) {
+			nodeMocks[i].expects(atLeastOnce())
+				.method("getSocketAddress")
+				.will(returnValue(new InetSocketAddress(
+						"127.0.0.1", 10000 + i)));
+		}
+		locator=new RendezvousNodeLocator(Arrays.asList(nodes),
+			HashAlgorithm.NATIVE_HASH);
+	}
+
+	public void testAll() {
+		setupNodes(4);
+		assertEquals(Arrays.asList(nodes), locator.getAll());
+	}
+
+	public void testBalance() {
+		setupNodes(8);
+		int[] counts=new int[nodes.length];
+		for(int i=0; i<80000; i++) {
+			counts[Arrays.asList(nodes).indexOf(
+				locator.getPrimary("key" + i))]++;
+		}
+		for(int c : counts) {
+			assertTrue("Unbalanced: " + Arrays.toString(counts),
+				Math.abs(c - 10000) < 500);
+		}
+	}
+
+	// Order of the node list doesn't matter.
+	public void testOrderIndependent() {
+		setupNodes(6);
+		List<MemcachedNode> shuffled=
+			new ArrayList<MemcachedNode>(Arrays.asList(nodes));
+		Collections.reverse(shuffled);
+		NodeLocator other=new RendezvousNodeLocator(shuffled,
+			HashAlgorithm.NATIVE_HASH);
+		for(int i=0; i<1000; i++) {
+			assertSame(locator.getPrimary("key" + i),
+				other.getPrimary("key" + i));
+		}
+	}
+
+	// Removing a node only moves the keys it held, and they move to the
+	// first node of their sequence.
+	public void testRemoval() {
+		setupNodes(6);
+		List<MemcachedNode> fewer=
+			new ArrayList<MemcachedNode>(Arrays.asList(nodes));
+		fewer.remove(2);
+		NodeLocator smaller=new RendezvousNodeLocator(fewer,
+			HashAlgorithm.NATIVE_HASH);
+		for(int i=0; i<10000; i++) {
+			String k="key" + i;
+			MemcachedNode before=locator.getPrimary(k);
+			MemcachedNode after=smaller.getPrimary(k);
+			if(before == nodes[2]) {
+				assertSame(locator.getSequence(k).next(), after);
+			} else {
+				assertSame(before, after);
+			}
+		}
+	}
+
+	public void testSequence() {
+		setupNodes(5);
+		for(int i=0; i<100; i++) {
+			String k="key" + i;
+			Set<MemcachedNode> seen=new HashSet<MemcachedNode>();
+			seen.add(locator.getPrimary(k));
+			for(Iterator<MemcachedNode> it=locator.getSequence(k);
+				it.hasNext(); ) {
+				assertTrue(seen.add(it.next()));
+			}
+			assertEquals(5, seen.size());
+		}
+	}
+
+	public void testSeqOnlyOneServer() {
+		setupNodes(1);
+		assertSequence("noelani");
+	}
+}
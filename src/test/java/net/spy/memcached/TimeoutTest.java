@@ -1,5 +1,11 @@
 package net.spy.memcached;
 
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.internal.CheckedOperationTimeoutException;
+
 public class TimeoutTest extends ClientBaseCase {
 
 	@Override
@@ -67,4 +73,36 @@ public class TimeoutTest extends ClientBaseCase {
 		}});
 	}
 
+	// Nothing waits on these with a timeout, so they need a deadline even
+	// though deadlines aren't enforced.
+	public void testGetListenerTimeout() throws Exception {
+		final BlockingQueue<Exception> failures=
+			new LinkedBlockingQueue<Exception>();
+		client.asyncGet("k", new GetListener<Object>() {
+			public void onGet(String key, Object value) {
+				fail("Got " + key);
+			}
+			public void onFailure(String key, Exception e) {
+				failures.add(e);
+			}
+		});
+		assertTrue(failures.poll(5, TimeUnit.SECONDS)
+			instanceof CheckedOperationTimeoutException);
+	}
+
+	public void testStoreListenerTimeout() throws Exception {
+		final BlockingQueue<Exception> failures=
+			new LinkedBlockingQueue<Exception>();
+		client.set("k", 0, "v", client.getTranscoder(), new StoreListener() {
+			public void onStore(String key, boolean stored) {
+				fail("Stored " + key);
+			}
+			public void onFailure(String key, Exception e) {
+				failures.add(e);
+			}
+		});
+		assertTrue(failures.poll(5, TimeUnit.SECONDS)
+			instanceof CheckedOperationTimeoutException);
+	}
+
 }
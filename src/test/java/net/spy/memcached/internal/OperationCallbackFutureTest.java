@@ -0,0 +1,201 @@
+package net.spy.memcached.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.OperationFactory;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StoreType;
+import net.spy.memcached.protocol.ascii.AsciiOperationFactory;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Test the futures that are their operation's callback.
+ */
+public class OperationCallbackFutureTest extends TestCase {
+
+	private final OperationFactory opFact=new AsciiOperationFactory();
+	private final List<String> told=new ArrayList<String>();
+
+	private OperationCallbackFuture<Boolean> store() {
+		OperationCallbackFuture<Boolean> rv=
+			new OperationCallbackFuture<Boolean>(1000) {
+				public void receivedStatus(OperationStatus s) {
+					set(s.isSuccess());
+				}
+			};
+		rv.setOperation(opFact.store(StoreType.set, "k", 0, 0,
+			new byte[0], rv));
+		return rv;
+	}
+
+	private CompletionListener<Boolean> listener(final String name) {
+		return new CompletionListener<Boolean>() {
+			public void onComplete(ListenableFuture<Boolean> f) {
+				told.add(name);
+			}
+		};
+	}
+
+	public void testComplete() throws Exception {
+		OperationCallbackFuture<Boolean> f=store();
+		assertFalse(f.isDone());
+		f.receivedStatus(new OperationStatus(true, "STORED"));
+		f.complete();
+		assertTrue(f.isDone());
+		assertFalse(f.isCancelled());
+		assertTrue(f.get());
+	}
+
+	public void testWaiters() throws Exception {
+		final OperationCallbackFuture<Boolean> f=store();
+		final List<Object> got=new ArrayList<Object>();
+		Thread[] threads=new Thread[3];
+		for(int i=0; i<threads.length; i++) {
+			threads[i]=new Thread() {
+				@Override
+				public void run() {
+					try {
+						Boolean b=f.get(10, TimeUnit.SECONDS);
+						synchronized(got) {
+							got.add(b);
+						}
+					} catch(Exception e) {
+						synchronized(got) {
+							got.add(e);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		Thread.sleep(50);
+		f.receivedStatus(new OperationStatus(false, "NOT_STORED"));
+		f.complete();
+		for(Thread t : threads) {
+			t.join(5000);
+		}
+		assertEquals("[false, false, false]", got.toString());
+	}
+
+	public void testTimeout() throws Exception {
+		OperationCallbackFuture<Boolean> f=store();
+		long start=System.nanoTime();
+		try {
+			f.get(20, TimeUnit.MILLISECONDS);
+			fail("Didn't time out");
+		} catch(CheckedOperationTimeoutException e) {
+			assertTrue(System.nanoTime() - start
+				>= TimeUnit.MILLISECONDS.toNanos(20));
+		}
+		// Still works once it's done.
+		f.receivedStatus(new OperationStatus(true, "STORED"));
+		f.complete();
+		assertTrue(f.get(20, TimeUnit.MILLISECONDS));
+	}
+
+	public void testInterrupted() throws Exception {
+		OperationCallbackFuture<Boolean> f=store();
+		Thread.currentThread().interrupt();
+		try {
+			f.get(1, TimeUnit.SECONDS);
+			fail("Wasn't interrupted");
+		} catch(InterruptedException e) {
+			assertFalse(Thread.interrupted());
+		}
+	}
+
+	public void testCancel() throws Exception {
+		OperationCallbackFuture<Boolean> f=store();
+		f.addListener(listener("a"));
+		f.cancel(true);
+		assertTrue(f.isDone());
+		assertTrue(f.isCancelled());
+		assertEquals("[a]", told.toString());
+		try {
+			f.get();
+			fail("Got a cancelled operation");
+		} catch(ExecutionException e) {
+			assertEquals("Cancelled", e.getCause().getMessage());
+		}
+	}
+
+	public void testTimedOut() throws Exception {
+		OperationCallbackFuture<Boolean> f=store();
+		f.getOperation().timeOut();
+		assertTrue(f.isDone());
+		assertFalse(f.isCancelled());
+		try {
+			f.get(1, TimeUnit.SECONDS);
+			fail("Got a timed out operation");
+		} catch(CheckedOperationTimeoutException e) {
+			assertTrue(e.getMessage().startsWith("Operation timed out"));
+		}
+	}
+
+	public void testListeners() {
+		OperationCallbackFuture<Boolean> f=store();
+		f.addListener(listener("a"));
+		f.addListener(new CompletionListener<Boolean>() {
+			public void onComplete(ListenableFuture<Boolean> future) {
+				throw new RuntimeException("Broken listener");
+			}
+		});
+		f.addListener(listener("b"));
+		assertTrue(told.isEmpty());
+		f.complete();
+		// Completing again doesn't tell them again.
+		f.complete();
+		assertEquals("[a, b]", told.toString());
+		f.addListener(listener("c"));
+		assertEquals("[a, b, c]", told.toString());
+	}
+
+	public void testGetDecodesOnce() throws Exception {
+		final int[] decodes={0};
+		Transcoder<Object> tc=new SerializingTranscoder() {
+			@Override
+			public Object decode(CachedData d) {
+				decodes[0]++;
+				return super.decode(d);
+			}
+		};
+		CachedData d=tc.encode("value");
+		GetCallbackFuture<Object> f=
+			new GetCallbackFuture<Object>("k", tc, 1000);
+		f.setOperation(opFact.get("k", f));
+		f.gotData("k", d.getFlags(), d.getData());
+		f.receivedStatus(new OperationStatus(true, "END"));
+		f.complete();
+		assertEquals(0, decodes[0]);
+		assertEquals("value", f.get());
+		assertEquals("value", f.get());
+		assertEquals(1, decodes[0]);
+	}
+
+	public void testGetMiss() throws Exception {
+		GetCallbackFuture<Object> f=new GetCallbackFuture<Object>("k",
+			new SerializingTranscoder(), 1000);
+		f.setOperation(opFact.get("k", f));
+		f.receivedStatus(new OperationStatus(true, "END"));
+		f.complete();
+		assertNull(f.get());
+	}
+
+	public void testGets() throws Exception {
+		Transcoder<Object> tc=new SerializingTranscoder();
+		CachedData d=tc.encode("value");
+		GetsCallbackFuture<Object> f=
+			new GetsCallbackFuture<Object>("k", tc, 1000);
+		f.setOperation(opFact.gets("k", f));
+		f.gotData("k", d.getFlags(), 42, d.getData());
+		f.complete();
+		assertEquals(42, f.get().getCas());
+		assertEquals("value", f.get().getValue());
+	}
+}
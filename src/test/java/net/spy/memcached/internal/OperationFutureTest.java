@@ -0,0 +1,77 @@
+package net.spy.memcached.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the listeners of operation futures.
+ */
+public class OperationFutureTest extends TestCase {
+
+	private final List<String> told=new ArrayList<String>();
+
+	private CompletionListener<String> listener(final String name) {
+		return new CompletionListener<String>() {
+			public void onComplete(ListenableFuture<String> f) {
+				told.add(name);
+			}
+		};
+	}
+
+	public void testListenersToldOnce() throws Exception {
+		CountDownLatch latch=new CountDownLatch(1);
+		OperationFuture<String> f=new OperationFuture<String>(latch, 1000);
+		f.addListener(listener("a"));
+		f.addListener(listener("b"));
+		f.signalComplete();
+		assertTrue(told.isEmpty());
+		f.set("x");
+		latch.countDown();
+		f.signalComplete();
+		f.signalComplete();
+		assertEquals("[a, b]", told.toString());
+		// Added once it's done, told right away.
+		f.addListener(listener("c"));
+		assertEquals("[a, b, c]", told.toString());
+	}
+
+	public void testDoneWithoutSignal() {
+		OperationFuture<String> f=new OperationFuture<String>(
+			new CountDownLatch(0), 1000);
+		f.addListener(listener("a"));
+		assertEquals("[a]", told.toString());
+	}
+
+	public void testBrokenListener() {
+		CountDownLatch latch=new CountDownLatch(1);
+		OperationFuture<String> f=new OperationFuture<String>(latch, 1000);
+		f.addListener(new CompletionListener<String>() {
+			public void onComplete(ListenableFuture<String> future) {
+				throw new RuntimeException("Broken listener");
+			}
+		});
+		f.addListener(listener("a"));
+		latch.countDown();
+		f.signalComplete();
+		assertEquals("[a]", told.toString());
+	}
+
+	public void testGetFuture() {
+		CountDownLatch latch=new CountDownLatch(1);
+		final GetFuture<String> f=new GetFuture<String>(latch, 1000);
+		final List<String> got=new ArrayList<String>();
+		f.addListener(new CompletionListener<String>() {
+			public void onComplete(ListenableFuture<String> future) {
+				assertSame(f, future);
+				got.add("told");
+			}
+		});
+		f.set(null);
+		latch.countDown();
+		f.signalComplete();
+		assertEquals("[told]", got.toString());
+	}
+}
@@ -0,0 +1,103 @@
+package net.spy.memcached.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+import net.spy.memcached.ReplicaAck;
+
+/**
+ * Test the future for replicated writes.
+ */
+public class ReplicatedOperationFutureTest extends TestCase {
+
+	private ReplicatedOperationFuture future(ReplicaAck ack, int copies) {
+		return new ReplicatedOperationFuture(ack.required(copies), copies,
+			1000);
+	}
+
+	public void testRequired() {
+		assertEquals(1, ReplicaAck.ANY.required(3));
+		assertEquals(2, ReplicaAck.QUORUM.required(3));
+		assertEquals(3, ReplicaAck.QUORUM.required(4));
+		assertEquals(3, ReplicaAck.ALL.required(3));
+		for(ReplicaAck a : ReplicaAck.values()) {
+			assertEquals(1, a.required(1));
+		}
+	}
+
+	public void testAnySucceedsOnFirst() throws Exception {
+		ReplicatedOperationFuture f=future(ReplicaAck.ANY, 3);
+		f.acked(false);
+		assertFalse(f.isDone());
+		f.acked(true);
+		assertTrue(f.isDone());
+		assertTrue(f.get());
+		// Later answers don't change it.
+		f.acked(false);
+		assertTrue(f.get());
+	}
+
+	public void testAnyFailsWhenAllFail() throws Exception {
+		ReplicatedOperationFuture f=future(ReplicaAck.ANY, 2);
+		f.acked(false);
+		assertFalse(f.isDone());
+		f.acked(false);
+		assertFalse(f.get());
+	}
+
+	public void testQuorum() throws Exception {
+		ReplicatedOperationFuture f=future(ReplicaAck.QUORUM, 3);
+		f.acked(true);
+		f.acked(false);
+		assertFalse(f.isDone());
+		f.acked(true);
+		assertTrue(f.get());
+
+		f=future(ReplicaAck.QUORUM, 3);
+		f.acked(false);
+		f.acked(true);
+		assertFalse(f.isDone());
+		f.acked(false);
+		assertFalse(f.get());
+	}
+
+	public void testAllFailsOnFirstFailure() throws Exception {
+		ReplicatedOperationFuture f=future(ReplicaAck.ALL, 3);
+		f.acked(true);
+		f.acked(true);
+		assertFalse(f.isDone());
+		f.acked(false);
+		assertFalse(f.get());
+	}
+
+	public void testListeners() throws Exception {
+		ReplicatedOperationFuture f=future(ReplicaAck.QUORUM, 3);
+		final int[] told={0};
+		CompletionListener<Boolean> l=new CompletionListener<Boolean>() {
+			public void onComplete(ListenableFuture<Boolean> future) {
+				told[0]++;
+			}
+		};
+		f.addListener(l);
+		f.acked(true);
+		assertEquals(0, told[0]);
+		f.acked(true);
+		assertEquals(1, told[0]);
+		f.acked(true);
+		assertEquals(1, told[0]);
+		f.addListener(l);
+		assertEquals(2, told[0]);
+	}
+
+	public void testTimeout() throws Exception {
+		ReplicatedOperationFuture f=future(ReplicaAck.ALL, 2);
+		f.acked(true);
+		try {
+			f.get(10, TimeUnit.MILLISECONDS);
+			fail("Didn't time out");
+		} catch(TimeoutException e) {
+			// pass
+		}
+	}
+}
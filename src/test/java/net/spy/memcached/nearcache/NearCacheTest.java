@@ -0,0 +1,164 @@
+package net.spy.memcached.nearcache;
+
+import junit.framework.TestCase;
+import net.spy.memcached.CachedData;
+
+/**
+ * Test the near cache.
+ */
+public class NearCacheTest extends TestCase {
+
+	private NearCache cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		cache=new NearCache(100, 100000, 60000);
+	}
+
+	private CachedData data(int size) {
+		return new CachedData(0, new byte[size], CachedData.MAX_SIZE);
+	}
+
+	private void put(String k, CachedData d) {
+		assertTrue(cache.put(k, d, cache.getStamp(k)));
+	}
+
+	public void testHitAndMiss() {
+		assertNull(cache.get("a"));
+		CachedData d=data(10);
+		put("a", d);
+		assertSame(d, cache.get("a"));
+		assertSame(d, cache.get("a"));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(2.0 / 3, cache.getHitRate(), 0.0001);
+		assertEquals(1, cache.size());
+		assertEquals(10, cache.getWeightedSize());
+	}
+
+	public void testInvalidate() {
+		put("a", data(10));
+		cache.invalidate("a");
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getInvalidationCount());
+	}
+
+	public void testInvalidatedWhileFetching() {
+		long stamp=cache.getStamp("a");
+		cache.invalidate("a");
+		assertFalse(cache.put("a", data(10), stamp));
+		assertNull(cache.get("a"));
+		// A fetch started after the invalidation is fine.
+		put("a", data(10));
+		assertNotNull(cache.get("a"));
+	}
+
+	public void testTtl() throws Exception {
+		cache=new NearCache(100, 100000, 50);
+		put("a", data(10));
+		assertNotNull(cache.get("a"));
+		Thread.sleep(100);
+		assertNull(cache.get("a"));
+		assertEquals(1, cache.getExpirationCount());
+		assertEquals(0, cache.size());
+	}
+
+	public void testItemExpirationCapsTtl() throws Exception {
+		cache.invalidate("a", System.currentTimeMillis() + 50);
+		assertNull(cache.get("a"));
+		put("a", data(10));
+		assertNotNull(cache.get("a"));
+		Thread.sleep(100);
+		assertNull(cache.get("a"));
+	}
+
+	public void testItemAlreadyExpired() {
+		cache.invalidate("a", System.currentTimeMillis() - 1);
+		assertFalse(cache.put("a", data(10), cache.getStamp("a")));
+		assertNull(cache.get("a"));
+	}
+
+	public void testEntryBound() {
+		for(int i=0; i<1000; i++) {
+			String k="k" + i;
+			cache.get(k);
+			cache.put(k, data(1), cache.getStamp(k));
+			assertTrue(cache.size() <= 100);
+		}
+		assertEquals(100, cache.size());
+		assertEquals(900,
+			cache.getEvictionCount() + cache.getRejectionCount());
+	}
+
+	public void testByteBound() {
+		cache=new NearCache(100, 1000, 60000);
+		for(int i=0; i<50; i++) {
+			String k="k" + i;
+			cache.put(k, data(100), cache.getStamp(k));
+			assertTrue(cache.getWeightedSize() <= 1000);
+		}
+		assertEquals(10, cache.size());
+		assertFalse(cache.put("big", data(1001), cache.getStamp("big")));
+	}
+
+	public void testFrequentKeysSurviveScan() {
+		for(int i=0; i<50; i++) {
+			put("hot" + i, data(1));
+		}
+		for(int i=0; i<10000; i++) {
+			cache.get("hot" + (i % 50));
+			String k="cold" + i;
+			if(cache.get(k) == null) {
+				cache.put(k, data(1), cache.getStamp(k));
+			}
+		}
+		for(int i=0; i<50; i++) {
+			assertNotNull("hot" + i, cache.get("hot" + i));
+		}
+		// Every lookup of a hot key hit.
+		assertEquals(10050, cache.getHitCount());
+		assertTrue(cache.getRejectionCount() > 0);
+	}
+
+	public void testClear() {
+		put("a", data(10));
+		long stamp=cache.getStamp("b");
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeightedSize());
+		assertNull(cache.get("a"));
+		assertFalse(cache.put("b", data(10), stamp));
+	}
+
+	public void testBadSizes() {
+		try {
+			new NearCache(0, 100, 100);
+			fail("Accepted no entries");
+		} catch(IllegalArgumentException e) {
+			// pass
+		}
+		try {
+			new NearCache(100, 100, 0);
+			fail("Accepted no ttl");
+		} catch(IllegalArgumentException e) {
+			// pass
+		}
+	}
+
+	public void testSketch() {
+		FrequencySketch s=new FrequencySketch(100);
+		int h=FrequencySketch.spread("a".hashCode());
+		assertEquals(0, s.frequency(h));
+		for(int i=0; i<20; i++) {
+			s.increment(h);
+		}
+		assertEquals(15, s.frequency(h));
+		// Enough other increments age the count.
+		for(int i=0; i<1000; i++) {
+			s.increment(FrequencySketch.spread(("x" + i).hashCode()));
+		}
+		assertTrue(s.frequency(h) < 15);
+	}
+}
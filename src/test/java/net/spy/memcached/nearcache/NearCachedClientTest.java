@@ -0,0 +1,117 @@
+package net.spy.memcached.nearcache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Test the near cached client.
+ */
+public class NearCachedClientTest extends MockObjectTestCase {
+
+	private Mock clientMock;
+	private Transcoder<Object> transcoder;
+	private NearCachedClient client;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		transcoder=new SerializingTranscoder();
+		clientMock=mock(MemcachedClientIF.class);
+		clientMock.stubs().method("getTranscoder")
+			.will(returnValue(transcoder));
+		client=new NearCachedClient((MemcachedClientIF)clientMock.proxy(),
+			new NearCache(100, 100000, 60000));
+	}
+
+	private void expectGet(String k, Object value) {
+		clientMock.expects(once()).method("get")
+			.with(eq(k), isA(RawTranscoder.class))
+			.will(returnValue(value == null ? null : transcoder.encode(value)));
+	}
+
+	public void testGetThroughCache() {
+		expectGet("a", "value");
+		assertEquals("value", client.get("a"));
+		// Served from the near cache from now on.
+		assertEquals("value", client.get("a"));
+		assertTrue(client.asyncGet("a").isDone());
+		assertEquals(2, client.getNearCache().getHitCount());
+	}
+
+	public void testMissesArentCached() {
+		expectGet("a", null);
+		assertNull(client.get("a"));
+		expectGet("a", "value");
+		assertEquals("value", client.get("a"));
+	}
+
+	public void testWriteInvalidates() {
+		expectGet("a", "value");
+		assertEquals("value", client.get("a"));
+		clientMock.expects(once()).method("set")
+			.with(eq("a"), eq(0), eq("new"))
+			.will(returnValue(null));
+		client.set("a", 0, "new");
+		expectGet("a", "new");
+		assertEquals("new", client.get("a"));
+		clientMock.expects(once()).method("delete").with(eq("a"))
+			.will(returnValue(null));
+		client.delete("a");
+		expectGet("a", null);
+		assertNull(client.get("a"));
+	}
+
+	public void testWriteDuringAsyncGet() throws Exception {
+		Future<CachedData> f=new NearCachedClient.CachedFuture<CachedData>(
+			transcoder.encode("old"));
+		clientMock.expects(once()).method("asyncGet")
+			.with(eq("a"), isA(RawTranscoder.class))
+			.will(returnValue(f));
+		Future<Object> rv=client.asyncGet("a");
+		clientMock.expects(once()).method("delete").with(eq("a"))
+			.will(returnValue(null));
+		client.delete("a");
+		assertEquals("old", rv.get());
+		// The old value isn't cached.
+		expectGet("a", null);
+		assertNull(client.get("a"));
+	}
+
+	public void testGetBulk() {
+		expectGet("a", "va");
+		client.get("a");
+		Map<String, CachedData> fetched=new HashMap<String, CachedData>();
+		fetched.put("b", transcoder.encode("vb"));
+		clientMock.expects(once()).method("getBulk")
+			.with(eq(Collections.singletonList("b")),
+				isA(RawTranscoder.class))
+			.will(returnValue(fetched));
+		Map<String, Object> m=client.getBulk("a", "b");
+		assertEquals(2, m.size());
+		assertEquals("va", m.get("a"));
+		assertEquals("vb", m.get("b"));
+		// Both are cached now.
+		Future<Map<String, Object>> f=client.asyncGetBulk(
+			Arrays.asList("a", "b"));
+		assertTrue(f.isDone());
+	}
+
+	public void testFlushClears() {
+		expectGet("a", "value");
+		client.get("a");
+		clientMock.expects(once()).method("flush").will(returnValue(null));
+		client.flush();
+		assertEquals(0, client.getNearCache().size());
+	}
+}
@@ -0,0 +1,165 @@
+package net.spy.memcached.protocol;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import junit.framework.TestCase;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationCallback;
+import net.spy.memcached.ops.OperationState;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StoreType;
+import net.spy.memcached.protocol.ascii.AsciiMemcachedNodeImpl;
+import net.spy.memcached.protocol.ascii.AsciiOperationFactory;
+
+/**
+ * Test the gathering writes of a node, against a peer that only reads when
+ * told to.
+ */
+public class TCPMemcachedNodeImplTest extends TestCase {
+
+	private ServerSocketChannel server;
+	private SocketChannel peer;
+	private TCPMemcachedNodeImpl node;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server=ServerSocketChannel.open();
+		server.socket().setReceiveBufferSize(4096);
+		server.socket().bind(
+			new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		SocketChannel ch=SocketChannel.open();
+		ch.socket().setSendBufferSize(4096);
+		ch.connect(server.socket().getLocalSocketAddress());
+		ch.configureBlocking(false);
+		peer=server.accept();
+		node=new AsciiMemcachedNodeImpl(ch.socket().getRemoteSocketAddress(),
+			ch, 1024 * 1024, new LinkedBlockingQueue<Operation>(),
+			new LinkedBlockingQueue<Operation>(),
+			new LinkedBlockingQueue<Operation>(), 1000L);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		node.getChannel().close();
+		peer.close();
+		server.close();
+		super.tearDown();
+	}
+
+	private Operation addSet(String k, int size) {
+		Operation op=new AsciiOperationFactory().store(StoreType.set, k, 0,
+			0, new byte[size], new OperationCallback() {
+				public void receivedStatus(OperationStatus status) {
+					// Nothing to see here
+				}
+				public void complete() {
+					// Nothing to see here
+				}
+			});
+		op.setHandlingNode(node);
+		op.initialize();
+		node.addOp(op);
+		node.copyInputQueue();
+		return op;
+	}
+
+	// Write everything gathered, letting the peer read it.
+	private long writeAll() throws Exception {
+		long rv=0;
+		ByteBuffer b=ByteBuffer.allocate(65536);
+		while(node.getBytesRemainingToWrite() > 0) {
+			node.writeSome();
+			b.clear();
+			rv += peer.read(b);
+		}
+		return rv;
+	}
+
+	public void testPartialWrite() throws Exception {
+		Operation op=addSet("k", 4 * 1024 * 1024);
+		int len=op.getBuffer().remaining();
+		node.fillWriteBuffer(false);
+		assertEquals(len, node.getBytesRemainingToWrite());
+		assertFalse(node.hasWriteOp());
+		assertSame(op, node.getCurrentReadOp());
+
+		int wrote=node.writeSome();
+		assertTrue(wrote > 0);
+		assertTrue(wrote < len);
+		assertEquals(len - wrote, node.getBytesRemainingToWrite());
+		// Not written until the last byte is.
+		assertSame(OperationState.WRITING, op.getState());
+
+		// The peer gets everything, and then the op waits for its answer.
+		long got=writeAll();
+		ByteBuffer b=ByteBuffer.allocate(65536);
+		while(got < len) {
+			b.clear();
+			got += peer.read(b);
+		}
+		assertEquals(len, got);
+		assertSame(OperationState.READING, op.getState());
+		assertSame(op, node.getCurrentReadOp());
+	}
+
+	public void testMaxGatherBuffers() throws Exception {
+		List<Operation> ops=new ArrayList<Operation>();
+		for(int i=0; i<200; i++) {
+			ops.add(addSet("k" + i, 10));
+		}
+		node.fillWriteBuffer(false);
+		// Only so many buffers are gathered at a time.
+		assertSame(ops.get(128), node.getCurrentWriteOp());
+		writeAll();
+		for(int i=0; i<128; i++) {
+			assertSame(OperationState.READING, ops.get(i).getState());
+		}
+		assertSame(OperationState.WRITING, ops.get(128).getState());
+
+		node.fillWriteBuffer(false);
+		assertFalse(node.hasWriteOp());
+		writeAll();
+		for(Operation op : ops) {
+			assertSame(OperationState.READING, op.getState());
+		}
+	}
+
+	public void testReconnectMidGather() throws Exception {
+		Operation written=addSet("k1", 10);
+		Operation partial=addSet("k2", 512 * 1024);
+		Operation unwritten=addSet("k3", 10);
+		int len=partial.getBuffer().remaining();
+		node.fillWriteBuffer(false);
+		assertFalse(node.hasWriteOp());
+		node.writeSome();
+		assertSame(OperationState.READING, written.getState());
+		assertSame(OperationState.WRITING, partial.getState());
+		assertTrue(partial.getBuffer().position() > 0);
+
+		node.setupResend();
+		// What went out completely can't be answered any more, but
+		// everything else is written again from the start.
+		assertTrue(written.isCancelled());
+		assertFalse(partial.isCancelled());
+		assertFalse(unwritten.isCancelled());
+		assertFalse(node.hasReadOp());
+		assertEquals(0, node.getBytesRemainingToWrite());
+		assertSame(partial, node.getCurrentWriteOp());
+		assertEquals(len, partial.getBuffer().remaining());
+
+		node.fillWriteBuffer(false);
+		assertFalse(node.hasWriteOp());
+		assertSame(partial, node.getCurrentReadOp());
+		writeAll();
+		assertSame(OperationState.READING, partial.getState());
+		assertSame(OperationState.READING, unwritten.getState());
+	}
+}
@@ -3,11 +3,16 @@
 package net.spy.memcached.protocol.ascii;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import net.spy.memcached.compat.BaseMockCase;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.GetsOperation;
+import net.spy.memcached.ops.OperationState;
+import net.spy.memcached.ops.OperationStatus;
 
 /**
  * Test the basic operation buffer handling stuff.
@@ -83,6 +88,102 @@ public class BaseOpTest extends BaseMockCase {
 		assertEquals("this is a test", op.getCurrentLine());
 	}
 
+	public void testLineSplitAtCr() throws Exception {
+		SimpleOp op=new SimpleOp(OperationReadType.LINE);
+		op.linesToRead=2;
+		op.readFromBuffer(ByteBuffer.wrap("abc\r".getBytes()));
+		assertNull(op.getCurrentLine());
+		op.readFromBuffer(ByteBuffer.wrap("\ndef\r\n".getBytes()));
+		assertEquals(Arrays.asList("abc", "def"), op.getLines());
+	}
+
+	public void testDirectBufferLines() throws Exception {
+		String input="line one\r\nline two\r\n";
+		ByteBuffer b=ByteBuffer.allocateDirect(input.length());
+		b.put(input.getBytes());
+		b.flip();
+		SimpleOp op=new SimpleOp(OperationReadType.LINE);
+		op.linesToRead=2;
+		op.readFromBuffer(b);
+		assertEquals(Arrays.asList("line one", "line two"), op.getLines());
+	}
+
+	public void testGetParsing() throws Exception {
+		String input="VALUE bb 5 3\r\nxyz\r\nVALUE a 0 1\r\nq\r\n"
+			+ "VALUE other 4294967295 0\r\n\r\nEND\r\n";
+		byte[] bytes=input.getBytes();
+		for(int split=0; split <= bytes.length; split++) {
+			List<String> keys=Arrays.asList(new String("a"),
+				new String("bb"), new String("c"));
+			GetCollector cb=new GetCollector();
+			GetOperationImpl op=new GetOperationImpl(keys, cb);
+			op.initialize();
+			op.writeComplete();
+			op.readFromBuffer(ByteBuffer.wrap(bytes, 0, split));
+			op.readFromBuffer(ByteBuffer.wrap(bytes, split,
+				bytes.length - split));
+			assertSame(OperationState.COMPLETE, op.getState());
+			assertEquals(3, cb.keys.size());
+			assertSame(keys.get(1), cb.keys.get(0));
+			assertSame(keys.get(0), cb.keys.get(1));
+			assertEquals("other", cb.keys.get(2));
+			assertEquals(Arrays.asList(5, 0, -1), cb.flags);
+			assertEquals("xyz", new String(cb.values.get(0)));
+			assertEquals("q", new String(cb.values.get(1)));
+			assertEquals(0, cb.values.get(2).length);
+			assertTrue(cb.status.isSuccess());
+			assertEquals("END", cb.status.getMessage());
+		}
+	}
+
+	public void testGetsParsing() throws Exception {
+		String input="VALUE k 1 2 18446744073709551615\r\nhi\r\n"
+			+ "VALUE k 1 2 12345678901\r\nhi\r\nEND\r\n";
+		final List<Long> cases=new ArrayList<Long>();
+		GetsOperationImpl op=new GetsOperationImpl("k",
+			new GetsOperation.Callback() {
+				public void gotData(String k, int flags, long cas,
+						byte[] data) {
+					assertEquals("k", k);
+					assertEquals(1, flags);
+					assertEquals("hi", new String(data));
+					cases.add(cas);
+				}
+				public void receivedStatus(OperationStatus status) {
+					assertTrue(status.isSuccess());
+				}
+				public void complete() {
+					// nothing
+				}
+			});
+		op.initialize();
+		op.writeComplete();
+		op.readFromBuffer(ByteBuffer.wrap(input.getBytes()));
+		assertSame(OperationState.COMPLETE, op.getState());
+		assertEquals(Arrays.asList(-1L, 12345678901L), cases);
+	}
+
+	private static class GetCollector implements GetOperation.Callback {
+		final List<String> keys=new ArrayList<String>();
+		final List<Integer> flags=new ArrayList<Integer>();
+		final List<byte[]> values=new ArrayList<byte[]>();
+		OperationStatus status=null;
+
+		public void gotData(String key, int f, byte[] data) {
+			keys.add(key);
+			flags.add(f);
+			values.add(data);
+		}
+
+		public void receivedStatus(OperationStatus s) {
+			status=s;
+		}
+
+		public void complete() {
+			// nothing
+		}
+	}
+
 	private static class SimpleOp extends OperationImpl {
 
 		private final LinkedList<String> lines=new LinkedList<String>();
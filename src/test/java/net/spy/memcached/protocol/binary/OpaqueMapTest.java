@@ -0,0 +1,69 @@
+package net.spy.memcached.protocol.binary;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the opaque map.
+ */
+public class OpaqueMapTest extends TestCase {
+
+	public void testBasics() {
+		OpaqueMap<String> m=new OpaqueMap<String>();
+		assertEquals(0, m.size());
+		assertNull(m.get(1));
+		assertFalse(m.containsKey(1));
+		assertNull(m.put(1, "a"));
+		assertEquals("a", m.put(1, "b"));
+		assertEquals(1, m.size());
+		assertEquals("b", m.get(1));
+		assertTrue(m.containsKey(1));
+		assertEquals("b", m.remove(1));
+		assertNull(m.remove(1));
+		assertEquals(0, m.size());
+		assertFalse(m.containsKey(1));
+	}
+
+	public void testValues() {
+		OpaqueMap<Integer> m=new OpaqueMap<Integer>(3);
+		for(int i=100; i<200; i++) {
+			m.put(i, i);
+		}
+		int sum=0;
+		for(int i : m.values()) {
+			sum+=i;
+		}
+		assertEquals(14950, sum);
+		int slots=0;
+		for(int i=0; i<m.capacity(); i++) {
+			if(m.valueAt(i) != null) {
+				assertEquals(m.opaqueAt(i), m.valueAt(i).intValue());
+				slots++;
+			}
+		}
+		assertEquals(100, slots);
+	}
+
+	// Compare a long random sequence of changes against a HashMap.
+	public void testAgainstHashMap() {
+		Random r=new Random(42);
+		OpaqueMap<Integer> m=new OpaqueMap<Integer>();
+		Map<Integer, Integer> expected=new HashMap<Integer, Integer>();
+		for(int i=0; i<100000; i++) {
+			// Small range to get plenty of collisions and removals.
+			int k=r.nextInt(512) * 1024;
+			if(r.nextBoolean()) {
+				assertEquals(expected.put(k, i), m.put(k, i));
+			} else {
+				assertEquals(expected.remove(k), m.remove(k));
+			}
+			assertEquals(expected.size(), m.size());
+		}
+		for(int k=0; k<512 * 1024; k+=1024) {
+			assertEquals(expected.get(k), m.get(k));
+		}
+	}
+}
@@ -2,7 +2,17 @@ package net.spy.memcached.protocol.binary;
 
 import static net.spy.memcached.protocol.binary.OperationImpl.decodeInt;
 import static net.spy.memcached.protocol.binary.OperationImpl.decodeUnsignedInt;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import junit.framework.TestCase;
+import net.spy.memcached.KeyUtil;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.OperationState;
+import net.spy.memcached.ops.OperationStatus;
 
 /**
  * Test operation stuff.
@@ -35,4 +45,131 @@ public class OperatonTest extends TestCase {
 		String s=String.valueOf(OperationImpl.STATUS_OK);
 		assertEquals("{OperationStatus success=true:  OK}", s);
 	}
+
+	public void testGivenKeyBytes() throws Exception {
+		byte[] k=KeyUtil.getKeyBytes("k\u00e9y");
+		GetOperationImpl op=new GetOperationImpl("k\u00e9y",
+				new CollectingCallback());
+		op.setKeyBytes(k);
+		op.initialize();
+		ByteBuffer bb=op.getBuffer();
+		assertEquals(k.length, bb.getShort(2));
+		assertEquals(MIN_RECV + k.length, bb.remaining());
+		byte[] written=new byte[k.length];
+		bb.position(MIN_RECV);
+		bb.get(written);
+		assertTrue(Arrays.equals(k, written));
+		assertSame(k, op.getKeyBytes());
+	}
+
+	public void testGetResponseAtEverySplit() throws Exception {
+		byte[] value="some value".getBytes();
+		for(int split=0; split<=MIN_RECV + 4 + value.length; split++) {
+			CollectingCallback cb=new CollectingCallback();
+			GetOperationImpl op=new GetOperationImpl("k", cb);
+			byte[] res=getResponse(GetOperationImpl.CMD, op.opaque, 0, 8181,
+					value);
+			feed(op, res, split);
+			assertSame(OperationState.COMPLETE, op.getState());
+			assertEquals(1, cb.values.size());
+			assertEquals(8181, cb.flags);
+			assertTrue(Arrays.equals(value, cb.values.get(0)));
+			assertTrue(cb.status.isSuccess());
+		}
+	}
+
+	public void testGetMissAtEverySplit() throws Exception {
+		byte[] msg="Not found".getBytes();
+		for(int split=0; split<=MIN_RECV + msg.length; split++) {
+			CollectingCallback cb=new CollectingCallback();
+			GetOperationImpl op=new GetOperationImpl("k", cb);
+			ByteBuffer bb=ByteBuffer.allocate(MIN_RECV + msg.length);
+			putHeader(bb, GetOperationImpl.CMD, 0, OperationImpl.ERR_NOT_FOUND,
+					msg.length, op.opaque);
+			bb.put(msg);
+			feed(op, bb.array(), split);
+			assertSame(OperationState.COMPLETE, op.getState());
+			assertEquals(0, cb.values.size());
+			assertFalse(cb.status.isSuccess());
+		}
+	}
+
+	public void testMultiGetResponses() throws Exception {
+		byte[] v1="first".getBytes();
+		byte[] v2="second value".getBytes();
+		for(int split=0; split<=2 * MIN_RECV + 8 + v1.length + v2.length;
+				split++) {
+			CollectingCallback cb=new CollectingCallback();
+			MultiGetOperationImpl op=new MultiGetOperationImpl(
+					Arrays.asList("a", "b"), cb);
+			byte[] r1=getResponse(9, op.addKey("a"), 0, 1, v1);
+			byte[] r2=getResponse(9, op.addKey("b"), 0, 2, v2);
+			byte[] both=new byte[r1.length + r2.length];
+			System.arraycopy(r1, 0, both, 0, r1.length);
+			System.arraycopy(r2, 0, both, r1.length, r2.length);
+			feed(op, both, split);
+			assertEquals(Arrays.asList("a", "b"), cb.keys);
+			assertTrue(Arrays.equals(v1, cb.values.get(0)));
+			assertTrue(Arrays.equals(v2, cb.values.get(1)));
+			assertSame(OperationState.WRITING, op.getState());
+		}
+	}
+
+	private static final int MIN_RECV=OperationImpl.MIN_RECV_PACKET;
+
+	// Hand the response to the op in two reads, split at the given point.
+	private void feed(OperationImpl op, byte[] res, int split)
+		throws Exception {
+		ByteBuffer b=ByteBuffer.wrap(res, 0, split);
+		while(b.hasRemaining()) {
+			op.readFromBuffer(b);
+		}
+		b=ByteBuffer.wrap(res, split, res.length - split);
+		while(b.hasRemaining()) {
+			op.readFromBuffer(b);
+		}
+	}
+
+	private void putHeader(ByteBuffer bb, int cmd, int extraLen, int status,
+			int bodyLen, int opaque) {
+		bb.put(OperationImpl.RES_MAGIC);
+		bb.put((byte)cmd);
+		bb.putShort((short)0);
+		bb.put((byte)extraLen);
+		bb.put((byte)0);
+		bb.putShort((short)status);
+		bb.putInt(bodyLen);
+		bb.putInt(opaque);
+		bb.putLong(0);
+	}
+
+	private byte[] getResponse(int cmd, int opaque, int status, int flags,
+			byte[] value) {
+		ByteBuffer bb=ByteBuffer.allocate(MIN_RECV + 4 + value.length);
+		putHeader(bb, cmd, 4, status, 4 + value.length, opaque);
+		bb.putInt(flags);
+		bb.put(value);
+		return bb.array();
+	}
+
+	static class CollectingCallback implements GetOperation.Callback {
+		final List<String> keys=new ArrayList<String>();
+		final List<byte[]> values=new ArrayList<byte[]>();
+		int flags=0;
+		OperationStatus status=null;
+
+		public void gotData(String key, int f, byte[] data) {
+			keys.add(key);
+			flags=f;
+			values.add(data);
+		}
+
+		public void receivedStatus(OperationStatus s) {
+			status=s;
+		}
+
+		public void complete() {
+			// nothing
+		}
+	}
 }
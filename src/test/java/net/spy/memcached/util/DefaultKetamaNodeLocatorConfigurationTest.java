@@ -0,0 +1,91 @@
+package net.spy.memcached.util;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.MockMemcachedNode;
+
+/**
+ * Test the default ketama configuration's node weights.
+ */
+public class DefaultKetamaNodeLocatorConfigurationTest extends TestCase {
+
+	private DefaultKetamaNodeLocatorConfiguration conf;
+	private SocketAddress sa1;
+	private SocketAddress sa2;
+	private SocketAddress sa3;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		conf=new DefaultKetamaNodeLocatorConfiguration();
+		sa1=new InetSocketAddress("127.0.0.1", 11211);
+		sa2=new InetSocketAddress("127.0.0.1", 11212);
+		sa3=new InetSocketAddress("127.0.0.1", 11213);
+	}
+
+	private int weightOf(SocketAddress sa) {
+		MemcachedNode n=new MockMemcachedNode((InetSocketAddress)sa);
+		return conf.getNodeWeight(n);
+	}
+
+	public void testDefaultWeight() {
+		assertEquals(DefaultKetamaNodeLocatorConfiguration.DEFAULT_WEIGHT,
+			weightOf(sa1));
+	}
+
+	public void testSetWeight() {
+		conf.setNodeWeight(sa1, 5);
+		assertEquals(5, weightOf(sa1));
+		assertEquals(DefaultKetamaNodeLocatorConfiguration.DEFAULT_WEIGHT,
+			weightOf(sa2));
+	}
+
+	public void testNegativeWeight() {
+		try {
+			conf.setNodeWeight(sa1, -1);
+			fail("Accepted a negative weight");
+		} catch(IllegalArgumentException e) {
+			// pass
+		}
+	}
+
+	private Map<String, String> maxBytes(String v) {
+		Map<String, String> rv=new HashMap<String, String>();
+		rv.put("pid", "1");
+		if(v != null) {
+			rv.put(DefaultKetamaNodeLocatorConfiguration.MAX_BYTES_STAT, v);
+		}
+		return rv;
+	}
+
+	public void testWeightsFromStats() {
+		conf.setNodeWeight(sa3, 9);
+		Map<SocketAddress, Map<String, String>> stats=
+			new HashMap<SocketAddress, Map<String, String>>();
+		stats.put(sa1, maxBytes(String.valueOf(16L << 30)));
+		stats.put(sa2, maxBytes(String.valueOf(64L << 30)));
+		stats.put(sa3, maxBytes(null));
+		Map<SocketAddress, Integer> w=conf.setNodeWeightsFromStats(stats);
+		assertEquals(2, w.size());
+		assertEquals(16384, weightOf(sa1));
+		assertEquals(65536, weightOf(sa2));
+		// No stat, so it's left alone.
+		assertEquals(9, weightOf(sa3));
+	}
+
+	public void testTinyAndBogusStats() {
+		Map<SocketAddress, Map<String, String>> stats=
+			new HashMap<SocketAddress, Map<String, String>>();
+		stats.put(sa1, maxBytes("1024"));
+		stats.put(sa2, maxBytes("lots"));
+		conf.setNodeWeightsFromStats(stats);
+		assertEquals(1, weightOf(sa1));
+		assertEquals(DefaultKetamaNodeLocatorConfiguration.DEFAULT_WEIGHT,
+			weightOf(sa2));
+	}
+}